@@ -27,13 +27,18 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.AbstractSet;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Set;
 
 import au.rmit.agtgrp.lang.fol.expression.Expression;
@@ -62,28 +67,52 @@ public class ExpressionCsp implements Csp<Expression<Variable>> {
 		out.close();
 	}
 
+	// variables and constants have dense ids, in the order they were added
 	protected List<Variable> vars;
+	protected Map<Variable, Integer> varIds;
 	protected List<Constant> domain;
+	protected Map<Constant, Integer> constIds;
+
+	// domain of each variable, as a set of constant ids, indexed by variable id 
+	protected List<BitSet> domainBits;
 	protected Map<Variable, Set<Constant>> varDomains;
 	protected Map<List<Variable>, List<Expression<Variable>>> constraints;
 
 	public ExpressionCsp() {
 		vars = new ArrayList<Variable>();
+		varIds = new HashMap<Variable, Integer>();
 		domain = new ArrayList<Constant>();
+		constIds = new HashMap<Constant, Integer>();
+		domainBits = new ArrayList<BitSet>();
 		varDomains = new HashMap<Variable, Set<Constant>>();
 		constraints = new HashMap<List<Variable>, List<Expression<Variable>>>();
 	}
 
+	/**
+	 * Removes all variables, domain values and constraints.
+	 */
+	public void clear() {
+		vars.clear();
+		varIds.clear();
+		domain.clear();
+		constIds.clear();
+		domainBits.clear();
+		varDomains.clear();
+		constraints.clear();
+	}
+
 	@Override
 	public void addVariable(Variable v) {
 		if (v == null)
 			throw new NullPointerException();
 		
-		if (varDomains.get(v) == null)
-			varDomains.put(v, new HashSet<Constant>());
-
-		if (!vars.contains(v))
+		if (!varIds.containsKey(v)) {
+			int id = vars.size();
+			varIds.put(v, id);
 			vars.add(v);
+			domainBits.add(new BitSet());
+			varDomains.put(v, new DomainView(id));
+		}
 	}
 
 	@Override
@@ -94,7 +123,35 @@ public class ExpressionCsp implements Csp<Expression<Variable>> {
 
 	@Override
 	public List<Variable> getVariables() {
-		return vars;
+		return Collections.unmodifiableList(vars);
+	}
+
+	public int getVariableId(Variable var) {
+		Integer id = varIds.get(var);
+		return id == null ? -1 : id;
+	}
+
+	public Variable getVariable(int id) {
+		return vars.get(id);
+	}
+
+	public boolean containsVariable(Variable var) {
+		return varIds.containsKey(var);
+	}
+
+	/**
+	 * @return the ids of the given variables, in iteration order.
+	 */
+	public int[] getScope(Collection<Variable> scope) {
+		int[] ids = new int[scope.size()];
+		int i = 0;
+		for (Variable var : scope) {
+			Integer id = varIds.get(var);
+			if (id == null)
+				throw new IllegalArgumentException("Unknown variable: " + var);
+			ids[i++] = id;
+		}
+		return ids;
 	}
 
 	@Override
@@ -104,11 +161,13 @@ public class ExpressionCsp implements Csp<Expression<Variable>> {
 		
 		List<Variable> domain = new ArrayList<Variable>(con.getDomain());
 
-		if (!vars.containsAll(domain)) {
-			domain.removeAll(vars);
-			throw new IllegalArgumentException("Unknown variable in constraint!\n Constraint: " + con + "\nVars: " + domain);
-
+		for (Variable v : domain) {
+			if (!varIds.containsKey(v)) {
+				domain.removeAll(varIds.keySet());
+				throw new IllegalArgumentException("Unknown variable in constraint!\n Constraint: " + con + "\nVars: " + domain);
+			}
 		}
+
 		Collections.sort(domain, Comparators.SYMBOL_COMPARATOR);
 		List<Expression<Variable>> cons = constraints.get(domain);
 
@@ -138,7 +197,7 @@ public class ExpressionCsp implements Csp<Expression<Variable>> {
 			throw new NullPointerException();
 		
 		for (Variable v : vars)
-			if (!this.vars.contains(v))
+			if (!varIds.containsKey(v))
 				throw new IllegalArgumentException("Unknown variable: " + v);
 
 		vars = new ArrayList<Variable>(vars);
@@ -171,11 +230,20 @@ public class ExpressionCsp implements Csp<Expression<Variable>> {
 
 	@Override
 	public void addDomainValue(Constant dv) {
+		addConstant(dv);
+	}
+
+	private int addConstant(Constant dv) {
 		if (dv == null)
 			throw new NullPointerException("Cannot be null");
 		
-		if (!domain.contains(dv))
+		Integer id = constIds.get(dv);
+		if (id == null) {
+			id = domain.size();
+			constIds.put(dv, id);
 			domain.add(dv);
+		}
+		return id;
 	}
 
 	@Override
@@ -185,34 +253,59 @@ public class ExpressionCsp implements Csp<Expression<Variable>> {
 	}
 
 	public void addDomainValue(Variable var, Constant dv) {
-		addDomainValue(dv);
+		int c = addConstant(dv);
 		addVariable(var);
-		if (!varDomains.get(var).contains(dv))
-			varDomains.get(var).add(dv);
+		domainBits.get(varIds.get(var)).set(c);
 	}
 
 	public void addDomainValues(Variable var, Collection<Constant> dvs) {
-		addDomainValues(dvs);
 		addVariable(var);
-		for (Constant dv : dvs) {
-			if (!varDomains.get(var).contains(dv))
-				varDomains.get(var).add(dv);
-		}
+		BitSet bits = domainBits.get(varIds.get(var));
+		for (Constant dv : dvs)
+			bits.set(addConstant(dv));
 	}
 
 	@Override
 	public List<Constant> getDomain() {
-		return domain;
+		return Collections.unmodifiableList(domain);
+	}
+
+	public int getConstantId(Constant c) {
+		Integer id = constIds.get(c);
+		return id == null ? -1 : id;
+	}
+
+	public Constant getConstant(int id) {
+		return domain.get(id);
 	}
 
+	/**
+	 * The returned set is a live view of the domain, which can be modified.
+	 */
 	@Override
 	public Set<Constant> getDomain(Variable v) {
 		return varDomains.get(v);
 	}
 
+	/**
+	 * @return the ids of the constants in the domain of the variable with the given id.
+	 * The returned set is live and must not be modified.
+	 */
+	public BitSet getDomainBits(int varId) {
+		return domainBits.get(varId);
+	}
+
+	public BitSet getDomainBits(Variable var) {
+		return domainBits.get(varIds.get(var));
+	}
+
+	public boolean domainContains(int varId, int constId) {
+		return domainBits.get(varId).get(constId);
+	}
+
 	@Override
 	public Map<Variable, Set<Constant>> getDomains() {
-		return varDomains;
+		return Collections.unmodifiableMap(varDomains);
 	}
 
 	@Override
@@ -300,6 +393,99 @@ public class ExpressionCsp implements Csp<Expression<Variable>> {
 		return incGraph;
 	}
 
+	/*
+	 * A set of constants backed by the domain bits of a variable.
+	 */
+	private class DomainView extends AbstractSet<Constant> implements Serializable {
+
+		private static final long serialVersionUID = 1L;
+
+		private final int varId;
+
+		public DomainView(int varId) {
+			this.varId = varId;
+		}
+
+		@Override
+		public boolean contains(Object o) {
+			Integer c = constIds.get(o);
+			return c != null && domainBits.get(varId).get(c);
+		}
+
+		@Override
+		public boolean add(Constant dv) {
+			int c = addConstant(dv);
+			BitSet bits = domainBits.get(varId);
+			if (bits.get(c))
+				return false;
+
+			bits.set(c);
+			return true;
+		}
+
+		@Override
+		public boolean remove(Object o) {
+			Integer c = constIds.get(o);
+			BitSet bits = domainBits.get(varId);
+			if (c == null || !bits.get(c))
+				return false;
+
+			bits.clear(c);
+			return true;
+		}
+
+		@Override
+		public void clear() {
+			domainBits.get(varId).clear();
+		}
+
+		@Override
+		public int size() {
+			return domainBits.get(varId).cardinality();
+		}
+
+		@Override
+		public boolean isEmpty() {
+			return domainBits.get(varId).isEmpty();
+		}
+
+		@Override
+		public Iterator<Constant> iterator() {
+			final BitSet bits = domainBits.get(varId);
+
+			return new Iterator<Constant>() {
+
+				private int next = bits.nextSetBit(0);
+				private int last = -1;
+
+				@Override
+				public boolean hasNext() {
+					return next >= 0;
+				}
+
+				@Override
+				public Constant next() {
+					if (next < 0)
+						throw new NoSuchElementException();
+
+					last = next;
+					next = bits.nextSetBit(next + 1);
+					return domain.get(last);
+				}
+
+				@Override
+				public void remove() {
+					if (last < 0)
+						throw new IllegalStateException();
+
+					bits.clear(last);
+					last = -1;
+				}
+			};
+		}
+
+	}
+
 	@Override
 	public String toString() {
 		StringBuilder sb = new StringBuilder();
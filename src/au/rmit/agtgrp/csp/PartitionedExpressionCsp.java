@@ -21,12 +21,11 @@
 package au.rmit.agtgrp.csp;
 
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collection;
-import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -38,30 +37,63 @@ import au.rmit.agtgrp.lang.fol.expression.Expression;
 import au.rmit.agtgrp.lang.fol.function.Constant;
 import au.rmit.agtgrp.lang.fol.predicate.Atom;
 import au.rmit.agtgrp.lang.fol.predicate.Literal;
-import au.rmit.agtgrp.lang.fol.predicate.Predicate;
 import au.rmit.agtgrp.lang.fol.predicate.Relation;
 import au.rmit.agtgrp.lang.fol.symbol.Term;
 import au.rmit.agtgrp.lang.fol.symbol.Type;
 import au.rmit.agtgrp.lang.fol.symbol.Variable;
-import au.rmit.agtgrp.lang.utils.BinaryRelationUtils;
-import au.rmit.agtgrp.lang.utils.Comparators;
+import au.rmit.agtgrp.utils.collections.UnionFind;
 import au.rmit.agtgrp.utils.collections.graph.DirectedGraph;
 
 public class PartitionedExpressionCsp extends ExpressionCsp {
 
 	private static final long serialVersionUID = 1L;
 
+	private static final String PARTITION_VAR_PREFIX = "p_";
+
 	public static PartitionedExpressionCsp partition(ExpressionCsp csp) {
-		return partition(csp, buildEqualityRelation(csp));
+		return partition(csp, buildEqualityClasses(csp));
 	}
 
 	public static PartitionedExpressionCsp partition(ExpressionCsp csp, Relation<Variable> eqRelation) {
-		return partition(csp, buildMapping(csp.getVariables(), eqRelation));
+		UnionFind<Variable> classes = new UnionFind<Variable>(csp.getVariables());
+		for (Atom<Variable> atom : eqRelation)
+			classes.union(atom.getParameters().get(0), atom.getParameters().get(1));
+
+		return partition(csp, classes);
 	}
 
 	public static PartitionedExpressionCsp partition(ExpressionCsp csp, DirectedGraph<Variable> eqRelation) {
-		eqRelation.addVertices(csp.getVariables());
-		return partition(csp, buildMapping(eqRelation));
+		UnionFind<Variable> classes = new UnionFind<Variable>(csp.getVariables());
+		for (Variable v1 : eqRelation.getVertices()) {
+			for (Variable v2 : eqRelation.getEdgesFrom(v1))
+				classes.union(v1, v2);
+		}
+
+		return partition(csp, classes);
+	}
+
+	/**
+	 * Partitions the CSP's variables into the given equality classes. Variables not
+	 * in any class are added as singletons. Partition variables are numbered in the 
+	 * order of their first member in the union-find structure, so callers should add 
+	 * the CSP's variables first.
+	 * 
+	 * If the CSP is already partitioned, its variables that are not merged with any 
+	 * other keep their names, and merged classes are given names that have not been 
+	 * used by any earlier partition of it.
+	 */
+	public static PartitionedExpressionCsp partition(ExpressionCsp csp, UnionFind<Variable> eqClasses) {
+		eqClasses.addAll(csp.getVariables());
+
+		boolean repartition = csp instanceof PartitionedExpressionCsp;
+		int firstId = repartition ? getNextPartitionId((PartitionedExpressionCsp) csp) : 1;
+
+		Map<Variable, Variable> mapping = new HashMap<Variable, Variable>();
+		int nextId = buildMapping(eqClasses, repartition, firstId, mapping);
+
+		PartitionedExpressionCsp pcsp = partition(csp, new Substitution<Variable>(mapping));
+		pcsp.nextPartitionId = nextId;
+		return pcsp;
 	}
 
 	public static PartitionedExpressionCsp partition(ExpressionCsp csp, Substitution<Variable> sub) {
@@ -79,6 +111,8 @@ public class PartitionedExpressionCsp extends ExpressionCsp {
 		}
 		
 		PartitionedExpressionCsp pcsp = new PartitionedExpressionCsp(s2);
+		if (csp instanceof PartitionedExpressionCsp)
+			pcsp.nextPartitionId = ((PartitionedExpressionCsp) csp).nextPartitionId;
 
 		pcsp.addVariables(sub.getDomain());
 
@@ -120,149 +154,98 @@ public class PartitionedExpressionCsp extends ExpressionCsp {
 		return deps;
 	}
 
-	private static Relation<Variable> buildEqualityRelation(ExpressionCsp csp) {
-		// build relation
-		Relation<Variable> eqRelation = new Relation<Variable>(Predicate.EQUALS);
-		for (Variable v1 : csp.vars) {
-			for (Variable v2 : csp.vars) {
-				if (!v1.equals(v2)) {
-					Expression<Variable> eq = Expression.buildLiteral(Literal.equals(v1, v2, true));
-
-					List<Variable> key = Arrays.asList(v1, v2);
-					Collections.sort(key, Comparators.SYMBOL_COMPARATOR);
-					List<Expression<Variable>> cons = csp.constraints.get(key);
-					boolean consEq = (cons != null) && (cons.contains(eq));
-
-					Set<Constant> d1 = csp.getDomain(v1);
-					Set<Constant> d2 = csp.getDomain(v2);
-					boolean domEq = d1.size() == 1 && d1.equals(d2);
-
-					if (consEq || domEq) {
-						eqRelation.add(eq.getLiteral().getAtom());
-					}
-				}
+	private static UnionFind<Variable> buildEqualityClasses(ExpressionCsp csp) {
+		UnionFind<Variable> classes = new UnionFind<Variable>(csp.getVariables());
+
+		// explicit equality constraints
+		for (List<Variable> key : csp.constraints.keySet()) {
+			if (key.size() == 2) {
+				Variable v1 = key.get(0);
+				Variable v2 = key.get(1);
+				List<Expression<Variable>> cons = csp.constraints.get(key);
+				if (cons.contains(Expression.buildLiteral(Literal.equals(v1, v2, true))) || 
+						cons.contains(Expression.buildLiteral(Literal.equals(v2, v1, true))))
+					classes.union(v1, v2);
 			}
 		}
 
-		BinaryRelationUtils.closeSymmetric(eqRelation);
-		BinaryRelationUtils.closeTransitive(eqRelation);
-
-		return eqRelation;
-	}
-
-	private static Substitution<Variable> buildMapping(Collection<Variable> vars, Relation<Variable> eqRelation) {
-	
-		int np = 1;
-		Map<Integer, Set<Variable>> partitions = new HashMap<Integer, Set<Variable>>();
-
-		// find equal vertices
-		for (Variable v1 : vars) {
-			boolean found = false;
-			for (int p : partitions.keySet()) {
-				Variable v2 = partitions.get(p).iterator().next();
-
-				if (eqRelation.contains(Atom.equals(v1, v2, v1, v2))) {
-					found = true;
-					partitions.get(p).add(v1);
-					break;
-				}
-
-			}
-			if (!found) {
-				Set<Variable> part = new HashSet<Variable>();
-				part.add(v1);
-				partitions.put(np++, part);
+		// variables fixed to the same value
+		Map<Constant, Variable> fixed = new HashMap<Constant, Variable>();
+		for (Variable var : csp.vars) {
+			BitSet domain = csp.getDomainBits(var);
+			if (domain.cardinality() == 1) {
+				Constant c = csp.getConstant(domain.nextSetBit(0));
+				Variable prev = fixed.get(c);
+				if (prev == null)
+					fixed.put(c, var);
+				else
+					classes.union(prev, var);
 			}
 		}
 
-		Map<Variable, Variable> mapping = new HashMap<Variable, Variable>();
+		return classes;
+	}
 
-		for (int p : partitions.keySet()) {
-			Type type = null;
-			for (Variable var : partitions.get(p)) {
-				if (type == null || type.hasSubtype(var.getType())) {
-					type = var.getType();
+	private static int getNextPartitionId(PartitionedExpressionCsp csp) {
+		// in case the csp was not partitioned by this class, skip any names in use
+		int next = csp.nextPartitionId;
+		for (Variable var : csp.getVariables()) {
+			String name = var.getName();
+			if (name.startsWith(PARTITION_VAR_PREFIX)) {
+				try {
+					next = Math.max(next, Integer.parseInt(name.substring(PARTITION_VAR_PREFIX.length())) + 1);
+				} catch (NumberFormatException e) {
+					// not a partition variable name
 				}
 			}
-			Variable partitionVar = new Variable(type, "p_" + p).intern();
-			for (Variable var : partitions.get(p)) {
-				mapping.put(var, partitionVar);
-			}
 		}
-
-		// init substitution
-		return new Substitution<Variable>(mapping);
-
+		return next;
 	}
 
-	private static Substitution<Variable> buildMapping(DirectedGraph<Variable> eqRelation) {
-		int np = 1;
-		Map<Integer, Set<Variable>> partitions = new HashMap<Integer, Set<Variable>>();
-
-		// find equal vertices
-		for (Variable v1 : eqRelation.getVertices()) {
-			boolean found = false;
-			for (int p : partitions.keySet()) {
-				Variable v2 = partitions.get(p).iterator().next();
-
-				if (eqRelation.containsEdge(v1, v2) || eqRelation.containsEdge(v2, v1)) {
-					found = true;
-					partitions.get(p).add(v1);
-					break;
-				}
+	private static int buildMapping(UnionFind<Variable> eqClasses, boolean keepSingletons, int firstId, Map<Variable, Variable> mapping) {
 
+		int np = firstId;
+		for (List<Variable> partition : eqClasses.getClasses()) {
+			if (keepSingletons && partition.size() == 1) {
+				mapping.put(partition.get(0), partition.get(0));
+				continue;
 			}
-			if (!found) {
-				Set<Variable> part = new HashSet<Variable>();
-				part.add(v1);
-				partitions.put(np++, part);
-			}
-		}
 
-		Map<Variable, Variable> mapping = new HashMap<Variable, Variable>();
-
-		for (int p : partitions.keySet()) {
 			Type type = null;
-			for (Variable var : partitions.get(p)) {
+			for (Variable var : partition) {
 				if (type == null || type.hasSubtype(var.getType())) {
 					type = var.getType();
 				}
 			}
-			Variable partitionVar = new Variable(type, "p_" + p).intern();
-			for (Variable var : partitions.get(p)) {
+			Variable partitionVar = new Variable(type, PARTITION_VAR_PREFIX + np++).intern();
+			for (Variable var : partition) {
 				mapping.put(var, partitionVar);
 			}
 		}
 
-		// init substitution
-		return new Substitution<Variable>(mapping);
+		return np;
 
 	}
 
 	private static Map<Variable, Set<Constant>> buildDomains(ExpressionCsp csp, Substitution<Variable> sub) {
-		Map<Variable, Set<Variable>> partitionMapping = new HashMap<Variable, Set<Variable>>();
-
-		// build partitions
+		
+		// intersect domains of every var in partition, in one pass over the variables
+		Map<Variable, BitSet> partitionDomains = new HashMap<Variable, BitSet>();
 		for (Variable var : sub.getVariables()) {
 			Variable part = sub.apply(var);
-			Set<Variable> partition = partitionMapping.get(part);
-			if (partition == null) {
-				partition = new HashSet<Variable>();
-				partitionMapping.put(part, partition);
-			}
-
-			partition.add(var);
+			BitSet domain = partitionDomains.get(part);
+			if (domain == null)
+				partitionDomains.put(part, (BitSet) csp.getDomainBits(var).clone());
+			else
+				domain.and(csp.getDomainBits(var));
 		}
 
 		Map<Variable, Set<Constant>> newDomains = new HashMap<Variable, Set<Constant>>();
-
-		// build domains -- intersection of every var in partition
-		for (Variable part : partitionMapping.keySet()) {
-			Set<Variable> partition = partitionMapping.get(part);
-			Set<Constant> domain = new HashSet<Constant>(csp.domain);
-			for (Variable var : partition) {
-				domain.retainAll(csp.getDomain(var));
-			}
+		for (Variable part : partitionDomains.keySet()) {
+			BitSet bits = partitionDomains.get(part);
+			Set<Constant> domain = new LinkedHashSet<Constant>();
+			for (int c = bits.nextSetBit(0); c >= 0; c = bits.nextSetBit(c + 1))
+				domain.add(csp.getConstant(c));
 			newDomains.put(part, domain);
 		}
 		
@@ -270,9 +253,11 @@ public class PartitionedExpressionCsp extends ExpressionCsp {
 	}
 
 	protected Substitution<Variable> partitionSub;
+	protected int nextPartitionId;
 
 	public PartitionedExpressionCsp(Substitution<Variable> sub) {
 		this.partitionSub = sub;
+		this.nextPartitionId = 1;
 	}
 
 	public Substitution<Variable> getMapping() {
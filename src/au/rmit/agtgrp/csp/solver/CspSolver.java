@@ -25,16 +25,17 @@ import java.io.File;
 import java.io.IOException;
 import java.io.PrintStream;
 import java.nio.file.Files;
+import java.util.Collections;
 
 import au.rmit.agtgrp.csp.Csp;
 import au.rmit.agtgrp.csp.ExpressionCsp;
-import au.rmit.agtgrp.csp.solver.output.CachedCspOutputSet;
 import au.rmit.agtgrp.csp.solver.output.CspOutputSet;
+import au.rmit.agtgrp.csp.solver.output.CspOutputSink;
+import au.rmit.agtgrp.csp.solver.output.CspOutputWriter;
+import au.rmit.agtgrp.csp.solver.output.StreamingCspOutputSet;
 
 public abstract class CspSolver {
 
-	private static int COUNTER = 0;
-
 	protected ZincFormatter zf;
 
 	protected final File tempDir;
@@ -43,8 +44,12 @@ public abstract class CspSolver {
 	protected ExpressionCsp csp;
 	protected File cspFile;
 	protected File solnsFile;
+	protected CspOutputSink outputSink;
 
 	protected boolean verbose;
+
+	// solution files are named per solver, as each solver has its own temp dir
+	private int solnsFileCounter = 0;
 	
 	public CspSolver(File tempDir) {
 		this.tempDir = tempDir;
@@ -57,7 +62,7 @@ public abstract class CspSolver {
 	}
 	
 	private File getInternalSolnsFile() {
-		return new File(tempDir, "sols_" + COUNTER++ + ".subs");
+		return new File(tempDir, "sols_" + solnsFileCounter++ + ".subs");
 	}
 
 	public CspSolutionSet getSolutions() {
@@ -69,7 +74,7 @@ public abstract class CspSolver {
 		if (outputIt == null)
 			return null;
 
-		return new CspSolutionSet((CachedCspOutputSet) outputIt, zf.getVariablesInOrder(), zf.getObjectsByIndex());
+		return new CspSolutionSet(outputIt, zf.getVariablesInOrder(), zf.getObjectsByIndex());
 	}
 
 	public File getCspFile() {
@@ -150,8 +155,54 @@ public abstract class CspSolver {
 
 	public void solve(ExpressionCsp csp, int nsols, File solnsFile, long timeout, int nthreads) throws InterruptedException {
 
-		this.csp = csp;
 		this.solnsFile = solnsFile;
+		outputSink = null;
+		writeCsp(csp);
+		
+		// run CSP solver
+		execute(tempCspFile, nsols, solnsFile, timeout, nthreads);
+
+	}
+
+	public CspSolutionSet streamSolutions(ExpressionCsp csp, long timeout) {
+		return streamSolutions(csp, timeout, StreamingCspOutputSet.DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Runs the solver on a background thread, passing solutions to the returned set 
+	 * as they are found. The solver must not be reused until the returned set has
+	 * been iterated or closed, and the solver has finished.
+	 * 
+	 * @param capacity	the maximum number of solutions held in memory
+	 */
+	public CspSolutionSet streamSolutions(ExpressionCsp csp, final long timeout, int capacity) {
+
+		final StreamingCspOutputSet stream = new StreamingCspOutputSet(capacity);
+		
+		solnsFile = null;
+		outputSink = stream;
+		writeCsp(csp);
+		
+		Thread solverThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					execute(tempCspFile, 0, null, timeout, 0);
+				} catch (InterruptedException | RuntimeException e) {
+					stream.fail(e);
+				}
+			}
+		}, "csp-solver-stream");
+		
+		solverThread.setDaemon(true);
+		solverThread.start();
+
+		return new CspSolutionSet(stream, zf.getVariablesInOrder(), zf.getObjectsByIndex());
+	}
+
+	protected void writeCsp(ExpressionCsp csp) {
+
+		this.csp = csp;
 		this.cspFile = tempCspFile;
 		zf = new ZincFormatter(csp);
 
@@ -166,10 +217,23 @@ public abstract class CspSolver {
 		} catch (IOException e) {
 			throw new RuntimeException(e);
 		}
-		
-		// run CSP solver
-		execute(tempCspFile, nsols, solnsFile, timeout, nthreads);
+	}
+
+	/**
+	 * @return the sink solutions should be written to, or null if they are only 
+	 * being counted.
+	 */
+	protected CspOutputSink openOutputSink() {
+		if (outputSink != null)
+			return outputSink;
+		if (solnsFile != null) {
+			// pack values as tightly as the object indices allow
+			if (zf != null && !zf.getObjectsByIndex().isEmpty())
+				return new CspOutputWriter(solnsFile, Collections.max(zf.getObjectsByIndex().keySet()));
+			return new CspOutputWriter(solnsFile);
+		}
 
+		return null;
 	}
 
 	public void solve(File cspFile, int nsols, File solnsFile, long timeout, int nthreads) throws InterruptedException {
@@ -177,6 +241,7 @@ public abstract class CspSolver {
 		csp = null;
 		this.cspFile = cspFile;
 		this.solnsFile = solnsFile;
+		outputSink = null;
 		zf = null;
 
 		// run CSP solver
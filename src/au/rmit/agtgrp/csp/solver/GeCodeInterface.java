@@ -31,7 +31,7 @@ import java.util.List;
 import java.util.Map;
 
 import au.rmit.agtgrp.csp.solver.output.CachedCspOutputSet;
-import au.rmit.agtgrp.csp.solver.output.CspOutputWriter;
+import au.rmit.agtgrp.csp.solver.output.CspOutputSink;
 import au.rmit.agtgrp.utils.FileLinesIterator;
 import au.rmit.agtgrp.utils.NullPrintStream;
 
@@ -67,7 +67,7 @@ public class GeCodeInterface extends CspSolver {
 		if (solnsFile == null)
 			return null;
 
-		return new CachedCspOutputSet(solnsFile, nSolutions);
+		return new CachedCspOutputSet(solnsFile);
 	}
 
 	@Override
@@ -138,7 +138,7 @@ public class GeCodeInterface extends CspSolver {
 		try {
 
 			BufferedReader stdInput = null;
-			CspOutputWriter cspOutputWriter = null;
+			CspOutputSink cspOutput = null;
 
 			// prevent cancellation while process is being initialised
 			synchronized(this) {
@@ -150,10 +150,7 @@ public class GeCodeInterface extends CspSolver {
 				satisfiable = true;
 
 
-				if (solnsFile != null) {
-					cspOutputWriter = new CspOutputWriter(solnsFile);
-					solnsFile.mkdirs();
-				}
+				cspOutput = openOutputSink();
 				if (nsols < 0)
 					nsols = 0;
 
@@ -179,6 +176,8 @@ public class GeCodeInterface extends CspSolver {
 
 			while ((s = stdInput.readLine()) != null) { // if cancelled, this will be null
 
+				short[] completed = null;
+
 				synchronized(this) {
 					if (Thread.interrupted()) {
 						Thread.currentThread().interrupt();
@@ -196,7 +195,7 @@ public class GeCodeInterface extends CspSolver {
 						printingSolutions = false;
 
 					// solutions are being printed and solutions are being saved
-					if (printingSolutions && solnsFile != null && !s.isEmpty()) {
+					if (printingSolutions && cspOutput != null && !s.isEmpty()) {
 
 						// format is for each line is
 						// p_1 = 1;
@@ -204,17 +203,17 @@ public class GeCodeInterface extends CspSolver {
 
 						if (s.contains("----")) {
 							nSolutions++;
-							for (String var : ozn.vars) {
-								var = ozn.getEquivalentVar(var);
+							completed = new short[ozn.vars.size()];
+							for (int i = 0; i < completed.length; i++) {
+								String var = ozn.getEquivalentVar(ozn.vars.get(i));
 								if (soln.containsKey(var))
-									cspOutputWriter.writeValue(soln.get(var));
+									completed[i] = soln.get(var);
 								else if (ozn.variableVals.containsKey(var))
-									cspOutputWriter.writeValue(ozn.variableVals.get(var));
+									completed[i] = ozn.variableVals.get(var);
 								else
 									throw new RuntimeException("Cannot find value for variable: " + var);
 							}
 
-							cspOutputWriter.endSolution();
 							soln.clear();
 
 						} else {
@@ -231,6 +230,13 @@ public class GeCodeInterface extends CspSolver {
 					else if (s.contains("runtime"))
 						runtime = Double.valueOf(s.substring(s.indexOf("(") + 1, s.indexOf(" ms")));
 				}
+
+				// written outside the lock, as a streaming sink may block until the consumer catches up
+				if (completed != null) {
+					for (short val : completed)
+						cspOutput.writeValue(val);
+					cspOutput.endSolution();
+				}
 			}
 
 			synchronized(this) {
@@ -238,11 +244,11 @@ public class GeCodeInterface extends CspSolver {
 				process = null;
 				thread = null;
 				
-				if (solnsFile != null)
-					cspOutputWriter.end();
-
 				timedOut = timeout > 0 && runtime > timeout;
 
+				if (cspOutput != null)
+					cspOutput.end();
+
 				if (Thread.interrupted()) {
 					Thread.currentThread().interrupt();
 					throw new InterruptedException();
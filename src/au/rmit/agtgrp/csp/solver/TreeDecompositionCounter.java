@@ -0,0 +1,786 @@
+/*******************************************************************************
+ * MKTR - Minimal k-Treewidth Relaxation
+ *
+ * Copyright (C) 2018 
+ * Max Waters (max.waters@rmit.edu.au)
+ * RMIT University, Melbourne VIC 3000
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package au.rmit.agtgrp.csp.solver;
+
+import java.io.File;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import au.rmit.agtgrp.csp.ExpressionCsp;
+import au.rmit.agtgrp.csp.alldiff.AllDifferent;
+import au.rmit.agtgrp.csp.solver.output.CspOutputSet;
+import au.rmit.agtgrp.lang.fol.expression.Expression;
+import au.rmit.agtgrp.lang.fol.predicate.Literal;
+import au.rmit.agtgrp.lang.fol.predicate.Predicate;
+import au.rmit.agtgrp.lang.fol.symbol.Variable;
+import au.rmit.agtgrp.utils.NullPrintStream;
+import au.rmit.agtgrp.utils.collections.graph.UndirectedGraph;
+import au.rmit.agtgrp.utils.collections.graph.treewidth.EliminationOrdering;
+
+/**
+ * Counts the solutions of an ExpressionCsp without enumerating them, by bucket 
+ * elimination along a min-fill ordering of the primal graph. This is exponential 
+ * only in the width of the ordering, so is fast on the bounded treewidth CSPs 
+ * produced by MKTR.
+ * 
+ * An alldifferent constraint, such as the one over the operator variables of a final 
+ * CSP, would make all of its variables a single scope. Instead, it is counted by 
+ * tracking the values taken by its eliminated variables. Each factor records which of 
+ * the values it carries are taken, and a value is only carried while an uneliminated 
+ * variable of the alldifferent could still take it. When such a variable is 
+ * eliminated, it is combined with every factor carrying one of its values. The cost 
+ * then depends on how many values are carried at once, which is small when the 
+ * operators' positions are narrowed to overlapping windows.
+ * 
+ * Requests for solutions, CSPs given as files, and CSPs whose ordering is too wide 
+ * or whose intermediate tables are too large, are passed to a fallback solver.
+ */
+public class TreeDecompositionCounter extends CspSolver {
+
+	public static final int DEFAULT_MAX_WIDTH = 12;
+	public static final int DEFAULT_MAX_TABLE_SIZE = 1 << 22;
+
+	private final CspSolver fallback;
+
+	private int maxWidth;
+	private int maxTableSize;
+
+	private boolean delegated;
+	private long count;
+	private double runtime;
+	private boolean timedOut;
+
+	private volatile boolean cancelled;
+
+	private PrintStream out;
+
+	// current problem
+	private int[][] domains;
+	private int[] values;
+	private Map<Variable, Integer> varIds;
+	private long deadline;
+
+	// the alldifferent counted by tracking taken values
+	private boolean[] allDiffVars;
+	private int[] liveCounts; // by value, the number of uneliminated alldifferent variables which can take it
+
+	public TreeDecompositionCounter(File tempDir, CspSolver fallback) {
+		super(tempDir);
+		this.fallback = fallback;
+		maxWidth = DEFAULT_MAX_WIDTH;
+		maxTableSize = DEFAULT_MAX_TABLE_SIZE;
+		out = NullPrintStream.INSTANCE;
+	}
+
+	public void setMaxWidth(int maxWidth) {
+		this.maxWidth = maxWidth;
+	}
+
+	public void setMaxTableSize(int maxTableSize) {
+		this.maxTableSize = maxTableSize;
+	}
+
+	/**
+	 * @return true if the last call was passed to the fallback solver.
+	 */
+	public boolean isDelegated() {
+		return delegated;
+	}
+
+	/**
+	 * @return the number of solutions found by the last call, which may exceed 
+	 * Integer.MAX_VALUE. Saturates at Long.MAX_VALUE.
+	 */
+	public long getExactSolutionCount() {
+		return delegated ? fallback.getSolutionCount() : count;
+	}
+
+	@Override
+	public void setVerbose(boolean verbose) {
+		super.setVerbose(verbose);
+		fallback.setVerbose(verbose);
+	}
+
+	@Override
+	public void setPrintStream(PrintStream out) {
+		this.out = out;
+		fallback.setPrintStream(out);
+	}
+
+	@Override
+	public void solve(ExpressionCsp csp, int nsols, File solnsFile, long timeout, int nthreads) throws InterruptedException {
+
+		cancelled = false;
+		delegated = false;
+
+		if (solnsFile == null) {
+			this.csp = csp;
+			this.solnsFile = null;
+			this.cspFile = null;
+			zf = new ZincFormatter(csp);
+
+			if (count(csp, timeout))
+				return;
+			
+			out.println("Solution count delegated to " + fallback.getClass().getSimpleName());
+		}
+
+		delegated = true;
+		fallback.solve(csp, nsols, solnsFile, timeout, nthreads);
+		this.csp = csp;
+		this.solnsFile = solnsFile;
+		this.cspFile = fallback.getCspFile();
+		zf = fallback.zf;
+	}
+
+	@Override
+	public CspSolutionSet streamSolutions(ExpressionCsp csp, long timeout, int capacity) {
+		cancelled = false;
+		delegated = true;
+		CspSolutionSet solns = fallback.streamSolutions(csp, timeout, capacity);
+		this.csp = csp;
+		this.solnsFile = null;
+		this.cspFile = fallback.getCspFile();
+		zf = fallback.zf;
+		return solns;
+	}
+
+	/*
+	 * Called by solve(File, ...). CSPs given as files are always passed to the 
+	 * fallback solver.
+	 */
+	@Override
+	protected void execute(File cspFile, int nsols, File solnsFile, long timeout, int nthreads) throws InterruptedException {
+		cancelled = false;
+		delegated = true;
+		fallback.solve(cspFile, nsols, solnsFile, timeout, nthreads);
+	}
+
+	@Override
+	public void cancel() {
+		cancelled = true;
+		fallback.cancel();
+	}
+
+	@Override
+	public int getSolutionCount() {
+		if (delegated)
+			return fallback.getSolutionCount();
+		return (int) Math.min(count, Integer.MAX_VALUE);
+	}
+
+	@Override
+	public double getRuntime() {
+		return delegated ? fallback.getRuntime() : runtime;
+	}
+
+	@Override
+	public boolean timedOut() {
+		return delegated ? fallback.timedOut() : timedOut;
+	}
+
+	@Override
+	public boolean satisfiable() {
+		return delegated ? fallback.satisfiable() : count > 0;
+	}
+
+	@Override
+	public CspOutputSet getSolverOutput() {
+		return delegated ? fallback.getSolverOutput() : null;
+	}
+
+	/*
+	 * Counts the solutions of the CSP, returning false if it is too wide to count.
+	 */
+	private boolean count(ExpressionCsp csp, long timeout) throws InterruptedException {
+
+		long start = System.currentTimeMillis();
+		deadline = timeout > 0 ? start + timeout : Long.MAX_VALUE;
+		count = 0;
+		timedOut = false;
+		runtime = -1;
+
+		// index variables, fixing those with a single value
+		List<Variable> vars = zf.getVariablesInOrder();
+		varIds = new HashMap<Variable, Integer>();
+		domains = new int[vars.size()][];
+		values = new int[vars.size()];
+
+		boolean empty = false;
+		for (int i = 0; i < vars.size(); i++) {
+			Variable var = vars.get(i);
+			varIds.put(var, i);
+
+			domains[i] = zf.getDomainIndices(var);
+
+			if (domains[i].length == 0)
+				empty = true;
+			else if (domains[i].length == 1)
+				values[i] = domains[i][0];
+		}
+
+		if (empty) {
+			runtime = System.currentTimeMillis() - start;
+			return true;
+		}
+
+		Literal<Variable> allDiff = getAllDifferent(csp);
+		if (!initAllDifferent(allDiff)) { // no solutions
+			runtime = System.currentTimeMillis() - start;
+			return true;
+		}
+
+		// group constraints by their free variables
+		Map<List<Integer>, List<Expression<Variable>>> scopes = new HashMap<List<Integer>, List<Expression<Variable>>>();
+		for (List<Expression<Variable>> exps : csp.getConstraints().values()) {
+			for (Expression<Variable> exp : exps) {
+				if (allDiff != null && exp.isLiteral() && exp.getLiteral() == allDiff)
+					continue;
+
+				List<Integer> scope = new ArrayList<Integer>();
+				for (Variable var : exp.getDomain()) {
+					int id = varIds.get(var);
+					if (domains[id].length > 1)
+						scope.add(id);
+				}
+				scope.sort(null);
+
+				List<Expression<Variable>> list = scopes.get(scope);
+				if (list == null) {
+					list = new ArrayList<Expression<Variable>>();
+					scopes.put(scope, list);
+				}
+				list.add(exp);
+			}
+		}
+
+		// check the ordering is narrow enough
+		UndirectedGraph<Integer> primal = new UndirectedGraph<Integer>();
+		for (List<Integer> scope : scopes.keySet()) {
+			for (int i = 0; i < scope.size(); i++) {
+				primal.addVertex(scope.get(i));
+				for (int j = i + 1; j < scope.size(); j++)
+					primal.addEdge(scope.get(i), scope.get(j));
+			}
+		}
+
+		for (int i = 0; i < domains.length; i++) {
+			if (allDiffVars[i])
+				primal.addVertex(i);
+		}
+
+		List<Integer> ordering = getOrdering(primal);
+		if (ordering == null)
+			return false;
+
+		// build initial factors
+		List<Factor> factors = new ArrayList<Factor>();
+		long result = 1;
+		for (Map.Entry<List<Integer>, List<Expression<Variable>>> entry : scopes.entrySet()) {
+			int[] scope = new int[entry.getKey().size()];
+			for (int i = 0; i < scope.length; i++)
+				scope[i] = entry.getKey().get(i);
+
+			if (getTableSize(scope) > maxTableSize)
+				return false;
+
+			Factor factor = buildFactor(scope, entry.getValue());
+			if (factor == null) {
+				timedOut = true;
+				runtime = System.currentTimeMillis() - start;
+				return true;
+			}
+
+			if (scope.length == 0)
+				result = multiply(result, factor.getTotal());
+			else
+				factors.add(factor);
+		}
+
+		// unconstrained variables take any value
+		for (int i = 0; i < domains.length; i++) {
+			if (domains[i].length > 1 && !primal.getVertices().contains(i))
+				result = multiply(result, domains[i].length);
+		}
+
+		// eliminate
+		for (int var : ordering) {
+			if (result == 0)
+				break;
+
+			BitSet varValues = getValues(var);
+			List<Factor> bucket = new ArrayList<Factor>();
+			List<Factor> rest = new ArrayList<Factor>();
+			for (Factor factor : factors) {
+				if (factor.contains(var) || (allDiffVars[var] && factor.carried.intersects(varValues)))
+					bucket.add(factor);
+				else
+					rest.add(factor);
+			}
+
+			if (allDiffVars[var]) {
+				for (int value : domains[var])
+					liveCounts[value]--;
+			}
+
+			Factor summed = sumOut(bucket, var);
+			if (summed == null)
+				return false;
+			if (cancelled || Thread.currentThread().isInterrupted())
+				throw new InterruptedException();
+			if (System.currentTimeMillis() > deadline) {
+				timedOut = true;
+				runtime = System.currentTimeMillis() - start;
+				return true;
+			}
+
+			factors = rest;
+			if (summed.scope.length == 0 && summed.carried.isEmpty())
+				result = multiply(result, summed.getTotal());
+			else
+				factors.add(summed);
+		}
+
+		// the remaining factors carry disjoint sets of values
+		for (Factor factor : factors)
+			result = multiply(result, factor.getTotal());
+
+		count = result;
+		runtime = System.currentTimeMillis() - start;
+		return true;
+	}
+
+	/*
+	 * Tabulates the conjunction of the constraints over their free variables, or 
+	 * returns null if the deadline is passed.
+	 */
+	private Factor buildFactor(int[] scope, List<Expression<Variable>> exps) throws InterruptedException {
+
+		long[] table = new long[(int) getTableSize(scope)];
+		int[] assignment = new int[scope.length];
+
+		for (int index = 0; index < table.length; index++) {
+			if ((index & 0xFFF) == 0) {
+				if (cancelled || Thread.currentThread().isInterrupted())
+					throw new InterruptedException();
+				if (System.currentTimeMillis() > deadline)
+					return null;
+			}
+
+			for (int i = 0; i < scope.length; i++)
+				values[scope[i]] = domains[scope[i]][assignment[i]];
+
+			boolean sat = true;
+			for (int i = 0; i < exps.size() && sat; i++)
+				sat = evaluate(exps.get(i));
+
+			table[index] = sat ? 1 : 0;
+			increment(assignment, scope);
+		}
+
+		Factor factor = new Factor(scope, new BitSet());
+		factor.tables.put(new BitSet(), table);
+		return factor;
+	}
+
+	/*
+	 * Multiplies the factors together and sums out the variable, or returns null if 
+	 * the resulting tables are too large. If the variable is in the alldifferent, its 
+	 * value is added to the taken values, and values which no uneliminated variable 
+	 * can take are forgotten.
+	 */
+	private Factor sumOut(List<Factor> bucket, int var) {
+
+		List<Integer> union = new ArrayList<Integer>();
+		for (Factor factor : bucket) {
+			for (int v : factor.scope) {
+				if (v != var && !union.contains(v))
+					union.add(v);
+			}
+		}
+		union.sort(null);
+
+		int[] scope = new int[union.size()];
+		for (int i = 0; i < scope.length; i++)
+			scope[i] = union.get(i);
+
+		long size = getTableSize(scope);
+		if (size > maxTableSize)
+			return null;
+
+		BitSet carried = new BitSet();
+		for (Factor factor : bucket)
+			carried.or(factor.carried);
+		if (allDiffVars[var])
+			carried.or(getValues(var));
+		for (int value = carried.nextSetBit(0); value >= 0; value = carried.nextSetBit(value + 1)) {
+			if (liveCounts[value] == 0)
+				carried.clear(value);
+		}
+
+		Factor summed = new Factor(scope, carried);
+		Map<Integer, Integer> positions = new HashMap<Integer, Integer>();
+		for (int i = 0; i < scope.length; i++)
+			positions.put(scope[i], i);
+
+		// for each factor, the position of each of its variables in the new scope (or -1 for var)
+		int[][] maps = new int[bucket.size()][];
+		for (int f = 0; f < bucket.size(); f++) {
+			int[] fscope = bucket.get(f).scope;
+			maps[f] = new int[fscope.length];
+			for (int i = 0; i < fscope.length; i++)
+				maps[f][i] = fscope[i] == var ? -1 : positions.get(fscope[i]);
+		}
+
+		if (!sumOut(bucket, 0, new BitSet(), new long[bucket.size()][], var, maps, summed, (int) size))
+			return null;
+
+		return summed;
+	}
+
+	/*
+	 * Chooses a table from each factor, such that no value is taken in more than one, 
+	 * and adds their product to the summed factor. Returns false if the summed factor 
+	 * becomes too large.
+	 */
+	private boolean sumOut(List<Factor> bucket, int f, BitSet taken, long[][] tables, int var, int[][] maps, 
+			Factor summed, int size) {
+
+		if (f < bucket.size()) {
+			for (Map.Entry<BitSet, long[]> entry : bucket.get(f).tables.entrySet()) {
+				if (entry.getKey().intersects(taken))
+					continue;
+
+				BitSet next = (BitSet) taken.clone();
+				next.or(entry.getKey());
+				tables[f] = entry.getValue();
+				if (!sumOut(bucket, f + 1, next, tables, var, maps, summed, size))
+					return false;
+			}
+			return true;
+		}
+
+		// the summed table for each value of var
+		long[][] outTables = new long[domains[var].length][];
+		for (int x = 0; x < domains[var].length; x++) {
+			BitSet mask = (BitSet) taken.clone();
+			if (allDiffVars[var]) {
+				if (mask.get(domains[var][x]))
+					continue;
+				mask.set(domains[var][x]);
+			}
+			mask.and(summed.carried);
+
+			long[] table = summed.tables.get(mask);
+			if (table == null) {
+				if ((long) (summed.tables.size() + 1) * size > maxTableSize)
+					return false;
+				table = new long[size];
+				summed.tables.put(mask, table);
+			}
+			outTables[x] = table;
+		}
+
+		int[] assignment = new int[summed.scope.length];
+		for (int index = 0; index < size; index++) {
+			for (int x = 0; x < domains[var].length; x++) {
+				if (outTables[x] == null)
+					continue;
+
+				long product = 1;
+				for (int i = 0; i < bucket.size() && product != 0; i++) {
+					Factor factor = bucket.get(i);
+					int findex = 0;
+					for (int j = 0; j < factor.scope.length; j++) {
+						int val = maps[i][j] < 0 ? x : assignment[maps[i][j]];
+						findex = findex * domains[factor.scope[j]].length + val;
+					}
+					product = multiply(product, tables[i][findex]);
+				}
+				outTables[x][index] = add(outTables[x][index], product);
+			}
+			increment(assignment, summed.scope);
+		}
+
+		return true;
+	}
+
+	/*
+	 * The first alldifferent constraint which is a whole constraint, rather than part 
+	 * of one, or null.
+	 */
+	private static Literal<Variable> getAllDifferent(ExpressionCsp csp) {
+		for (List<Expression<Variable>> exps : csp.getConstraints().values()) {
+			for (Expression<Variable> exp : exps) {
+				if (exp.isLiteral() && exp.getLiteral().getValue() && AllDifferent.isAllDifferentLiteral(exp.getLiteral()))
+					return exp.getLiteral();
+			}
+		}
+		return null;
+	}
+
+	/*
+	 * Marks the free variables of the alldifferent, removing the values of its fixed 
+	 * variables from their domains. Returns false if it cannot be satisfied.
+	 */
+	private boolean initAllDifferent(Literal<Variable> allDiff) {
+
+		allDiffVars = new boolean[domains.length];
+		int maxValue = 0;
+
+		if (allDiff != null) {
+			BitSet fixed = new BitSet();
+			boolean[] seen = new boolean[domains.length];
+			for (Variable var : allDiff.getAtom().getParameters()) {
+				int id = varIds.get(var);
+				if (seen[id])
+					return false;
+				seen[id] = true;
+
+				if (domains[id].length == 1) {
+					if (fixed.get(values[id]))
+						return false;
+					fixed.set(values[id]);
+				}
+				else
+					allDiffVars[id] = true;
+			}
+
+			// fixing a variable may fix others
+			boolean changed = true;
+			while (changed) {
+				changed = false;
+				for (int id = 0; id < domains.length; id++) {
+					if (!allDiffVars[id])
+						continue;
+
+					int n = 0;
+					int[] filtered = new int[domains[id].length];
+					for (int value : domains[id]) {
+						if (!fixed.get(value))
+							filtered[n++] = value;
+					}
+					if (n < domains[id].length)
+						domains[id] = Arrays.copyOf(filtered, n);
+
+					if (n == 0)
+						return false;
+					if (n == 1) {
+						values[id] = domains[id][0];
+						fixed.set(values[id]);
+						allDiffVars[id] = false;
+						changed = true;
+					}
+				}
+			}
+
+			for (int id = 0; id < domains.length; id++) {
+				if (allDiffVars[id]) {
+					for (int value : domains[id])
+						maxValue = Math.max(maxValue, value);
+				}
+			}
+		}
+
+		liveCounts = new int[maxValue + 1];
+		for (int id = 0; id < domains.length; id++) {
+			if (allDiffVars[id]) {
+				for (int value : domains[id])
+					liveCounts[value]++;
+			}
+		}
+
+		return true;
+	}
+
+	/*
+	 * A min-fill ordering of the primal graph, or null if it is too wide. Variables of 
+	 * the alldifferent whose domains overlap are first made adjacent, so that they are 
+	 * eliminated close together and their values are forgotten sooner. If that ordering 
+	 * is too wide for the constraints themselves, the plain ordering is used.
+	 */
+	private List<Integer> getOrdering(UndirectedGraph<Integer> primal) {
+
+		List<Integer> allDiff = new ArrayList<Integer>();
+		for (int i = 0; i < domains.length; i++) {
+			if (allDiffVars[i])
+				allDiff.add(i);
+		}
+
+		if (!allDiff.isEmpty()) {
+			UndirectedGraph<Integer> overlaps = new UndirectedGraph<Integer>();
+			for (int v : primal.getVertices()) {
+				overlaps.addVertex(v);
+				for (int u : primal.getLinksFrom(v))
+					overlaps.addEdge(v, u);
+			}
+			for (int i = 0; i < allDiff.size(); i++) {
+				BitSet iValues = getValues(allDiff.get(i));
+				for (int j = i + 1; j < allDiff.size(); j++) {
+					if (iValues.intersects(getValues(allDiff.get(j))))
+						overlaps.addEdge(allDiff.get(i), allDiff.get(j));
+				}
+			}
+
+			List<Integer> ordering = EliminationOrdering.getMinFillOrdering(overlaps);
+			if (EliminationOrdering.getWidth(primal, ordering) <= maxWidth)
+				return ordering;
+		}
+
+		List<Integer> ordering = EliminationOrdering.getMinFillOrdering(primal);
+		if (EliminationOrdering.getWidth(primal, ordering) > maxWidth)
+			return null;
+		return ordering;
+	}
+
+	private BitSet getValues(int var) {
+		BitSet bits = new BitSet();
+		for (int value : domains[var])
+			bits.set(value);
+		return bits;
+	}
+
+	private boolean evaluate(Expression<Variable> exp) {
+		if (exp.isLiteral())
+			return evaluate(exp.getLiteral());
+
+		List<Expression<Variable>> subs = exp.getSubexpressions();
+		switch (exp.getConnective()) {
+		case AND:
+			for (Expression<Variable> sub : subs) {
+				if (!evaluate(sub))
+					return false;
+			}
+			return true;
+		case OR:
+			for (Expression<Variable> sub : subs) {
+				if (evaluate(sub))
+					return true;
+			}
+			return false;
+		case IMPL:
+			return !evaluate(subs.get(0)) || evaluate(subs.get(1));
+		case NOT:
+			return !evaluate(subs.get(0));
+		}
+
+		throw new IllegalArgumentException("Cannot handle expression: " + exp);
+	}
+
+	private boolean evaluate(Literal<Variable> lit) {
+		Predicate predicate = lit.getAtom().getSymbol();
+		List<Variable> params = lit.getAtom().getParameters();
+
+		boolean holds;
+		if (predicate.equals(Predicate.TRUE))
+			holds = true;
+		else if (predicate.equals(Predicate.EQUALS))
+			holds = valueOf(params.get(0)) == valueOf(params.get(1));
+		else if (predicate.equals(Predicate.PREC))
+			holds = valueOf(params.get(0)) < valueOf(params.get(1));
+		else if (AllDifferent.isAllDifferentSymbol(predicate)) {
+			holds = true;
+			for (int i = 0; i < params.size() && holds; i++) {
+				for (int j = i + 1; j < params.size() && holds; j++)
+					holds = valueOf(params.get(i)) != valueOf(params.get(j));
+			}
+		} else
+			throw new IllegalArgumentException("Cannot handle literal: " + lit);
+
+		return holds == lit.getValue();
+	}
+
+	private int valueOf(Variable var) {
+		return values[varIds.get(var)];
+	}
+
+	private long getTableSize(int[] scope) {
+		long size = 1;
+		for (int v : scope) {
+			size *= domains[v].length;
+			if (size > Integer.MAX_VALUE)
+				return Long.MAX_VALUE;
+		}
+		return size;
+	}
+
+	/*
+	 * Advances an assignment of domain value positions, in row-major order.
+	 */
+	private void increment(int[] assignment, int[] scope) {
+		for (int i = scope.length - 1; i >= 0; i--) {
+			if (++assignment[i] < domains[scope[i]].length)
+				return;
+			assignment[i] = 0;
+		}
+	}
+
+	private static long multiply(long a, long b) {
+		if (a == 0 || b == 0)
+			return 0;
+		if (a > Long.MAX_VALUE / b)
+			return Long.MAX_VALUE;
+		return a * b;
+	}
+
+	private static long add(long a, long b) {
+		return a > Long.MAX_VALUE - b ? Long.MAX_VALUE : a + b;
+	}
+
+	private static class Factor {
+
+		final int[] scope;
+		final BitSet carried; // values of eliminated alldifferent variables which may still be taken again
+		final Map<BitSet, long[]> tables; // by the carried values which are taken
+
+		Factor(int[] scope, BitSet carried) {
+			this.scope = scope;
+			this.carried = carried;
+			this.tables = new LinkedHashMap<BitSet, long[]>();
+		}
+
+		boolean contains(int var) {
+			for (int v : scope) {
+				if (v == var)
+					return true;
+			}
+			return false;
+		}
+
+		/*
+		 * The sum of the first entry of each table, which is the count of a factor with 
+		 * no variables.
+		 */
+		long getTotal() {
+			long total = 0;
+			for (long[] table : tables.values())
+				total = add(total, table[0]);
+			return total;
+		}
+	}
+
+}
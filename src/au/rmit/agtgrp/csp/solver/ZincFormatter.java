@@ -25,6 +25,8 @@ import java.io.FileReader;
 import java.io.IOException;
 import java.io.File;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
@@ -45,7 +47,6 @@ import au.rmit.agtgrp.lang.fol.predicate.Predicate;
 import au.rmit.agtgrp.lang.fol.symbol.Type;
 import au.rmit.agtgrp.lang.fol.symbol.Variable;
 import au.rmit.agtgrp.lang.utils.Comparators;
-import au.rmit.agtgrp.utils.FormattingUtils;
 
 public class ZincFormatter {
 
@@ -172,6 +173,7 @@ public class ZincFormatter {
 	private List<Variable> variables;
 	private Map<Integer, Constant> indToObj;
 	private Map<Constant, Integer> objToInd;
+	private int[] indsByConstantId;
 	private int highestObj;
 
 	public ZincFormatter(ExpressionCsp csp) {
@@ -211,6 +213,34 @@ public class ZincFormatter {
 			objToInd.put(obj, highestObj);
 		}
 
+		indsByConstantId = new int[csp.getDomain().size()];
+		for (int c = 0; c < indsByConstantId.length; c++)
+			indsByConstantId[c] = objToInd.get(csp.getConstant(c));
+
+	}
+
+	/**
+	 * @return the object indices of the domain of the variable, in ascending order.
+	 */
+	public int[] getDomainIndices(Variable var) {
+		BitSet bits = csp.getDomainBits(var);
+		int[] inds = new int[bits.cardinality()];
+		int i = 0;
+		for (int c = bits.nextSetBit(0); c >= 0; c = bits.nextSetBit(c + 1))
+			inds[i++] = indsByConstantId[c];
+
+		Arrays.sort(inds);
+		return inds;
+	}
+
+	private String formatDomainIndices(Variable var) {
+		StringBuilder sb = new StringBuilder();
+		for (int ind : getDomainIndices(var)) {
+			if (sb.length() > 0)
+				sb.append(",");
+			sb.append(ind);
+		}
+		return sb.toString();
 	}
 
 	public List<Variable> getVariablesInOrder() {
@@ -280,28 +310,17 @@ public class ZincFormatter {
 
 	public String formatVarDeclarations() {
 		StringBuilder sb = new StringBuilder();
-		for (Variable var : variables) {
-			List<Integer> rangeInds = new ArrayList<Integer>();
-			for (Constant d : csp.getDomain(var))
-				rangeInds.add(objToInd.get(d));
+		for (Variable var : variables)
+			sb.append("var {" + formatDomainIndices(var) + "} : " + varname(var) + ";\n");
 
-			Collections.sort(rangeInds);
-			
-			sb.append("var {" + FormattingUtils.toString(rangeInds, ",") + "} : " + varname(var) + ";\n");
-		}
 		return sb.toString();
 	}
 
 	public String formatDomains() {
 		StringBuilder sb = new StringBuilder();
-		for (Variable var : variables) {
-			List<Integer> rangeInds = new ArrayList<Integer>();
-			for (Constant d : csp.getDomain(var))
-				rangeInds.add(objToInd.get(d));
+		for (Variable var : variables)
+			sb.append("constraint " + varname(var) + " in {" + formatDomainIndices(var) + "};\n");
 
-			Collections.sort(rangeInds);
-			sb.append("constraint " + varname(var) + " in {" + FormattingUtils.toString(rangeInds, ",") + "};\n");
-		}
 
 		return sb.toString();
 	}
@@ -387,8 +406,9 @@ public class ZincFormatter {
 	}
 	
 	private String formatVariable(Variable var) {
-		if (csp.getDomain(var).size() == 1) // sub wit constant
-			return Integer.toString(objToInd.get(csp.getDomain(var).iterator().next()));
+		BitSet bits = csp.getDomainBits(var);
+		if (bits.cardinality() == 1) // sub wit constant
+			return Integer.toString(indsByConstantId[bits.nextSetBit(0)]);
 		else
 			return varname(var);
 	}
@@ -21,22 +21,73 @@
 package au.rmit.agtgrp.csp.solver.output;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
 import java.util.NoSuchElementException;
-
+import java.util.Spliterator;
+import java.util.function.Consumer;
+
+/**
+ * Reads solutions written by CspOutputWriter. The file is memory-mapped, so any 
+ * solution can be read by index, and ranges of solutions can be read in parallel,
+ * e.g. with StreamSupport.stream(set.spliterator(), true).
+ */
 public class CachedCspOutputSet implements CspOutputSet {
 
-	private File solnsFile;
-	private int solnCount;
+	private final File solnsFile;
+
+	private final int bitsPerValue;
+	private final int valuesPerSoln;
+	private final int minValue;
+	private final long solnCount;
+
+	private final int recordSize;
+	private final long solnsPerSegment;
+	private final MappedByteBuffer[] segments;
 
-	public CachedCspOutputSet(File solnsFile, int count) {
+	public CachedCspOutputSet(File solnsFile) {
 		this.solnsFile = solnsFile;
-		this.solnCount = count;
+
+		try (FileChannel in = FileChannel.open(solnsFile.toPath(), StandardOpenOption.READ)) {
+
+			ByteBuffer header = ByteBuffer.allocate(CspOutputWriter.HEADER_SIZE);
+			while (header.hasRemaining() && in.read(header, header.position()) >= 0);
+			header.flip();
+
+			if (header.remaining() < CspOutputWriter.HEADER_SIZE || header.getInt() != CspOutputWriter.MAGIC)
+				throw new IllegalArgumentException("Not a solutions file: " + solnsFile);
+
+			bitsPerValue = header.getInt();
+			valuesPerSoln = header.getInt();
+			minValue = header.getInt();
+			solnCount = header.getLong();
+
+			recordSize = CspOutputWriter.getRecordSize(bitsPerValue, valuesPerSoln);
+			solnsPerSegment = CspOutputWriter.MAX_SEGMENT_SIZE / recordSize;
+
+			long expectedSize = CspOutputWriter.HEADER_SIZE + solnCount * recordSize;
+			if (in.size() < expectedSize)
+				throw new IllegalArgumentException("Truncated solutions file: " + solnsFile);
+
+			// map every segment up front, so reads need no locking
+			int nSegments = (int) ((solnCount + solnsPerSegment - 1) / solnsPerSegment);
+			segments = new MappedByteBuffer[nSegments];
+			for (int s = 0; s < nSegments; s++) {
+				long first = s * solnsPerSegment;
+				long n = Math.min(solnsPerSegment, solnCount - first);
+				segments[s] = in.map(FileChannel.MapMode.READ_ONLY, 
+						CspOutputWriter.HEADER_SIZE + first * recordSize, n * recordSize);
+			}
+
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
 	}
 
 	@Override
@@ -46,86 +97,128 @@ public class CachedCspOutputSet implements CspOutputSet {
 
 	@Override
 	public int getSolutionCount() {
+		return (int) Math.min(solnCount, Integer.MAX_VALUE);
+	}
+
+	public long size() {
 		return solnCount;
 	}
 
+	public int getValuesPerSolution() {
+		return valuesPerSoln;
+	}
+
 	@Override
 	public boolean isCached() {
 		return true;
 	}
 
+	public List<Integer> get(long index) {
+		List<Integer> soln = new ArrayList<Integer>(valuesPerSoln);
+		for (int val : getValues(index))
+			soln.add(val);
+		return soln;
+	}
+
+	public int[] getValues(long index) {
+		if (index < 0 || index >= solnCount)
+			throw new IndexOutOfBoundsException("Solution " + index + " of " + solnCount);
+
+		// absolute reads do not change the buffer's position, so are safe across threads
+		ByteBuffer segment = segments[(int) (index / solnsPerSegment)];
+		int pos = (int) (index % solnsPerSegment) * recordSize;
+
+		int[] vals = new int[valuesPerSoln];
+		long mask = (1L << bitsPerValue) - 1;
+		long acc = 0;
+		int accBits = 0;
+		for (int i = 0; i < valuesPerSoln; i++) {
+			while (accBits < bitsPerValue) {
+				acc |= (segment.get(pos++) & 0xFFL) << accBits;
+				accBits += 8;
+			}
+			vals[i] = (int) ((acc & mask) + minValue);
+			acc >>>= bitsPerValue;
+			accBits -= bitsPerValue;
+		}
+
+		return vals;
+	}
+
 	@Override
 	public Iterator<List<Integer>> iterator() {
-		return new CspOutputIterator();
+		return iterator(0, solnCount);
 	}
 
-	private class CspOutputIterator implements Iterator<List<Integer>> {
+	/**
+	 * @return an iterator over solutions from (inclusive) to to (exclusive).
+	 */
+	public Iterator<List<Integer>> iterator(final long from, final long to) {
+		if (from < 0 || to > solnCount || from > to)
+			throw new IndexOutOfBoundsException("Range [" + from + ", " + to + ") of " + solnCount);
+
+		return new Iterator<List<Integer>>() {
 
-		private ObjectInputStream in;
+			private long next = from;
 
-		private int rotationNum;
+			@Override
+			public boolean hasNext() {
+				return next < to;
+			}
 
-		List<Integer> soln;
+			@Override
+			public List<Integer> next() {
+				if (!hasNext())
+					throw new NoSuchElementException();
 
-		public CspOutputIterator() {
-			try {
-				in = new ObjectInputStream(new FileInputStream(solnsFile));
-				rotationNum = 0;
-				readLine();
-			} catch (IOException e) {
-				throw new RuntimeException(e);
+				return get(next++);
 			}
+		};
+	}
+
+	@Override
+	public Spliterator<List<Integer>> spliterator() {
+		return new RangeSpliterator(0, solnCount);
+	}
 
+	private class RangeSpliterator implements Spliterator<List<Integer>> {
+
+		private long from;
+		private final long to;
+
+		public RangeSpliterator(long from, long to) {
+			this.from = from;
+			this.to = to;
 		}
 
 		@Override
-		public boolean hasNext() {
-			return soln != null;
+		public boolean tryAdvance(Consumer<? super List<Integer>> action) {
+			if (from >= to)
+				return false;
+
+			action.accept(get(from++));
+			return true;
 		}
 
 		@Override
-		public List<Integer> next() {
-			if (!hasNext()) {
-				throw new NoSuchElementException();
-			}
-
-			List<Integer> sol = soln;
-			readLine();
-			return sol;
+		public Spliterator<List<Integer>> trySplit() {
+			long mid = (from + to) >>> 1;
+			if (mid <= from)
+				return null;
+
+			Spliterator<List<Integer>> prefix = new RangeSpliterator(from, mid);
+			from = mid;
+			return prefix;
 		}
 
-		private void readLine() {
-
-			try {
-				soln = new ArrayList<Integer>();
-
-				while (true) {
-					short val = in.readShort();
-
-					if (val == CspOutputWriter.EOL) {
-						break;
-					} else if (val == CspOutputWriter.EOF) {
-						if (!soln.isEmpty()) {
-							throw new RuntimeException("EOF without EOL!");
-						}
-
-						rotationNum++;
-						File nextFile = new File(solnsFile.getAbsolutePath() + "." + rotationNum);
-						if (nextFile.exists()) { // there is a next file
-							in = new ObjectInputStream(new FileInputStream(nextFile));
-						} else { // current file is empty, there is no next file
-									// -- done
-							soln = null;
-							break;
-						}
-					} else
-						soln.add((int) val);
-
-				}
-			} catch (IOException e) {
-				throw new RuntimeException(e);
-			}
+		@Override
+		public long estimateSize() {
+			return to - from;
+		}
 
+		@Override
+		public int characteristics() {
+			return ORDERED | SIZED | SUBSIZED | NONNULL | IMMUTABLE;
 		}
 
 	}
@@ -0,0 +1,34 @@
+/*******************************************************************************
+ * MKTR - Minimal k-Treewidth Relaxation
+ *
+ * Copyright (C) 2018 
+ * Max Waters (max.waters@rmit.edu.au)
+ * RMIT University, Melbourne VIC 3000
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package au.rmit.agtgrp.csp.solver.output;
+
+/**
+ * Receives solutions from a CSP solver, one value at a time.
+ */
+public interface CspOutputSink {
+
+	public void writeValue(short value);
+
+	public void endSolution();
+
+	public void end();
+
+}
@@ -21,97 +21,183 @@
 package au.rmit.agtgrp.csp.solver.output;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.ObjectOutputStream;
-
-public class CspOutputWriter {
-
-	public static final short EOF = Short.MIN_VALUE;
-	public static final short EOL = Short.MIN_VALUE + 1;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Writes solutions as fixed-width records of bit-packed values, to be read by 
+ * CachedCspOutputSet. Each value takes just enough bits to hold the largest value, 
+ * and each record is padded to a whole number of bytes, so record i can be found 
+ * without reading records 0 to i-1.
+ * 
+ * The number of values per solution is taken from the first solution. The file 
+ * header is written by end(), so the file is only readable once end() is called.
+ */
+public class CspOutputWriter implements CspOutputSink {
+
+	static final int MAGIC = 0x4d4b5452; // "MKTR"
+	static final int HEADER_SIZE = 32;
+
+	// values are mapped in segments of at most this many bytes. A whole number of records fits in each.
+	static final int MAX_SEGMENT_SIZE = 1 << 30;
+
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	private final File file;
+	private final FileChannel out;
+	private ByteBuffer buffer;
+
+	private final int bitsPerValue;
+	private final int minValue;
+	private final long maxPacked;
+
+	private int[] soln;
+	private int solnLength;
+	private int valuesPerSoln;
+	private long solnCount;
+
+	/**
+	 * Creates a writer for any short value.
+	 */
+	public CspOutputWriter(File outputFile) {
+		this(outputFile, Short.MIN_VALUE, Short.MAX_VALUE);
+	}
 
-	public static final int MAX_FILE_SIZE = 1000000000;
-	public static int MAX_FILES = 20;
+	/**
+	 * Creates a writer for values in [0, maxValue], such as the object indices of a 
+	 * ZincFormatter.
+	 */
+	public CspOutputWriter(File outputFile, int maxValue) {
+		this(outputFile, 0, maxValue);
+	}
 
-	private ObjectOutputStream out;
-	private File file;
+	private CspOutputWriter(File outputFile, int minValue, int maxValue) {
+		if (maxValue < minValue)
+			throw new IllegalArgumentException("Empty value range: [" + minValue + ", " + maxValue + "]");
 
-	private int bytesWritten;
+		this.minValue = minValue;
+		this.maxPacked = (long) maxValue - minValue;
+		bitsPerValue = Math.max(1, 64 - Long.numberOfLeadingZeros(maxPacked));
 
-	private int rotationNum;
+		soln = new int[16];
+		solnLength = 0;
+		valuesPerSoln = -1;
+		solnCount = 0;
 
-	public CspOutputWriter(File outputFile) {
 		try {
-
-			bytesWritten = 0;
-			rotationNum = 0;
-
-			clear(outputFile);
-
-			file = new File(outputFile.getAbsolutePath());
-			out = new ObjectOutputStream(new FileOutputStream(outputFile));
-
+			file = outputFile.getAbsoluteFile();
+			file.getParentFile().mkdirs();
+			out = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, 
+					StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+			out.position(HEADER_SIZE);
 		} catch (IOException e) {
 			throw new RuntimeException(e);
 		}
 	}
 
-	private void clear(File outputFile) {
-		if (outputFile.exists())
-			outputFile.delete();
+	public File getFile() {
+		return file;
+	}
 
-		int r = 1;
-		File newFile;
-		do {
-			newFile = new File(outputFile.getAbsolutePath() + "." + r);
-			r++;
-		} while (newFile.delete());
+	public int getBitsPerValue() {
+		return bitsPerValue;
 	}
 
+	@Override
 	public void writeValue(short value) {
-		try {
-			out.writeShort(value);
-			bytesWritten += 2;
-		} catch (IOException e) {
-			throw new RuntimeException(e);
+		long packed = (long) value - minValue;
+		if (packed < 0 || packed > maxPacked)
+			throw new IllegalArgumentException("Value out of range: " + value);
+
+		if (solnLength == soln.length) {
+			int[] grown = new int[soln.length * 2];
+			System.arraycopy(soln, 0, grown, 0, solnLength);
+			soln = grown;
 		}
+		soln[solnLength++] = (int) packed;
 	}
 
+	@Override
 	public void endSolution() {
-		try {
-			out.writeShort(EOL);
-			out.flush();
-			bytesWritten += 2;
-			// rotate output file?
-			if (bytesWritten >= MAX_FILE_SIZE) {
-				out.writeShort(EOF);
-				out.flush();
-				out.close();
-
-				rotationNum++;
-				if (rotationNum >= MAX_FILES)
-					throw new RuntimeException("Output size limit reached!");
+		if (valuesPerSoln < 0) {
+			valuesPerSoln = solnLength;
+			int recordSize = getRecordSize(bitsPerValue, valuesPerSoln);
+			if (recordSize > MAX_SEGMENT_SIZE)
+				throw new IllegalArgumentException("Solution too large: " + valuesPerSoln + " values");
+			buffer = ByteBuffer.allocate(Math.max(BUFFER_SIZE, recordSize));
+		}
+		else if (solnLength != valuesPerSoln)
+			throw new IllegalArgumentException("Solution size (" + solnLength + ") != previous solution size (" + valuesPerSoln + ")");
 
-				File newFile = new File(file.getAbsolutePath() + "." + rotationNum);
-				out = new ObjectOutputStream(new FileOutputStream(newFile));
+		try {
+			int recordSize = getRecordSize(bitsPerValue, valuesPerSoln);
+			if (buffer.remaining() < recordSize)
+				flush();
+
+			int start = buffer.position();
+
+			long acc = 0;
+			int accBits = 0;
+			for (int i = 0; i < solnLength; i++) {
+				acc |= ((long) soln[i]) << accBits;
+				accBits += bitsPerValue;
+				while (accBits >= 8) {
+					buffer.put((byte) acc);
+					acc >>>= 8;
+					accBits -= 8;
+				}
+			}
+			if (accBits > 0)
+				buffer.put((byte) acc);
 
-				bytesWritten = 0;
+			// pad empty solutions
+			while (buffer.position() - start < recordSize)
+				buffer.put((byte) 0);
 
-			}
+			solnLength = 0;
+			solnCount++;
 
 		} catch (IOException e) {
 			throw new RuntimeException(e);
 		}
 	}
 
+	@Override
 	public void end() {
 		try {
-			out.writeShort(EOF);
-			out.flush();
+			flush();
+
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			header.putInt(MAGIC);
+			header.putInt(bitsPerValue);
+			header.putInt(Math.max(valuesPerSoln, 0));
+			header.putInt(minValue);
+			header.putLong(solnCount);
+			header.flip();
+			while (header.hasRemaining())
+				out.write(header, header.position());
+
 			out.close();
 		} catch (IOException e) {
 			throw new RuntimeException(e);
 		}
 	}
 
+	private void flush() throws IOException {
+		if (buffer == null) // no solutions
+			return;
+
+		buffer.flip();
+		while (buffer.hasRemaining())
+			out.write(buffer);
+		buffer.clear();
+	}
+
+	static int getRecordSize(int bitsPerValue, int valuesPerSoln) {
+		long bits = (long) bitsPerValue * valuesPerSoln;
+		return (int) Math.max(1, (bits + 7) / 8);
+	}
+
 }
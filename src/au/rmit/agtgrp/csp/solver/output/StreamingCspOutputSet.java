@@ -0,0 +1,200 @@
+/*******************************************************************************
+ * MKTR - Minimal k-Treewidth Relaxation
+ *
+ * Copyright (C) 2018 
+ * Max Waters (max.waters@rmit.edu.au)
+ * RMIT University, Melbourne VIC 3000
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package au.rmit.agtgrp.csp.solver.output;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Passes solutions from a running solver to a single consumer through a bounded
+ * queue. The solver blocks when the queue is full, so solutions are never written
+ * to disk. The set can only be iterated once.
+ * 
+ * The solution count is the number of solutions produced so far, and is final once
+ * isFinished() returns true.
+ */
+public class StreamingCspOutputSet implements CspOutputSet, CspOutputSink {
+
+	public static final int DEFAULT_CAPACITY = 1024;
+
+	private static final long POLL_MILLIS = 100;
+
+	private final BlockingQueue<List<Integer>> queue;
+	private final CountDownLatch finished;
+
+	private List<Integer> current;
+	private volatile int solnCount;
+	private volatile boolean closed;
+	private volatile Throwable failure;
+
+	private boolean iterated;
+
+	public StreamingCspOutputSet() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	public StreamingCspOutputSet(int capacity) {
+		queue = new ArrayBlockingQueue<List<Integer>>(capacity);
+		finished = new CountDownLatch(1);
+		current = new ArrayList<Integer>();
+		solnCount = 0;
+		closed = false;
+		iterated = false;
+	}
+
+	@Override
+	public void writeValue(short value) {
+		current.add((int) value);
+	}
+
+	@Override
+	public void endSolution() {
+		List<Integer> soln = current;
+		current = new ArrayList<Integer>(soln.size());
+		solnCount++;
+
+		try {
+			while (!closed && !queue.offer(soln, POLL_MILLIS, TimeUnit.MILLISECONDS));
+		} catch (InterruptedException e) { 
+			// solver has been cancelled, it will notice the interrupt
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	@Override
+	public void end() {
+		finished.countDown();
+	}
+
+	/**
+	 * Called by the solver thread if it terminates abnormally. The exception is
+	 * rethrown to the consumer.
+	 */
+	public void fail(Throwable t) {
+		failure = t;
+		finished.countDown();
+	}
+
+	/**
+	 * Stops the consumer from receiving any more solutions. The solver continues
+	 * without blocking, and its solutions are counted but discarded.
+	 */
+	public void close() {
+		closed = true;
+		queue.clear();
+	}
+
+	public boolean isFinished() {
+		return finished.getCount() == 0;
+	}
+
+	public void awaitFinished() throws InterruptedException {
+		finished.await();
+		checkFailure();
+	}
+
+	private void checkFailure() {
+		if (failure != null)
+			throw new RuntimeException("CSP solver failed", failure);
+	}
+
+	@Override
+	public int getSolutionCount() {
+		return solnCount;
+	}
+
+	@Override
+	public boolean isCached() {
+		return false;
+	}
+
+	@Override
+	public File getSolutionsFile() {
+		return null;
+	}
+
+	@Override
+	public synchronized Iterator<List<Integer>> iterator() {
+		if (iterated)
+			throw new IllegalStateException("Solutions can only be streamed once");
+
+		iterated = true;
+		return new StreamingIterator();
+	}
+
+	private class StreamingIterator implements Iterator<List<Integer>> {
+
+		private List<Integer> next;
+		private boolean done;
+
+		@Override
+		public boolean hasNext() {
+			if (next == null && !done)
+				next = take();
+
+			return next != null;
+		}
+
+		@Override
+		public List<Integer> next() {
+			if (!hasNext())
+				throw new NoSuchElementException();
+
+			List<Integer> soln = next;
+			next = null;
+			return soln;
+		}
+
+		private List<Integer> take() {
+			try {
+				while (!closed) {
+					boolean ended = isFinished();
+					// always check the queue after checking for the end, so the last solutions are not lost
+					List<Integer> soln = queue.poll(ended ? 0 : POLL_MILLIS, TimeUnit.MILLISECONDS);
+					if (soln != null)
+						return soln;
+
+					if (ended) {
+						done = true;
+						checkFailure();
+						return null;
+					}
+				}
+
+				done = true;
+				return null;
+
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RuntimeException(e);
+			}
+		}
+
+	}
+
+}
@@ -133,8 +133,9 @@ public class Expression<T extends Term> implements Serializable {
 	private final Literal<T> literal;
 	private final List<Expression<T>> subexpressions;
 
-	private Set<Literal<T>> literals;
-	private Set<T> domain;
+	// lazily computed, may be shared between threads
+	private volatile Set<Literal<T>> literals;
+	private volatile Set<T> domain;
 
 	private final int hashCode;
 
@@ -190,6 +191,7 @@ public class Expression<T extends Term> implements Serializable {
 	}
 
 	public Set<T> getDomain() {
+		Set<T> domain = this.domain;
 		if (domain == null) {
 			domain = new HashSet<T>();
 			if (this.isLiteral())
@@ -198,11 +200,13 @@ public class Expression<T extends Term> implements Serializable {
 				for (Expression<T> exp : subexpressions)
 					domain.addAll(exp.getDomain());
 			}
+			this.domain = domain;
 		}
 		return domain;
 	}
 
 	public Set<Literal<T>> getLiterals() {
+		Set<Literal<T>> literals = this.literals;
 		if (literals == null) {
 			literals = new HashSet<Literal<T>>();
 			if (literal != null)
@@ -211,6 +215,7 @@ public class Expression<T extends Term> implements Serializable {
 				for (Expression<T> subexp : subexpressions)
 					literals.addAll(subexp.getLiterals());
 			}
+			this.literals = literals;
 		}
 
 		return literals;
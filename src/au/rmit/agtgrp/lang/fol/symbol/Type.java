@@ -21,28 +21,34 @@
 package au.rmit.agtgrp.lang.fol.symbol;
 
 import java.io.Serializable;
-import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 public class Type implements Serializable {
 
 	private static final long serialVersionUID = 1L;
 	
-	private static final Map<Type, List<Type>> SUBCLASS_MAP = new HashMap<Type, List<Type>>();
-	private static final Map<Type, Type> SUPERCLASS_MAP = new HashMap<Type, Type>();
+	// shared by all domains loaded into the JVM, and read concurrently
+	private static final ConcurrentMap<Type, List<Type>> SUBCLASS_MAP = new ConcurrentHashMap<Type, List<Type>>();
+	private static final ConcurrentMap<Type, Type> SUPERCLASS_MAP = new ConcurrentHashMap<Type, Type>();
 
 	public static final Type ANYTHING_TYPE = new Type("anything");
 	public static final Type OPERATOR_TYPE = new Type("operator");
 	public static final Type INT_TYPE = new Type("int");
 
 	/**
-	 *  Use this method when loading a new domain into the same JVM.
+	 *  Use this method when loading a new domain into the same JVM. It must not be called
+	 *  while another domain's types are in use.
 	 */
 	public static void clearTypeHierarchy() {
-		SUBCLASS_MAP.clear();
-		SUPERCLASS_MAP.clear();
+		synchronized (SUPERCLASS_MAP) {
+			// existing types keep their (now empty) subtype lists
+			for (List<Type> subtypes : SUBCLASS_MAP.values())
+				subtypes.clear();
+			SUPERCLASS_MAP.clear();
+		}
 	}
 
 	private final String name;
@@ -52,8 +58,7 @@ public class Type implements Serializable {
 		this.name = name.trim().toLowerCase().intern();
 		hashCode = computeHashCode();
 
-		if (!SUBCLASS_MAP.containsKey(this))
-			SUBCLASS_MAP.put(this, new ArrayList<Type>());
+		SUBCLASS_MAP.putIfAbsent(this, new CopyOnWriteArrayList<Type>());
 
 	}
 
@@ -65,14 +70,20 @@ public class Type implements Serializable {
 		return SUBCLASS_MAP.get(this);
 	}
 
+	/**
+	 * Adding the same subtype again, e.g., when a domain is parsed twice, has no effect.
+	 */
 	public void addSubtype(Type subtype) {
-
-		Type supertype = SUPERCLASS_MAP.get(subtype);
-		if (supertype != null && !supertype.equals(this))
-			throw new IllegalArgumentException(subtype + " already has supertype " + supertype);
-
-		SUBCLASS_MAP.get(this).add(subtype);
-		SUPERCLASS_MAP.put(subtype, this);
+		synchronized (SUPERCLASS_MAP) {
+			Type supertype = SUPERCLASS_MAP.get(subtype);
+			if (supertype != null && !supertype.equals(this))
+				throw new IllegalArgumentException(subtype + " already has supertype " + supertype);
+
+			if (supertype == null) {
+				SUBCLASS_MAP.get(this).add(subtype);
+				SUPERCLASS_MAP.put(subtype, this);
+			}
+		}
 	}
 
 	public Type getImmediateSuperType() {
@@ -0,0 +1,185 @@
+/*******************************************************************************
+ * MKTR - Minimal k-Treewidth Relaxation
+ *
+ * Copyright (C) 2018 
+ * Max Waters (max.waters@rmit.edu.au)
+ * RMIT University, Melbourne VIC 3000
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package au.rmit.agtgrp.lang.pddl.parser;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import au.rmit.agtgrp.lang.pddl.PddlDomain;
+import au.rmit.agtgrp.lang.pddl.PddlProblem;
+import fr.uga.pddl4j.parser.Parser;
+
+/**
+ * Parses each domain once, and parses problems against the cached domain. Domains and 
+ * problems are keyed by the hash of their files' contents, so a file which is edited 
+ * is parsed again. Problems of the same domain are parsed one at a time, different 
+ * domains in parallel.
+ */
+public class PddlCache {
+
+	public static final int DEFAULT_MAX_PROBLEMS = 256;
+
+	private final Map<String, DomainEntry> domains = new HashMap<String, DomainEntry>();
+	private final Map<String, PddlProblem> problems;
+
+	public PddlCache() {
+		this(DEFAULT_MAX_PROBLEMS);
+	}
+
+	/**
+	 * @param maxProblems	The maximum number of parsed problems to keep. The least 
+	 * 						recently used are discarded first.
+	 */
+	public PddlCache(final int maxProblems) {
+		problems = new LinkedHashMap<String, PddlProblem>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, PddlProblem> eldest) {
+				return size() > maxProblems;
+			}
+		};
+	}
+
+	public PddlDomain getDomain(File domainFile) {
+		return getEntry(domainFile).domain;
+	}
+
+	public PddlProblem getProblem(File domainFile, File problemFile) {
+		DomainEntry entry = getEntry(domainFile);
+		String key = entry.hash + ":" + hash(problemFile);
+
+		synchronized (this) {
+			PddlProblem problem = problems.get(key);
+			if (problem != null)
+				return problem;
+		}
+
+		PddlProblem problem;
+		synchronized (entry) {
+			try {
+				entry.parser.parseProblem(problemFile.getAbsolutePath());
+			} catch (FileNotFoundException e) {
+				throw new PddlParserException(e.getMessage());
+			}
+			if (!entry.parser.getErrorManager().isEmpty()) {
+				entry.parser.getErrorManager().printAll();
+				throw new PddlParserException("Error parsing PDDL in " + problemFile);
+			}
+
+			problem = Pddl4JTranslator.convertProblem(entry.domain, entry.parser.getProblem(), entry.parser.getDomain());
+		}
+
+		synchronized (this) {
+			problems.put(key, problem);
+		}
+		return problem;
+	}
+
+	/**
+	 * @return a parser holding the parsed domain and problem, ready to parse a plan.
+	 */
+	public PddlParser getParser(File domainFile, File problemFile) {
+		PddlParser parser = new PddlParser();
+		parser.setDomainAndProblem(getProblem(domainFile, problemFile));
+		return parser;
+	}
+
+	public synchronized void clear() {
+		domains.clear();
+		problems.clear();
+	}
+
+	private DomainEntry getEntry(File domainFile) {
+		String key = hash(domainFile);
+
+		DomainEntry entry;
+		synchronized (this) {
+			entry = domains.get(key);
+			if (entry == null) {
+				entry = new DomainEntry(domainFile, key);
+				domains.put(key, entry);
+			}
+		}
+
+		entry.parse();
+		return entry;
+	}
+
+	/**
+	 * @return the SHA-256 hash of the file's contents.
+	 */
+	public static String hash(File file) {
+		byte[] digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256").digest(Files.readAllBytes(file.toPath()));
+		} catch (IOException e) {
+			throw new PddlParserException("Cannot read file: " + file);
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+
+		StringBuilder sb = new StringBuilder();
+		for (byte b : digest)
+			sb.append(String.format("%02x", b));
+		return sb.toString();
+	}
+
+	private static class DomainEntry {
+
+		private final File domainFile;
+		private final String hash;
+		private Parser parser;
+		private PddlDomain domain;
+
+		private DomainEntry(File domainFile, String hash) {
+			this.domainFile = domainFile;
+			this.hash = hash;
+		}
+
+		private synchronized void parse() {
+			if (domain != null)
+				return;
+
+			Parser parser = new Parser();
+			try {
+				parser.parseDomain(domainFile.getAbsolutePath());
+			} catch (FileNotFoundException e) {
+				throw new PddlParserException(e.getMessage());
+			}
+			if (!parser.getErrorManager().isEmpty()) {
+				parser.getErrorManager().printAll();
+				throw new PddlParserException("Error parsing PDDL in " + domainFile);
+			}
+
+			this.parser = parser;
+			domain = Pddl4JTranslator.convertDomain(parser.getDomain());
+		}
+	}
+
+}
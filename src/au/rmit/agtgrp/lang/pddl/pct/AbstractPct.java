@@ -32,18 +32,20 @@ public abstract class AbstractPct {
 	private static final WeakHashMap<AbstractPct, WeakReference<? extends AbstractPct>> CACHE = new WeakHashMap<AbstractPct, WeakReference<? extends AbstractPct>>();
 
 	public static <T extends AbstractPct> T getCached(T prodCon) {
-		@SuppressWarnings("unchecked")
-		WeakReference<T> cached = (WeakReference<T>) CACHE.get(prodCon);
-		if (cached != null) {
-			T cachedPc = (T) cached.get();
-			if (cachedPc != null) {
-				return cachedPc;
+		synchronized (CACHE) {
+			@SuppressWarnings("unchecked")
+			WeakReference<T> cached = (WeakReference<T>) CACHE.get(prodCon);
+			if (cached != null) {
+				T cachedPc = (T) cached.get();
+				if (cachedPc != null) {
+					return cachedPc;
+				}
 			}
-		}
 
-		CACHE.put(prodCon, new WeakReference<T>(prodCon));
+			CACHE.put(prodCon, new WeakReference<T>(prodCon));
 
-		return prodCon;
+			return prodCon;
+		}
 	}
 
 	public final Operator<Variable> operator;
@@ -22,17 +22,18 @@ package au.rmit.agtgrp.lang.pddl.pct;
 
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
+import java.util.Collection;
 import java.util.HashSet;
 import java.util.List;
-import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
-import au.rmit.agtgrp.lang.fol.predicate.Atom;
 import au.rmit.agtgrp.lang.fol.predicate.Literal;
 import au.rmit.agtgrp.lang.fol.predicate.Predicate;
-import au.rmit.agtgrp.lang.fol.symbol.Term;
-import au.rmit.agtgrp.lang.fol.symbol.Type;
 import au.rmit.agtgrp.lang.fol.symbol.Variable;
 import au.rmit.agtgrp.lang.pddl.Operator;
 import au.rmit.agtgrp.lang.pddl.Plan;
@@ -143,62 +144,87 @@ public class CausalStructureFactory {
 	}
 
 	public static CausalStucture getMinimalPcoConstraints(Plan plan, boolean totalOrder) {
+		return getMinimalPcoConstraints(plan, totalOrder, Runtime.getRuntime().availableProcessors());
+	}
 
-		CausalStucture constraints = new CausalStucture(totalOrder);
-
-		for (int i = 1; i < plan.length(); i++) { // each step in plan, except initial step
-
-			Operator<Variable> cons = plan.getPlanSteps().get(i);
-			for (int pre_i = 0; pre_i < cons.getPreconditions().size(); pre_i++) { // each precon in step
-
-				Literal<Variable> pre = cons.getPreconditions().get(pre_i);
-				Consumer consPc = new Consumer(cons, pre).intern();
+	/**
+	 * Finds every potential producer of every precondition in the plan. Producers are 
+	 * looked up by predicate, value and parameter types, and the producers of each step's
+	 * preconditions are found in parallel, then added to the causal structure in plan order.
+	 * 
+	 * @param nThreads	The number of threads to search for producers with.
+	 */
+	public static CausalStucture getMinimalPcoConstraints(final Plan plan, boolean totalOrder, int nThreads) {
+
+		final ProducerIndex index = new ProducerIndex(plan.getPlanSteps(), totalOrder);
+
+		List<Future<List<List<Producer>>>> futures = new ArrayList<Future<List<List<Producer>>>>();
+		ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, nThreads));
+		try {
+			for (int i = 1; i < plan.length(); i++) { // each step in plan, except initial step
+				final int stepIndex = i;
+				futures.add(executor.submit(new Callable<List<List<Producer>>>() {
+					@Override
+					public List<List<Producer>> call() throws Exception {
+						return getPotentialProducers(plan, stepIndex, index);
+					}
+				}));
+			}
 
-				// find all potential producers
-				for (int j = 0; j < (totalOrder ? i : plan.length()); j++) { // po/to -- every step in plan 
+			CausalStucture constraints = new CausalStucture(totalOrder);
+			for (int i = 1; i < plan.length(); i++) {
+				Operator<Variable> cons = plan.getPlanSteps().get(i);
+				List<List<Producer>> prods = getResult(futures.get(i - 1));
 
-					// equality, negated precons
-					if (j == 0) {
-						if (pre.getAtom().getSymbol().equals(Predicate.EQUALS)) {
-							for (Producer eqProd : getInitialStateEqualityProducers(pre, plan))
-								constraints.addProducerConsumerOption(eqProd, consPc);
-						}
-						else if (!pre.getValue()) {
-							for (Producer negProd : getInitialStateNegationProducers(pre, plan))
-								constraints.addProducerConsumerOption(negProd, consPc);
-						}
-					}
-					
-					
-					if (j != i) {
-						Operator<Variable> prod = plan.getPlanSteps().get(j);
+				for (int pre_i = 0; pre_i < cons.getPreconditions().size(); pre_i++) { // each precon in step
+					Consumer consPc = new Consumer(cons, cons.getPreconditions().get(pre_i)).intern();
+					for (Producer prodPc : prods.get(pre_i))
+						constraints.addProducerConsumerOption(prodPc, consPc);
 
-						for (int post_j = 0; post_j < prod.getPostconditions().size(); post_j++) { // each postcon in other step
+					if (constraints.getProducers(consPc).isEmpty())
+						throw new RuntimeException("No producer for consumer: " + consPc);
+				}
+			}
 
-							Literal<Variable> post = prod.getPostconditions().get(post_j);
+			return constraints;
 
-							Producer prodPc = new Producer(prod, post).intern();
+		} finally {
+			executor.shutdownNow();
+		}
+	}
 
+	private static List<List<Producer>> getPotentialProducers(Plan plan, int stepIndex, ProducerIndex index) {
 
-							if (pre.getAtom().getSymbol().equals(post.getAtom().getSymbol()) && // same symbol
-									pre.getValue() == post.getValue() && // same value
-									assignable(post.getAtom(), pre.getAtom()) && // bindable, as per variable types
-									(j == 0 || !prod.isUndone(post))) { // initial state "effects" are never undone.
+		Operator<Variable> cons = plan.getPlanSteps().get(stepIndex);
+		List<List<Producer>> prods = new ArrayList<List<Producer>>();
 
-								constraints.addProducerConsumerOption(prodPc, consPc);
+		for (Literal<Variable> pre : cons.getPreconditions()) {
+			List<Producer> preProds = new ArrayList<Producer>();
 
-							}
-						}
-					}
-				}
+			// equality, negated precons
+			if (pre.getAtom().getSymbol().equals(Predicate.EQUALS))
+				preProds.addAll(getInitialStateEqualityProducers(pre, plan));
+			else if (!pre.getValue())
+				preProds.add(getInitialStateNegationProducer(pre, plan));
 
-				if (constraints.getProducers(consPc).isEmpty())
-					throw new RuntimeException("No producer for consumer: " + consPc);
-			}
+			preProds.addAll(index.getProducers(pre, stepIndex));
+			prods.add(preProds);
 		}
 
-		return constraints;
+		return prods;
+	}
 
+	private static <T> T getResult(Future<T> future) {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException)
+				throw (RuntimeException) e.getCause();
+			throw new RuntimeException(e.getCause());
+		}
 	}
 
 
@@ -229,52 +255,22 @@ public class CausalStructureFactory {
 
 	}
 
-	private static Set<Producer> getInitialStateNegationProducers(Literal<Variable> pre, Plan plan) {
+	/**
+	 * The initial state produces -p(x) for every x such that p(x) is not in the initial 
+	 * state. Rather than one producer per tuple of initial state variables, this returns 
+	 * a single symbolic producer whose literal is the precondition itself, so it is 
+	 * trivially co-designated with the consumer. The initial state's p facts are threats 
+	 * to its link, and the encoders' threat constraints then require x to differ from 
+	 * each of them.
+	 */
+	private static Producer getInitialStateNegationProducer(Literal<Variable> pre, Plan plan) {
 
 		if (pre.getValue())
 			throw new IllegalArgumentException(pre.toString());
 
-		Set<Producer> prods = new HashSet<Producer>();
-
-		for (List<Variable> vars : getAllCombs(pre.getAtom().getSymbol().getTypes(), plan.getInitialAction().getVariables())) {		
-			Literal<Variable> negEff = pre.resetVariables(vars).rebind(vars);
-			if (!plan.getInitialAction().getPostconditions().contains(negEff.getNegated()))
-				prods.add(new Producer(plan.getInitialAction(), negEff).intern());
-			
-		}
-		
-		return prods;
-
-	}
+		return new Producer(plan.getInitialAction(), pre).intern();
 
-
-	private static List<List<Variable>> getAllCombs(List<Type> types, List<Variable> initVars) {
-					
-		List<List<Variable>> varLists = new ArrayList<List<Variable>>();
-		if (types.isEmpty()) {
-			varLists.add(new ArrayList<Variable>()); // a single empty list
-			return varLists;
-		}
-			
-		List<List<Variable>> recLists = getAllCombs(types.subList(1, types.size()), initVars);
-		
-		Type t = types.get(0);
-		
-		for (Variable var : initVars) {
-			if (t.hasSubtype(var.getType())) {
-				for (List<Variable> recList : recLists) {			
-					List<Variable> l = new ArrayList<Variable>();
-					l.add(var);
-					l.addAll(recList);
-					varLists.add(l);
-				}
-			}
-		}
-		
-		return varLists;
-		
 	}
-	
 
 	private static Variable getInitialStateVariable(Variable var, Plan plan) {
 		for (Variable initVar : plan.getInitialAction().getVariables()) {
@@ -286,68 +282,31 @@ public class CausalStructureFactory {
 		return null;
 	}
 
-	private static boolean assignable(Atom<? extends Term> prod, Atom<? extends Term> cons) {
-		for (int i = 0; i < prod.getParameters().size(); i++) {
-			if (!cons.getParameters().get(i).getType().hasSubtype(prod.getParameters().get(i).getType())
-					&& !prod.getParameters().get(i).getType().hasSubtype(cons.getParameters().get(i).getType())) {
-				return false;
-			}
-		}
-
-		return true;
-	}
-
+	/**
+	 * @return a copy of the threats to the PC links in the causal structure, which 
+	 * the structure maintains as it changes. Use {@link CausalStucture#getThreats(List)} 
+	 * to query them without copying.
+	 */
 	public static PcThreatSet getThreats(List<Operator<Variable>> freeSteps, CausalStucture constraints) {
+		return new PcThreatSet(constraints.getThreats(freeSteps));
+	}
 
-		Map<Predicate, Set<PcLink>> posPcLinkMap = new HashMap<Predicate, Set<PcLink>>();
-		Map<Predicate, Set<PcLink>> negPcLinkMap = new HashMap<Predicate, Set<PcLink>>();
-
-		for (PcLink pcLink : constraints.getAllPcLinks()) {
-			Predicate pred = pcLink.getProducer().literal.getAtom().getSymbol();
-			Map<Predicate, Set<PcLink>> pcLinkMap = pcLink.getProducer().literal.getValue() ? posPcLinkMap
-					: negPcLinkMap;
-			Set<PcLink> links = pcLinkMap.get(pred);
-			if (links == null) {
-				links = new HashSet<PcLink>();
-				pcLinkMap.put(pred, links);
-			}
-			links.add(pcLink);
-		}
-
+	/**
+	 * Finds the threats to the given PC links only. The threats to a link depend only on 
+	 * the link itself and the plan steps, so this can be used to update the threats of a
+	 * subset of a causal structure.
+	 * 
+	 * @param freeSteps		The plan steps.
+	 * @param pcLinks		The PC links to find threats for.
+	 * @param totalOrder	Whether the plan is totally ordered.
+	 * @return				The threats to the given links.
+	 */
+	public static PcThreatSet getThreats(List<Operator<Variable>> freeSteps, Collection<PcLink> pcLinks, boolean totalOrder) {
+
+		ThreatIndex index = new ThreatIndex(freeSteps, totalOrder);
 		PcThreatSet threatMap = new PcThreatSet();
-
-		for (int i = 0; i < freeSteps.size(); i++) {
-			Operator<Variable> threatOp = freeSteps.get(i);
-			for (int j = 0; j < threatOp.getPostconditions().size(); j++) {
-				Literal<Variable> threat = threatOp.getPostconditions().get(j);
-				Set<PcLink> links = threat.getValue() ? negPcLinkMap.get(threat.getAtom().getSymbol())
-						: posPcLinkMap.get(threat.getAtom().getSymbol());
-				if (links != null && (i == 0 || !threatOp.isUndone(threat))) {// init state  effects cannot be undone
-
-					for (PcLink threatened : links) { // threats for undone producers
-
-						if (threatened.getProducer().operator.equals(threatOp) && threatened.getProducer().operator
-								.getPostconditions().indexOf(threatened.getProducer().literal) > j) {
-
-							continue;
-						}
-
-						int tIndex = i;
-						int cIndex = freeSteps.indexOf(threatened.getConsumer().operator);
-
-						if (constraints.isTotalOrder()) {
-							int pIndex = freeSteps.indexOf(threatened.getProducer().operator);
-							if (tIndex >= pIndex && tIndex < cIndex)
-								threatMap.addThreat(threatened, new Threat(threatOp, threat.getNegated()).intern());
-						} else {
-							if (tIndex != cIndex) {
-								threatMap.addThreat(threatened, new Threat(threatOp, threat.getNegated()).intern());
-							}
-						}
-					}
-				}
-			}
-		}
+		for (PcLink pcLink : pcLinks)
+			index.addThreats(pcLink, threatMap);
 
 		return threatMap;
 
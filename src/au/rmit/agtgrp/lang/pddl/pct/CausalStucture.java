@@ -21,6 +21,7 @@
 package au.rmit.agtgrp.lang.pddl.pct;
 
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 
 import au.rmit.agtgrp.lang.fol.predicate.Literal;
@@ -35,6 +36,10 @@ public class CausalStucture {
 	private final Set<PcLink> allPcLinks;
 	private boolean totalOrder;
 
+	// threats to every link, maintained as links are added and removed once requested
+	private ThreatIndex threatIndex;
+	private PcThreatSet threats;
+
 	public CausalStucture(boolean totalOrder) {
 
 		this.totalOrder = totalOrder;
@@ -45,6 +50,20 @@ public class CausalStucture {
 
 	}
 
+	public CausalStucture(CausalStucture other) {
+		this(other.totalOrder);
+
+		for (PcLink link : other.allPcLinks)
+			addProducerConsumerOption(link);
+
+		synchronized (other) {
+			if (other.threats != null) {
+				threatIndex = other.threatIndex;
+				threats = new PcThreatSet(other.threats);
+			}
+		}
+	}
+
 	public Set<Consumer> getAllConsumers() {
 		Set<Consumer> consumers = new HashSet<Consumer>();
 		for (Consumer cons : producerConsumerGraph.getDestinationVertices())
@@ -73,9 +92,11 @@ public class CausalStucture {
 		addProducerConsumerOption(new Producer(prodOp, prodLit), new Consumer(consOp, consLit));
 	}
 
-	public void addProducerConsumerOption(Producer producer, Consumer consumer) {
+	public synchronized void addProducerConsumerOption(Producer producer, Consumer consumer) {
 		producerConsumerGraph.addEdge(producer, consumer);
-		allPcLinks.add(new PcLink(producer, consumer));
+		PcLink link = new PcLink(producer, consumer);
+		if (allPcLinks.add(link) && threats != null)
+			threatIndex.addThreats(link, threats);
 	}
 
 	public void removeProducerConsumerOption(PcLink link) {
@@ -88,9 +109,11 @@ public class CausalStucture {
 		removeProducerConsumerOption(new Producer(prodOp, prodLit).intern(), new Consumer(consOp, consLit).intern());
 	}
 
-	public void removeProducerConsumerOption(Producer producer, Consumer consumer) {
+	public synchronized void removeProducerConsumerOption(Producer producer, Consumer consumer) {
 		producerConsumerGraph.removeEdge(producer, consumer);
-		allPcLinks.remove(new PcLink(producer, consumer));
+		PcLink link = new PcLink(producer, consumer);
+		if (allPcLinks.remove(link) && threats != null)
+			threats.removeLink(link);
 	}
 
 	public Set<Producer> getProducers(Operator<Variable> consOp, Literal<Variable> consLit) {
@@ -117,6 +140,25 @@ public class CausalStucture {
 		return totalOrder;
 	}
 
+	/**
+	 * Returns the threats to every PC link in this structure. They are found when 
+	 * first requested, and then kept up to date as links are added and removed. 
+	 * They are found again if a different list of plan steps is given.
+	 * 
+	 * @param planSteps	The plan steps, which must not be modified.
+	 * @return			The threats, which are live and must not be modified.
+	 */
+	public synchronized PcThreatSet getThreats(List<Operator<Variable>> planSteps) {
+		if (threats == null || threatIndex.getSteps() != planSteps) {
+			threatIndex = new ThreatIndex(planSteps, totalOrder);
+			threats = new PcThreatSet();
+			for (PcLink link : allPcLinks)
+				threatIndex.addThreats(link, threats);
+		}
+
+		return threats;
+	}
+
 	@Override
 	public String toString() {
 		StringBuilder sb = new StringBuilder();
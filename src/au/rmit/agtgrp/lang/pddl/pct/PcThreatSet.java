@@ -20,6 +20,7 @@
  *******************************************************************************/
 package au.rmit.agtgrp.lang.pddl.pct;
 
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -36,25 +37,37 @@ public class PcThreatSet {
 		threatLinksMap = new HashMap<Threat, Set<PcLink>>();
 	}
 
+	public PcThreatSet(PcThreatSet other) {
+		this();
+		for (PcLink link : other.linkThreatsMap.keySet())
+			linkThreatsMap.put(link, new HashSet<Threat>(other.linkThreatsMap.get(link)));
+		for (Threat threat : other.threatLinksMap.keySet())
+			threatLinksMap.put(threat, new HashSet<PcLink>(other.threatLinksMap.get(threat)));
+	}
+
+	/**
+	 * @return the threats to the link, or an empty set if it has none. The set is 
+	 * unmodifiable.
+	 */
 	public Set<Threat> getThreatsToLink(PcLink link) {
 		Set<Threat> threats = linkThreatsMap.get(link);
-		if (threats == null) {
-			threats = new HashSet<Threat>();
-			linkThreatsMap.put(link, threats);
-		}
+		if (threats == null)
+			return Collections.emptySet();
 
-		return threats;
+		return Collections.unmodifiableSet(threats);
 
 	}
 
+	/**
+	 * @return the links threatened by the producer, or an empty set if there are 
+	 * none. The set is unmodifiable.
+	 */
 	public Set<PcLink> getLinksThreatenedByProducer(Threat prod) {
 		Set<PcLink> threatened = threatLinksMap.get(prod);
-		if (threatened == null) {
-			threatened = new HashSet<PcLink>();
-			threatLinksMap.put(prod, threatened);
-		}
+		if (threatened == null)
+			return Collections.emptySet();
 
-		return threatened;
+		return Collections.unmodifiableSet(threatened);
 	}
 
 	public void addThreat(PcLink link, Threat threat) {
@@ -76,6 +89,22 @@ public class PcThreatSet {
 
 	}
 
+	/**
+	 * Removes all threats to the link.
+	 */
+	public void removeLink(PcLink link) {
+		Set<Threat> threats = linkThreatsMap.remove(link);
+		if (threats == null)
+			return;
+
+		for (Threat threat : threats) {
+			Set<PcLink> threatened = threatLinksMap.get(threat);
+			threatened.remove(link);
+			if (threatened.isEmpty())
+				threatLinksMap.remove(threat);
+		}
+	}
+
 	@Override
 	public String toString() {
 		StringBuilder sb = new StringBuilder();
@@ -0,0 +1,193 @@
+/*******************************************************************************
+ * MKTR - Minimal k-Treewidth Relaxation
+ *
+ * Copyright (C) 2018 
+ * Max Waters (max.waters@rmit.edu.au)
+ * RMIT University, Melbourne VIC 3000
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package au.rmit.agtgrp.lang.pddl.pct;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import au.rmit.agtgrp.lang.fol.predicate.Literal;
+import au.rmit.agtgrp.lang.fol.predicate.Predicate;
+import au.rmit.agtgrp.lang.fol.symbol.Type;
+import au.rmit.agtgrp.lang.fol.symbol.Variable;
+import au.rmit.agtgrp.lang.pddl.Operator;
+
+/**
+ * The postconditions of a list of plan steps, indexed by predicate, value and 
+ * parameter types, so that the potential producers of a precondition can be found 
+ * without looking at every step. Lookups are thread safe once the index is built.
+ */
+class ProducerIndex {
+
+	private final boolean totalOrder;
+
+	// signatures of the postconditions with each predicate and value
+	private final Map<Predicate, List<ProducerKey>> posKeys;
+	private final Map<Predicate, List<ProducerKey>> negKeys;
+	private final Map<ProducerKey, List<IndexedProducer>> producers;
+
+	// whether a producer signature can be bound to a consumer signature
+	private final Map<List<List<Type>>, Boolean> assignable;
+
+	ProducerIndex(List<Operator<Variable>> steps, boolean totalOrder) {
+		this.totalOrder = totalOrder;
+
+		posKeys = new HashMap<Predicate, List<ProducerKey>>();
+		negKeys = new HashMap<Predicate, List<ProducerKey>>();
+		producers = new HashMap<ProducerKey, List<IndexedProducer>>();
+		assignable = new ConcurrentHashMap<List<List<Type>>, Boolean>();
+
+		for (int i = 0; i < steps.size(); i++) {
+			Operator<Variable> op = steps.get(i);
+			for (int j = 0; j < op.getPostconditions().size(); j++) {
+				Literal<Variable> post = op.getPostconditions().get(j);
+				if (i != 0 && op.isUndone(post)) // initial state "effects" are never undone
+					continue;
+
+				ProducerKey key = new ProducerKey(post);
+				List<IndexedProducer> prods = producers.get(key);
+				if (prods == null) {
+					prods = new ArrayList<IndexedProducer>();
+					producers.put(key, prods);
+
+					Map<Predicate, List<ProducerKey>> keyMap = post.getValue() ? posKeys : negKeys;
+					List<ProducerKey> keys = keyMap.get(key.symbol);
+					if (keys == null) {
+						keys = new ArrayList<ProducerKey>();
+						keyMap.put(key.symbol, keys);
+					}
+					keys.add(key);
+				}
+				prods.add(new IndexedProducer(new Producer(op, post).intern(), i, j));
+			}
+		}
+	}
+
+	/**
+	 * @return the potential producers of the precondition of the step at stepIndex, 
+	 * in plan order.
+	 */
+	List<Producer> getProducers(Literal<Variable> pre, int stepIndex) {
+		List<ProducerKey> keys = (pre.getValue() ? posKeys : negKeys).get(pre.getAtom().getSymbol());
+		if (keys == null)
+			return Collections.emptyList();
+
+		List<Type> consSignature = getSignature(pre);
+		List<IndexedProducer> candidates = new ArrayList<IndexedProducer>();
+		for (ProducerKey key : keys) {
+			if (!isAssignable(key.signature, consSignature))
+				continue;
+
+			for (IndexedProducer ip : producers.get(key)) {
+				if (ip.stepIndex != stepIndex && (!totalOrder || ip.stepIndex < stepIndex))
+					candidates.add(ip);
+			}
+		}
+
+		Collections.sort(candidates, new Comparator<IndexedProducer>() {
+			@Override
+			public int compare(IndexedProducer o1, IndexedProducer o2) {
+				if (o1.stepIndex != o2.stepIndex)
+					return Integer.compare(o1.stepIndex, o2.stepIndex);
+				return Integer.compare(o1.postIndex, o2.postIndex);
+			}
+		});
+
+		List<Producer> prods = new ArrayList<Producer>();
+		for (IndexedProducer ip : candidates)
+			prods.add(ip.producer);
+
+		return prods;
+	}
+
+	private boolean isAssignable(List<Type> prodSignature, List<Type> consSignature) {
+		List<List<Type>> pair = Arrays.asList(prodSignature, consSignature);
+		Boolean result = assignable.get(pair);
+		if (result == null) {
+			result = true;
+			for (int i = 0; i < prodSignature.size() && result; i++) {
+				Type pt = prodSignature.get(i);
+				Type ct = consSignature.get(i);
+				result = ct.hasSubtype(pt) || pt.hasSubtype(ct);
+			}
+			assignable.put(pair, result);
+		}
+		return result;
+	}
+
+	private static List<Type> getSignature(Literal<Variable> lit) {
+		List<Type> signature = new ArrayList<Type>();
+		for (Variable var : lit.getAtom().getParameters())
+			signature.add(var.getType());
+		return signature;
+	}
+
+	private static class ProducerKey {
+
+		private final Predicate symbol;
+		private final boolean value;
+		private final List<Type> signature;
+		private final int hashCode;
+
+		private ProducerKey(Literal<Variable> lit) {
+			symbol = lit.getAtom().getSymbol();
+			value = lit.getValue();
+			signature = getSignature(lit);
+			hashCode = 31 * (31 * symbol.hashCode() + (value ? 1231 : 1237)) + signature.hashCode();
+		}
+
+		@Override
+		public int hashCode() {
+			return hashCode;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj)
+				return true;
+			if (obj == null)
+				return false;
+			if (getClass() != obj.getClass())
+				return false;
+			ProducerKey other = (ProducerKey) obj;
+			return value == other.value && symbol.equals(other.symbol) && signature.equals(other.signature);
+		}
+	}
+
+	private static class IndexedProducer {
+
+		private final Producer producer;
+		private final int stepIndex;
+		private final int postIndex;
+
+		private IndexedProducer(Producer producer, int stepIndex, int postIndex) {
+			this.producer = producer;
+			this.stepIndex = stepIndex;
+			this.postIndex = postIndex;
+		}
+	}
+
+}
@@ -0,0 +1,132 @@
+/*******************************************************************************
+ * MKTR - Minimal k-Treewidth Relaxation
+ *
+ * Copyright (C) 2018 
+ * Max Waters (max.waters@rmit.edu.au)
+ * RMIT University, Melbourne VIC 3000
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package au.rmit.agtgrp.lang.pddl.pct;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import au.rmit.agtgrp.lang.fol.predicate.Literal;
+import au.rmit.agtgrp.lang.fol.predicate.Predicate;
+import au.rmit.agtgrp.lang.fol.symbol.Variable;
+import au.rmit.agtgrp.lang.pddl.Operator;
+
+/**
+ * The postconditions of a list of plan steps, indexed by predicate and value, 
+ * so that the threats to a single PC link can be found without looking at every 
+ * step.
+ */
+class ThreatIndex {
+
+	private final List<Operator<Variable>> steps;
+	private final boolean totalOrder;
+
+	private final Map<Operator<Variable>, Integer> stepIndices;
+	// threats, ie postconditions that can threaten, by predicate
+	private final Map<Predicate, List<IndexedThreat>> posThreats; // threaten links producing positive literals
+	private final Map<Predicate, List<IndexedThreat>> negThreats;
+
+	ThreatIndex(List<Operator<Variable>> steps, boolean totalOrder) {
+		this.steps = steps;
+		this.totalOrder = totalOrder;
+
+		stepIndices = new HashMap<Operator<Variable>, Integer>();
+		posThreats = new HashMap<Predicate, List<IndexedThreat>>();
+		negThreats = new HashMap<Predicate, List<IndexedThreat>>();
+
+		for (int i = 0; i < steps.size(); i++) {
+			Operator<Variable> op = steps.get(i);
+			if (!stepIndices.containsKey(op))
+				stepIndices.put(op, i);
+
+			for (int j = 0; j < op.getPostconditions().size(); j++) {
+				Literal<Variable> post = op.getPostconditions().get(j);
+				if (i != 0 && op.isUndone(post)) // init state effects cannot be undone
+					continue;
+
+				Map<Predicate, List<IndexedThreat>> threatMap = post.getValue() ? negThreats : posThreats;
+				List<IndexedThreat> threats = threatMap.get(post.getAtom().getSymbol());
+				if (threats == null) {
+					threats = new ArrayList<IndexedThreat>();
+					threatMap.put(post.getAtom().getSymbol(), threats);
+				}
+				threats.add(new IndexedThreat(new Threat(op, post.getNegated()).intern(), i, j));
+			}
+		}
+	}
+
+	List<Operator<Variable>> getSteps() {
+		return steps;
+	}
+
+	boolean isTotalOrder() {
+		return totalOrder;
+	}
+
+	/**
+	 * Adds the threats to the link to the threat set.
+	 */
+	void addThreats(PcLink link, PcThreatSet threatSet) {
+		Literal<Variable> prodLit = link.getProducer().literal;
+		List<IndexedThreat> threats = (prodLit.getValue() ? posThreats : negThreats).get(prodLit.getAtom().getSymbol());
+		if (threats == null)
+			return;
+
+		Operator<Variable> prodOp = link.getProducer().operator;
+		int cIndex = indexOf(link.getConsumer().operator);
+		int pIndex = indexOf(prodOp);
+
+		for (IndexedThreat it : threats) {
+
+			// threats for undone producers. The initial state's symbolic -p(x) producer 
+			// is not a postcondition (index -1), so it is never skipped
+			if (it.threat.operator.equals(prodOp) && 
+					prodOp.getPostconditions().indexOf(prodLit) > it.postIndex)
+				continue;
+
+			if (totalOrder) {
+				if (it.stepIndex >= pIndex && it.stepIndex < cIndex)
+					threatSet.addThreat(link, it.threat);
+			} else if (it.stepIndex != cIndex)
+				threatSet.addThreat(link, it.threat);
+		}
+	}
+
+	private int indexOf(Operator<Variable> op) {
+		Integer i = stepIndices.get(op);
+		return i == null ? -1 : i;
+	}
+
+	private static class IndexedThreat {
+
+		private final Threat threat;
+		private final int stepIndex;
+		private final int postIndex;
+
+		private IndexedThreat(Threat threat, int stepIndex, int postIndex) {
+			this.threat = threat;
+			this.stepIndex = stepIndex;
+			this.postIndex = postIndex;
+		}
+	}
+
+}
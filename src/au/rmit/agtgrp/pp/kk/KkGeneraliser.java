@@ -28,7 +28,7 @@ import au.rmit.agtgrp.pp.partialplan.pcplan.encoder.PcToCspEncoder;
 import au.rmit.agtgrp.pp.partialplan.pcplan.optimiser.CspOptimiser;
 import au.rmit.agtgrp.utils.collections.Pair;
 import au.rmit.agtgrp.utils.collections.graph.DirectedGraph;
-import au.rmit.agtgrp.utils.collections.graph.GraphUtils;
+import au.rmit.agtgrp.utils.collections.graph.TransitiveClosure;
 
 public class KkGeneraliser {
 
@@ -59,7 +59,7 @@ public class KkGeneraliser {
 		}
 
 		// get ordering 
-		DirectedGraph<Operator<Variable>> justified = setOrderingConstraints(csp, expl, threats, opVarMap);
+		TransitiveClosure<Operator<Variable>> justified = setOrderingConstraints(csp, expl, threats, opVarMap);
 		
 		// add constraints
 		for (Pair<Operator<Variable>, Operator<Variable>> edge : justified.getAllEdges())
@@ -138,7 +138,7 @@ public class KkGeneraliser {
 		}
 	}
 
-	private void setDesignationConstraints(ExpressionCsp csp, CausalStucture expl, PcThreatSet threats, DirectedGraph<Operator<Variable>> order) {
+	private void setDesignationConstraints(ExpressionCsp csp, CausalStucture expl, PcThreatSet threats, TransitiveClosure<Operator<Variable>> order) {
 
 		//e-conditions
 		Map<Operator<Variable>, List<PcLink>> econs = new HashMap<Operator<Variable>, List<PcLink>>();
@@ -241,7 +241,7 @@ public class KkGeneraliser {
 	}
 	
 	
-	private DirectedGraph<Operator<Variable>> setOrderingConstraints(ExpressionCsp csp, CausalStucture expl, PcThreatSet threats, Map<Operator<Variable>, Variable> opVarMap) {
+	private TransitiveClosure<Operator<Variable>> setOrderingConstraints(ExpressionCsp csp, CausalStucture expl, PcThreatSet threats, Map<Operator<Variable>, Variable> opVarMap) {
 		DirectedGraph<Operator<Variable>> ordering = new DirectedGraph<Operator<Variable>>();
 		for (int i = 0; i < plan.getPlanSteps().size(); i++) {
 			for (int j = i+1; j < plan.getPlanSteps().size(); j++)
@@ -257,10 +257,10 @@ public class KkGeneraliser {
 				justified.add(edge);
 		}
 		
-		DirectedGraph<Operator<Variable>> minimised = new DirectedGraph<Operator<Variable>>();
+		TransitiveClosure<Operator<Variable>> minimised = new TransitiveClosure<Operator<Variable>>();
 		for (Pair<Operator<Variable>, Operator<Variable>> edge : justified) {
 			//System.out.println(edge.getFirst().getName() + " < " + edge.getSecond().getName());
-			GraphUtils.addAndCloseTransitive(minimised, edge.getFirst(), edge.getSecond());
+			minimised.addEdge(edge.getFirst(), edge.getSecond());
 		}
 		
 		return minimised;
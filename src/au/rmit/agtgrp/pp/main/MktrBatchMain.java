@@ -0,0 +1,444 @@
+/*******************************************************************************
+ * MKTR - Minimal k-Treewidth Relaxation
+ *
+ * Copyright (C) 2018 
+ * Max Waters (max.waters@rmit.edu.au)
+ * RMIT University, Melbourne VIC 3000
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package au.rmit.agtgrp.pp.main;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.StringWriter;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.kohsuke.args4j.CmdLineException;
+import org.kohsuke.args4j.CmdLineParser;
+import org.kohsuke.args4j.Option;
+import org.kohsuke.args4j.ParserProperties;
+
+import au.rmit.agtgrp.csp.ExpressionCsp;
+import au.rmit.agtgrp.csp.solver.CspSolver;
+import au.rmit.agtgrp.csp.solver.GeCodeInterface;
+import au.rmit.agtgrp.csp.solver.TreeDecompositionCounter;
+import au.rmit.agtgrp.csp.solver.ZincFormatter;
+import au.rmit.agtgrp.lang.fol.symbol.Type;
+import au.rmit.agtgrp.lang.pddl.Plan;
+import au.rmit.agtgrp.lang.pddl.PlanFactory;
+import au.rmit.agtgrp.lang.pddl.PddlProblem.PlanResult;
+import au.rmit.agtgrp.lang.pddl.parser.PddlCache;
+import au.rmit.agtgrp.lang.pddl.parser.PddlParser;
+import au.rmit.agtgrp.pp.mktr.MinKTreewidthRelaxation;
+import au.rmit.agtgrp.pp.mktr.MktrResult;
+import au.rmit.agtgrp.pp.partialplan.PartialPlan;
+import au.rmit.agtgrp.pp.partialplan.pcplan.optimiser.CspOptimiser;
+import au.rmit.agtgrp.utils.FormattingUtils;
+import au.rmit.agtgrp.utils.collections.graph.treewidth.TreewidthCache;
+import au.rmit.agtgrp.utils.collections.graph.treewidth.TreewidthCalculator;
+import au.rmit.agtgrp.utils.collections.graph.treewidth.TreewidthExactPool;
+
+/**
+ * Runs MKTR on every plan in a manifest, in a single JVM. Each line of the manifest 
+ * is a job of the form:
+ * 
+ * <pre>
+ * DOMAIN PROBLEM PLAN [TREEWIDTH]
+ * </pre>
+ * 
+ * Relative paths are resolved against the manifest's directory, and lines starting 
+ * with # are ignored. Jobs are grouped by domain, and each domain is parsed once. The 
+ * jobs of a domain are run in parallel, each with its own temp directory, CSP solver 
+ * and treewidth calculator. The CSP and log of each job are written to its own output 
+ * directory, and a record of each job is written to the results file.
+ */
+public class MktrBatchMain {
+
+	public static final File TEMP_DIR = new File("mktr_temp");
+	public static final String RESULTS_FILE = "results.tsv";
+
+	private static BatchOptions options;
+
+	public static void main(String[] args) {
+
+		options = parseCommandLine(args);
+
+		List<Job> jobs = null;
+		try {
+			jobs = readManifest(options.manifestFile);
+		} catch (IOException e) {
+			System.err.println("Error reading manifest " + options.manifestFile + ": " + e.getMessage());
+			System.exit(1);
+		}
+
+		MktrMain.recursivelyDelete(TEMP_DIR);
+		TEMP_DIR.mkdirs();
+		options.outDir.mkdirs();
+
+		if (options.propCacheSize > 0)
+			CspOptimiser.setCacheCapacity(options.propCacheSize);
+
+		TreewidthExactPool twPool = options.twExact ? new TreewidthExactPool(options.nWorkers) : null;
+		ExecutorService executor = Executors.newFixedThreadPool(options.nWorkers);
+
+		try (ResultWriter results = new ResultWriter(new File(options.outDir, RESULTS_FILE))) {
+
+			// the type hierarchy is shared, so domains are run one at a time
+			PddlCache pddlCache = new PddlCache();
+			for (List<Job> domainJobs : groupByDomain(jobs).values()) {
+
+				Type.clearTypeHierarchy();
+				pddlCache.clear();
+
+				List<Future<JobResult>> futures = new ArrayList<Future<JobResult>>();
+				for (final Job job : domainJobs) {
+					final PddlCache cache = pddlCache;
+					final TreewidthExactPool pool = twPool;
+					futures.add(executor.submit(new Callable<JobResult>() {
+						@Override
+						public JobResult call() throws Exception {
+							return runJob(job, cache, pool);
+						}
+					}));
+				}
+
+				for (int i = 0; i < futures.size(); i++) {
+					JobResult result;
+					try {
+						result = futures.get(i).get();
+					} catch (ExecutionException e) {
+						result = JobResult.error(domainJobs.get(i), 0, e.getCause());
+					}
+					results.write(result);
+					System.out.println(result.getSummary());
+				}
+			}
+
+		} catch (IOException e) {
+			System.err.println("Error writing results: " + e.getMessage());
+			System.exit(1);
+		} catch (InterruptedException e) {
+			System.err.println("Interrupted");
+			System.exit(1);
+		} finally {
+			executor.shutdownNow();
+			if (twPool != null)
+				twPool.close();
+			MktrMain.recursivelyDelete(TEMP_DIR);
+		}
+
+		if (options.verbose)
+			System.out.println("Optimiser propagation cache: " + CspOptimiser.getCacheStatistics());
+	}
+
+	private static JobResult runJob(Job job, PddlCache pddlCache, TreewidthExactPool twPool) {
+
+		long start = System.currentTimeMillis();
+
+		File jobTempDir = new File(TEMP_DIR, job.id);
+		File jobOutDir = new File(options.outDir, job.id);
+		jobTempDir.mkdirs();
+		jobOutDir.mkdirs();
+
+		try (PrintStream log = new PrintStream(new FileOutputStream(new File(jobOutDir, "mktr.log")))) {
+
+			try {
+				// load pddl
+				PddlParser parser = pddlCache.getParser(job.domainFile, job.problemFile);
+				parser.parseFDPlan(job.planFile);
+
+				PlanResult pr = parser.getProblem().validatePlan(parser.getPlan());
+				if (!pr.isValid)
+					return JobResult.error(job, System.currentTimeMillis() - start, "input plan is not valid");
+
+				Plan plan = PlanFactory.formatAsPlan(parser.getProblem(), parser.getPlan().getGroundSteps(), true, true);
+
+				// external tools, one per job
+				CspSolver cspSolver = new TreeDecompositionCounter(jobTempDir, new GeCodeInterface(jobTempDir));
+				TreewidthCalculator twCalc = twPool == null ? new TreewidthCalculator() : new TreewidthCalculator(twPool);
+				if (options.twCacheSize > 0)
+					twCalc.setCache(new TreewidthCache(options.twCacheSize, TreewidthCache.DEFAULT_ISOMORPHISM_BUDGET));
+
+				MinKTreewidthRelaxation mktr = new MinKTreewidthRelaxation(
+						plan, options.encoderName,
+						options.policyName, job.treewidth, options.nPerStep,
+						options.mktrTime, false, 
+						options.verbose, twCalc, cspSolver);
+				mktr.setOutput(log);
+
+				mktr.relax();
+
+				PartialPlan pp = mktr.getFinalPartialPlan();
+				writeCsp(pp.getConstraints(), new File(jobOutDir, "csp.mzn"));
+
+				MktrResult result = mktr.getInstantiationCount(options.planCountTime);
+
+				return JobResult.success(job, System.currentTimeMillis() - start, mktr, result);
+
+			} catch (Exception e) {
+				e.printStackTrace(log);
+				return JobResult.error(job, System.currentTimeMillis() - start, e);
+			}
+
+		} catch (IOException e) {
+			return JobResult.error(job, System.currentTimeMillis() - start, e);
+		} finally {
+			MktrMain.recursivelyDelete(jobTempDir);
+		}
+	}
+
+	private static void writeCsp(ExpressionCsp csp, File output) throws IOException {
+		try (BufferedWriter writer = Files.newBufferedWriter(output.toPath())) {
+			ZincFormatter zf = new ZincFormatter(csp);
+			writer.write(zf.getZincString());
+		}
+	}
+
+	private static List<Job> readManifest(File manifestFile) throws IOException {
+
+		File baseDir = manifestFile.getAbsoluteFile().getParentFile();
+		List<Job> jobs = new ArrayList<Job>();
+
+		int lineNo = 0;
+		for (String line : Files.readAllLines(manifestFile.toPath())) {
+			lineNo++;
+			line = line.trim();
+			if (line.isEmpty() || line.startsWith("#"))
+				continue;
+
+			String[] fields = line.split("\\s+");
+			if (fields.length != 3 && fields.length != 4)
+				throw new IOException("line " + lineNo + ": expected DOMAIN PROBLEM PLAN [TREEWIDTH]");
+
+			int treewidth = options.treewidth;
+			if (fields.length == 4) {
+				try {
+					treewidth = Integer.parseInt(fields[3]);
+				} catch (NumberFormatException e) {
+					throw new IOException("line " + lineNo + ": invalid treewidth " + fields[3]);
+				}
+			}
+
+			String id = String.format("job%04d", jobs.size());
+			jobs.add(new Job(id, resolve(baseDir, fields[0]), resolve(baseDir, fields[1]), resolve(baseDir, fields[2]), treewidth));
+		}
+
+		return jobs;
+	}
+
+	private static File resolve(File baseDir, String path) {
+		File f = new File(path);
+		return f.isAbsolute() ? f : new File(baseDir, path);
+	}
+
+	private static Map<File, List<Job>> groupByDomain(List<Job> jobs) {
+		Map<File, List<Job>> groups = new LinkedHashMap<File, List<Job>>();
+		for (Job job : jobs) {
+			File key = job.domainFile.getAbsoluteFile();
+			List<Job> group = groups.get(key);
+			if (group == null) {
+				group = new ArrayList<Job>();
+				groups.put(key, group);
+			}
+			group.add(job);
+		}
+		return groups;
+	}
+
+	private static BatchOptions parseCommandLine(String[] args) {
+		ParserProperties properties = ParserProperties.defaults();
+		properties.withOptionSorter(null);
+
+		BatchOptions options = new BatchOptions();
+		CmdLineParser optionParser = new CmdLineParser(options, properties);
+
+		StringWriter usage = new StringWriter();
+		optionParser.printUsage(usage, null);
+
+		try {
+			optionParser.parseArgument(args);
+		} catch (CmdLineException e) {
+			System.err.println(e.getMessage());
+			System.err.println(usage);
+			System.exit(1);
+		}
+
+		if (options.help) {
+			System.out.println(usage);
+			System.exit(0);
+		}
+
+		if (options.nWorkers <= 0)
+			options.nWorkers = Runtime.getRuntime().availableProcessors();
+
+		return options;
+	}
+
+	private static class Job {
+
+		private final String id;
+		private final File domainFile;
+		private final File problemFile;
+		private final File planFile;
+		private final int treewidth;
+
+		private Job(String id, File domainFile, File problemFile, File planFile, int treewidth) {
+			this.id = id;
+			this.domainFile = domainFile;
+			this.problemFile = problemFile;
+			this.planFile = planFile;
+			this.treewidth = treewidth;
+		}
+	}
+
+	private static class JobResult {
+
+		private static final String HEADER = "id\tdomain\tproblem\tplan\ttreewidth\tstatus\tlinks_tested\tlinks_added\tcount\tcount_timedout\ttime_ms\tmessage";
+
+		private final Job job;
+		private final boolean ok;
+		private final long time;
+		private final int nTested;
+		private final int nAdded;
+		private final int count;
+		private final boolean timedout;
+		private final String message;
+
+		private JobResult(Job job, boolean ok, long time, int nTested, int nAdded, int count, boolean timedout, String message) {
+			this.job = job;
+			this.ok = ok;
+			this.time = time;
+			this.nTested = nTested;
+			this.nAdded = nAdded;
+			this.count = count;
+			this.timedout = timedout;
+			this.message = message;
+		}
+
+		private static JobResult success(Job job, long time, MinKTreewidthRelaxation mktr, MktrResult result) {
+			return new JobResult(job, true, time, mktr.getnPcLinksTested(), mktr.getnPcLinksAdded(), 
+					result.count, result.timedout, "");
+		}
+
+		private static JobResult error(Job job, long time, String message) {
+			return new JobResult(job, false, time, -1, -1, -1, false, message);
+		}
+
+		private static JobResult error(Job job, long time, Throwable t) {
+			String message = t.getMessage() == null ? t.getClass().getSimpleName() : t.getMessage();
+			return error(job, time, message);
+		}
+
+		private String toRecord() {
+			return job.id + "\t" + job.domainFile.getPath() + "\t" + job.problemFile.getPath() + "\t" + 
+					job.planFile.getPath() + "\t" + job.treewidth + "\t" + (ok ? "ok" : "error") + "\t" + 
+					nTested + "\t" + nAdded + "\t" + count + "\t" + timedout + "\t" + time + "\t" + 
+					message.replaceAll("\\s+", " ");
+		}
+
+		private String getSummary() {
+			if (!ok)
+				return job.id + ": error: " + message;
+
+			return job.id + ": " + count + " instantiation" + (count == 1 ? "" : "s") + 
+					(timedout ? " (count timed out)" : "") + 
+					" in " + FormattingUtils.formatTime(time);
+		}
+	}
+
+	private static class ResultWriter implements AutoCloseable {
+
+		private final BufferedWriter writer;
+
+		private ResultWriter(File file) throws IOException {
+			writer = Files.newBufferedWriter(file.toPath());
+			writer.write(JobResult.HEADER);
+			writer.newLine();
+			writer.flush();
+		}
+
+		private synchronized void write(JobResult result) throws IOException {
+			writer.write(result.toRecord());
+			writer.newLine();
+			writer.flush();
+		}
+
+		@Override
+		public void close() throws IOException {
+			writer.close();
+		}
+	}
+
+	private static class BatchOptions {
+
+		@Option(name = "--help", usage = "print this help message", help = true, metaVar = "OPT")
+		private boolean help;
+
+		@Option(name = "--manifest", usage = "manifest file, one DOMAIN PROBLEM PLAN [TREEWIDTH] job per line", required = true)
+		private File manifestFile;
+
+		@Option(name = "--treewidth", usage = "maximum treewidth of jobs which do not specify one", required = true)
+		private int treewidth;
+
+		@Option(name = "--encoder", usage = "PC plan encoder", required = true)
+		private String encoderName;
+
+		@Option(name = "--policy", usage = "relaxation policy", required = true)
+		private String policyName;
+
+		@Option(name = "--links-per-step", usage = "number of pc links to add at each step", required = false)
+		private int nPerStep = 1;
+
+		@Option(name = "--mktr-time", usage = "time limit (in minutes) for running MKTR on each job, or < 0 for no limit")
+		private int mktrTime = -1;
+
+		@Option(name = "--count-time", usage = "time limit (in minutes) for counting instantiations of each job's final partial plan, or <= 0 for no limit")
+		private int planCountTime = -1;
+
+		@Option(name = "--workers", usage = "number of jobs to run in parallel, or <= 0 for one per processor")
+		private int nWorkers = -1;
+
+		@Option(name = "--out-dir", usage = "output directory for results, and each job's CSP and log")
+		private File outDir = new File("mktr_batch");
+
+		@Option(name = "--verbose", usage = "verbose", metaVar = "OPT")
+		private boolean verbose;
+
+		@Option(name = "--tw-exact", usage = "use the external tw-exact program to calculate exact treewidth", metaVar = "OPT")
+		private boolean twExact = false;
+
+		@Option(name = "--prop-cache-size", usage = "maximum number of entries in the CSP optimiser's propagation cache, or <= 0 for the default")
+		private int propCacheSize = -1;
+
+		@Option(name = "--tw-cache-size", usage = "maximum number of graphs in the treewidth cache, or 0 to disable it")
+		private int twCacheSize = TreewidthCache.DEFAULT_CAPACITY;
+
+	}
+
+	private MktrBatchMain() { }
+
+}
@@ -29,6 +29,7 @@ import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.ForkJoinPool;
 
 import org.kohsuke.args4j.CmdLineException;
 import org.kohsuke.args4j.CmdLineParser;
@@ -38,6 +39,7 @@ import org.kohsuke.args4j.ParserProperties;
 import au.rmit.agtgrp.csp.ExpressionCsp;
 import au.rmit.agtgrp.csp.solver.CspSolver;
 import au.rmit.agtgrp.csp.solver.GeCodeInterface;
+import au.rmit.agtgrp.csp.solver.TreeDecompositionCounter;
 import au.rmit.agtgrp.csp.solver.ZincFormatter;
 import au.rmit.agtgrp.lang.pddl.Plan;
 import au.rmit.agtgrp.lang.pddl.PlanFactory;
@@ -49,10 +51,13 @@ import au.rmit.agtgrp.pp.mktr.MinKTreewidthRelaxation;
 import au.rmit.agtgrp.pp.mktr.MktrResult;
 import au.rmit.agtgrp.pp.partialplan.PartialPlan;
 import au.rmit.agtgrp.pp.partialplan.pcplan.encoder.PcToCspEncoderException;
+import au.rmit.agtgrp.pp.partialplan.pcplan.optimiser.CspOptimiser;
 import au.rmit.agtgrp.pp.partialplan.pcplan.optimiser.CspOptimiserException;
 import au.rmit.agtgrp.pp.partialplan.planset.PlanSet;
 import au.rmit.agtgrp.pp.mktr.policy.RelaxationPolicyException;
+import au.rmit.agtgrp.utils.collections.graph.treewidth.TreewidthCache;
 import au.rmit.agtgrp.utils.collections.graph.treewidth.TreewidthCalculator;
+import au.rmit.agtgrp.utils.collections.graph.treewidth.TreewidthExactPool;
 
 public class MktrMain {
 
@@ -75,9 +80,17 @@ public class MktrMain {
 		// load pddl
 		PddlParser pddlParser = loadPDDL(options);
 
+		if (options.propCacheSize > 0)
+			CspOptimiser.setCacheCapacity(options.propCacheSize);
+
 		// initialise external tools
-		CspSolver cspSolver = new GeCodeInterface(TEMP_DIR);
-		TreewidthCalculator twCalc = new TreewidthCalculator();
+		CspSolver cspSolver = new TreeDecompositionCounter(TEMP_DIR, new GeCodeInterface(TEMP_DIR));
+		TreewidthExactPool twPool = options.twExact ? new TreewidthExactPool(options.nThreads * options.twThreads) : null;
+		TreewidthCalculator twCalc = twPool == null ? new TreewidthCalculator() : new TreewidthCalculator(twPool);
+		ForkJoinPool twForkJoinPool = options.twThreads > 1 ? new ForkJoinPool(options.twThreads) : null;
+		twCalc.setForkJoinPool(twForkJoinPool);
+		if (options.twCacheSize > 0)
+			twCalc.setCache(new TreewidthCache(options.twCacheSize, TreewidthCache.DEFAULT_ISOMORPHISM_BUDGET));
 
 		try {		
 			// get plan
@@ -92,9 +105,21 @@ public class MktrMain {
 					options.policyName, options.treewidth, options.nPerStep,
 					options.mktrTime, options.validate, 
 					options.verbose, twCalc, cspSolver);
+			mktr.setThreads(options.nThreads);
+
+			if (options.sweep > 0) {
+				sweep(mktr);
+				return;
+			}
 
 			mktr.relax();
 
+			if (options.verbose) {
+				System.out.println("Optimiser propagation cache: " + CspOptimiser.getCacheStatistics());
+				if (twCalc.getCache() != null)
+					System.out.println("Treewidth cache: " + twCalc.getCache());
+			}
+
 			// write/serialize CSP
 			PartialPlan pp = mktr.getFinalPartialPlan();
 			System.out.println("Writing final CSP to " + options.outCspFile.getAbsolutePath());		
@@ -111,6 +136,19 @@ public class MktrMain {
 						(result.count == 1 ? "" : "s") + 
 						(result.timedout ? " (re-instantiation count timed out)" : ""));			
 			}
+			else if (options.streamPlans) {
+				// write plans as they are generated, then count the rest
+				int max = options.maxPrint < 0 ? Integer.MAX_VALUE : options.maxPrint;
+				System.out.println("Writing " + (options.maxPrint < 0 ? "all" : "up to " + max) + " instantiations" +
+						" to " + options.outPlansFile.getAbsolutePath());
+
+				int written = writePlans(mktr.streamReinstantiations(options.planCountTime), options.outPlansFile, max);
+				MktrResult result = mktr.finishStreamedReinstantiations();
+				System.out.println("MKTR found " + result.count + " instantiation" + 
+						(result.count == 1 ? "" : "s") + 
+						(result.timedout ? " (re-instantiation generation timed out)" : "") + 
+						", wrote " + written);
+			}
 			else {
 				// write final plans
 				MktrResult result = mktr.getReinstantiations(options.planCountTime);
@@ -146,11 +184,61 @@ public class MktrMain {
 			System.exit(1);
 		}
 
-		// clean up
-		recursivelyDelete(TEMP_DIR);
+		finally {
+			// clean up
+			if (twPool != null)
+				twPool.close();
+			if (twForkJoinPool != null)
+				twForkJoinPool.shutdownNow();
+			recursivelyDelete(TEMP_DIR);
+		}
 
 	}
 
+	/*
+	 * Relaxes the plan at each treewidth from --treewidth to --sweep, resuming from the 
+	 * previous treewidth's PC plan each time, and writes the CSP and instantiation count 
+	 * of each.
+	 */
+	private static void sweep(MinKTreewidthRelaxation mktr) throws InterruptedException {
+
+		for (int k = options.treewidth; k <= options.sweep; k++) {
+
+			mktr.setMaxTreewidth(k);
+			mktr.relax();
+
+			PartialPlan pp = mktr.getFinalPartialPlan();
+			File cspFile = getSweepFile(options.outCspFile, k);
+			System.out.println("Writing CSP for treewidth " + k + " to " + cspFile.getAbsolutePath());
+			writeCsp(pp.getConstraints(), cspFile);
+			if (options.outCspDatFile != null) {
+				File datFile = getSweepFile(options.outCspDatFile, k);
+				System.out.println("Serializing CSP for treewidth " + k + " to " + datFile.getAbsolutePath());
+				serializeCsp(pp.getConstraints(), datFile);
+			}
+
+			MktrResult result = mktr.getInstantiationCount(options.planCountTime);
+			System.out.println("Treewidth " + k + ": MKTR found " + result.count + " instantiation" + 
+					(result.count == 1 ? "" : "s") + 
+					(result.timedout ? " (re-instantiation count timed out)" : ""));
+		}
+
+		if (options.verbose)
+			System.out.println("Optimiser propagation cache: " + CspOptimiser.getCacheStatistics());
+	}
+
+	/*
+	 * csp.mzn -> csp.k2.mzn
+	 */
+	private static File getSweepFile(File file, int k) {
+		String name = file.getName();
+		int dot = name.lastIndexOf('.');
+		String levelName = dot > 0 ? 
+				name.substring(0, dot) + ".k" + k + name.substring(dot) : 
+				name + ".k" + k;
+		return new File(file.getAbsoluteFile().getParentFile(), levelName);
+	}
+
 	private static MktrOptions parseCommandLine(String[] args) {
 		ParserProperties properties = ParserProperties.defaults();
 		properties.withOptionSorter(null);
@@ -180,10 +268,20 @@ public class MktrMain {
 			System.exit(0);
 		}
 
+		if (options.sweep > 0 && options.sweep < options.treewidth) {
+			System.err.println("--sweep must be at least --treewidth");
+			System.exit(1);
+		}
+
+		if (options.twThreads <= 0) {
+			System.err.println("--tw-threads must be positive");
+			System.exit(1);
+		}
+
 		return options;
 	}
 
-	private static void writePlans(PlanSet partialPlan, File output, int max) {
+	private static int writePlans(PlanSet partialPlan, File output, int max) {
 
 		try (BufferedWriter writer = Files.newBufferedWriter(output.toPath())) {
 			output = output.getAbsoluteFile();
@@ -196,11 +294,13 @@ public class MktrMain {
 				if (++n == max)
 					break;
 			}
+			return n;
 		} catch (IOException e) {
 			System.err.println("Error writing final plans to " + output + ": " + e.getMessage());
 			if (options.verbose)
 				e.printStackTrace();
 			System.exit(1);
+			return -1;
 		}
 	}
 
@@ -297,7 +397,7 @@ public class MktrMain {
 		return fileOptions;
 	}
 
-	private static void recursivelyDelete(File f) {
+	static void recursivelyDelete(File f) {
 		if (!f.exists())
 			return;
 		if (f.isDirectory()) {
@@ -359,6 +459,27 @@ public class MktrMain {
 		@Option(name = "--print-max", usage = "only print this many plans, or <= -1 to print them all")
 		private int maxPrint = -1;
 
+		@Option(name = "--stream-plans", usage = "write instantiations while they are being generated, rather than storing them first", metaVar = "OPT")
+		private boolean streamPlans = false;
+
+		@Option(name = "--threads", usage = "number of candidate pc links to test in parallel (requires one link per step)")
+		private int nThreads = 1;
+
+		@Option(name = "--tw-exact", usage = "use the external tw-exact program to calculate exact treewidth", metaVar = "OPT")
+		private boolean twExact = false;
+
+		@Option(name = "--prop-cache-size", usage = "maximum number of entries in the CSP optimiser's propagation cache, or <= 0 for the default")
+		private int propCacheSize = -1;
+
+		@Option(name = "--tw-threads", usage = "number of graph components whose treewidth is checked in parallel")
+		private int twThreads = 1;
+
+		@Option(name = "--tw-cache-size", usage = "maximum number of graphs in the treewidth cache, or 0 to disable it")
+		private int twCacheSize = TreewidthCache.DEFAULT_CAPACITY;
+
+		@Option(name = "--sweep", usage = "run MKTR at each treewidth from --treewidth up to this value, writing the CSP and instantiation count of each")
+		private int sweep = -1;
+
 	}
 
 	private MktrMain() { }
@@ -0,0 +1,491 @@
+/*******************************************************************************
+ * MKTR - Minimal k-Treewidth Relaxation
+ *
+ * Copyright (C) 2018 
+ * Max Waters (max.waters@rmit.edu.au)
+ * RMIT University, Melbourne VIC 3000
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package au.rmit.agtgrp.pp.main;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.kohsuke.args4j.CmdLineException;
+import org.kohsuke.args4j.CmdLineParser;
+import org.kohsuke.args4j.Option;
+import org.kohsuke.args4j.ParserProperties;
+
+import au.rmit.agtgrp.csp.ExpressionCsp;
+import au.rmit.agtgrp.csp.solver.CspSolver;
+import au.rmit.agtgrp.csp.solver.GeCodeInterface;
+import au.rmit.agtgrp.csp.solver.TreeDecompositionCounter;
+import au.rmit.agtgrp.csp.solver.ZincFormatter;
+import au.rmit.agtgrp.lang.fol.symbol.Type;
+import au.rmit.agtgrp.lang.pddl.Plan;
+import au.rmit.agtgrp.lang.pddl.PlanFactory;
+import au.rmit.agtgrp.lang.pddl.PddlProblem.PlanResult;
+import au.rmit.agtgrp.lang.pddl.parser.PddlCache;
+import au.rmit.agtgrp.lang.pddl.parser.PddlParser;
+import au.rmit.agtgrp.pp.mktr.MinKTreewidthRelaxation;
+import au.rmit.agtgrp.pp.mktr.MktrResult;
+import au.rmit.agtgrp.pp.partialplan.PartialPlan;
+import au.rmit.agtgrp.pp.partialplan.pcplan.optimiser.CspOptimiser;
+import au.rmit.agtgrp.utils.collections.graph.treewidth.TreewidthCache;
+import au.rmit.agtgrp.utils.collections.graph.treewidth.TreewidthCalculator;
+import au.rmit.agtgrp.utils.collections.graph.treewidth.TreewidthExactPool;
+
+/**
+ * Runs MKTR as a resident server, accepting jobs on a TCP socket bound to the loopback 
+ * address. A job is a sequence of lines of the form:
+ * 
+ * <pre>
+ * domain DOMAIN_FILE
+ * problem PROBLEM_FILE
+ * treewidth K
+ * encoder CSP_ENCODER
+ * policy RELAXATION_POLICY
+ * [links-per-step N]
+ * [mktr-time MINUTES]
+ * [count-time MINUTES]
+ * [csp-out CSP_FILE]
+ * [verbose true|false]
+ * plan
+ * ... plan, in Fast Downward format ...
+ * end
+ * </pre>
+ * 
+ * While the job runs, MKTR's progress is sent back as lines starting with "log ". The job 
+ * ends with a line of the form "result COUNT TIMEDOUT LINKS_TESTED LINKS_ADDED", or 
+ * "error MESSAGE". A connection may submit any number of jobs, one after another. The 
+ * line "shutdown" stops the server.
+ * <p>
+ * Parsed domains and problems are cached by the hash of their files. The type hierarchy
+ * is shared, so jobs of different domains are not run at the same time.
+ */
+public class MktrServer {
+
+	public static final File TEMP_DIR = new File("mktr_server_temp");
+
+	private final ServerOptions options;
+	private final PddlCache pddlCache;
+	private final TreewidthExactPool twPool;
+
+	private final Semaphore workers;
+	private final AtomicInteger jobCounter;
+
+	// jobs hold the read lock for the current domain, changing domain takes the write lock
+	private final ReentrantReadWriteLock domainLock;
+	private String currentDomain;
+
+	private volatile ServerSocket serverSocket;
+
+	private MktrServer(ServerOptions options) {
+		this.options = options;
+		pddlCache = new PddlCache();
+		twPool = options.twExact ? new TreewidthExactPool(options.nWorkers) : null;
+		workers = new Semaphore(options.nWorkers);
+		jobCounter = new AtomicInteger();
+		domainLock = new ReentrantReadWriteLock();
+	}
+
+	public static void main(String[] args) {
+
+		ServerOptions options = parseCommandLine(args);
+
+		if (options.propCacheSize > 0)
+			CspOptimiser.setCacheCapacity(options.propCacheSize);
+
+		MktrMain.recursivelyDelete(TEMP_DIR);
+		TEMP_DIR.mkdirs();
+
+		MktrServer server = new MktrServer(options);
+		try {
+			server.serve();
+		} catch (IOException e) {
+			System.err.println("Server error: " + e.getMessage());
+			if (options.verbose)
+				e.printStackTrace();
+			System.exit(1);
+		} finally {
+			if (server.twPool != null)
+				server.twPool.close();
+			MktrMain.recursivelyDelete(TEMP_DIR);
+		}
+
+		if (options.verbose)
+			System.out.println("Optimiser propagation cache: " + CspOptimiser.getCacheStatistics());
+	}
+
+	private void serve() throws IOException {
+
+		ExecutorService connections = Executors.newCachedThreadPool();
+		try (ServerSocket ss = new ServerSocket(options.port, 50, InetAddress.getLoopbackAddress())) {
+			serverSocket = ss;
+			System.out.println("MKTR server listening on " + ss.getInetAddress().getHostAddress() + ":" + ss.getLocalPort());
+
+			while (!ss.isClosed()) {
+				final Socket socket;
+				try {
+					socket = ss.accept();
+				} catch (IOException e) {
+					if (ss.isClosed()) // shut down
+						break;
+					throw e;
+				}
+
+				connections.submit(new Runnable() {
+					@Override
+					public void run() {
+						handleConnection(socket);
+					}
+				});
+			}
+		} finally {
+			connections.shutdownNow();
+		}
+	}
+
+	private void handleConnection(Socket socket) {
+
+		try (Socket s = socket;
+				BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+				PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(s.getOutputStream(), StandardCharsets.UTF_8)), true)) {
+
+			while (true) {
+				Request request = Request.read(in);
+				if (request == null) // connection closed
+					return;
+
+				if (request.shutdown) {
+					out.println("shutting down");
+					serverSocket.close();
+					return;
+				}
+
+				if (request.error != null) {
+					out.println("error " + request.error);
+					continue;
+				}
+
+				runJob(request, out);
+			}
+
+		} catch (IOException e) {
+			if (options.verbose)
+				e.printStackTrace();
+		}
+	}
+
+	private void runJob(Request request, PrintWriter out) {
+
+		File jobTempDir = new File(TEMP_DIR, "job" + jobCounter.getAndIncrement());
+
+		try {
+			workers.acquire();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			out.println("error interrupted");
+			return;
+		}
+
+		try {
+			acquireDomain(request.domainFile);
+			try {
+				jobTempDir.mkdirs();
+
+				// load pddl
+				PddlParser parser = pddlCache.getParser(request.domainFile, request.problemFile);
+				parser.parseFDPlan(request.planLines);
+
+				PlanResult pr = parser.getProblem().validatePlan(parser.getPlan());
+				if (!pr.isValid) {
+					out.println("error input plan is not valid");
+					return;
+				}
+
+				Plan plan = PlanFactory.formatAsPlan(parser.getProblem(), parser.getPlan().getGroundSteps(), true, true);
+
+				// external tools, one per job
+				CspSolver cspSolver = new TreeDecompositionCounter(jobTempDir, new GeCodeInterface(jobTempDir));
+				TreewidthCalculator twCalc = twPool == null ? new TreewidthCalculator() : new TreewidthCalculator(twPool);
+				if (options.twCacheSize > 0)
+					twCalc.setCache(new TreewidthCache(options.twCacheSize, TreewidthCache.DEFAULT_ISOMORPHISM_BUDGET));
+
+				MinKTreewidthRelaxation mktr = new MinKTreewidthRelaxation(
+						plan, request.encoderName,
+						request.policyName, request.treewidth, request.nPerStep,
+						request.mktrTime, false, 
+						request.verbose, twCalc, cspSolver);
+				mktr.setOutput(new PrintStream(new ProgressStream(out), true));
+
+				mktr.relax();
+
+				PartialPlan pp = mktr.getFinalPartialPlan();
+				if (request.cspOutFile != null)
+					writeCsp(pp.getConstraints(), request.cspOutFile);
+
+				MktrResult result = mktr.getInstantiationCount(request.planCountTime);
+				out.println("result " + result.count + " " + result.timedout + " " + 
+						mktr.getnPcLinksTested() + " " + mktr.getnPcLinksAdded());
+
+			} finally {
+				domainLock.readLock().unlock();
+			}
+
+		} catch (Exception e) {
+			if (options.verbose)
+				e.printStackTrace();
+			String message = e.getMessage() == null ? e.getClass().getSimpleName() : e.getMessage();
+			out.println("error " + message.replaceAll("\\s+", " "));
+		} finally {
+			workers.release();
+			MktrMain.recursivelyDelete(jobTempDir);
+		}
+	}
+
+	/*
+	 * Takes the read lock for the domain, first waiting for the jobs of any other domain
+	 * to finish, and clearing the type hierarchy.
+	 */
+	private void acquireDomain(File domainFile) {
+		String hash = PddlCache.hash(domainFile);
+
+		domainLock.readLock().lock();
+		if (hash.equals(currentDomain))
+			return;
+		domainLock.readLock().unlock();
+
+		domainLock.writeLock().lock();
+		try {
+			if (!hash.equals(currentDomain)) {
+				Type.clearTypeHierarchy();
+				pddlCache.clear();
+				currentDomain = hash;
+			}
+			domainLock.readLock().lock();
+		} finally {
+			domainLock.writeLock().unlock();
+		}
+	}
+
+	private static void writeCsp(ExpressionCsp csp, File output) throws IOException {
+		output = output.getAbsoluteFile();
+		output.getParentFile().mkdirs();
+		try (BufferedWriter writer = Files.newBufferedWriter(output.toPath())) {
+			ZincFormatter zf = new ZincFormatter(csp);
+			writer.write(zf.getZincString());
+		}
+	}
+
+	private static ServerOptions parseCommandLine(String[] args) {
+		ParserProperties properties = ParserProperties.defaults();
+		properties.withOptionSorter(null);
+
+		ServerOptions options = new ServerOptions();
+		CmdLineParser optionParser = new CmdLineParser(options, properties);
+
+		StringWriter usage = new StringWriter();
+		optionParser.printUsage(usage, null);
+
+		try {
+			optionParser.parseArgument(args);
+		} catch (CmdLineException e) {
+			System.err.println(e.getMessage());
+			System.err.println(usage);
+			System.exit(1);
+		}
+
+		if (options.help) {
+			System.out.println(usage);
+			System.exit(0);
+		}
+
+		if (options.nWorkers <= 0)
+			options.nWorkers = Runtime.getRuntime().availableProcessors();
+
+		return options;
+	}
+
+	/*
+	 * Sends each line written by MKTR to the client, prefixed with "log ".
+	 */
+	private static class ProgressStream extends OutputStream {
+
+		private final PrintWriter out;
+		private final ByteArrayOutputStream line;
+
+		private ProgressStream(PrintWriter out) {
+			this.out = out;
+			line = new ByteArrayOutputStream();
+		}
+
+		@Override
+		public void write(int b) {
+			if (b == '\n') {
+				out.println("log " + new String(line.toByteArray(), StandardCharsets.UTF_8));
+				line.reset();
+			}
+			else if (b != '\r')
+				line.write(b);
+		}
+	}
+
+	private static class Request {
+
+		private boolean shutdown;
+
+		private File domainFile;
+		private File problemFile;
+		private int treewidth = -1;
+		private String encoderName;
+		private String policyName;
+		private int nPerStep = 1;
+		private int mktrTime = -1;
+		private int planCountTime = -1;
+		private File cspOutFile;
+		private boolean verbose;
+		private List<String> planLines;
+
+		private String error; // the first problem found with the request
+
+		/*
+		 * Reads a whole request, up to and including its end line, even if one of its 
+		 * lines is invalid, so that the next request starts at the right line. The 
+		 * request is only verified once it has been read.
+		 * 
+		 * @return the next request, or null if the connection was closed.
+		 */
+		private static Request read(BufferedReader in) throws IOException {
+
+			Request request = new Request();
+			String line;
+			while ((line = in.readLine()) != null) {
+				line = line.trim();
+				if (line.isEmpty())
+					continue;
+
+				if (line.equals("shutdown")) {
+					request.shutdown = true;
+					return request;
+				}
+
+				if (line.equals("plan")) {
+					request.planLines = new ArrayList<String>();
+					while ((line = in.readLine()) != null && !line.trim().equals("end"))
+						request.planLines.add(line);
+					if (line == null)
+						return null;
+
+					if (request.error == null)
+						request.verify();
+					return request;
+				}
+
+				if (request.error != null)
+					continue; // discard the rest of the header
+
+				int space = line.indexOf(' ');
+				if (space < 0)
+					request.error = "expected KEY VALUE: " + line;
+				else
+					request.set(line.substring(0, space), line.substring(space + 1).trim());
+			}
+
+			return null;
+		}
+
+		private void set(String key, String value) {
+			try {
+				switch (key) {
+				case "domain": 			domainFile = new File(value); break;
+				case "problem": 		problemFile = new File(value); break;
+				case "treewidth": 		treewidth = Integer.parseInt(value); break;
+				case "encoder": 		encoderName = value; break;
+				case "policy": 			policyName = value; break;
+				case "links-per-step": 	nPerStep = Integer.parseInt(value); break;
+				case "mktr-time": 		mktrTime = Integer.parseInt(value); break;
+				case "count-time": 		planCountTime = Integer.parseInt(value); break;
+				case "csp-out": 		cspOutFile = new File(value); break;
+				case "verbose": 		verbose = Boolean.parseBoolean(value); break;
+				default:
+					error = "unknown key: " + key;
+				}
+			} catch (NumberFormatException e) {
+				error = "invalid value for " + key + ": " + value;
+			}
+		}
+
+		private void verify() {
+			if (domainFile == null)
+				error = "no domain";
+			else if (problemFile == null)
+				error = "no problem";
+			else if (treewidth < 0)
+				error = "no treewidth";
+			else if (encoderName == null)
+				error = "no encoder";
+			else if (policyName == null)
+				error = "no policy";
+		}
+	}
+
+	private static class ServerOptions {
+
+		@Option(name = "--help", usage = "print this help message", help = true, metaVar = "OPT")
+		private boolean help;
+
+		@Option(name = "--port", usage = "port to listen on, on the loopback address, or 0 for any free port")
+		private int port = 7043;
+
+		@Option(name = "--workers", usage = "number of jobs to run in parallel, or <= 0 for one per processor")
+		private int nWorkers = 1;
+
+		@Option(name = "--verbose", usage = "verbose", metaVar = "OPT")
+		private boolean verbose;
+
+		@Option(name = "--tw-exact", usage = "use the external tw-exact program to calculate exact treewidth", metaVar = "OPT")
+		private boolean twExact = false;
+
+		@Option(name = "--prop-cache-size", usage = "maximum number of entries in the CSP optimiser's propagation cache, or <= 0 for the default")
+		private int propCacheSize = -1;
+
+		@Option(name = "--tw-cache-size", usage = "maximum number of graphs in the treewidth cache, or 0 to disable it")
+		private int twCacheSize = TreewidthCache.DEFAULT_CAPACITY;
+
+	}
+
+}
@@ -22,11 +22,14 @@ package au.rmit.agtgrp.pp.mktr;
 
 import java.io.PrintStream;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.concurrent.Callable;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
@@ -36,6 +39,7 @@ import au.rmit.agtgrp.csp.ExpressionCsp;
 import au.rmit.agtgrp.csp.PartitionedExpressionCsp;
 import au.rmit.agtgrp.csp.solver.CspSolutionSet;
 import au.rmit.agtgrp.csp.solver.CspSolver;
+import au.rmit.agtgrp.csp.solver.output.StreamingCspOutputSet;
 import au.rmit.agtgrp.lang.pddl.Plan;
 import au.rmit.agtgrp.lang.fol.symbol.Variable;
 import au.rmit.agtgrp.lang.pddl.Operator;
@@ -50,6 +54,8 @@ import au.rmit.agtgrp.pp.partialplan.pcplan.encoder.PcToCspEncoder;
 import au.rmit.agtgrp.pp.partialplan.planset.PlanSet;
 import au.rmit.agtgrp.pp.partialplan.planset.PlanSubstitutionSet;
 import au.rmit.agtgrp.utils.FormattingUtils;
+import au.rmit.agtgrp.utils.collections.graph.UndirectedGraph;
+import au.rmit.agtgrp.utils.collections.graph.treewidth.IncrementalTreeDecomposition;
 import au.rmit.agtgrp.utils.collections.graph.treewidth.TreewidthCalculator;
 
 public class MinKTreewidthRelaxation {
@@ -63,6 +69,7 @@ public class MinKTreewidthRelaxation {
 	private String policyName;
 
 	private int nPerStep;
+	private int nThreads;
 
 	private int maxTreewidth;
 	private boolean validatePlans;
@@ -71,6 +78,7 @@ public class MinKTreewidthRelaxation {
 	private int toMinutes;
 
 	private TreewidthCalculator twCalculator;
+	private IncrementalTreeDecomposition<Variable> decomposition; // of the PC plan's primal graph
 	private CspSolver cspSolver;
 
 	// results
@@ -78,6 +86,10 @@ public class MinKTreewidthRelaxation {
 	private int nPcLinksAdded;
 	private PcPlan pcPlan;
 
+	// relaxation state, kept so that relaxation can resume at a higher treewidth
+	private List<PcLink> pcOptions; // untested
+	private List<PcLink> rejected; // rejected at the current treewidth
+
 	// used to print state
 	private int prevNumPlans;
 	private int prevPcPlanSize;
@@ -85,6 +97,7 @@ public class MinKTreewidthRelaxation {
 	private PrintStream out = System.out;
 
 	private PartialPlan finalPartialPlan;
+	private StreamingCspOutputSet streamedOutput;
 
 	/**
 	 * Initialises the MKTR algorithm.
@@ -121,16 +134,61 @@ public class MinKTreewidthRelaxation {
 
 		this.twCalculator = twCalc;
 		this.cspSolver = cspSolver;
+
+		nThreads = 1;
 	}
 
 	public void setOutput(PrintStream out) {
 		this.out = out;
 	}
 
+	/**
+	 * Sets the number of candidate PC links evaluated in parallel. Each candidate is 
+	 * evaluated against a copy of the current PC plan, and the first one (in policy 
+	 * order) which is accepted is added, so the result is the same as a sequential run. 
+	 * Requires one PC link per step.
+	 * 
+	 * @param nThreads	The number of threads.
+	 */
+	public void setThreads(int nThreads) {
+		if (nThreads <= 0)
+			throw new IllegalArgumentException("number of threads must be positive");
+		if (nThreads > 1 && nPerStep > 1)
+			throw new IllegalArgumentException("parallel evaluation requires one link per step");
+
+		this.nThreads = nThreads;
+	}
+
+	public int getMaxTreewidth() {
+		return maxTreewidth;
+	}
+
+	/**
+	 * Sets the maximum treewidth. Once relaxation has started the treewidth can only be 
+	 * increased, and the next call to relax resumes from the current PC plan, re-testing 
+	 * only the PC links which were rejected (or not tested) at the previous treewidth. 
+	 * Any PC link which was accepted at a lower treewidth is accepted at a higher one.
+	 * 
+	 * @param maxTreewidth	The new maximum treewidth.
+	 */
+	public void setMaxTreewidth(int maxTreewidth) {
+		if (pcPlan != null && maxTreewidth < this.maxTreewidth)
+			throw new IllegalArgumentException("treewidth cannot be decreased once relaxation has started");
+
+		this.maxTreewidth = maxTreewidth;
+		finalPartialPlan = null;
+	}
+
+	/**
+	 * Relaxes the PC plan until no further PC links can be added without exceeding the 
+	 * maximum treewidth, or the time limit is reached. If called again, relaxation 
+	 * resumes from the current PC plan.
+	 */
 	public void relax() {
 
-		CountDownLatch latch = new CountDownLatch(1);
-		Future<Void> f = Executors.newSingleThreadExecutor().submit(new Callable<Void>() {
+		final CountDownLatch latch = new CountDownLatch(1);
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		Future<Void> f = executor.submit(new Callable<Void>() {
 			@Override
 			public Void call() throws Exception {
 				try {
@@ -167,6 +225,8 @@ public class MinKTreewidthRelaxation {
 			} catch (InterruptedException e1) {
 				throw new RuntimeException(e1);
 			}
+		} finally {
+			executor.shutdown();
 		}
 
 	}
@@ -177,11 +237,35 @@ public class MinKTreewidthRelaxation {
 	 */
 	private void runMktr() {
 
+		if (pcPlan == null)
+			initialise();
+		else
+			resume();
+
+		printHeaders();
+		try {
+			printState(null, 0, pcPlan, pcOptions, null, 0);
+		} catch (InterruptedException e) {
+			// csp calculation was cancelled
+			return;
+		}
+
+		//start relaxation
+		if (nThreads > 1)
+			relaxInParallel();
+		else
+			relaxSequentially();
+
+	}
+
+	private void initialise() {
+
 		printSetup();
 
 		// build encoder
 		out.println("Initialising CSP encoder");
 		cspEncoder = PcToCspEncoder.getInstance(cspEncoderName);
+		cspEncoder.setIncremental(true); // only re-encode consumers affected by each new link
 
 		// build PC plan
 		out.println("Converting plan into causal structure C");
@@ -196,27 +280,34 @@ public class MinKTreewidthRelaxation {
 		policy = RelaxationPolicy.getInstance(policyName, pcPlan, minimalConstraints);
 
 		// get all pc options
-		List<PcLink> pcOptions = new ArrayList<PcLink>(minimalConstraints.getAllPcLinks());
+		pcOptions = new ArrayList<PcLink>(minimalConstraints.getAllPcLinks());
 		pcOptions.removeAll(pcPlan.getConstraints().getAllPcLinks());
 		pcOptions = policy.sortAndFilter(pcOptions);
+		rejected = new ArrayList<PcLink>();
+		decomposition = new IncrementalTreeDecomposition<Variable>();
 
 		// init data
 		nPcLinksTested = 0;
 		nPcLinksAdded = 0;
 		prevNumPlans = 1;
 		prevPcPlanSize = pcPlan.getConstraints().getAllPcLinks().size();
+	}
 
+	/*
+	 * Links rejected at a lower treewidth may now be accepted, so they are tested again,
+	 * along with any which were not tested before the previous run stopped.
+	 */
+	private void resume() {
+		out.println("Resuming MKTR");
+		out.println("Treewidth: " + maxTreewidth);
 
-		printHeaders();
-		try {
-			printState(null, pcPlan, pcOptions, null);
-		} catch (InterruptedException e) {
-			// csp calculation was cancelled
-			return;
-		}
+		pcOptions.addAll(rejected);
+		rejected.clear();
+		pcOptions = policy.sortAndFilter(pcOptions);
+	}
 
+	private void relaxSequentially() {
 
-		//start relaxation
 		while (!pcOptions.isEmpty()) {
 
 			if (Thread.interrupted()) {
@@ -232,6 +323,7 @@ public class MinKTreewidthRelaxation {
 				edges.add(pcOptions.remove(0));
 
 			int n = edges.size();
+			Set<PcLink> tested = new HashSet<PcLink>();
 			while (!edges.isEmpty()) {
 
 				if (Thread.interrupted()) {
@@ -247,11 +339,15 @@ public class MinKTreewidthRelaxation {
 
 				// convert to CSP
 				ExpressionCsp csp = cspEncoder.toCSP(pcPlan, maxTreewidth);
+				UndirectedGraph<Variable> primalGraph = csp.getPrimalGraph();
 
-				// test treewidth of csp
+				// test treewidth of csp, which is only calculated if the repaired decomposition is too wide
+				int twEst = decomposition.update(primalGraph, maxTreewidth);
 				try {
-					if (!twCalculator.isGreaterThan(csp.getPrimalGraph(), maxTreewidth)) {
+					if (twEst <= maxTreewidth || !twCalculator.isGreaterThan(primalGraph, maxTreewidth)) {
 						nPcLinksAdded+=attempt.size();
+						cspEncoder.commit();
+						decomposition.commit();
 
 						// re-sort edges if necessary
 						if (policy.resortEachStep())
@@ -263,25 +359,32 @@ public class MinKTreewidthRelaxation {
 					} else { // edges created tw greater than mtw, remove from pc plan
 						for (PcLink edge : attempt)
 							pcPlan.getConstraints().removeProducerConsumerOption(edge);
+						cspEncoder.rollback();
+						decomposition.rollback();
 
 						// this edge can be removed
-						if (n == 1)
+						if (n == 1) {
 							edges.removeAll(attempt);
+							rejected.addAll(attempt);
+						}
 
 					}
+					tested.addAll(attempt);
 				} catch (InterruptedException e) {
 					// tw calculation was cancelled
 
 					// remove last additions
 					for (PcLink edge : attempt)
 						pcPlan.getConstraints().removeProducerConsumerOption(edge);
+					cspEncoder.rollback();
+					decomposition.rollback();
 
 					break;
 				}
 
 				// update console
 				try {
-					printState(csp, pcPlan, pcOptions, attempt);
+					printState(csp, twEst, pcPlan, pcOptions, attempt, cspEncoder.getEncodingTime());
 				} catch (InterruptedException e) {
 					// csp calc was cancelled
 					break;
@@ -291,8 +394,148 @@ public class MinKTreewidthRelaxation {
 					n /= 2;
 
 			}
+
+			// stopped early, keep untested edges for the next run. Edges only tested as 
+			// part of a rejected group are tested again on resume.
+			for (PcLink edge : edges) {
+				if (tested.contains(edge))
+					rejected.add(edge);
+			}
+			edges.removeAll(tested);
+			pcOptions.addAll(0, edges);
+		}
+
+	}
+
+	/*
+	 * Tests the next nThreads candidates at once, each against its own copy of the 
+	 * PC plan. Candidates tested after the first accepted one are returned to the 
+	 * options list, as they must be re-tested against the new PC plan.
+	 */
+	private void relaxInParallel() {
+
+		List<CandidateEvaluator> evaluators = new ArrayList<CandidateEvaluator>();
+		for (int i = 0; i < nThreads; i++)
+			evaluators.add(new CandidateEvaluator());
+
+		ExecutorService executor = Executors.newFixedThreadPool(nThreads);
+
+		try {
+			while (!pcOptions.isEmpty()) {
+
+				if (Thread.interrupted()) {
+					Thread.currentThread().interrupt();
+					break;
+				}
+
+				// select the next candidates
+				List<PcLink> batch = new ArrayList<PcLink>();
+				for (int i = 0; i < nThreads && !pcOptions.isEmpty(); i++)
+					batch.add(pcOptions.remove(0));
+
+				List<Future<Evaluation>> futures = new ArrayList<Future<Evaluation>>();
+				for (int i = 0; i < batch.size(); i++) {
+					final CandidateEvaluator evaluator = evaluators.get(i);
+					final PcLink link = batch.get(i);
+					futures.add(executor.submit(new Callable<Evaluation>() {
+						@Override
+						public Evaluation call() throws Exception {
+							return evaluator.evaluate(link);
+						}
+					}));
+				}
+
+				// collect results in policy order
+				Evaluation accepted = null;
+				int i = 0;
+				try {
+					for (; i < batch.size() && accepted == null; i++) {
+						Evaluation evaluation = getEvaluation(futures.get(i));
+						nPcLinksTested++;
+
+						if (evaluation.accepted)
+							accepted = evaluation;
+						else {
+							// options as they would be in a sequential run
+							List<PcLink> remaining = new ArrayList<PcLink>(batch.subList(i + 1, batch.size()));
+							remaining.addAll(pcOptions);
+							printState(evaluation.csp, evaluation.upperBound, pcPlan, remaining, evaluation.links, evaluation.encodingTime);
+
+							// only once printed, so if cancelled the candidate is returned to the options
+							rejected.addAll(evaluation.links);
+						}
+					}
+				} catch (InterruptedException e) {
+					// cancelled, return untested candidates
+					for (CandidateEvaluator evaluator : evaluators)
+						evaluator.twCalculator.cancel();
+					pcOptions.addAll(0, batch.subList(i, batch.size()));
+					break;
+				} finally {
+					// later results are stale
+					for (int j = i; j < batch.size(); j++)
+						evaluators.get(j).twCalculator.cancel();
+					waitFor(futures.subList(i, futures.size()));
+				}
+
+				if (accepted == null)
+					continue;
+
+				// add to pc plan and copies
+				PcLink link = accepted.links.get(0);
+				pcPlan.getConstraints().addProducerConsumerOption(link);
+				for (CandidateEvaluator evaluator : evaluators)
+					evaluator.accept(link, accepted.primalGraph);
+				nPcLinksAdded++;
+
+				pcOptions.addAll(0, batch.subList(i, batch.size()));
+				if (policy.resortEachStep())
+					pcOptions = policy.sortAndFilter(pcOptions);
+
+				try {
+					printState(accepted.csp, accepted.upperBound, pcPlan, pcOptions, accepted.links, accepted.encodingTime);
+				} catch (InterruptedException e) {
+					// csp calc was cancelled
+					break;
+				}
+			}
+		} finally {
+			executor.shutdownNow();
 		}
+	}
 
+	private Evaluation getEvaluation(Future<Evaluation> future) throws InterruptedException {
+		try {
+			return future.get();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof InterruptedException)
+				throw (InterruptedException) e.getCause();
+			if (e.getCause() instanceof RuntimeException)
+				throw (RuntimeException) e.getCause();
+			throw new RuntimeException(e.getCause());
+		}
+	}
+
+	/*
+	 * Waits for evaluations whose results will not be used, so each evaluator is 
+	 * idle before it is given another candidate.
+	 */
+	private void waitFor(List<Future<Evaluation>> futures) {
+		boolean interrupted = false;
+		for (Future<Evaluation> future : futures) {
+			while (true) {
+				try {
+					future.get();
+					break;
+				} catch (ExecutionException e) {
+					break;
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+		}
+		if (interrupted)
+			Thread.currentThread().interrupt();
 	}
 
 	private void printSetup() {
@@ -302,6 +545,8 @@ public class MinKTreewidthRelaxation {
 		out.println("Treewidth: " + maxTreewidth);
 		out.println("Encoder:   " + cspEncoderName);
 		out.println("Policy:    " + policyName);
+		if (nThreads > 1)
+			out.println("Threads:   " + nThreads);
 		out.println("Time:      " + (toMinutes > 0 ? (toMinutes + " minute(s)"): "none"));
 	}
 
@@ -313,13 +558,12 @@ public class MinKTreewidthRelaxation {
 			out.println("#C\t#C_A\t  producer -> consumer");
 	}
 
-	private void printState(ExpressionCsp csp, PcPlan pcPlan, List<PcLink> opts, List<PcLink> edges) throws InterruptedException {
+	private void printState(ExpressionCsp csp, int twEst, PcPlan pcPlan, List<PcLink> opts, List<PcLink> edges, long encodingTime) throws InterruptedException {
 
 		int pcPlanSize = pcPlan.getConstraints().getAllPcLinks().size();
 		if (verbose && csp != null) {
 			String nsolsStr = "?";
 			int nPlans = prevNumPlans;
-			int twEst = twCalculator.getUpperBound(csp.getPrimalGraph());
 			//an edge was added (i.e., tw <= maxtreewidth), or this is the first iteration
 			if (prevPcPlanSize != pcPlanSize || nPcLinksTested == 0) { 
 				nPlans = getPlanCount(csp, -1).count;
@@ -332,7 +576,7 @@ public class MinKTreewidthRelaxation {
 			String added = prevPcPlanSize != pcPlanSize ? "+ " : "  ";
 			out.println(pcPlan.getConstraints().getAllPcLinks().size() + "\t" + opts.size() + "\t" + twStr
 					+ "\t" + nsolsStr + "\t" + FormattingUtils.formatTime(cspSolver.getRuntime()) + "\t"
-					+ FormattingUtils.formatTime(((double) cspEncoder.getEncodingTime())) + "\t"
+					+ FormattingUtils.formatTime(((double) encodingTime)) + "\t"
 					+ added
 					+ (edges == null ? " " : edges.get(0)));
 
@@ -428,4 +672,111 @@ public class MinKTreewidthRelaxation {
 		return buildPartialPlan(pp.getConstraints(), timeoutMinutes);
 	}
 
+	/**
+	 * Starts generating re-instantiations of the final partial plan on a background
+	 * thread. The returned set can only be iterated once. Once it has been consumed,
+	 * or enough plans have been taken from it, call finishStreamedReinstantiations.
+	 */
+	public PlanSet streamReinstantiations(long timeoutMinutes) {
+		out.println("Streaming re-instantiations");
+		PartialPlan pp = getFinalPartialPlan();
+		ExpressionCsp csp = pp.getConstraints();
+
+		CspSolutionSet cspSols = cspSolver.streamSolutions(csp, TimeUnit.MINUTES.toMillis(timeoutMinutes));
+		streamedOutput = (StreamingCspOutputSet) cspSols.getCspOutputSet();
+		cspSols = ((PartitionedExpressionCsp) csp).departitionSolutions(cspSols);
+
+		return new PlanSubstitutionSet(pcPlan.getProblem(), pcPlan.getPlanSteps(), cspSols);
+	}
+
+	/**
+	 * Discards any re-instantiations which have not been consumed, and waits for the 
+	 * solver to finish counting them.
+	 */
+	public MktrResult finishStreamedReinstantiations() throws InterruptedException {
+		if (streamedOutput == null)
+			throw new IllegalStateException("No re-instantiations are being streamed");
+
+		streamedOutput.close();
+		streamedOutput.awaitFinished();
+		int count = streamedOutput.getSolutionCount();
+		streamedOutput = null;
+
+		return new MktrResult(null, count, cspSolver.timedOut());
+	}
+
+	/*
+	 * Tests candidate PC links against its own copy of the PC plan, with its own 
+	 * encoder, treewidth calculator and decomposition of the PC plan's primal graph.
+	 */
+	private class CandidateEvaluator {
+
+		private final PcPlan pcPlanCopy;
+		private final PcToCspEncoder encoder;
+		private final TreewidthCalculator twCalculator;
+		private final IncrementalTreeDecomposition<Variable> decomposition;
+
+		private CandidateEvaluator() {
+			pcPlanCopy = new PcPlan(pcPlan.getProblem(), pcPlan.getPlanSteps(), pcPlan.getOriginalSub(), 
+					new CausalStucture(pcPlan.getConstraints()));
+			encoder = PcToCspEncoder.getInstance(cspEncoderName);
+			encoder.setIncremental(true);
+			twCalculator = new TreewidthCalculator(MinKTreewidthRelaxation.this.twCalculator);
+			decomposition = new IncrementalTreeDecomposition<Variable>();
+		}
+
+		private Evaluation evaluate(PcLink link) throws InterruptedException {
+			pcPlanCopy.getConstraints().addProducerConsumerOption(link);
+			int upperBound = Integer.MAX_VALUE;
+			try {
+				ExpressionCsp csp = encoder.toCSP(pcPlanCopy, maxTreewidth);
+				UndirectedGraph<Variable> primalGraph = csp.getPrimalGraph();
+				upperBound = decomposition.update(primalGraph, maxTreewidth);
+				boolean accepted = upperBound <= maxTreewidth || !twCalculator.isGreaterThan(primalGraph, maxTreewidth);
+				return new Evaluation(link, csp, primalGraph, upperBound, accepted, encoder.getEncodingTime());
+			} finally {
+				pcPlanCopy.getConstraints().removeProducerConsumerOption(link);
+				encoder.rollback();
+
+				// a narrow decomposition of the PC plan plus the link is also one of the PC plan
+				if (upperBound <= maxTreewidth)
+					decomposition.commit();
+				else
+					decomposition.rollback();
+			}
+		}
+
+		/*
+		 * Adds an accepted link to the copy of the PC plan. Its consumer is encoded and 
+		 * committed, so later evaluations only re-encode the consumers of their own links.
+		 */
+		private void accept(PcLink link, UndirectedGraph<Variable> primalGraph) {
+			pcPlanCopy.getConstraints().addProducerConsumerOption(link);
+			encoder.toCSP(pcPlanCopy, false, false);
+			encoder.commit();
+			decomposition.update(primalGraph, maxTreewidth);
+			decomposition.commit();
+		}
+	}
+
+	private static class Evaluation {
+
+		private final List<PcLink> links;
+		private final ExpressionCsp csp;
+		private final UndirectedGraph<Variable> primalGraph;
+		private final int upperBound;
+		private final boolean accepted;
+		private final long encodingTime;
+
+		private Evaluation(PcLink link, ExpressionCsp csp, UndirectedGraph<Variable> primalGraph, int upperBound, 
+				boolean accepted, long encodingTime) {
+			this.links = Arrays.asList(link);
+			this.csp = csp;
+			this.primalGraph = primalGraph;
+			this.upperBound = upperBound;
+			this.accepted = accepted;
+			this.encodingTime = encodingTime;
+		}
+	}
+
 }
@@ -29,7 +29,6 @@ import au.rmit.agtgrp.lang.fol.symbol.Variable;
 import au.rmit.agtgrp.lang.pddl.Operator;
 import au.rmit.agtgrp.lang.pddl.pct.CausalStucture;
 import au.rmit.agtgrp.lang.pddl.pct.Consumer;
-import au.rmit.agtgrp.lang.pddl.pct.CausalStructureFactory;
 import au.rmit.agtgrp.lang.pddl.pct.PcLink;
 import au.rmit.agtgrp.lang.pddl.pct.PcThreatSet;
 import au.rmit.agtgrp.lang.pddl.pct.Producer;
@@ -46,7 +45,7 @@ public class RelaxNonConcurrency extends RelaxationPolicy {
 
 		ncr = new DirectedGraph<Operator<? extends Term>>();
 
-		PcThreatSet threats = CausalStructureFactory.getThreats(planSteps, options);
+		PcThreatSet threats = options.getThreats(planSteps);
 
 		for (PcLink pcLink : options.getAllPcLinks()) {
 			Producer prod = pcLink.getProducer();
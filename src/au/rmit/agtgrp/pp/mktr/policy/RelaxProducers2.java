@@ -32,7 +32,6 @@ import au.rmit.agtgrp.lang.fol.symbol.Variable;
 import au.rmit.agtgrp.lang.pddl.Operator;
 import au.rmit.agtgrp.lang.pddl.pct.CausalStucture;
 import au.rmit.agtgrp.lang.pddl.pct.Consumer;
-import au.rmit.agtgrp.lang.pddl.pct.CausalStructureFactory;
 import au.rmit.agtgrp.lang.pddl.pct.PcLink;
 import au.rmit.agtgrp.lang.pddl.pct.PcThreatSet;
 import au.rmit.agtgrp.lang.pddl.pct.Producer;
@@ -66,7 +65,7 @@ public class RelaxProducers2 extends RelaxationPolicy {
 
 		}
 
-		PcThreatSet threats = CausalStructureFactory.getThreats(planSteps, current);
+		PcThreatSet threats = current.getThreats(planSteps);
 		maxThreatConsCount = new HashMap<String, Integer>();
 		for (Operator<Variable> op : planSteps) {
 			int max = 0;
@@ -22,6 +22,7 @@ package au.rmit.agtgrp.pp.partialplan.pcplan.encoder;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 
 import au.rmit.agtgrp.lang.fol.expression.Connective;
@@ -30,10 +31,8 @@ import au.rmit.agtgrp.lang.fol.function.Constant;
 import au.rmit.agtgrp.lang.fol.predicate.Literal;
 import au.rmit.agtgrp.lang.fol.symbol.Type;
 import au.rmit.agtgrp.lang.fol.symbol.Variable;
-import au.rmit.agtgrp.lang.pddl.Operator;
 import au.rmit.agtgrp.lang.pddl.pct.CausalStucture;
 import au.rmit.agtgrp.lang.pddl.pct.Consumer;
-import au.rmit.agtgrp.lang.pddl.pct.CausalStructureFactory;
 import au.rmit.agtgrp.lang.pddl.pct.PcLink;
 import au.rmit.agtgrp.lang.pddl.pct.PcThreatSet;
 import au.rmit.agtgrp.lang.pddl.pct.Producer;
@@ -83,76 +82,61 @@ public class GroundEncoder extends PcToCspEncoder {
 	}
 
 	@Override
-	protected void setProducerConsumerConstraints() {
-		CausalStucture constraints = plan.getConstraints();
-
-		PcThreatSet threats = CausalStructureFactory.getThreats(plan.getPlanSteps(), plan.getConstraints());
-
-		// for each each operator
-		for (Operator<Variable> consOp : plan.getPlanSteps()) {
-
-			// for each consumer
-			for (Literal<Variable> consLit : consOp.getPreconditions()) {
-
-				Consumer consumer = new Consumer(consOp, consLit).intern();
-
-				if (constraints.getProducers(consumer).isEmpty())
-					throw new RuntimeException("No producer for consumer: " + consumer);
-
-				Variable consOrdinal = opVarMap.get(consumer.operator);
+	protected List<Expression<Variable>> encodeConsumer(Consumer consumer, PcThreatSet threats) {
 
-				// add producer-consumer constraints
-				List<Expression<Variable>> pcOptions = new ArrayList<Expression<Variable>>();
+		CausalStucture constraints = plan.getConstraints();
 
-				for (Producer producer : constraints.getProducers(consumer)) {
+		Variable consOrdinal = opVarMap.get(consumer.operator);
 
-					// check for co-designation
-					if (!codesignated(consumer.literal.getAtom().getVariables(),
-							producer.literal.getAtom().getVariables())) {
-						continue;
-					}
+		// add producer-consumer constraints
+		List<Expression<Variable>> pcOptions = new ArrayList<Expression<Variable>>();
 
-					Variable prodOrdinal = opVarMap.get(producer.operator);
-					List<Expression<Variable>> conj = new ArrayList<Expression<Variable>>();
+		for (Producer producer : constraints.getProducers(consumer)) {
 
-					// prod < cons
-					conj.add(Expression.buildLiteral(Literal.prec(prodOrdinal, consOrdinal, prodOrdinal, consOrdinal)));
+			// check for co-designation
+			if (!codesignated(consumer.literal.getAtom().getVariables(),
+					producer.literal.getAtom().getVariables())) {
+				continue;
+			}
 
-					// now each threat
-					for (Threat threat : threats.getThreatsToLink(new PcLink(producer, consumer))) { 
+			Variable prodOrdinal = opVarMap.get(producer.operator);
+			List<Expression<Variable>> conj = new ArrayList<Expression<Variable>>();
 
-						// check for codesignation
-						if (!codesignated(consumer.literal.getAtom().getVariables(),
-								threat.literal.getAtom().getVariables())) {
-							continue;
-						}
+			// prod < cons
+			conj.add(Expression.buildLiteral(Literal.prec(prodOrdinal, consOrdinal, prodOrdinal, consOrdinal)));
 
-						// t < p or c <= t
-						List<Expression<Variable>> disj = new ArrayList<Expression<Variable>>();
-						Variable threatOrd = opVarMap.get(threat.operator);
-						disj.add(Expression.buildLiteral(Literal.prec(consOrdinal, threatOrd, consOrdinal, threatOrd)));
-						disj.add(Expression.buildLiteral(Literal.prec(threatOrd, prodOrdinal, threatOrd, prodOrdinal)));
+			// now each threat
+			for (Threat threat : threats.getThreatsToLink(new PcLink(producer, consumer))) { 
 
-						conj.add(Expression.buildExpression(Connective.OR, disj));
+				// check for codesignation
+				if (!codesignated(consumer.literal.getAtom().getVariables(),
+						threat.literal.getAtom().getVariables())) {
+					continue;
+				}
 
-					}
+				// t < p or c <= t
+				List<Expression<Variable>> disj = new ArrayList<Expression<Variable>>();
+				Variable threatOrd = opVarMap.get(threat.operator);
+				disj.add(Expression.buildLiteral(Literal.prec(consOrdinal, threatOrd, consOrdinal, threatOrd)));
+				disj.add(Expression.buildLiteral(Literal.prec(threatOrd, prodOrdinal, threatOrd, prodOrdinal)));
 
-					if (!conj.isEmpty()) // this can happen when predicate has no parameters, i.e. is a proposition
-						pcOptions.add(Expression.buildExpression(Connective.AND, conj));
-					else if (!consumer.literal.getAtom().getParameters().isEmpty())
-						throw new RuntimeException("No constraints for consumer " + consumer);
+				conj.add(Expression.buildExpression(Connective.OR, disj));
 
-				}
+			}
 
-				if (!pcOptions.isEmpty()) {
-					Expression<Variable> possBindings = Expression.buildExpression(Connective.OR, pcOptions);
-					csp.addConstraint(possBindings);
-				} else if (!consumer.literal.getAtom().getParameters().isEmpty())
-					throw new RuntimeException("No constraints for consumer " + consumer);
+			if (!conj.isEmpty()) // this can happen when predicate has no parameters, i.e. is a proposition
+				pcOptions.add(Expression.buildExpression(Connective.AND, conj));
+			else if (!consumer.literal.getAtom().getParameters().isEmpty())
+				throw new RuntimeException("No constraints for consumer " + consumer);
 
-			}
 		}
 
+		if (!pcOptions.isEmpty())
+			return Arrays.asList(Expression.buildExpression(Connective.OR, pcOptions));
+		else if (!consumer.literal.getAtom().getParameters().isEmpty())
+			throw new RuntimeException("No constraints for consumer " + consumer);
+
+		return Collections.emptyList();
 	}
 
 }
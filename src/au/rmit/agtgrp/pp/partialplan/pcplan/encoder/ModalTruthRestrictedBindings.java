@@ -21,6 +21,8 @@
 package au.rmit.agtgrp.pp.partialplan.pcplan.encoder;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 
 import au.rmit.agtgrp.lang.fol.expression.Connective;
@@ -28,10 +30,8 @@ import au.rmit.agtgrp.lang.fol.expression.Expression;
 import au.rmit.agtgrp.lang.fol.function.Constant;
 import au.rmit.agtgrp.lang.fol.predicate.Literal;
 import au.rmit.agtgrp.lang.fol.symbol.Variable;
-import au.rmit.agtgrp.lang.pddl.Operator;
 import au.rmit.agtgrp.lang.pddl.pct.CausalStucture;
 import au.rmit.agtgrp.lang.pddl.pct.Consumer;
-import au.rmit.agtgrp.lang.pddl.pct.CausalStructureFactory;
 import au.rmit.agtgrp.lang.pddl.pct.PcLink;
 import au.rmit.agtgrp.lang.pddl.pct.PcThreatSet;
 import au.rmit.agtgrp.lang.pddl.pct.Producer;
@@ -40,95 +40,83 @@ import au.rmit.agtgrp.lang.pddl.pct.Threat;
 //a.k.a RestrictedPartialOrderEncoder
 public class ModalTruthRestrictedBindings extends PcToCspEncoder {
 
-	protected void setProducerConsumerConstraints() {
+	@Override
+	protected List<Expression<Variable>> encodeConsumer(Consumer consumer, PcThreatSet threats) {
 
 		CausalStucture constraints = plan.getConstraints();
 
-		PcThreatSet threats = CausalStructureFactory.getThreats(plan.getPlanSteps(), plan.getConstraints());
-
-		// for each precon of each operator
-		for (Operator<Variable> consOp : plan.getPlanSteps()) {
+		Variable consOrdinal = opVarMap.get(consumer.operator);
 
-			// for each consumer
-			for (Literal<Variable> consLit : consOp.getPreconditions()) {
+		// add producer-consumer constraints
+		List<Expression<Variable>> pcOptions = new ArrayList<Expression<Variable>>();
 
-				Consumer consumer = new Consumer(consOp, consLit).intern();
+		for (Producer producer : constraints.getProducers(consumer)) {
 
-				if (constraints.getProducers(consumer).isEmpty())
-					throw new RuntimeException("No producer for consumer: " + consumer);
+			Variable prodOrdinal = opVarMap.get(producer.operator);
+			List<Expression<Variable>> conj = new ArrayList<Expression<Variable>>();
 
-				Variable consOrdinal = opVarMap.get(consumer.operator);
+			// co-designation constraint
+			for (int v = 0; v < consumer.literal.getAtom().getParameters().size(); v++) {
+				Variable prodVar = producer.literal.getAtom().getVariables().get(v);
+				Variable consVar = consumer.literal.getAtom().getVariables().get(v);
+				if (!prodVar.equals(consVar)) // symbolic initial state producers share the consumer's variables
+					conj.add(Expression.buildLiteral(Literal.equals(prodVar, consVar, true)));
+			}
 
-				// add producer-consumer constraints
-				List<Expression<Variable>> pcOptions = new ArrayList<Expression<Variable>>();
+			// ordering constraint
+			conj.add(Expression.buildLiteral(Literal.prec(prodOrdinal, consOrdinal)));
 
-				for (Producer producer : constraints.getProducers(consumer)) {
+			// now each threat
+			for (Threat threat : threats.getThreatsToLink(new PcLink(producer, consumer))) { 
 
-					Variable prodOrdinal = opVarMap.get(producer.operator);
-					List<Expression<Variable>> conj = new ArrayList<Expression<Variable>>();
+				Variable threatOrd = opVarMap.get(threat.operator);
+				boolean codesig = true;
+				for (int v = 0; v < consumer.literal.getAtom().getParameters().size(); v++) {
+					Constant cval = plan.getOriginalSub()
+							.apply(consumer.literal.getAtom().getVariables().get(v));
+					Constant tval = plan.getOriginalSub()
+							.apply(threat.literal.getAtom().getVariables().get(v));
 
-					// co-designation constraint
-					for (int v = 0; v < consumer.literal.getAtom().getParameters().size(); v++)
+					if (!cval.equals(tval)) { // values must remain
+												// different
 						conj.add(Expression
-								.buildLiteral(Literal.equals(producer.literal.getAtom().getVariables().get(v),
-										consumer.literal.getAtom().getVariables().get(v), true)));
-
-					// ordering constraint
-					conj.add(Expression.buildLiteral(Literal.prec(prodOrdinal, consOrdinal)));
-
-					// now each threat
-					for (Threat threat : threats.getThreatsToLink(new PcLink(producer, consumer))) { 
-
-						Variable threatOrd = opVarMap.get(threat.operator);
-						boolean codesig = true;
-						for (int v = 0; v < consumer.literal.getAtom().getParameters().size(); v++) {
-							Constant cval = plan.getOriginalSub()
-									.apply(consumer.literal.getAtom().getVariables().get(v));
-							Constant tval = plan.getOriginalSub()
-									.apply(threat.literal.getAtom().getVariables().get(v));
-
-							if (!cval.equals(tval)) { // values must remain
-														// different
-								conj.add(Expression
-										.buildLiteral(Literal.equals(consumer.literal.getAtom().getVariables().get(v),
-												threat.literal.getAtom().getVariables().get(v), false)));
-								codesig = false;
-								break;
-							}
-
-						}
-						if (codesig) {
-							// t < p
-							if (plan.getPlanSteps().indexOf(threat.operator) < plan.getPlanSteps()
-									.indexOf(producer.operator))
-								conj.add(Expression.buildLiteral(Literal.prec(threatOrd, prodOrdinal)));
-							// c < t
-							else if (plan.getPlanSteps().indexOf(threat.operator) > plan.getPlanSteps()
-									.indexOf(consumer.operator))
-								conj.add(Expression.buildLiteral(Literal.prec(consOrdinal, threatOrd)));
-							else
-								conj.add(Expression.buildLiteral(Literal.prec(threatOrd, prodOrdinal)));
-						}
-
+								.buildLiteral(Literal.equals(consumer.literal.getAtom().getVariables().get(v),
+										threat.literal.getAtom().getVariables().get(v), false)));
+						codesig = false;
+						break;
 					}
 
-					if (!conj.isEmpty()) // this can happen when predicate has
-											// no parameters, i.e. is a
-											// proposition
-						pcOptions.add(Expression.buildExpression(Connective.AND, conj));
-					else if (!consumer.literal.getAtom().getParameters().isEmpty())
-						throw new RuntimeException("No constraints for consumer " + consumer);
-
 				}
-
-				if (!pcOptions.isEmpty()) {
-					Expression<Variable> possBindings = Expression.buildExpression(Connective.OR, pcOptions);
-					csp.addConstraint(possBindings);
-				} else if (!consumer.literal.getAtom().getParameters().isEmpty())
-					throw new RuntimeException("No constraints for consumer " + consumer);
+				if (codesig) {
+					// t < p
+					if (plan.getPlanSteps().indexOf(threat.operator) < plan.getPlanSteps()
+							.indexOf(producer.operator))
+						conj.add(Expression.buildLiteral(Literal.prec(threatOrd, prodOrdinal)));
+					// c < t
+					else if (plan.getPlanSteps().indexOf(threat.operator) > plan.getPlanSteps()
+							.indexOf(consumer.operator))
+						conj.add(Expression.buildLiteral(Literal.prec(consOrdinal, threatOrd)));
+					else
+						conj.add(Expression.buildLiteral(Literal.prec(threatOrd, prodOrdinal)));
+				}
 
 			}
+
+			if (!conj.isEmpty()) // this can happen when predicate has
+									// no parameters, i.e. is a
+									// proposition
+				pcOptions.add(Expression.buildExpression(Connective.AND, conj));
+			else if (!consumer.literal.getAtom().getParameters().isEmpty())
+				throw new RuntimeException("No constraints for consumer " + consumer);
+
 		}
+
+		if (!pcOptions.isEmpty())
+			return Arrays.asList(Expression.buildExpression(Connective.OR, pcOptions));
+		else if (!consumer.literal.getAtom().getParameters().isEmpty())
+			throw new RuntimeException("No constraints for consumer " + consumer);
+
+		return Collections.emptyList();
 	}
 
 	@Override
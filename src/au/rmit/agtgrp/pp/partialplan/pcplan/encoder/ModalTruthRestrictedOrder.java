@@ -21,6 +21,8 @@
 package au.rmit.agtgrp.pp.partialplan.pcplan.encoder;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 
 import au.rmit.agtgrp.lang.fol.expression.Connective;
@@ -28,10 +30,8 @@ import au.rmit.agtgrp.lang.fol.expression.Expression;
 import au.rmit.agtgrp.lang.fol.function.Constant;
 import au.rmit.agtgrp.lang.fol.predicate.Literal;
 import au.rmit.agtgrp.lang.fol.symbol.Variable;
-import au.rmit.agtgrp.lang.pddl.Operator;
 import au.rmit.agtgrp.lang.pddl.pct.CausalStucture;
 import au.rmit.agtgrp.lang.pddl.pct.Consumer;
-import au.rmit.agtgrp.lang.pddl.pct.CausalStructureFactory;
 import au.rmit.agtgrp.lang.pddl.pct.PcLink;
 import au.rmit.agtgrp.lang.pddl.pct.PcThreatSet;
 import au.rmit.agtgrp.lang.pddl.pct.Producer;
@@ -39,94 +39,82 @@ import au.rmit.agtgrp.lang.pddl.pct.Threat;
 
 public class ModalTruthRestrictedOrder extends PcToCspEncoder {
 
-	protected void setProducerConsumerConstraints() {
+	@Override
+	protected List<Expression<Variable>> encodeConsumer(Consumer consumer, PcThreatSet threats) {
 
 		CausalStucture constraints = plan.getConstraints();
 
-		PcThreatSet threats = CausalStructureFactory.getThreats(plan.getPlanSteps(), plan.getConstraints());
-
-		// for each precon of each operator
-		for (Operator<Variable> consOp : plan.getPlanSteps()) {
-
-			// for each consumer
-			for (Literal<Variable> consLit : consOp.getPreconditions()) {
-
-				Consumer consumer = new Consumer(consOp, consLit).intern();
-
-				if (constraints.getProducers(consumer).isEmpty())
-					throw new RuntimeException("No producer for consumer: " + consumer);
-
-				Variable consOrdinal = opVarMap.get(consumer.operator);
-
-				// add producer-consumer constraints
-				List<Expression<Variable>> pcOptions = new ArrayList<Expression<Variable>>();
-
-				for (Producer producer : constraints.getProducers(consumer)) {
-
-					Variable prodOrdinal = opVarMap.get(producer.operator);
-					List<Expression<Variable>> conj = new ArrayList<Expression<Variable>>();
-
-					// co-designation constraint
-					for (int v = 0; v < consumer.literal.getAtom().getParameters().size(); v++)
-						conj.add(Expression
-								.buildLiteral(Literal.equals(producer.literal.getAtom().getVariables().get(v),
-										consumer.literal.getAtom().getVariables().get(v), true)));
+		Variable consOrdinal = opVarMap.get(consumer.operator);
 
-					// ordering constraint
-					conj.add(Expression.buildLiteral(Literal.prec(prodOrdinal, consOrdinal)));
+		// add producer-consumer constraints
+		List<Expression<Variable>> pcOptions = new ArrayList<Expression<Variable>>();
 
-					// now each threat
-					for (Threat threat : threats.getThreatsToLink(new PcLink(producer, consumer))) { 
+		for (Producer producer : constraints.getProducers(consumer)) {
 
-						// t < p
-						Variable threatOrd = opVarMap.get(threat.operator);
-						if (plan.getPlanSteps().indexOf(threat.operator) < plan.getPlanSteps()
-								.indexOf(producer.operator))
-							conj.add(Expression.buildLiteral(Literal.prec(threatOrd, prodOrdinal)));
-						// c < t
-						else if (plan.getPlanSteps().indexOf(threat.operator) > plan.getPlanSteps()
-								.indexOf(consumer.operator))
-							conj.add(Expression.buildLiteral(Literal.prec(consOrdinal, threatOrd)));
-						else {
-							boolean codesig = true;
-							for (int v = 0; v < consumer.literal.getAtom().getVariables().size(); v++) {
-								Constant cval = plan.getOriginalSub().apply(consumer.literal.getAtom().getVariables().get(v));
-								Constant tval = plan.getOriginalSub().apply(threat.literal.getAtom().getVariables().get(v));
+			Variable prodOrdinal = opVarMap.get(producer.operator);
+			List<Expression<Variable>> conj = new ArrayList<Expression<Variable>>();
 
-								if (!cval.equals(tval)) { // values must remain different
-									conj.add(Expression.buildLiteral(
-											Literal.equals(consumer.literal.getAtom().getVariables().get(v),
-													threat.literal.getAtom().getVariables().get(v), false)));
-									codesig = false;
-									break;
-								}
-
-							}
-							if (codesig) {
-								conj.add(Expression.buildLiteral(Literal.prec(threatOrd, prodOrdinal)));
-							}
+			// co-designation constraint
+			for (int v = 0; v < consumer.literal.getAtom().getParameters().size(); v++) {
+				Variable prodVar = producer.literal.getAtom().getVariables().get(v);
+				Variable consVar = consumer.literal.getAtom().getVariables().get(v);
+				if (!prodVar.equals(consVar)) // symbolic initial state producers share the consumer's variables
+					conj.add(Expression.buildLiteral(Literal.equals(prodVar, consVar, true)));
+			}
 
+			// ordering constraint
+			conj.add(Expression.buildLiteral(Literal.prec(prodOrdinal, consOrdinal)));
+
+			// now each threat
+			for (Threat threat : threats.getThreatsToLink(new PcLink(producer, consumer))) { 
+
+				// t < p
+				Variable threatOrd = opVarMap.get(threat.operator);
+				if (plan.getPlanSteps().indexOf(threat.operator) < plan.getPlanSteps()
+						.indexOf(producer.operator))
+					conj.add(Expression.buildLiteral(Literal.prec(threatOrd, prodOrdinal)));
+				// c < t
+				else if (plan.getPlanSteps().indexOf(threat.operator) > plan.getPlanSteps()
+						.indexOf(consumer.operator))
+					conj.add(Expression.buildLiteral(Literal.prec(consOrdinal, threatOrd)));
+				else {
+					boolean codesig = true;
+					for (int v = 0; v < consumer.literal.getAtom().getVariables().size(); v++) {
+						Constant cval = plan.getOriginalSub().apply(consumer.literal.getAtom().getVariables().get(v));
+						Constant tval = plan.getOriginalSub().apply(threat.literal.getAtom().getVariables().get(v));
+
+						if (!cval.equals(tval)) { // values must remain different
+							conj.add(Expression.buildLiteral(
+									Literal.equals(consumer.literal.getAtom().getVariables().get(v),
+											threat.literal.getAtom().getVariables().get(v), false)));
+							codesig = false;
+							break;
 						}
 
 					}
-
-					if (!conj.isEmpty()) // this can happen when predicate has
-											// no parameters, i.e. is a
-											// proposition
-						pcOptions.add(Expression.buildExpression(Connective.AND, conj));
-					else if (!consumer.literal.getAtom().getParameters().isEmpty())
-						throw new RuntimeException("No constraints for consumer " + consumer);
+					if (codesig) {
+						conj.add(Expression.buildLiteral(Literal.prec(threatOrd, prodOrdinal)));
+					}
 
 				}
 
-				if (!pcOptions.isEmpty()) {
-					Expression<Variable> possBindings = Expression.buildExpression(Connective.OR, pcOptions);
-					csp.addConstraint(possBindings);
-				} else if (!consumer.literal.getAtom().getParameters().isEmpty())
-					throw new RuntimeException("No constraints for consumer " + consumer);
-
 			}
+
+			if (!conj.isEmpty()) // this can happen when predicate has
+									// no parameters, i.e. is a
+									// proposition
+				pcOptions.add(Expression.buildExpression(Connective.AND, conj));
+			else if (!consumer.literal.getAtom().getParameters().isEmpty())
+				throw new RuntimeException("No constraints for consumer " + consumer);
+
 		}
+
+		if (!pcOptions.isEmpty())
+			return Arrays.asList(Expression.buildExpression(Connective.OR, pcOptions));
+		else if (!consumer.literal.getAtom().getParameters().isEmpty())
+			throw new RuntimeException("No constraints for consumer " + consumer);
+
+		return Collections.emptyList();
 	}
 
 	@Override
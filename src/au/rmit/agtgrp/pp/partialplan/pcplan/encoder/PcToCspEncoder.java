@@ -28,14 +28,18 @@ import java.util.Map;
 import java.util.Set;
 
 import au.rmit.agtgrp.csp.ExpressionCsp;
-import au.rmit.agtgrp.csp.PartitionedExpressionCsp;
 import au.rmit.agtgrp.csp.alldiff.AllDifferent;
 import au.rmit.agtgrp.lang.fol.expression.Expression;
 import au.rmit.agtgrp.lang.fol.function.Constant;
 import au.rmit.agtgrp.lang.fol.predicate.Literal;
 import au.rmit.agtgrp.lang.fol.symbol.Type;
 import au.rmit.agtgrp.lang.fol.symbol.Variable;
+import au.rmit.agtgrp.lang.fol.Substitution;
 import au.rmit.agtgrp.lang.pddl.Operator;
+import au.rmit.agtgrp.lang.pddl.pct.CausalStucture;
+import au.rmit.agtgrp.lang.pddl.pct.Consumer;
+import au.rmit.agtgrp.lang.pddl.pct.PcThreatSet;
+import au.rmit.agtgrp.lang.pddl.pct.Producer;
 import au.rmit.agtgrp.pp.partialplan.pcplan.PcPlan;
 import au.rmit.agtgrp.pp.partialplan.pcplan.optimiser.CspOptimiser;
 import au.rmit.agtgrp.utils.collections.graph.treewidth.TreewidthCalculator;
@@ -129,6 +133,14 @@ public abstract class PcToCspEncoder {
 	protected ExpressionCsp csp;
 	protected Map<Operator<Variable>, Variable> opVarMap;
 
+	// incremental encoding
+	private boolean incremental = false;
+	private List<Operator<Variable>> encodedSteps;
+	private Substitution<Constant> encodedSub;
+	private boolean encodedTotalOrder;
+	private final Map<Consumer, ConsumerEncoding> encodings = new HashMap<Consumer, ConsumerEncoding>();
+	private final Map<Consumer, ConsumerEncoding> replaced = new HashMap<Consumer, ConsumerEncoding>();
+
 	public abstract boolean isTotalOrder();
 
 	public abstract boolean isGround();
@@ -137,6 +149,46 @@ public abstract class PcToCspEncoder {
 		return this.getClass().getSimpleName();
 	}
 
+	/**
+	 * In incremental mode the constraints built for each consumer are kept between calls
+	 * to toCSP, and only the consumers whose set of producers has changed since the last
+	 * call are re-encoded. The resulting CSP is the same as in non-incremental mode.
+	 * 
+	 * @param incremental	Whether to encode incrementally.
+	 */
+	public void setIncremental(boolean incremental) {
+		this.incremental = incremental;
+		encodings.clear();
+		replaced.clear();
+	}
+
+	public boolean isIncremental() {
+		return incremental;
+	}
+
+	/**
+	 * Accepts the consumer encodings built since the last call to commit or rollback.
+	 */
+	public void commit() {
+		replaced.clear();
+	}
+
+	/**
+	 * Restores the consumer encodings that were current at the last call to commit or 
+	 * rollback. This should be called once the PC links added since then have been 
+	 * removed from the plan, so the next call to toCSP does not need to re-encode 
+	 * their consumers.
+	 */
+	public void rollback() {
+		for (Map.Entry<Consumer, ConsumerEncoding> entry : replaced.entrySet()) {
+			if (entry.getValue() == null)
+				encodings.remove(entry.getKey());
+			else
+				encodings.put(entry.getKey(), entry.getValue());
+		}
+		replaced.clear();
+	}
+
 	public ExpressionCsp toCSP(PcPlan plan) {
 		return toCSP(plan, true, false, false, -1);
 	}
@@ -193,18 +245,15 @@ public abstract class PcToCspEncoder {
 		if (typeOrder)
 			setOperatorTypeOrdering(csp, plan.getPlanSteps(), opVarMap);
 
+		// the optimiser filters operator domains with the alldiff, and adds it to its output
+		if (allDiff && optimise)
+			csp.addConstraint(Expression.buildLiteral(AllDifferent.buildAllDifferent(new ArrayList<Variable>(opVarMap.values()))));
+
 		if (optimise)
 			csp = CspOptimiser.optimise(csp, targetTw, twc);
 
-		if (allDiff) {
-			Literal<Variable> allDiffLit = AllDifferent.buildAllDifferent(new ArrayList<Variable>(opVarMap.values()));
-			if (csp instanceof PartitionedExpressionCsp) {
-				PartitionedExpressionCsp pcsp = (PartitionedExpressionCsp) csp;
-				allDiffLit = allDiffLit.applySubstitution(pcsp.getMapping());
-			}
-
-			csp.addConstraint(Expression.buildLiteral(allDiffLit));
-		}
+		if (allDiff && !optimise)
+			csp.addConstraint(Expression.buildLiteral(AllDifferent.buildAllDifferent(new ArrayList<Variable>(opVarMap.values()))));
 
 		time = System.currentTimeMillis() - time;
 
@@ -267,7 +316,70 @@ public abstract class PcToCspEncoder {
 
 	
 	
-	protected abstract void setProducerConsumerConstraints();
+	protected void setProducerConsumerConstraints() {
+
+		CausalStucture constraints = plan.getConstraints();
+
+		// previous encodings can only be reused for the same plan
+		if (!incremental || encodedSteps != plan.getPlanSteps() || encodedSub != plan.getOriginalSub()
+				|| encodedTotalOrder != constraints.isTotalOrder()) {
+			encodings.clear();
+			replaced.clear();
+			encodedSteps = plan.getPlanSteps();
+			encodedSub = plan.getOriginalSub();
+			encodedTotalOrder = constraints.isTotalOrder();
+		}
+
+		// find consumers whose producers have changed since they were last encoded
+		List<Consumer> consumers = new ArrayList<Consumer>();
+		Set<Consumer> changed = new HashSet<Consumer>();
+		for (Operator<Variable> consOp : plan.getPlanSteps()) {
+			for (Literal<Variable> consLit : consOp.getPreconditions()) {
+
+				Consumer consumer = new Consumer(consOp, consLit).intern();
+				Set<Producer> producers = constraints.getProducers(consumer);
+				if (producers.isEmpty())
+					throw new PcToCspEncoderException("No producer for consumer: " + consumer);
+
+				consumers.add(consumer);
+				ConsumerEncoding enc = encodings.get(consumer);
+				if (enc == null || !enc.producers.equals(producers))
+					changed.add(consumer);
+			}
+		}
+
+		// the causal structure keeps its threats up to date as links change
+		PcThreatSet threats = constraints.getThreats(plan.getPlanSteps());
+
+		for (Consumer consumer : consumers) {
+			ConsumerEncoding enc = encodings.get(consumer);
+			if (changed.contains(consumer)) {
+				enc = new ConsumerEncoding(new HashSet<Producer>(constraints.getProducers(consumer)),
+						encodeConsumer(consumer, threats));
+
+				ConsumerEncoding prev = encodings.put(consumer, enc);
+				if (!replaced.containsKey(consumer))
+					replaced.put(consumer, prev);
+			}
+
+			for (Expression<Variable> constraint : enc.constraints)
+				csp.addConstraint(constraint);
+		}
+
+		if (!incremental) {
+			encodings.clear();
+			replaced.clear();
+		}
+	}
+
+	/**
+	 * Builds the constraints representing the producer options of a single consumer.
+	 * 
+	 * @param consumer	The consumer.
+	 * @param threats	The threats to the consumer's PC links.
+	 * @return			The constraints to add to the CSP.
+	 */
+	protected abstract List<Expression<Variable>> encodeConsumer(Consumer consumer, PcThreatSet threats);
 
 	
 	protected boolean codesignated(List<Variable> vars1, List<Variable> vars2) {
@@ -282,4 +394,15 @@ public abstract class PcToCspEncoder {
 		return true;
 	}
 
+	private static class ConsumerEncoding {
+
+		private final Set<Producer> producers;
+		private final List<Expression<Variable>> constraints;
+
+		private ConsumerEncoding(Set<Producer> producers, List<Expression<Variable>> constraints) {
+			this.producers = producers;
+			this.constraints = constraints;
+		}
+	}
+
 }
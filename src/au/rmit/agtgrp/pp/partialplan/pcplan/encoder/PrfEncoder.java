@@ -20,13 +20,14 @@
  *******************************************************************************/
 package au.rmit.agtgrp.pp.partialplan.pcplan.encoder;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import au.rmit.agtgrp.lang.fol.expression.Expression;
 import au.rmit.agtgrp.lang.fol.predicate.Literal;
 import au.rmit.agtgrp.lang.fol.symbol.Variable;
-import au.rmit.agtgrp.lang.pddl.Operator;
 import au.rmit.agtgrp.lang.pddl.pct.CausalStucture;
 import au.rmit.agtgrp.lang.pddl.pct.Consumer;
-import au.rmit.agtgrp.lang.pddl.pct.CausalStructureFactory;
 import au.rmit.agtgrp.lang.pddl.pct.PcLink;
 import au.rmit.agtgrp.lang.pddl.pct.PcThreatSet;
 import au.rmit.agtgrp.lang.pddl.pct.Producer;
@@ -35,73 +36,63 @@ import au.rmit.agtgrp.lang.pddl.pct.Threat;
 public class PrfEncoder extends GroundEncoder {
 
 	@Override
-	protected void setProducerConsumerConstraints() {
+	protected List<Expression<Variable>> encodeConsumer(Consumer consumer, PcThreatSet threats) {
+
 		CausalStucture constraints = plan.getConstraints();
-		PcThreatSet threats = CausalStructureFactory.getThreats(plan.getPlanSteps(), plan.getConstraints());
 
 		// prod, cons -> prod # cons, cons # prod
 		// prod, threat -> prod # threat, threat # prod
 		// cons, threat -> cons # threat, threat # cons
 
-		// for each each operator
-		for (Operator<Variable> consOp : plan.getPlanSteps()) {
-
-			// for each consumer
-			for (Literal<Variable> consLit : consOp.getPreconditions()) {
+		List<Expression<Variable>> cons = new ArrayList<Expression<Variable>>();
+		Variable consOrdinal = opVarMap.get(consumer.operator);
 
-				Consumer consumer = new Consumer(consOp, consLit).intern();
-				Variable consOrdinal = opVarMap.get(consumer.operator);
+		for (Producer producer : constraints.getProducers(consumer)) {
 
-				// can only be one producer for each consumer
-				if (constraints.getProducers(consumer).isEmpty())
-					throw new RuntimeException("No producer for consumer: " + consumer);
+			Variable prodOrdinal = opVarMap.get(producer.operator);
 
-				for (Producer producer : constraints.getProducers(consumer)) {
+			// must be co-designated
+			if (!codesignated(consumer.literal.getAtom().getVariables(),
+					producer.literal.getAtom().getVariables()))
+				continue;
 
-					Variable prodOrdinal = opVarMap.get(producer.operator);
+			// if prod < cons in original plan, must be retained
+			if (plan.getPlanSteps().indexOf(producer.operator) < plan.getPlanSteps().indexOf(consumer.operator))
+				cons.add(Expression.buildLiteral(Literal.prec(prodOrdinal, consOrdinal)));
 
-					// must be co-designated
-					if (!codesignated(consumer.literal.getAtom().getVariables(),
-							producer.literal.getAtom().getVariables()))
-						continue;
+			if (plan.getPlanSteps().indexOf(consumer.operator) < plan.getPlanSteps().indexOf(producer.operator))
+				cons.add(Expression.buildLiteral(Literal.prec(consOrdinal, prodOrdinal)));
 
-					// if prod < cons in original plan, must be retained
-					if (plan.getPlanSteps().indexOf(producer.operator) < plan.getPlanSteps().indexOf(consumer.operator))
-						csp.addConstraint(Expression.buildLiteral(Literal.prec(prodOrdinal, consOrdinal)));
+			// now each threat
+			for (Threat threat : threats.getThreatsToLink(new PcLink(producer, consumer))) { 
 
-					if (plan.getPlanSteps().indexOf(consumer.operator) < plan.getPlanSteps().indexOf(producer.operator))
-						csp.addConstraint(Expression.buildLiteral(Literal.prec(consOrdinal, prodOrdinal)));
+				// must be co-designated
+				if (!codesignated(consumer.literal.getAtom().getVariables(),
+						threat.literal.getAtom().getVariables()))
+					continue;
 
-					// now each threat
-					for (Threat threat : threats.getThreatsToLink(new PcLink(producer, consumer))) { 
+				Variable threatOrdinal = opVarMap.get(threat.operator);
 
-						// must be co-designated
-						if (!codesignated(consumer.literal.getAtom().getVariables(),
-								threat.literal.getAtom().getVariables()))
-							continue;
+				// if prod < threat in plan, must be retained
+				if (plan.getPlanSteps().indexOf(producer.operator) < plan.getPlanSteps().indexOf(threat.operator))
+					cons.add(Expression.buildLiteral(Literal.prec(prodOrdinal, threatOrdinal)));
 
-						Variable threatOrdinal = opVarMap.get(threat.operator);
+				// if threat < prod, must be retained
+				if (plan.getPlanSteps().indexOf(threat.operator) < plan.getPlanSteps().indexOf(producer.operator))
+					cons.add(Expression.buildLiteral(Literal.prec(threatOrdinal, prodOrdinal)));
 
-						// if prod < threat in plan, must be retained
-						if (plan.getPlanSteps().indexOf(producer.operator) < plan.getPlanSteps().indexOf(threat.operator))
-							csp.addConstraint(Expression.buildLiteral(Literal.prec(prodOrdinal, threatOrdinal)));
+				// if cons < threat in plan, must be retained
+				if (plan.getPlanSteps().indexOf(consumer.operator) < plan.getPlanSteps().indexOf(threat.operator))
+					cons.add(Expression.buildLiteral(Literal.prec(consOrdinal, threatOrdinal)));
 
-						// if threat < prod, must be retained
-						if (plan.getPlanSteps().indexOf(threat.operator) < plan.getPlanSteps().indexOf(producer.operator))
-							csp.addConstraint(Expression.buildLiteral(Literal.prec(threatOrdinal, prodOrdinal)));
+				// if threat < cons in plan, must be retained
+				if (plan.getPlanSteps().indexOf(threat.operator) < plan.getPlanSteps().indexOf(consumer.operator))
+					cons.add(Expression.buildLiteral(Literal.prec(threatOrdinal, consOrdinal)));
 
-						// if cons < threat in plan, must be retained
-						if (plan.getPlanSteps().indexOf(consumer.operator) < plan.getPlanSteps().indexOf(threat.operator))
-							csp.addConstraint(Expression.buildLiteral(Literal.prec(consOrdinal, threatOrdinal)));
-
-						// if threat < cons in plan, must be retained
-						if (plan.getPlanSteps().indexOf(threat.operator) < plan.getPlanSteps().indexOf(consumer.operator))
-							csp.addConstraint(Expression.buildLiteral(Literal.prec(threatOrdinal, consOrdinal)));
-
-					}
-				}
 			}
 		}
+
+		return cons;
 	}
 
 }
@@ -0,0 +1,323 @@
+/*******************************************************************************
+ * MKTR - Minimal k-Treewidth Relaxation
+ *
+ * Copyright (C) 2018 
+ * Max Waters (max.waters@rmit.edu.au)
+ * RMIT University, Melbourne VIC 3000
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package au.rmit.agtgrp.pp.partialplan.pcplan.optimiser;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import au.rmit.agtgrp.csp.alldiff.AllDifferent;
+import au.rmit.agtgrp.lang.fol.predicate.Literal;
+import au.rmit.agtgrp.lang.fol.symbol.Type;
+import au.rmit.agtgrp.lang.fol.symbol.Variable;
+
+/**
+ * Filters an alldifferent constraint over operator variables, following Regin's 
+ * matching-based algorithm. A maximum matching between variables and ordinals is 
+ * found, and an ordinal is supported by a variable if the edge between them is 
+ * in the matching, lies on an alternating cycle, or lies on an alternating path 
+ * from a free ordinal. Operator domains are ranges, so only unsupported ordinals 
+ * at either end of a domain are removed.
+ */
+public class AllDifferentPropagator extends Propagator {
+
+	private final Literal<Variable> constraint;
+	private final List<Variable> vars;
+	private Set<Variable> changed;
+
+	// state for a single call to propagate
+	private int n;
+	private int minValue;
+	private int[] lows;
+	private int[] highs;
+	private int[] match; // var -> value
+	private int[] owner; // value -> var, or -1 if free
+
+	public AllDifferentPropagator(CspOptimiser optimiser, Literal<Variable> constraint) {
+		super(optimiser);
+
+		if (!AllDifferent.isAllDifferentLiteral(constraint) || !constraint.getValue())
+			throw new IllegalArgumentException(constraint.toString());
+
+		this.constraint = constraint;
+		this.vars = constraint.getAtom().getParameters();
+
+		for (Variable var : vars) {
+			if (!var.getType().equals(Type.OPERATOR_TYPE))
+				throw new IllegalArgumentException("Not an operator variable: " + var);
+		}
+	}
+
+	public Literal<Variable> getConstraint() {
+		return constraint;
+	}
+
+	public List<Variable> getDomain() {
+		return vars;
+	}
+
+	public Set<Variable> getChanged() {
+		return changed;
+	}
+
+	public void propagate() {
+		changed = new HashSet<Variable>();
+
+		if (new HashSet<Variable>(vars).size() != vars.size())
+			throw new CspOptimiserException("CSP is unsatisfiable: " + constraint + " has a repeated variable");
+
+		DomainStore domains = optimiser.domains;
+		n = vars.size();
+		lows = new int[n];
+		highs = new int[n];
+		minValue = Integer.MAX_VALUE;
+		int maxValue = Integer.MIN_VALUE;
+		for (int i = 0; i < n; i++) {
+			lows[i] = domains.getLow(vars.get(i));
+			highs[i] = domains.getHigh(vars.get(i));
+			if (lows[i] > highs[i])
+				throw new CspOptimiserException("CSP is unsatisfiable: " + vars.get(i) + " has an empty domain");
+			minValue = Math.min(minValue, lows[i]);
+			maxValue = Math.max(maxValue, highs[i]);
+		}
+		if (n == 0)
+			return;
+
+		int m = maxValue - minValue + 1;
+		if (m < n)
+			throw new CspOptimiserException("CSP is unsatisfiable: " + constraint + " has fewer values than variables");
+
+		findMatching(m);
+
+		boolean[] fromFree = reachableFromFree(m);
+		int[] component = components(m);
+
+		for (int i = 0; i < n; i++) {
+			int lo = lows[i];
+			while (lo < match[i] && !isSupported(i, lo, fromFree, component))
+				lo++;
+
+			int hi = highs[i];
+			while (hi > match[i] && !isSupported(i, hi, fromFree, component))
+				hi--;
+
+			Variable var = vars.get(i);
+			if (domains.setLow(var, lo))
+				changed.add(var);
+			if (domains.setHigh(var, hi))
+				changed.add(var);
+		}
+	}
+
+	private boolean isSupported(int var, int value, boolean[] fromFree, int[] component) {
+		int v = value - minValue;
+		return match[var] == value || fromFree[v] || component[var] == component[n + v];
+	}
+
+	/**
+	 * Domains are intervals, so taking variables by increasing upper bound and 
+	 * giving each the lowest free value gives a maximum matching.
+	 */
+	private void findMatching(int m) {
+		Integer[] order = new Integer[n];
+		for (int i = 0; i < n; i++)
+			order[i] = i;
+
+		Arrays.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer o1, Integer o2) {
+				int c = Integer.compare(highs[o1], highs[o2]);
+				return c != 0 ? c : Integer.compare(lows[o1], lows[o2]);
+			}
+		});
+
+		BitSet free = new BitSet(m);
+		free.set(0, m);
+		match = new int[n];
+		owner = new int[m];
+		Arrays.fill(owner, -1);
+
+		for (int i : order) {
+			int v = free.nextSetBit(lows[i] - minValue);
+			if (v < 0 || v > highs[i] - minValue)
+				throw new CspOptimiserException("CSP is unsatisfiable: " + constraint + " has no matching");
+
+			free.clear(v);
+			match[i] = v + minValue;
+			owner[v] = i;
+		}
+	}
+
+	private boolean contains(int var, int v) {
+		int value = v + minValue;
+		return lows[var] <= value && value <= highs[var];
+	}
+
+	/**
+	 * @return the values reachable by an alternating path from a free value, going 
+	 * from values to variables along unmatched edges and from variables to values 
+	 * along matched edges.
+	 */
+	private boolean[] reachableFromFree(int m) {
+		boolean[] reached = new boolean[m];
+		boolean[] varReached = new boolean[n];
+		int[] queue = new int[m];
+		int head = 0;
+		int tail = 0;
+
+		for (int v = 0; v < m; v++) {
+			if (owner[v] < 0) {
+				reached[v] = true;
+				queue[tail++] = v;
+			}
+		}
+
+		while (head < tail) {
+			int v = queue[head++];
+			for (int x = 0; x < n; x++) {
+				if (!varReached[x] && contains(x, v)) {
+					varReached[x] = true;
+					int w = match[x] - minValue;
+					if (!reached[w]) {
+						reached[w] = true;
+						queue[tail++] = w;
+					}
+				}
+			}
+		}
+
+		return reached;
+	}
+
+	/**
+	 * Tarjan's algorithm over the residual graph. Nodes 0..n-1 are variables and 
+	 * n..n+m-1 are values.
+	 * 
+	 * @return the strongly connected component of each node.
+	 */
+	private int[] components(int m) {
+		int size = n + m;
+		int[] index = new int[size];
+		int[] low = new int[size];
+		int[] component = new int[size];
+		int[] next = new int[size]; // next successor to visit
+		boolean[] onStack = new boolean[size];
+		int[] stack = new int[size];
+		int[] callStack = new int[size];
+		Arrays.fill(index, -1);
+
+		int counter = 0;
+		int nComponents = 0;
+		int sp = 0;
+
+		for (int root = 0; root < size; root++) {
+			if (index[root] >= 0)
+				continue;
+
+			int top = 0;
+			callStack[top++] = root;
+			index[root] = low[root] = counter++;
+			stack[sp++] = root;
+			onStack[root] = true;
+
+			while (top > 0) {
+				int node = callStack[top - 1];
+				int succ = nextSuccessor(node, next);
+
+				if (succ >= 0) {
+					if (index[succ] < 0) {
+						index[succ] = low[succ] = counter++;
+						stack[sp++] = succ;
+						onStack[succ] = true;
+						callStack[top++] = succ;
+					} else if (onStack[succ])
+						low[node] = Math.min(low[node], index[succ]);
+				} else {
+					top--;
+					if (top > 0) {
+						int parent = callStack[top - 1];
+						low[parent] = Math.min(low[parent], low[node]);
+					}
+
+					if (low[node] == index[node]) {
+						int member;
+						do {
+							member = stack[--sp];
+							onStack[member] = false;
+							component[member] = nComponents;
+						} while (member != node);
+						nComponents++;
+					}
+				}
+			}
+		}
+
+		return component;
+	}
+
+	private int nextSuccessor(int node, int[] next) {
+		if (node < n) { // variable, matched edge to its value
+			if (next[node]++ == 0)
+				return n + match[node] - minValue;
+			return -1;
+		}
+
+		// value, unmatched edges to variables
+		int v = node - n;
+		while (next[node] < n) {
+			int x = next[node]++;
+			if (contains(x, v) && owner[v] != x)
+				return x;
+		}
+		return -1;
+	}
+
+	@Override
+	public String toString() {
+		return constraint.toString();
+	}
+
+	@Override
+	public int hashCode() {
+		return constraint.hashCode();
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj)
+			return true;
+		if (obj == null)
+			return false;
+		if (getClass() != obj.getClass())
+			return false;
+		AllDifferentPropagator other = (AllDifferentPropagator) obj;
+		if (constraint == null) {
+			if (other.constraint != null)
+				return false;
+		} else if (!constraint.equals(other.constraint))
+			return false;
+		return true;
+	}
+
+}
@@ -20,14 +20,11 @@
  *******************************************************************************/
 package au.rmit.agtgrp.pp.partialplan.pcplan.optimiser;
 
-import java.util.Collection;
 import java.util.HashSet;
-import java.util.List;
 import java.util.Set;
 
 import au.rmit.agtgrp.csp.alldiff.AllDifferent;
 import au.rmit.agtgrp.csp.solver.ZincFormatter;
-import au.rmit.agtgrp.lang.fol.function.Constant;
 import au.rmit.agtgrp.lang.fol.predicate.Literal;
 import au.rmit.agtgrp.lang.fol.predicate.Predicate;
 import au.rmit.agtgrp.lang.fol.symbol.Variable;
@@ -37,9 +34,11 @@ public class BinaryPropagator extends Propagator {
 	private final Literal<Variable> original;
 	private Literal<Variable> constraint;
 	private Set<Variable> domain;
-	private Set<Variable> changed;
+	private Set<Variable> changed; // reused, so only valid until the next call to propagate
+
+	public BinaryPropagator(CspOptimiser optimiser, Literal<Variable> constraint) {
+		super(optimiser);
 
-	public BinaryPropagator(Literal<Variable> constraint) {
 		if (constraint.equals(Literal.TRUE) || constraint.equals(Literal.FALSE))
 			throw new IllegalArgumentException(constraint.toString());
 
@@ -65,16 +64,21 @@ public class BinaryPropagator extends Propagator {
 	}
 
 	public void propagate() {
-		changed = propagateLiteralToDomain(constraint);
+		if (changed == null)
+			changed = new HashSet<Variable>();
+		else
+			changed.clear();
+
+		propagateLiteralToDomain(constraint);
 		constraint = propagateLiteral(constraint);
 		domain = new HashSet<Variable>(constraint.getAtom().getParameters());
 	}
 
-	private static Literal<Variable> propagateLiteral(Literal<Variable> lit) {
+	private Literal<Variable> propagateLiteral(Literal<Variable> lit) {
 		if (lit.getAtom().getSymbol().equals(Predicate.EQUALS))
-			return CspOptimiser.simplifyEquals(lit);
+			return optimiser.simplifyEquals(lit);
 		else if (lit.getAtom().getSymbol().equals(Predicate.PREC))
-			return CspOptimiser.simplifyPrec(lit);
+			return optimiser.simplifyPrec(lit);
 		else if (AllDifferent.isAllDifferentLiteral(lit))
 			return lit;
 
@@ -82,170 +86,92 @@ public class BinaryPropagator extends Propagator {
 
 	}
 
-	private static Set<Variable> propagateLiteralToDomain(Literal<Variable> lit) {
+	private void propagateLiteralToDomain(Literal<Variable> lit) {
 		if (lit.getAtom().getSymbol().equals(Predicate.EQUALS))
-			return propagateEqualsLiteralToDomain(lit);
+			propagateEqualsLiteralToDomain(lit);
 		else if (lit.getAtom().getSymbol().equals(Predicate.PREC))
-			return propagatePrecLiteralToDomain(lit);
-		else if (AllDifferent.isAllDifferentLiteral(lit))
-			return new HashSet<Variable>();
-		else
+			propagatePrecLiteralToDomain(lit);
+		else if (!AllDifferent.isAllDifferentLiteral(lit))
 			throw new IllegalArgumentException("Cannot handle literal: " + lit);
 
 	}
 
-	private static Set<Variable> propagateEqualsLiteralToDomain(Literal<Variable> lit) {
+	private void propagateEqualsLiteralToDomain(Literal<Variable> lit) {
 		if (!lit.getAtom().getSymbol().equals(Predicate.EQUALS))
 			throw new IllegalArgumentException(lit.toString());
 
 		Variable v1 = lit.getAtom().getParameters().get(0);
 		Variable v2 = lit.getAtom().getParameters().get(1);
-		Collection<Constant> d1 = CspOptimiser.DOMAINS.get(v1); // they are sets tho
-		Collection<Constant> d2 = CspOptimiser.DOMAINS.get(v2);
+		DomainStore domains = optimiser.domains;
 
-		Set<Variable> changed = new HashSet<Variable>();
 		if (!lit.getValue()) {
-			if (d1.size() == 1) {
-				if (d2.removeAll(d1)) {
+			if (domains.size(v1) == 1) {
+				if (domains.removeAll(v2, v1)) {
 					changed.add(v2);
 				}
 			}
-			if (d2.size() == 1) {
-				if (d1.removeAll(d2))
+			if (domains.size(v2) == 1) {
+				if (domains.removeAll(v1, v2))
 					changed.add(v1);
 			}
 		} else {
-			if (d1.retainAll(d2))
+			if (domains.retainAll(v1, v2))
 				changed.add(v1);
-			if (d2.retainAll(d1))
+			if (domains.retainAll(v2, v1))
 				changed.add(v2);
 		}
-
-		return changed;
 	}
 
-	private static Set<Variable> propagatePrecLiteralToDomain(Literal<Variable> lit) {
-		if (lit.getValue()) { // v1 < v2
-
-			Variable v1 = lit.getAtom().getParameters().get(0);
-			Variable v2 = lit.getAtom().getParameters().get(1);
-
-			List<Constant> d1 = CspOptimiser.OP_DOMAINS.get(lit.getAtom().getParameters().get(0));
-			List<Constant> d2 = CspOptimiser.OP_DOMAINS.get(lit.getAtom().getParameters().get(1));
+	private void propagatePrecLiteralToDomain(Literal<Variable> lit) {
+		Variable v1 = lit.getAtom().getParameters().get(0);
+		Variable v2 = lit.getAtom().getParameters().get(1);
+		DomainStore domains = optimiser.domains;
 
-			Set<Variable> changed = new HashSet<Variable>();
+		if (lit.getValue()) { // v1 < v2
 
 			// MODIFY DOMAINS BASED ON LOWER/UPPER SET
-			int preCount = CspOptimiser.PREC_GRAPH.getEdgesTo(v2).size();
-			int postCount = CspOptimiser.PREC_GRAPH.getEdgesFrom(v1).size();		
-			
-			Set<Constant> oor = new HashSet<Constant>();
-			for (int i = d1.size() - 1; i >= 0; i--) {
-				Constant c = d1.get(i);
-				int v = Integer.valueOf(c.getName());
-				if (v >= (CspOptimiser.HIGHEST_OP_NO - postCount))
-					oor.add(c);
-				else
-					break;
-
-			}
+			int preCount = optimiser.precGraph.getInDegree(v2);
+			int postCount = optimiser.precGraph.getOutDegree(v1);		
 
-			if (d1.removeAll(oor))
+			if (domains.setHigh(v1, optimiser.highestOpNo - postCount - 1))
 				changed.add(v1);
 
-			oor.clear();
-			for (Constant c : d2) {
-				int v = Integer.valueOf(c.getName());
-				if (v <= preCount)
-					oor.add(c);
-				else
-					break;
-
-			}
-
-			if (d2.removeAll(oor))
+			if (domains.setLow(v2, preCount + 1))
 				changed.add(v2);
 
 			// MODIFY DOMAINS BASED ON MIN/MAX
 			// d1 < d2
-			int d2highest = Integer.valueOf(d2.get(d2.size() - 1).getName());
-
-			oor.clear();
-			for (int i = d1.size() - 1; i >= 0; i--) {
-				Constant c = d1.get(i);
-				if (Integer.valueOf(c.getName()) >= d2highest)
-					oor.add(c);
-				else
-					break;
-			}
-
-			if (d1.removeAll(oor))
-				changed.add(lit.getAtom().getParameters().get(0));
+			if (domains.setHigh(v1, domains.getHigh(v2) - 1))
+				changed.add(v1);
 
-			oor.clear();
-			if (d1.isEmpty()) {
-				ZincFormatter zf = new ZincFormatter(CspOptimiser.CSP);
+			if (domains.isEmpty(v1)) {
+				ZincFormatter zf = new ZincFormatter(optimiser.csp);
 				System.out.println(zf.getZincString());
-				System.out.println(CspOptimiser.CSP);
+				System.out.println(optimiser.csp);
 				throw new CspOptimiserException("CSP is unsatisfiable: " + lit);
 			}
-			int d1lowest = Integer.valueOf(d1.get(0).getName());
-			for (Constant c : d2) {
-				if (Integer.valueOf(c.getName()) <= d1lowest)
-					oor.add(c);
-				else
-					break;
-			}
 
-			if (d2.removeAll(oor))
-				changed.add(lit.getAtom().getParameters().get(1));
+			if (domains.setLow(v2, domains.getLow(v1) + 1))
+				changed.add(v2);
 			
-			if (d2.isEmpty())
+			if (domains.isEmpty(v2))
 				throw new CspOptimiserException("CSP is unsatisfiable: " + lit);
-			
-			return changed;
 
 		} else { // v2 <= v1
-			List<Constant> d1 = CspOptimiser.OP_DOMAINS.get(lit.getAtom().getParameters().get(0));
-			List<Constant> d2 = CspOptimiser.OP_DOMAINS.get(lit.getAtom().getParameters().get(1));
-
-			Set<Variable> changed = new HashSet<Variable>();
 
 			// d2 <= d1
-			int d1highest = Integer.valueOf(d1.get(d1.size() - 1).getName());
-
-			Set<Constant> oor = new HashSet<Constant>();
-			for (int i = d2.size() - 1; i >= 0; i--) {
-				Constant c = d2.get(i);
-				if (Integer.valueOf(c.getName()) >= d1highest)
-					oor.add(c);
-				else
-					break;
-			}
-
-			if (d2.removeAll(oor))
-				changed.add(lit.getAtom().getParameters().get(1));
+			if (domains.setHigh(v2, domains.getHigh(v1) - 1))
+				changed.add(v2);
 			
-			if (d2.isEmpty())
+			if (domains.isEmpty(v2))
 				throw new CspOptimiserException("CSP is unsatisfiable: " + lit);
 
-			oor.clear();
-			int d2lowest = Integer.valueOf(d2.get(0).getName());
-			for (Constant c : d1) {
-				if (Integer.valueOf(c.getName()) <= d2lowest)
-					oor.add(c);
-				else
-					break;
-			}
-
-			if (d1.removeAll(oor))
-				changed.add(lit.getAtom().getParameters().get(0));
+			if (domains.setLow(v1, domains.getLow(v2) + 1))
+				changed.add(v1);
 			
-			if (d1.isEmpty())
+			if (domains.isEmpty(v1))
 				throw new CspOptimiserException("CSP is unsatisfiable: " + lit);
 
-			return changed;
-
 		}
 	}
 
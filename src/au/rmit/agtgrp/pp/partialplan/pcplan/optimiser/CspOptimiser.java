@@ -23,7 +23,6 @@ package au.rmit.agtgrp.pp.partialplan.pcplan.optimiser;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
-import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -39,48 +38,77 @@ import au.rmit.agtgrp.csp.alldiff.AllDifferent;
 import au.rmit.agtgrp.lang.fol.Substitution;
 import au.rmit.agtgrp.lang.fol.expression.Connective;
 import au.rmit.agtgrp.lang.fol.expression.Expression;
-import au.rmit.agtgrp.lang.fol.function.Constant;
 import au.rmit.agtgrp.lang.fol.predicate.Atom;
 import au.rmit.agtgrp.lang.fol.predicate.Literal;
 import au.rmit.agtgrp.lang.fol.predicate.Predicate;
 import au.rmit.agtgrp.lang.fol.symbol.Type;
 import au.rmit.agtgrp.lang.fol.symbol.Variable;
 import au.rmit.agtgrp.utils.collections.Pair;
+import au.rmit.agtgrp.utils.collections.UnionFind;
 import au.rmit.agtgrp.utils.collections.graph.DirectedGraph;
-import au.rmit.agtgrp.utils.collections.graph.GraphUtils;
+import au.rmit.agtgrp.utils.collections.graph.TransitiveClosure;
 import au.rmit.agtgrp.utils.collections.graph.treewidth.TreewidthCalculator;
 
 public class CspOptimiser {
 
 	private static final int PARTITION_STEP = 500;
 
-	public static List<Variable> VARS;
-	public static Map<Type, Set<Variable>> VARS_BY_TYPE;
+	private static volatile int cacheCapacity = PropagationCache.DEFAULT_CAPACITY;
+	private static final PropagationCache.Statistics CACHE_STATISTICS = new PropagationCache.Statistics();
 
-	public static Map<Variable, Collection<Constant>> DOMAINS;
-	public static int HIGHEST_OP_NO;
+	/**
+	 * Sets the maximum number of entries in the propagation cache of each 
+	 * subsequent run of the optimiser.
+	 */
+	public static void setCacheCapacity(int capacity) {
+		if (capacity < 1)
+			throw new IllegalArgumentException("Capacity must be > 0");
+		cacheCapacity = capacity;
+	}
+
+	public static int getCacheCapacity() {
+		return cacheCapacity;
+	}
+
+	/**
+	 * @return the propagation cache counters, summed over every completed run.
+	 */
+	public static PropagationCache.Statistics getCacheStatistics() {
+		return CACHE_STATISTICS;
+	}
+
+	List<Variable> vars;
+	Map<Type, Set<Variable>> varsByType;
+
+	DomainStore domains;
+	int highestOpNo;
 
-	public static Map<Variable, List<Constant>> OP_DOMAINS;
+	TransitiveClosure<Variable> equalityGraph;
+	DirectedGraph<Variable> activeEqualityGraph;
+	// classes of equalityGraph, maintained as equalities are found
+	UnionFind<Variable> equalityClasses;
 
-	public static DirectedGraph<Variable> EQUALITY_GRAPH;
-	public static DirectedGraph<Variable> ACTIVE_EQUALITY_GRAPH;
+	TransitiveClosure<Variable> precGraph;
+	DirectedGraph<Variable> activePrecGraph;
 
-	public static DirectedGraph<Variable> PREC_GRAPH;
-	public static DirectedGraph<Variable> ACTIVE_PREC_GRAPH;
+	Set<Literal<Variable>> negLiterals;
+	Set<Literal<Variable>> activeNegLiterals;
 
-	public static Set<Literal<Variable>> NEG_LITERALS;
-	public static Set<Literal<Variable>> ACTIVE_NEG_LITERALS;
+	Map<Set<Variable>, Set<ExpressionPropagator>> expCons;
 
-	public static Map<Set<Variable>, Set<ExpressionPropagator>> EXP_CONS;
+	// watch lists: the expression propagators and active negative literals over each variable
+	Map<Variable, Set<ExpressionPropagator>> expWatches;
+	Map<Variable, Set<Literal<Variable>>> negWatches;
 
-	public static Set<Literal<Variable>> ALLDIFF_CONS;
+	Set<Literal<Variable>> allDiffCons;
+	boolean allDiffsDirty; // operator domains have changed since the alldiffs were last run
 
-	public static Set<Propagator> WORKLIST;
-	public static PriorityQueue<Propagator> WORKQUEUE;
+	Set<Propagator> worklist;
+	PriorityQueue<Propagator> workqueue;
 
-	public static Map<Expression<Variable>, Expression<Variable>> PROP_CACHE;
+	PropagationCache propCache;
 
-	public static PartitionedExpressionCsp CSP;
+	PartitionedExpressionCsp csp;
 
 	/**
 	 * Optimises the input CSP using a specialised AC-3 algorithm.
@@ -102,32 +130,42 @@ public class CspOptimiser {
 	 * @return				The optimised CSP.
 	 */
 	public static ExpressionCsp optimise(ExpressionCsp csp, int treewidth, TreewidthCalculator calc) {
+		CspOptimiser optimiser = new CspOptimiser();
+		try {
+			return optimiser.run(csp, treewidth, calc);
+		} finally {
+			if (optimiser.propCache != null)
+				CACHE_STATISTICS.add(optimiser.propCache);
+		}
+	}
+
+	private ExpressionCsp run(ExpressionCsp input, int treewidth, TreewidthCalculator calc) {
 
-		initialise(csp);
+		initialise(input);
 
 		boolean varsPartitioned = true;
 		boolean workDone = false;
 
 		while (!workDone || varsPartitioned) {
 
-			int eqSize = EQUALITY_GRAPH.getSize();
+			int eqSize = equalityGraph.getEdgeCount();
 
 			propagate(PARTITION_STEP);
 
-			workDone = WORKLIST.isEmpty();
+			workDone = worklist.isEmpty() && !allDiffsDirty;
 
-			if (EQUALITY_GRAPH.getSize() > (eqSize + 100) || WORKLIST.isEmpty()) {
-				int nVars = VARS.size();
+			if (equalityGraph.getEdgeCount() > (eqSize + 50) || workDone) {
+				int nVars = vars.size();
 
-				buildCSP(CSP, false);			
+				buildCSP(csp, false);			
 				partitionState();
 
-				varsPartitioned = VARS.size() != nVars;
+				varsPartitioned = vars.size() != nVars;
 
 				if (calc != null) {
 					try {
 						//buildCSP(CSP);
-						if (!calc.isGreaterThan(CSP.getPrimalGraph(), treewidth))
+						if (!calc.isGreaterThan(csp.getPrimalGraph(), treewidth))
 							break;
 					} catch (InterruptedException e) {
 						throw new RuntimeException();
@@ -142,38 +180,42 @@ public class CspOptimiser {
 			}
 		}
 
-		buildCSP(CSP, true);
-		return CSP;
+		buildCSP(csp, true);
+		return csp;
 	}
 
-	private static void initialise(ExpressionCsp csp) {
+	private void initialise(ExpressionCsp input) {
 
 		// init csp
-		CSP = PartitionedExpressionCsp.partition(csp);
+		csp = PartitionedExpressionCsp.partition(input);
 
 		initVarsAndDomains();
 
-		EQUALITY_GRAPH = new DirectedGraph<Variable>();
-		ACTIVE_EQUALITY_GRAPH = new DirectedGraph<Variable>();
+		equalityGraph = new TransitiveClosure<Variable>();
+		activeEqualityGraph = new DirectedGraph<Variable>();
+		equalityClasses = new UnionFind<Variable>(vars);
 
-		PREC_GRAPH = new DirectedGraph<Variable>();
-		ACTIVE_PREC_GRAPH = new DirectedGraph<Variable>();
+		precGraph = new TransitiveClosure<Variable>();
+		activePrecGraph = new DirectedGraph<Variable>();
 
-		NEG_LITERALS = new HashSet<Literal<Variable>>();
-		ACTIVE_NEG_LITERALS = new HashSet<Literal<Variable>>();
+		negLiterals = new HashSet<Literal<Variable>>();
+		activeNegLiterals = new HashSet<Literal<Variable>>();
+		negWatches = new HashMap<Variable, Set<Literal<Variable>>>();
 
-		EXP_CONS = new HashMap<Set<Variable>, Set<ExpressionPropagator>>();
-		ALLDIFF_CONS = new HashSet<Literal<Variable>>();
+		expCons = new HashMap<Set<Variable>, Set<ExpressionPropagator>>();
+		expWatches = new HashMap<Variable, Set<ExpressionPropagator>>();
+		allDiffCons = new HashSet<Literal<Variable>>();
+		allDiffsDirty = false;
 
-		WORKQUEUE = new PriorityQueue<Propagator>(PropagatorComparator.INSTANCE);
-		WORKLIST = new HashSet<Propagator>();
+		workqueue = new PriorityQueue<Propagator>(PropagatorComparator.INSTANCE);
+		worklist = new HashSet<Propagator>();
 
-		Iterator<List<Variable>> it = new ArrayList<List<Variable>>(CSP.getConstraints().keySet()).iterator();
+		Iterator<List<Variable>> it = new ArrayList<List<Variable>>(csp.getConstraints().keySet()).iterator();
 		while (it.hasNext()) {
 			List<Variable> key = it.next();
 			//it.remove();
 
-			Set<Expression<Variable>> cons = new HashSet<Expression<Variable>>(CSP.getConstraints().remove(key));
+			Set<Expression<Variable>> cons = new HashSet<Expression<Variable>>(csp.getConstraints().remove(key));
 			Set<ExpressionPropagator> exp = new HashSet<ExpressionPropagator>();
 
 			for (Expression<Variable> con : cons) {
@@ -182,167 +224,141 @@ public class CspOptimiser {
 					newFact(lit);
 
 				} else {
-					ExpressionPropagator ep = new ExpressionPropagator(con);
+					ExpressionPropagator ep = new ExpressionPropagator(this, con);
 					exp.add(ep);
 				}
 			}
 
-			EXP_CONS.put(new HashSet<Variable>(key), exp);
-			WORKLIST.addAll(exp);
-			WORKQUEUE.addAll(exp);
+			for (ExpressionPropagator ep : exp)
+				addExpressionPropagator(ep);
+			worklist.addAll(exp);
+			workqueue.addAll(exp);
 
 		}
 
-		domainsChanged(new HashSet<Variable>(VARS));
+		domainsChanged(new HashSet<Variable>(vars));
 
-		PROP_CACHE = new HashMap<Expression<Variable>, Expression<Variable>>();
+		propCache = new PropagationCache(cacheCapacity);
 	}
 
-	private static void partitionState() {
+	private void partitionState() {
 
-		Substitution<Variable> prevPartition = CSP.getMapping();		
-		CSP = PartitionedExpressionCsp.partition(CSP, EQUALITY_GRAPH);
+		Substitution<Variable> prevPartition = csp.getMapping();		
+		csp = PartitionedExpressionCsp.partition(csp, equalityClasses);
 
 		// build step partition
 		Map<Variable, Variable> stepPartMap = new HashMap<Variable, Variable>();
-		for (Variable var : CSP.getMapping().getVariables())
-			stepPartMap.put(prevPartition.apply(var), CSP.getMapping().apply(var));
+		for (Variable var : csp.getMapping().getVariables())
+			stepPartMap.put(prevPartition.apply(var), csp.getMapping().apply(var));
 
 		Substitution<Variable> stepPartition = new Substitution<Variable>(stepPartMap);
 
 		// check for changed domains
 		List<Variable> changedDomains = new ArrayList<Variable>();
-		for (Variable var : CSP.getMapping().getVariables()) {
-			Variable partvar = CSP.getMapping().apply(var);
-			Collection<Constant> domain = var.getType().equals(Type.OPERATOR_TYPE) ? 
-					OP_DOMAINS.get(prevPartition.apply(var)) : DOMAINS.get(prevPartition.apply(var)); 
-
-					if (domain.size() !=  CSP.getDomain(partvar).size())
-						changedDomains.add(partvar);
+		for (Variable var : csp.getMapping().getVariables()) {
+			Variable partvar = csp.getMapping().apply(var);
+			if (domains.size(prevPartition.apply(var)) != csp.getDomain(partvar).size())
+				changedDomains.add(partvar);
 		}
 
 		// set domains
 		initVarsAndDomains();
 
-		EQUALITY_GRAPH = partitionGraph(EQUALITY_GRAPH, stepPartition);
-		ACTIVE_EQUALITY_GRAPH = partitionGraph(ACTIVE_EQUALITY_GRAPH, stepPartition);
+		equalityGraph = partitionClosure(equalityGraph, stepPartition);
+		activeEqualityGraph = partitionGraph(activeEqualityGraph, stepPartition);
+		// every equality is now within a single partition variable
+		equalityClasses = new UnionFind<Variable>(vars);
 
-		PREC_GRAPH = partitionGraph(PREC_GRAPH, stepPartition);
-		ACTIVE_PREC_GRAPH = partitionGraph(ACTIVE_PREC_GRAPH, stepPartition);
+		precGraph = partitionClosure(precGraph, stepPartition);
+		activePrecGraph = partitionGraph(activePrecGraph, stepPartition);
 
-		NEG_LITERALS = partitionAll(NEG_LITERALS, stepPartition);
-		ACTIVE_NEG_LITERALS = partitionAll(ACTIVE_NEG_LITERALS, stepPartition);
+		negLiterals = partitionAll(negLiterals, stepPartition);
+		Set<Literal<Variable>> partitionedNegLiterals = partitionAll(activeNegLiterals, stepPartition);
+		activeNegLiterals = new HashSet<Literal<Variable>>();
+		negWatches = new HashMap<Variable, Set<Literal<Variable>>>();
+		for (Literal<Variable> neg : partitionedNegLiterals)
+			activateNegLiteral(neg);
 
 		Set<Propagator> partWorkList = new HashSet<Propagator>();
 		Substitution<Variable> id = Substitution.identity(stepPartition.getDomain());
-		for (Propagator prop : WORKLIST) {
+		for (Propagator prop : worklist) {
 			if (prop instanceof BinaryPropagator) {
 				Literal<Variable> cons = ((BinaryPropagator) prop).getConstraint();
 				cons = cons.resetVariables(stepPartition.apply(cons.getAtom().getVariables()));
 				cons = cons.rebind(cons.getAtom().getVariables());
-				partWorkList.add(new BinaryPropagator(cons));
+				partWorkList.add(new BinaryPropagator(this, cons));
 			} else if (prop instanceof ExpressionPropagator) {
 				Expression<Variable> cons = ((ExpressionPropagator) prop).getConstraint();
 				cons = cons.resetVariables(stepPartition);
 				cons = cons.applySubstitution(id);
-				partWorkList.add(new ExpressionPropagator(cons));
+				partWorkList.add(new ExpressionPropagator(this, cons));
 			}
 		}
-		WORKLIST = partWorkList;
-
-		WORKLIST.addAll(toBinaryProps(ACTIVE_EQUALITY_GRAPH, Predicate.EQUALS));
-		WORKLIST.addAll(toBinaryProps(ACTIVE_PREC_GRAPH, Predicate.PREC));
-		for (Literal<Variable> neg : ACTIVE_NEG_LITERALS)
-			WORKLIST.add(new BinaryPropagator(neg));
-
-		Map<Set<Variable>, Set<ExpressionPropagator>> partitionedExp = new HashMap<Set<Variable>, Set<ExpressionPropagator>>();
-		for (Set<Variable> dom : EXP_CONS.keySet()) {
-			for (ExpressionPropagator ep : EXP_CONS.get(dom)) {
+		worklist = partWorkList;
+
+		worklist.addAll(toBinaryProps(activeEqualityGraph, Predicate.EQUALS));
+		worklist.addAll(toBinaryProps(activePrecGraph, Predicate.PREC));
+		for (Literal<Variable> neg : activeNegLiterals)
+			worklist.add(new BinaryPropagator(this, neg));
+
+		Map<Set<Variable>, Set<ExpressionPropagator>> unpartitionedExp = expCons;
+		expCons = new HashMap<Set<Variable>, Set<ExpressionPropagator>>();
+		expWatches = new HashMap<Variable, Set<ExpressionPropagator>>();
+		for (Set<Variable> dom : unpartitionedExp.keySet()) {
+			for (ExpressionPropagator ep : unpartitionedExp.get(dom)) {
 				Expression<Variable> cons = ((ExpressionPropagator) ep).getConstraint();
 				cons = cons.resetVariables(stepPartition);
 				cons = cons.applySubstitution(id);
-				ExpressionPropagator pep = new ExpressionPropagator(cons);
-				Set<ExpressionPropagator> eps = partitionedExp.get(pep.getDomain());
-				if (eps == null) {
-					eps = new HashSet<ExpressionPropagator>();
-					partitionedExp.put(pep.getDomain(), eps);
-				}
-				eps.add(pep);
+				ExpressionPropagator pep = new ExpressionPropagator(this, cons);
+				addExpressionPropagator(pep);
 
 				if (ep.getDomain().size() != pep.getDomain().size()) {
-					WORKLIST.add(pep);
+					worklist.add(pep);
 				}
 			}
 		}
 
-		EXP_CONS = partitionedExp;
-
 		Set<Literal<Variable>> partitionedAllDiffs = new HashSet<Literal<Variable>>();
-		for (Literal<Variable> allDiff : ALLDIFF_CONS) {
+		for (Literal<Variable> allDiff : allDiffCons) {
 			allDiff = allDiff.resetVariables(stepPartition.apply(allDiff.getAtom().getVariables()));
 			allDiff = allDiff.rebind(allDiff.getAtom().getVariables());
 			partitionedAllDiffs.add(allDiff);
 		}
-		ALLDIFF_CONS = partitionedAllDiffs;
+		allDiffCons = partitionedAllDiffs;
+		allDiffsDirty = !allDiffCons.isEmpty();
 
-		WORKQUEUE.clear();
-		WORKQUEUE.addAll(WORKLIST);
+		workqueue.clear();
+		workqueue.addAll(worklist);
 
 		domainsChanged(changedDomains);
-
-		// partition cache
-		Map<Expression<Variable>, Expression<Variable>> ppc = new HashMap<Expression<Variable>, Expression<Variable>>();
-		for (Expression<Variable> exp : PROP_CACHE.keySet()) {
-			Expression<Variable> val = PROP_CACHE.get(exp);
-			val = val.resetVariables(stepPartition);
-			val = val.applySubstitution(id);
-			exp = exp.resetVariables(stepPartition);
-			exp = exp.applySubstitution(id);
-			ppc.put(exp, val);
-		}
-		PROP_CACHE = ppc;
 	}
 
-	private static void initVarsAndDomains() {
-		VARS = new ArrayList<Variable>(CSP.getVariables());
-		VARS_BY_TYPE = new HashMap<Type, Set<Variable>>();
-		for (Variable var : VARS) {
+	private void initVarsAndDomains() {
+		vars = new ArrayList<Variable>(csp.getVariables());
+		varsByType = new HashMap<Type, Set<Variable>>();
+		for (Variable var : vars) {
 			Type t = var.getType();
 			do {
-				Set<Variable> typevars = VARS_BY_TYPE.get(t);
+				Set<Variable> typevars = varsByType.get(t);
 				if (typevars == null) {
 					typevars = new HashSet<Variable>();
-					VARS_BY_TYPE.put(t, typevars);
+					varsByType.put(t, typevars);
 				}
 				typevars.add(var);
 				t = t.getImmediateSuperType();
 			} while (!t.equals(Type.ANYTHING_TYPE));
 		}
 
-		DOMAINS = new HashMap<Variable, Collection<Constant>>();
-		OP_DOMAINS = new HashMap<Variable, List<Constant>>();
-		List<Constant> opDomain = new ArrayList<Constant>();
-
-		for (Variable var : VARS) {
-			if (var.getType().equals(Type.OPERATOR_TYPE)) {
-				List<Constant> opd = new ArrayList<Constant>(CSP.getDomain(var));
-				Collections.sort(opd, ConstComp.INSTANCE);
-				OP_DOMAINS.put(var, opd);
-				opDomain.add(opd.get(opd.size() - 1));
-			} else
-				DOMAINS.put(var, new HashSet<Constant>(CSP.getDomain(var)));
-		}
-
-		Collections.sort(opDomain, ConstComp.INSTANCE);
-		HIGHEST_OP_NO = Integer.valueOf(opDomain.get(opDomain.size() - 1).getName());
+		domains = new DomainStore(csp, vars);
+		highestOpNo = domains.getHighestOrdinal();
 	}
 
-	private static Set<BinaryPropagator> toBinaryProps(DirectedGraph<Variable> graph, Predicate pred) {
+	private Set<BinaryPropagator> toBinaryProps(DirectedGraph<Variable> graph, Predicate pred) {
 		Set<BinaryPropagator> props = new HashSet<BinaryPropagator>();
 	
 		for (Variable var : graph.getVertices()) {
 			for (Variable from : graph.getEdgesFrom(var))
-				props.add(new BinaryPropagator(new Literal<Variable>(pred, 
+				props.add(new BinaryPropagator(this, new Literal<Variable>(pred, 
 						Arrays.asList(var, from), Arrays.asList(var, from), true).intern()));
 		}
 
@@ -386,13 +402,34 @@ public class CspOptimiser {
 
 	}
 
-	private static void propagate(int maxProp) {
+	private static TransitiveClosure<Variable> partitionClosure(TransitiveClosure<Variable> closure, Substitution<Variable> part) {
+
+		TransitiveClosure<Variable> partitioned = new TransitiveClosure<Variable>();
+
+		for (Variable var : closure.getVertices()) {
+			Variable partVar = part.apply(var);
+			for (Variable linkFrom : closure.getEdgesFrom(var))
+				partitioned.addEdge(partVar, part.apply(linkFrom));
+		}
+
+		return partitioned;
+
+	}
+
+	private void propagate(int maxProp) {
 		int j = 0;
 
-		while (!WORKQUEUE.isEmpty() && j < maxProp) {
+		while ((!workqueue.isEmpty() || allDiffsDirty) && j < maxProp) {
 
-			Propagator p = WORKQUEUE.poll();
-			WORKLIST.remove(p);
+			// the alldiffs are only run once the cheaper propagators have settled
+			if (workqueue.isEmpty()) {
+				propagateAllDifferent();
+				j++;
+				continue;
+			}
+
+			Propagator p = workqueue.poll();
+			worklist.remove(p);
 
 			if (p instanceof BinaryPropagator)
 				propagateBinary((BinaryPropagator) p);
@@ -409,9 +446,9 @@ public class CspOptimiser {
 		}
 	}
 
-	private static void propagateExpression(ExpressionPropagator parent) {
+	private void propagateExpression(ExpressionPropagator parent) {
 
-		EXP_CONS.get(parent.getDomain()).remove(parent);
+		removeExpressionPropagator(parent);
 
 		for (Expression<Variable> conj : splitConjunctions(parent.getConstraint())) {
 
@@ -420,7 +457,7 @@ public class CspOptimiser {
 				continue;
 			}
 
-			ExpressionPropagator ep = new ExpressionPropagator(conj);
+			ExpressionPropagator ep = new ExpressionPropagator(this, conj);
 			ep.propagate();
 			domainsChanged(ep.getChanged());
 
@@ -431,17 +468,25 @@ public class CspOptimiser {
 			} else if (ep.getConstraint().isLiteral()) {
 				newFact(ep.getConstraint().getLiteral());
 			} else { // replace modified exp based on new domain
-				Set<ExpressionPropagator> eps = EXP_CONS.get(ep.getDomain());
-				if (eps == null) {
-					eps = new HashSet<ExpressionPropagator>();
-					EXP_CONS.put(ep.getDomain(), eps);
-				}
-				eps.add(ep);
+				addExpressionPropagator(ep);
 			}
 		}
 	}
 
-	private static void propagateBinary(BinaryPropagator bp) {
+	private void propagateAllDifferent() {
+		allDiffsDirty = false;
+		for (Literal<Variable> allDiff : allDiffCons) {
+			AllDifferentPropagator ap = new AllDifferentPropagator(this, allDiff);
+			ap.propagate();
+			domainsChanged(ap.getChanged());
+		}
+
+		// filtering is idempotent, so a single alldiff need not be run again for its own changes
+		if (allDiffCons.size() == 1)
+			allDiffsDirty = false;
+	}
+
+	private void propagateBinary(BinaryPropagator bp) {
 		// AC-3 over binary
 		bp.propagate();
 
@@ -455,31 +500,17 @@ public class CspOptimiser {
 			throw new CspOptimiserException("CSP is unsatisfiable: " + bp.getOriginal() + " evaluates to FALSE");
 	}
 
-	private static void buildCSP(ExpressionCsp opt, boolean reduce) {
-
-		opt.getVariables().clear();
-		opt.getDomain().clear();
-		opt.getDomains().clear();
-		opt.getConstraints().clear();
+	private void buildCSP(ExpressionCsp opt, boolean reduce) {
 
-		opt.addVariables(VARS);
+		opt.clear();
 
-		for (Variable var : DOMAINS.keySet())
-			opt.addDomainValues(var, DOMAINS.get(var));
+		opt.addVariables(vars);
 
-		for (Variable var : OP_DOMAINS.keySet())
-			opt.addDomainValues(var, OP_DOMAINS.get(var));
+		for (Variable var : vars)
+			opt.addDomainValues(var, domains.getDomain(var));
 
 		// only add the reduced equality relation
-		DirectedGraph<Variable> reducedEquality = EQUALITY_GRAPH;
-		if (reduce) {
-			reducedEquality = new DirectedGraph<Variable>();
-			for (Variable vert : EQUALITY_GRAPH.getVertices()) {
-				for (Variable dest : EQUALITY_GRAPH.getEdgesFrom(vert))
-					reducedEquality.addEdge(vert, dest);
-			}
-			GraphUtils.transitiveReduction(reducedEquality, EQUALITY_GRAPH);
-		}
+		DirectedGraph<Variable> reducedEquality = reduce ? equalityGraph.getTransitiveReduction() : equalityGraph.toGraph();
 
 		// simplify
 		for (Variable vert : reducedEquality.getVertices()) {
@@ -492,15 +523,7 @@ public class CspOptimiser {
 		}
 
 		// only add the reduced prec relation
-		DirectedGraph<Variable> reducedPrec = PREC_GRAPH;
-		if (reduce) {
-			reducedPrec = new DirectedGraph<Variable>();
-			for (Variable vert : PREC_GRAPH.getVertices()) {
-				for (Variable other : PREC_GRAPH.getEdgesFrom(vert))
-					reducedPrec.addEdge(vert, other);
-			}
-			GraphUtils.transitiveReduction(reducedPrec, PREC_GRAPH);
-		}
+		DirectedGraph<Variable> reducedPrec = reduce ? precGraph.getTransitiveReduction() : precGraph.toGraph();
 
 		for (Variable vert : reducedPrec.getVertices()) {
 			for (Variable dest : reducedPrec.getEdgesFrom(vert)) {
@@ -512,28 +535,34 @@ public class CspOptimiser {
 		}
 
 		// add all negated facts
-		for (Literal<Variable> neg : NEG_LITERALS) {
+		for (Literal<Variable> neg : negLiterals) {
 			neg = neg.getAtom().getSymbol().equals(Predicate.EQUALS) ? simplifyEquals(neg) : simplifyPrec(neg);
 			if (!neg.equals(Literal.TRUE))
 				opt.addConstraint(Expression.buildLiteral(neg));
 		}
 
 		// add all expression constraints
-		for (Set<ExpressionPropagator> eps : EXP_CONS.values()) {
+		for (Set<ExpressionPropagator> eps : expCons.values()) {
 			for (ExpressionPropagator ep : eps) {
 				opt.addConstraint(ep.getConstraint());
 			}
 		}
 
-		// add all alldiffs
-		for (Literal<Variable> allDiff : ALLDIFF_CONS)
-			opt.addConstraint(Expression.buildLiteral(allDiff));
+		// add all alldiffs, only to the final csp as they would make a clique of the 
+		// operator variables in the primal graph
+		if (reduce) {
+			for (Literal<Variable> allDiff : allDiffCons)
+				opt.addConstraint(Expression.buildLiteral(allDiff));
+		}
 	}
 
-	private static void newFact(Literal<Variable> lit) {
+	private void newFact(Literal<Variable> lit) {
 
-		if (AllDifferent.isAllDifferentLiteral(lit))
-			ALLDIFF_CONS.add(lit);
+		if (AllDifferent.isAllDifferentLiteral(lit)) {
+			if (allDiffCons.add(lit))
+				allDiffsDirty = true;
+			return;
+		}
 
 		// add new literal to fact collections
 		if (lit.getValue()) {
@@ -541,79 +570,75 @@ public class CspOptimiser {
 			if (lit.getAtom().getSymbol().equals(Predicate.EQUALS)) {
 
 				// is it already there?
-				if (EQUALITY_GRAPH.containsEdge(lit.getAtom().getParameters().get(0), lit.getAtom().getParameters().get(1)) || 
+				if (equalityGraph.containsEdge(lit.getAtom().getParameters().get(0), lit.getAtom().getParameters().get(1)) || 
 						simplifyEquals(lit).equals(Literal.TRUE))
 					return;
 
 				domainsChanged(lit.getAtom().getParameters());
-				BinaryPropagator bp = new BinaryPropagator(lit);
-				WORKLIST.add(bp);
-				WORKQUEUE.add(bp);
+				BinaryPropagator bp = new BinaryPropagator(this, lit);
+				worklist.add(bp);
+				workqueue.add(bp);
 
 				// notify of any new equality
-				for (Pair<Variable, Variable> newEq : GraphUtils.addAndCloseTransitive(EQUALITY_GRAPH, lit.getAtom().getParameters().get(0), lit.getAtom().getParameters().get(1))) {
+				equalityClasses.union(lit.getAtom().getParameters().get(0), lit.getAtom().getParameters().get(1));
+				for (Pair<Variable, Variable> newEq : equalityGraph.addEdge(lit.getAtom().getParameters().get(0), lit.getAtom().getParameters().get(1))) {
 
 					Literal<Variable> eqLit = new Literal<Variable>(Atom.equals(newEq.getFirst(), newEq.getSecond(), newEq.getFirst(), newEq.getSecond()).normalise(), true).intern();
 					eqLit = simplifyEquals(eqLit);
 					if (eqLit.equals(Literal.FALSE)) {
 						throw new CspOptimiserException("Unsatisfiable constraint!\n"
 								+ new Literal<Variable>(Atom.equals(newEq.getFirst(), newEq.getSecond(), newEq.getFirst(), newEq.getSecond()).normalise(), true).intern()
-								+ "\n" + newEq.getFirst() + ": " + DOMAINS.get(newEq.getFirst()) + "\n"
-								+ newEq.getSecond() + ": " + DOMAINS.get(newEq.getSecond()));
+								+ "\n" + newEq.getFirst() + ": " + domains.getDomain(newEq.getFirst()) + "\n"
+								+ newEq.getSecond() + ": " + domains.getDomain(newEq.getSecond()));
 					}
 					if (!eqLit.equals(Literal.TRUE)) {
 						domainsChanged(eqLit.getAtom().getParameters());
-						WORKLIST.add(new BinaryPropagator(eqLit));
-						WORKQUEUE.add(new BinaryPropagator(eqLit));
+						worklist.add(new BinaryPropagator(this, eqLit));
+						workqueue.add(new BinaryPropagator(this, eqLit));
 					}
 				}
 
 			} else if (lit.getAtom().getSymbol().equals(Predicate.PREC)) {
 
 				// is it already there?
-				if (PREC_GRAPH.containsEdge(lit.getAtom().getParameters().get(0), lit.getAtom().getParameters().get(1)) || simplifyPrec(lit).equals(Literal.TRUE))
+				if (precGraph.containsEdge(lit.getAtom().getParameters().get(0), lit.getAtom().getParameters().get(1)) || simplifyPrec(lit).equals(Literal.TRUE))
 					return;
 
 				domainsChanged(lit.getAtom().getParameters());
-				WORKLIST.add(new BinaryPropagator(lit));
-				WORKQUEUE.add(new BinaryPropagator(lit));
+				worklist.add(new BinaryPropagator(this, lit));
+				workqueue.add(new BinaryPropagator(this, lit));
 
 				// notify of any new prec
-				for (Pair<Variable, Variable> newPrec : GraphUtils.addAndCloseTransitive(PREC_GRAPH, lit.getAtom().getParameters().get(0), lit.getAtom().getParameters().get(1))) {
+				for (Pair<Variable, Variable> newPrec : precGraph.addEdge(lit.getAtom().getParameters().get(0), lit.getAtom().getParameters().get(1))) {
 
 					Literal<Variable> precLit = new Literal<Variable>(Atom.prec(newPrec.getFirst(), newPrec.getSecond(), newPrec.getFirst(), newPrec.getSecond()).normalise(), true).intern();
 					domainsChanged(precLit.getAtom().getParameters());
-					WORKLIST.add(new BinaryPropagator(precLit));
-					WORKQUEUE.add(new BinaryPropagator(precLit));
+					worklist.add(new BinaryPropagator(this, precLit));
+					workqueue.add(new BinaryPropagator(this, precLit));
 
 				}
 			}
 		} else {
 			// is it already there?
-			if (NEG_LITERALS.contains(lit))
+			if (negLiterals.contains(lit))
 				return;
 
 			domainsChanged(lit.getAtom().getParameters());
-			WORKLIST.add(new BinaryPropagator(lit));
-			WORKQUEUE.add(new BinaryPropagator(lit));
+			worklist.add(new BinaryPropagator(this, lit));
+			workqueue.add(new BinaryPropagator(this, lit));
 
-			NEG_LITERALS.add(lit);
+			negLiterals.add(lit);
 		}
 	}
 
-	private static void domainsChanged(Collection<Variable> changed) {
+	private void domainsChanged(Collection<Variable> changed) {
 
-		// update expression
-		for (Set<Variable> domain : EXP_CONS.keySet()) {
-			Set<Variable> dCopy = new HashSet<Variable>(domain);
-			if (dCopy.removeAll(changed)) {
-				for (ExpressionPropagator ep : EXP_CONS.get(domain)) {
-					ep.addExtDomainsChanged(changed);
-					if (!WORKLIST.contains(ep)) {
-						WORKLIST.add(ep);
-						WORKQUEUE.add(ep);
-					}
-				}
+		// update expressions over the changed variables
+		for (ExpressionPropagator ep : getWatchers(expWatches, changed)) {
+			ep.addExtDomainsChanged(changed);
+			if (!worklist.contains(ep)) {
+				worklist.add(ep);
+				workqueue.add(ep);
 			}
 		}
 
@@ -622,17 +647,18 @@ public class CspOptimiser {
 		for (Variable var : changed) {
 			if (!var.getType().equals(Type.OPERATOR_TYPE)) {
 
-				for (Variable other : VARS_BY_TYPE.get(var.getType())) {
+				for (Variable other : varsByType.get(var.getType())) {
 
 					Literal<Variable> res = simplifyEquals(Literal.equals(var, other, var, other, true));
 					if (res.equals(Literal.TRUE)) {
 						Atom<Variable> newEq = Atom.equals(var, other, var, other);
-						GraphUtils.addAndCloseTransitive(EQUALITY_GRAPH, newEq.getParameters().get(0), newEq.getParameters().get(1));
-						ACTIVE_EQUALITY_GRAPH.removeEdge(newEq.getParameters().get(0), newEq.getParameters().get(1));
+						equalityGraph.addEdge(newEq.getParameters().get(0), newEq.getParameters().get(1));
+						equalityClasses.union(newEq.getParameters().get(0), newEq.getParameters().get(1));
+						activeEqualityGraph.removeEdge(newEq.getParameters().get(0), newEq.getParameters().get(1));
 					} else if (res.equals(Literal.FALSE)) {
 						Literal<Variable> newNeg = Literal.equals(var, other, var, other, false);
-						NEG_LITERALS.add(newNeg);
-						ACTIVE_NEG_LITERALS.remove(newNeg);
+						negLiterals.add(newNeg);
+						deactivateNegLiteral(newNeg);
 					}
 				}
 			}
@@ -641,99 +667,104 @@ public class CspOptimiser {
 		// add new binary props from active lists
 		for (Variable var : changed) {
 
-			for (Variable other : ACTIVE_EQUALITY_GRAPH.getEdgesFrom(var)) {
-				WORKLIST.add(new BinaryPropagator(Literal.equals(var, other, var, other, true)));
-				WORKQUEUE.add(new BinaryPropagator(Literal.equals(var, other, var, other, true)));
+			for (Variable other : activeEqualityGraph.getEdgesFrom(var)) {
+				worklist.add(new BinaryPropagator(this, Literal.equals(var, other, var, other, true)));
+				workqueue.add(new BinaryPropagator(this, Literal.equals(var, other, var, other, true)));
 			}
 
-			for (Variable other : ACTIVE_EQUALITY_GRAPH.getEdgesTo(var)) {
-				WORKLIST.add(new BinaryPropagator(Literal.equals(var, other, var, other, true)));
-				WORKQUEUE.add(new BinaryPropagator(Literal.equals(var, other, var, other, true)));
+			for (Variable other : activeEqualityGraph.getEdgesTo(var)) {
+				worklist.add(new BinaryPropagator(this, Literal.equals(var, other, var, other, true)));
+				workqueue.add(new BinaryPropagator(this, Literal.equals(var, other, var, other, true)));
 
 			}
 
-			for (Variable other : ACTIVE_PREC_GRAPH.getEdgesFrom(var)) {
-				WORKLIST.add(new BinaryPropagator(Literal.prec(var, other, var, other, true)));
-				WORKQUEUE.add(new BinaryPropagator(Literal.prec(var, other, var, other, true)));
+			for (Variable other : activePrecGraph.getEdgesFrom(var)) {
+				worklist.add(new BinaryPropagator(this, Literal.prec(var, other, var, other, true)));
+				workqueue.add(new BinaryPropagator(this, Literal.prec(var, other, var, other, true)));
 			}
 
-			for (Variable other : ACTIVE_PREC_GRAPH.getEdgesTo(var)) {
-				WORKLIST.add(new BinaryPropagator(Literal.prec(other, var, other, var, true)));
-				WORKQUEUE.add(new BinaryPropagator(Literal.prec(other, var, other, var, true)));
+			for (Variable other : activePrecGraph.getEdgesTo(var)) {
+				worklist.add(new BinaryPropagator(this, Literal.prec(other, var, other, var, true)));
+				workqueue.add(new BinaryPropagator(this, Literal.prec(other, var, other, var, true)));
 			}
+		}
 
-			for (Literal<Variable> lit : ACTIVE_NEG_LITERALS) {
-				Set<Variable> dCopy = new HashSet<Variable>(lit.getAtom().getParameters());
-				if (dCopy.removeAll(changed)) {
-					WORKLIST.add(new BinaryPropagator(lit));
-					WORKQUEUE.add(new BinaryPropagator(lit));
+		for (Literal<Variable> lit : getWatchers(negWatches, changed)) {
+			worklist.add(new BinaryPropagator(this, lit));
+			workqueue.add(new BinaryPropagator(this, lit));
+		}
 
+		// operator bounds changed, so the alldiffs must be run again
+		if (!allDiffCons.isEmpty() && !allDiffsDirty) {
+			for (Variable var : changed) {
+				if (var.getType().equals(Type.OPERATOR_TYPE)) {
+					allDiffsDirty = true;
+					break;
 				}
 			}
 		}
 
 	}
 
-	public static Expression<Variable> getCached(Expression<Variable> exp) {
+	Expression<Variable> getCached(Expression<Variable> exp) {
 
-		Expression<Variable> cached = PROP_CACHE.get(exp);
+		Expression<Variable> cached = propCache.get(exp);
 		if (cached == null)
 			return exp;
 
 		return cached;
 	}
 
-	public static boolean addToCache(Expression<Variable> orig, Expression<Variable> propped) {
+	boolean addToCache(Expression<Variable> orig, Expression<Variable> propped) {
 		if (!orig.equals(propped)) {
-			PROP_CACHE.put(orig, propped);
+			propCache.put(orig, propped);
 			return true;
 		}
 
 		return false;
 	}
 
-	public static Literal<Variable> simplifyEquals(Literal<Variable> lit) {
+	Literal<Variable> simplifyEquals(Literal<Variable> lit) {
 		if (lit.getAtom().getParameters().get(0).equals(lit.getAtom().getParameters().get(1))) // are equal
 			return lit.getValue() ? Literal.TRUE : Literal.FALSE;
 
-		Set<Constant> d1 = new HashSet<Constant>(DOMAINS.get(lit.getAtom().getParameters().get(0)));
-		Set<Constant> d2 = new HashSet<Constant>(DOMAINS.get(lit.getAtom().getParameters().get(1)));
+		Variable v1 = lit.getAtom().getParameters().get(0);
+		Variable v2 = lit.getAtom().getParameters().get(1);
 
-		if (d1.equals(d2) && d1.size() == 1) // domains are the same, must be equal
+		if (domains.sameSingleton(v1, v2)) // domains are the same, must be equal
 			return lit.getValue() ? Literal.TRUE : Literal.FALSE;
 
-		d1.retainAll(d2); // get intersection
-		if (d1.isEmpty()) // domains are disjoint, cannot be equal
+		if (!domains.intersects(v1, v2)) // domains are disjoint, cannot be equal
 			return lit.getValue() ? Literal.FALSE : Literal.TRUE;
 
 		// compare inequality with with prec relation
 		if (!lit.getValue()) {
 			List<Variable> params = lit.getAtom().getParameters();
-			if (PREC_GRAPH.containsEdge(params.get(0), params.get(1)) || PREC_GRAPH.containsEdge(params.get(1), params.get(0)))
+			if (precGraph.containsEdge(params.get(0), params.get(1)) || precGraph.containsEdge(params.get(1), params.get(0)))
 				return Literal.TRUE;
 		}
 
 		return lit;
 	}
 
-	public static Literal<Variable> simplifyPrec(Literal<Variable> lit) {
+	Literal<Variable> simplifyPrec(Literal<Variable> lit) {
 		// x1 = x2 -> !(x1 < x2)
 		if (lit.getAtom().getParameters().get(0).equals(lit.getAtom().getParameters().get(1))) // are equal
 			return lit.getValue() ? Literal.FALSE : Literal.TRUE;
 
 		// x1 < x2
-		List<Constant> d1 = CspOptimiser.OP_DOMAINS.get(lit.getAtom().getParameters().get(0));
-		List<Constant> d2 = CspOptimiser.OP_DOMAINS.get(lit.getAtom().getParameters().get(1));
+		Variable v1 = lit.getAtom().getParameters().get(0);
+		Variable v2 = lit.getAtom().getParameters().get(1);
 
-		int d1highest = Integer.valueOf(d1.get(d1.size() - 1).getName());
-		int d2lowest = Integer.valueOf(d2.get(0).getName());
+		int d1highest = domains.getHigh(v1);
+		int d2lowest = domains.getLow(v2);
 
 		// d1 < d2
 		if (d1highest <= d2lowest)
 			return lit.getValue() ? Literal.TRUE : Literal.FALSE;
 
-		int d1lowest = Integer.valueOf(d1.get(0).getName());
-		int d2highest = Integer.valueOf(d2.get(d2.size() - 1).getName());
+		int d1lowest = domains.getLow(v1);
+		int d2highest = domains.getHigh(v2);
 
 		if (d2highest <= d1lowest)
 			return lit.getValue() ? Literal.FALSE : Literal.TRUE;
@@ -741,44 +772,107 @@ public class CspOptimiser {
 		return lit;
 	}
 
-	private static void setActive(BinaryPropagator bp, boolean active) {
+	private void setActive(BinaryPropagator bp, boolean active) {
 
 		Literal<Variable> lit = bp.getOriginal();
 
 		if (active) {
 			if (lit.getValue()) {
 				if (lit.getAtom().getSymbol().equals(Predicate.EQUALS)) {
-					ACTIVE_EQUALITY_GRAPH.addEdge(lit.getAtom().getParameters().get(0),
+					activeEqualityGraph.addEdge(lit.getAtom().getParameters().get(0),
 							lit.getAtom().getParameters().get(1));
 
 				} else if (lit.getAtom().getSymbol().equals(Predicate.PREC)) {
-					ACTIVE_PREC_GRAPH.addEdge(lit.getAtom().getParameters().get(0),
+					activePrecGraph.addEdge(lit.getAtom().getParameters().get(0),
 							lit.getAtom().getParameters().get(1));
 
 				}
 			} else
-				ACTIVE_NEG_LITERALS.add(lit);
+				activateNegLiteral(lit);
 		} else { // inactive
 
-			WORKLIST.remove(bp);
-			WORKQUEUE.remove(bp);
+			worklist.remove(bp);
+			workqueue.remove(bp);
 
 			if (lit.getValue()) {
 
 				if (lit.getAtom().getSymbol().equals(Predicate.EQUALS)) {
-					ACTIVE_EQUALITY_GRAPH.removeEdge(lit.getAtom().getParameters().get(0),
+					activeEqualityGraph.removeEdge(lit.getAtom().getParameters().get(0),
 							lit.getAtom().getParameters().get(1));
 
 				} else if (lit.getAtom().getSymbol().equals(Predicate.PREC)) {
-					ACTIVE_PREC_GRAPH.removeEdge(lit.getAtom().getParameters().get(0),
+					activePrecGraph.removeEdge(lit.getAtom().getParameters().get(0),
 							lit.getAtom().getParameters().get(1));
 
 				}
 			} else
-				ACTIVE_NEG_LITERALS.remove(lit);
+				deactivateNegLiteral(lit);
+		}
+	}
+
+	private void addExpressionPropagator(ExpressionPropagator ep) {
+		Set<ExpressionPropagator> eps = expCons.get(ep.getDomain());
+		if (eps == null) {
+			eps = new HashSet<ExpressionPropagator>();
+			expCons.put(ep.getDomain(), eps);
+		}
+		eps.add(ep);
+
+		for (Variable var : ep.getDomain())
+			watch(expWatches, var, ep);
+	}
+
+	private void removeExpressionPropagator(ExpressionPropagator ep) {
+		Set<ExpressionPropagator> eps = expCons.get(ep.getDomain());
+		if (eps != null)
+			eps.remove(ep);
+
+		for (Variable var : ep.getDomain())
+			unwatch(expWatches, var, ep);
+	}
+
+	private void activateNegLiteral(Literal<Variable> lit) {
+		if (activeNegLiterals.add(lit)) {
+			for (Variable var : lit.getAtom().getParameters())
+				watch(negWatches, var, lit);
+		}
+	}
+
+	private void deactivateNegLiteral(Literal<Variable> lit) {
+		if (activeNegLiterals.remove(lit)) {
+			for (Variable var : lit.getAtom().getParameters())
+				unwatch(negWatches, var, lit);
+		}
+	}
+
+	private static <T> void watch(Map<Variable, Set<T>> watches, Variable var, T watcher) {
+		Set<T> ws = watches.get(var);
+		if (ws == null) {
+			ws = new HashSet<T>();
+			watches.put(var, ws);
+		}
+		ws.add(watcher);
+	}
+
+	private static <T> void unwatch(Map<Variable, Set<T>> watches, Variable var, T watcher) {
+		Set<T> ws = watches.get(var);
+		if (ws != null) {
+			ws.remove(watcher);
+			if (ws.isEmpty())
+				watches.remove(var);
 		}
 	}
 
+	private static <T> Set<T> getWatchers(Map<Variable, Set<T>> watches, Collection<Variable> vars) {
+		Set<T> watchers = new HashSet<T>();
+		for (Variable var : vars) {
+			Set<T> ws = watches.get(var);
+			if (ws != null)
+				watchers.addAll(ws);
+		}
+		return watchers;
+	}
+
 	private static List<Expression<Variable>> splitConjunctions(Expression<Variable> exp) {
 
 		if (exp.isLiteral())
@@ -816,16 +910,6 @@ public class CspOptimiser {
 
 	}
 
-	private static class ConstComp implements Comparator<Constant> {
-
-		public static ConstComp INSTANCE = new ConstComp();
-
-		@Override
-		public int compare(Constant o1, Constant o2) {
-			return Integer.compare(Integer.valueOf(o1.getName()), Integer.valueOf(o2.getName()));
-		}
-	}
-
 	private static class PropagatorComparator implements Comparator<Propagator> {
 
 		public static PropagatorComparator INSTANCE = new PropagatorComparator();
@@ -847,10 +931,11 @@ public class CspOptimiser {
 				return 0;
 			}
 
-			if (o1 instanceof BinaryPropagator)
-				return 1;
+			return Integer.compare(rank(o1), rank(o2));
+		}
 
-			return -1;
+		private static int rank(Propagator p) {
+			return p instanceof ExpressionPropagator ? 0 : 1;
 		}
 
 	}
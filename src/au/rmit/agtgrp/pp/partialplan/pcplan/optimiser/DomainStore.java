@@ -0,0 +1,260 @@
+/*******************************************************************************
+ * MKTR - Minimal k-Treewidth Relaxation
+ *
+ * Copyright (C) 2018 
+ * Max Waters (max.waters@rmit.edu.au)
+ * RMIT University, Melbourne VIC 3000
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package au.rmit.agtgrp.pp.partialplan.pcplan.optimiser;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import au.rmit.agtgrp.csp.ExpressionCsp;
+import au.rmit.agtgrp.lang.fol.function.Constant;
+import au.rmit.agtgrp.lang.fol.symbol.Type;
+import au.rmit.agtgrp.lang.fol.symbol.Variable;
+
+/**
+ * The domains of the variables being optimised. Object domains are bitsets over 
+ * the CSP's constant ids, and operator domains are ranges of ordinals, so that 
+ * propagation does not allocate.
+ */
+public class DomainStore {
+
+	private final Map<Variable, Integer> varIds;
+	private final List<Constant> constants; // by constant id
+	private final Constant[] ordinals; // by ordinal value
+
+	private final BitSet[] objDomains;
+	private final int[] lows;
+	private final int[] highs;
+
+	private final int highestOrdinal;
+
+	private final BitSet scratch;
+
+	public DomainStore(ExpressionCsp csp, List<Variable> vars) {
+
+		// the csp may be cleared and rebuilt, so keep our own copy of its constants
+		constants = new ArrayList<Constant>(csp.getDomain());
+
+		int maxOrdinal = -1;
+		for (Constant c : constants) {
+			if (c.getType().equals(Type.OPERATOR_TYPE))
+				maxOrdinal = Math.max(maxOrdinal, Integer.valueOf(c.getName()));
+		}
+		ordinals = new Constant[maxOrdinal + 1];
+		for (Constant c : constants) {
+			if (c.getType().equals(Type.OPERATOR_TYPE))
+				ordinals[Integer.valueOf(c.getName())] = c;
+		}
+
+		varIds = new HashMap<Variable, Integer>();
+		objDomains = new BitSet[vars.size()];
+		lows = new int[vars.size()];
+		highs = new int[vars.size()];
+
+		int highest = -1;
+		for (int i = 0; i < vars.size(); i++) {
+			Variable var = vars.get(i);
+			varIds.put(var, i);
+
+			if (var.getType().equals(Type.OPERATOR_TYPE)) {
+				BitSet values = new BitSet();
+				for (Constant c : csp.getDomain(var))
+					values.set(Integer.valueOf(c.getName()));
+
+				lows[i] = values.nextSetBit(0);
+				highs[i] = values.length() - 1;
+				if (values.isEmpty())
+					lows[i] = 0;
+				else if (values.cardinality() != highs[i] - lows[i] + 1)
+					throw new IllegalArgumentException("Domain of " + var + " is not a range of ordinals");
+
+				highest = Math.max(highest, highs[i]);
+			} else
+				objDomains[i] = (BitSet) csp.getDomainBits(var).clone();
+		}
+
+		highestOrdinal = highest;
+		scratch = new BitSet();
+	}
+
+	public int getHighestOrdinal() {
+		return highestOrdinal;
+	}
+
+	private int getId(Variable var) {
+		Integer id = varIds.get(var);
+		if (id == null)
+			throw new IllegalArgumentException("Unknown variable: " + var);
+		return id;
+	}
+
+	public int size(Variable var) {
+		int id = getId(var);
+		if (objDomains[id] != null)
+			return objDomains[id].cardinality();
+
+		return Math.max(0, highs[id] - lows[id] + 1);
+	}
+
+	public boolean isEmpty(Variable var) {
+		return size(var) == 0;
+	}
+
+	/**
+	 * @return the constants in the domain of the variable. Allocates, so is not 
+	 * for use during propagation.
+	 */
+	public List<Constant> getDomain(Variable var) {
+		int id = getId(var);
+		List<Constant> domain = new ArrayList<Constant>();
+		if (objDomains[id] != null) {
+			BitSet bits = objDomains[id];
+			for (int c = bits.nextSetBit(0); c >= 0; c = bits.nextSetBit(c + 1))
+				domain.add(constants.get(c));
+		} else {
+			for (int o = lows[id]; o <= highs[id]; o++)
+				domain.add(ordinals[o]);
+		}
+		return domain;
+	}
+
+	// object domains
+
+	/**
+	 * @return the constant ids in the domain of an object variable. This is live, 
+	 * and should only be modified through the store.
+	 */
+	BitSet getObjects(Variable var) {
+		return objDomains[getId(var)];
+	}
+
+	/**
+	 * @return true if the domains of the two object variables are the same single value.
+	 */
+	public boolean sameSingleton(Variable v1, Variable v2) {
+		BitSet d1 = getObjects(v1);
+		BitSet d2 = getObjects(v2);
+		return d1.cardinality() == 1 && d1.equals(d2);
+	}
+
+	public boolean intersects(Variable v1, Variable v2) {
+		return getObjects(v1).intersects(getObjects(v2));
+	}
+
+	/**
+	 * Restricts the domain of v1 to values in the domain of v2.
+	 * 
+	 * @return true if the domain of v1 changed.
+	 */
+	public boolean retainAll(Variable v1, Variable v2) {
+		return retainAll(v1, getObjects(v2));
+	}
+
+	/**
+	 * Removes values in the domain of v2 from the domain of v1.
+	 * 
+	 * @return true if the domain of v1 changed.
+	 */
+	public boolean removeAll(Variable v1, Variable v2) {
+		BitSet d1 = getObjects(v1);
+		int size = d1.cardinality();
+		d1.andNot(getObjects(v2));
+		return d1.cardinality() != size;
+	}
+
+	/**
+	 * Restricts the domain of var to the union of the domains of others.
+	 * 
+	 * @return true if the domain of var changed.
+	 */
+	public boolean retainUnion(Variable var, Iterable<Variable> others) {
+		scratch.clear();
+		for (Variable other : others)
+			scratch.or(getObjects(other));
+
+		return retainAll(var, scratch);
+	}
+
+	/**
+	 * @return true if every value in the domain of var is in the domain of one of 
+	 * the others.
+	 */
+	public boolean isCoveredBy(Variable var, Iterable<Variable> others) {
+		scratch.clear();
+		for (Variable other : others)
+			scratch.or(getObjects(other));
+
+		BitSet d = getObjects(var);
+		for (int c = d.nextSetBit(0); c >= 0; c = d.nextSetBit(c + 1)) {
+			if (!scratch.get(c))
+				return false;
+		}
+		return true;
+	}
+
+	private boolean retainAll(Variable var, BitSet values) {
+		BitSet d = getObjects(var);
+		int size = d.cardinality();
+		d.and(values);
+		return d.cardinality() != size;
+	}
+
+	// operator domains
+
+	public int getLow(Variable var) {
+		return lows[getId(var)];
+	}
+
+	public int getHigh(Variable var) {
+		return highs[getId(var)];
+	}
+
+	/**
+	 * Removes all ordinals less than low.
+	 * 
+	 * @return true if the domain changed.
+	 */
+	public boolean setLow(Variable var, int low) {
+		int id = getId(var);
+		if (low <= lows[id] || lows[id] > highs[id])
+			return false;
+
+		lows[id] = low;
+		return true;
+	}
+
+	/**
+	 * Removes all ordinals greater than high.
+	 * 
+	 * @return true if the domain changed.
+	 */
+	public boolean setHigh(Variable var, int high) {
+		int id = getId(var);
+		if (high >= highs[id] || lows[id] > highs[id])
+			return false;
+
+		highs[id] = high;
+		return true;
+	}
+
+}
@@ -29,7 +29,6 @@ import java.util.Set;
 
 import au.rmit.agtgrp.lang.fol.expression.Connective;
 import au.rmit.agtgrp.lang.fol.expression.Expression;
-import au.rmit.agtgrp.lang.fol.function.Constant;
 import au.rmit.agtgrp.lang.fol.predicate.Literal;
 import au.rmit.agtgrp.lang.fol.predicate.Predicate;
 import au.rmit.agtgrp.lang.fol.symbol.Variable;
@@ -39,14 +38,16 @@ public class ExpressionPropagator extends Propagator {
 	private final Expression<Variable> original;
 
 	private Expression<Variable> constraint;
-	private Set<Variable> changed;
+	private Set<Variable> changed; // reused, so only valid until the next call to propagate
 
 	private Set<Literal<Variable>> literals;
 	private Set<Variable> domain;
 
 	private final Set<Variable> extDomainChanged;
 
-	public ExpressionPropagator(Expression<Variable> constraint) {
+	public ExpressionPropagator(CspOptimiser optimiser, Expression<Variable> constraint) {
+		super(optimiser);
+
 		if (constraint.isLiteral())
 			throw new IllegalArgumentException(constraint.toString());
 
@@ -96,7 +97,12 @@ public class ExpressionPropagator extends Propagator {
 		if (constraint.isLiteral())
 			throw new IllegalStateException(constraint.toString());
 
-		changed = propagateExpressionToDomain(constraint);
+		if (changed == null)
+			changed = new HashSet<Variable>();
+		else
+			changed.clear();
+
+		propagateExpressionToDomain(constraint);
 
 		addExtDomainsChanged(changed);
 
@@ -108,14 +114,12 @@ public class ExpressionPropagator extends Propagator {
 		extDomainChanged.clear();
 	}
 
-	private static Set<Variable> propagateExpressionToDomain(Expression<Variable> constraint) {
+	private void propagateExpressionToDomain(Expression<Variable> constraint) {
 		if (!constraint.isLiteral() && constraint.getConnective().equals(Connective.OR))
-			return propagateDisjToDomain(constraint);
-		else
-			return new HashSet<Variable>();
+			propagateDisjToDomain(constraint);
 	}
 
-	private static Set<Variable> propagateDisjToDomain(Expression<Variable> disj) {
+	private void propagateDisjToDomain(Expression<Variable> disj) {
 		if (disj.isLiteral() || !disj.getConnective().equals(Connective.OR))
 			throw new IllegalArgumentException(disj.toString());
 
@@ -125,12 +129,12 @@ public class ExpressionPropagator extends Propagator {
 			if (!sub.isLiteral() || !sub.getLiteral().getValue()
 					|| !sub.getLiteral().getAtom().getSymbol().equals(Predicate.EQUALS))
 
-				return new HashSet<Variable>();
+				return;
 
 			// contains (x = x) -- not sure how to handle this so don't!
 			if (sub.getLiteral().getAtom().getParameters().get(0)
 					.equals(sub.getLiteral().getAtom().getParameters().get(1))) {
-				return new HashSet<Variable>();
+				return;
 			}
 
 			commonVars.retainAll(sub.getDomain());
@@ -141,29 +145,20 @@ public class ExpressionPropagator extends Propagator {
 			Variable common = commonVars.iterator().next();
 			Set<Variable> others = new HashSet<Variable>(disj.getDomain());
 			others.remove(common);
-			Set<Constant> otherDomains = new HashSet<Constant>();
-			for (Variable other : others)
-				otherDomains.addAll(CspOptimiser.DOMAINS.get(other));
 
-			Collection<Constant> commonDomain = CspOptimiser.DOMAINS.get(common);
-			if (commonDomain.retainAll(otherDomains)) {
-				Set<Variable> changed = new HashSet<Variable>();
+			if (optimiser.domains.retainUnion(common, others))
 				changed.add(common);
-				return changed;
-			}
 
 		}
-
-		return new HashSet<Variable>();
 	}
 
-	private static Expression<Variable> simplifySubexpressions(Expression<Variable> exp,
+	private Expression<Variable> simplifySubexpressions(Expression<Variable> exp,
 			Set<Variable> changedDomains) {
 		if (exp.isLiteral())
 			return simplifyLiteral(exp);
 
 		// get cached version
-		Expression<Variable> cached = CspOptimiser.getCached(exp);
+		Expression<Variable> cached = optimiser.getCached(exp);
 
 		// check whether any work can be done on the cached version
 		Set<Variable> tmpCh = new HashSet<Variable>(changedDomains);
@@ -183,8 +178,8 @@ public class ExpressionPropagator extends Propagator {
 			else if (cached.getConnective().equals(Connective.IMPL))
 				result = simplifyImpl(cached, changedDomains);
 
-			CspOptimiser.addToCache(cached, result);
-			CspOptimiser.addToCache(exp, result);
+			optimiser.addToCache(cached, result);
+			optimiser.addToCache(exp, result);
 
 			return result;
 		}
@@ -192,7 +187,7 @@ public class ExpressionPropagator extends Propagator {
 		return cached;
 	}
 
-	private static Expression<Variable> simplifyLiteral(Expression<Variable> exp) {
+	private Expression<Variable> simplifyLiteral(Expression<Variable> exp) {
 		if (exp.getLiteral().getAtom().getSymbol().equals(Predicate.PREC))
 			exp = checkPrecSubexps(exp);
 		else if (exp.getLiteral().getAtom().getSymbol().equals(Predicate.EQUALS))
@@ -200,7 +195,7 @@ public class ExpressionPropagator extends Propagator {
 		return exp;
 	}
 
-	private static Expression<Variable> simplifyConj(Expression<Variable> exp,
+	private Expression<Variable> simplifyConj(Expression<Variable> exp,
 			Set<Variable> changedDomains) {
 		if (exp.isLiteral() || !exp.getConnective().equals(Connective.AND))
 			throw new IllegalArgumentException(exp.toString());
@@ -234,7 +229,7 @@ public class ExpressionPropagator extends Propagator {
 		return Expression.buildExpression(Connective.AND, newConj);
 	}
 
-	private static Expression<Variable> simplifyDisj(Expression<Variable> disj,
+	private Expression<Variable> simplifyDisj(Expression<Variable> disj,
 			Set<Variable> changedDomains) {
 		if (disj.isLiteral() || !disj.getConnective().equals(Connective.OR))
 			throw new IllegalArgumentException(disj.toString());
@@ -276,7 +271,7 @@ public class ExpressionPropagator extends Propagator {
 
 	}
 
-	private static Expression<Variable> simplifyDisjOfConj(Expression<Variable> exp) {
+	private Expression<Variable> simplifyDisjOfConj(Expression<Variable> exp) {
 		if (exp.isLiteral() || !exp.getConnective().equals(Connective.OR))
 			throw new IllegalArgumentException(exp.toString());
 
@@ -348,7 +343,7 @@ public class ExpressionPropagator extends Propagator {
 
 	}
 
-	private static Expression<Variable> simplifyImpl(Expression<Variable> exp,
+	private Expression<Variable> simplifyImpl(Expression<Variable> exp,
 			Set<Variable> changedDomains) {
 
 		Expression<Variable> prec = simplifySubexpressions(exp.getSubexpressions().get(0), changedDomains);
@@ -450,14 +445,14 @@ public class ExpressionPropagator extends Propagator {
 		return Expression.buildImplication(prec, ante);
 	}
 
-	private static Expression<Variable> checkPrecSubexps(Expression<Variable> exp) {
+	private Expression<Variable> checkPrecSubexps(Expression<Variable> exp) {
 
 		if (!exp.isLiteral() || !exp.getLiteral().getAtom().getSymbol().equals(Predicate.PREC))
 			throw new IllegalArgumentException(exp.toString());
 
 		Literal<Variable> lit = exp.getLiteral();
 
-		lit = CspOptimiser.simplifyPrec(lit);
+		lit = optimiser.simplifyPrec(lit);
 		if (lit.equals(Literal.TRUE) || lit.equals(Literal.FALSE))
 			return Expression.buildLiteral(lit);
 
@@ -466,21 +461,21 @@ public class ExpressionPropagator extends Propagator {
 			return exp.getLiteral().getValue() ? Expression.FALSE : Expression.TRUE;
 
 		// is in prec relation
-		if (CspOptimiser.PREC_GRAPH.containsEdge(lit.getAtom().getParameters().get(0),
+		if (optimiser.precGraph.containsEdge(lit.getAtom().getParameters().get(0),
 				lit.getAtom().getParameters().get(1)))
 			return lit.getValue() ? Expression.TRUE : Expression.FALSE;
 
 		// exp = x < y, y < x is in prec relation
-		if (CspOptimiser.PREC_GRAPH.containsEdge(lit.getAtom().getParameters().get(1),
+		if (optimiser.precGraph.containsEdge(lit.getAtom().getParameters().get(1),
 				lit.getAtom().getParameters().get(0)))
 			return lit.getValue() ? Expression.FALSE : Expression.TRUE;
 
 		// exp = x < y but we know x = y
-		if (lit.getValue() && CspOptimiser.EQUALITY_GRAPH.containsEdge(lit.getAtom().getParameters().get(0),
+		if (lit.getValue() && optimiser.equalityGraph.containsEdge(lit.getAtom().getParameters().get(0),
 				lit.getAtom().getParameters().get(1)))
 			return Expression.FALSE;
 
-		if (CspOptimiser.NEG_LITERALS.contains(lit))
+		if (optimiser.negLiterals.contains(lit))
 			return Expression.TRUE;
 
 		if (lit.getAtom().getParameters().get(0).equals(lit.getAtom().getParameters().get(1))) // are equal
@@ -490,12 +485,12 @@ public class ExpressionPropagator extends Propagator {
 
 	}
 
-	private static Expression<Variable> checkEqualsSubexps(Expression<Variable> exp) {
+	private Expression<Variable> checkEqualsSubexps(Expression<Variable> exp) {
 
 		if (!exp.isLiteral() || !exp.getLiteral().getAtom().getSymbol().equals(Predicate.EQUALS))
 			throw new IllegalArgumentException(exp.toString());
 
-		Literal<Variable> lit = CspOptimiser.simplifyEquals(exp.getLiteral());
+		Literal<Variable> lit = optimiser.simplifyEquals(exp.getLiteral());
 		if (lit.equals(Literal.TRUE) || lit.equals(Literal.FALSE))
 			return Expression.buildLiteral(lit);
 
@@ -504,15 +499,15 @@ public class ExpressionPropagator extends Propagator {
 
 		if (!lit.getValue()) {
 			List<Variable> params = exp.getLiteral().getAtom().getParameters();
-			if (CspOptimiser.PREC_GRAPH.containsEdge(params.get(0), params.get(1))
-					|| CspOptimiser.PREC_GRAPH.containsEdge(params.get(1), params.get(0)))
+			if (optimiser.precGraph.containsEdge(params.get(0), params.get(1))
+					|| optimiser.precGraph.containsEdge(params.get(1), params.get(0)))
 				return Expression.TRUE;
 
-			if (CspOptimiser.NEG_LITERALS.contains(exp.getLiteral()))
+			if (optimiser.negLiterals.contains(exp.getLiteral()))
 				return Expression.TRUE;
 		}
 
-		if (CspOptimiser.EQUALITY_GRAPH.containsEdge(exp.getLiteral().getAtom().getParameters().get(0),
+		if (optimiser.equalityGraph.containsEdge(exp.getLiteral().getAtom().getParameters().get(0),
 				exp.getLiteral().getAtom().getParameters().get(1)))
 			return exp.getLiteral().getValue() ? Expression.TRUE : Expression.FALSE;
 
@@ -520,7 +515,7 @@ public class ExpressionPropagator extends Propagator {
 
 	}
 
-	private static Expression<Variable> propagateDisjOfEqualityLiterals(Expression<Variable> disj) {
+	private Expression<Variable> propagateDisjOfEqualityLiterals(Expression<Variable> disj) {
 		// is it a disj of positive equality literals?
 		Set<Variable> commonVars = new HashSet<Variable>(disj.getDomain());
 		for (Expression<Variable> sub : disj.getSubexpressions()) {
@@ -536,15 +531,12 @@ public class ExpressionPropagator extends Propagator {
 			Set<Variable> others = new HashSet<Variable>(disj.getDomain());
 			others.remove(common);
 
-			Set<Constant> otherDomains = new HashSet<Constant>();
 			for (Variable other : others) {
-				if (CspOptimiser.DOMAINS.get(other).size() != 1)
+				if (optimiser.domains.size(other) != 1)
 					return disj;
-
-				otherDomains.addAll(CspOptimiser.DOMAINS.get(other));
 			}
 
-			if (otherDomains.containsAll(CspOptimiser.DOMAINS.get(common)))
+			if (optimiser.domains.isCoveredBy(common, others))
 				return Expression.TRUE;
 
 		}
@@ -552,7 +544,7 @@ public class ExpressionPropagator extends Propagator {
 		return disj;
 	}
 
-	private static Expression<Variable> propagateDisjOfPrecLiterals(Expression<Variable> disj) {
+	private Expression<Variable> propagateDisjOfPrecLiterals(Expression<Variable> disj) {
 		// is it a disj of positive prec literals?, i.e., x < y or x < z or ...
 		Variable commonVar = null;
 		for (Expression<Variable> sub : disj.getSubexpressions()) {
@@ -577,10 +569,10 @@ public class ExpressionPropagator extends Propagator {
 			for (int i = 0; i < others.size() - 1; i++) {
 
 				// i < i+1
-				if (CspOptimiser.PREC_GRAPH.containsEdge(others.get(i), others.get(i + 1)))
+				if (optimiser.precGraph.containsEdge(others.get(i), others.get(i + 1)))
 					remainder.remove(others.get(i));
 				// i+1 < i
-				if (CspOptimiser.PREC_GRAPH.containsEdge(others.get(i + 1), others.get(i)))
+				if (optimiser.precGraph.containsEdge(others.get(i + 1), others.get(i)))
 					remainder.remove(others.get(i + 1));
 
 			}
@@ -0,0 +1,160 @@
+/*******************************************************************************
+ * MKTR - Minimal k-Treewidth Relaxation
+ *
+ * Copyright (C) 2018 
+ * Max Waters (max.waters@rmit.edu.au)
+ * RMIT University, Melbourne VIC 3000
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package au.rmit.agtgrp.pp.partialplan.pcplan.optimiser;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import au.rmit.agtgrp.lang.fol.expression.Expression;
+import au.rmit.agtgrp.lang.fol.symbol.Variable;
+
+/**
+ * A size-bounded cache of simplified expressions, evicting the least recently 
+ * used entry when full. 
+ * 
+ * Entries are not rewritten when the optimiser repartitions its variables. 
+ * Partition variables that are not merged keep their names, so entries over them 
+ * remain valid, and entries over merged variables can no longer be looked up 
+ * and are evicted in time.
+ */
+public class PropagationCache {
+
+	public static final int DEFAULT_CAPACITY = 1 << 18;
+
+	private final int capacity;
+	private final LinkedHashMap<Expression<Variable>, Expression<Variable>> entries;
+
+	private long hits;
+	private long misses;
+	private long evictions;
+
+	public PropagationCache() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	public PropagationCache(int capacity) {
+		if (capacity < 1)
+			throw new IllegalArgumentException("Capacity must be > 0");
+
+		this.capacity = capacity;
+		entries = new LinkedHashMap<Expression<Variable>, Expression<Variable>>(16, 0.75f, true) {
+
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Expression<Variable>, Expression<Variable>> eldest) {
+				if (size() > PropagationCache.this.capacity) {
+					evictions++;
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	/**
+	 * @return the cached value, or null if there is none.
+	 */
+	public Expression<Variable> get(Expression<Variable> exp) {
+		Expression<Variable> cached = entries.get(exp);
+		if (cached == null)
+			misses++;
+		else
+			hits++;
+
+		return cached;
+	}
+
+	public void put(Expression<Variable> exp, Expression<Variable> simplified) {
+		entries.put(exp, simplified);
+	}
+
+	public int size() {
+		return entries.size();
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	public long getHits() {
+		return hits;
+	}
+
+	public long getMisses() {
+		return misses;
+	}
+
+	public long getEvictions() {
+		return evictions;
+	}
+
+	@Override
+	public String toString() {
+		return "size=" + size() + "/" + capacity + ", hits=" + hits + ", misses=" + misses + ", evictions=" + evictions;
+	}
+
+	/**
+	 * Counters accumulated over many caches, for example over every run of the 
+	 * optimiser. Safe for concurrent use.
+	 */
+	public static class Statistics {
+
+		private long hits;
+		private long misses;
+		private long evictions;
+
+		public synchronized void add(PropagationCache cache) {
+			hits += cache.hits;
+			misses += cache.misses;
+			evictions += cache.evictions;
+		}
+
+		public synchronized void reset() {
+			hits = 0;
+			misses = 0;
+			evictions = 0;
+		}
+
+		public synchronized long getHits() {
+			return hits;
+		}
+
+		public synchronized long getMisses() {
+			return misses;
+		}
+
+		public synchronized long getEvictions() {
+			return evictions;
+		}
+
+		public synchronized double getHitRate() {
+			return hits + misses == 0 ? 0 : (double) hits / (hits + misses);
+		}
+
+		@Override
+		public synchronized String toString() {
+			return "hits=" + hits + ", misses=" + misses + ", evictions=" + evictions + 
+					String.format(", hit rate=%.3f", getHitRate());
+		}
+	}
+
+}
@@ -22,4 +22,10 @@ package au.rmit.agtgrp.pp.partialplan.pcplan.optimiser;
 
 public class Propagator {
 
+	protected final CspOptimiser optimiser;
+
+	public Propagator(CspOptimiser optimiser) {
+		this.optimiser = optimiser;
+	}
+
 }
@@ -29,6 +29,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
 
+import au.rmit.agtgrp.csp.solver.CspSolutionSet;
 import au.rmit.agtgrp.lang.fol.Substitution;
 import au.rmit.agtgrp.lang.fol.function.Constant;
 import au.rmit.agtgrp.lang.fol.symbol.Variable;
@@ -43,30 +44,36 @@ public class PlanSubstitutionSet implements PlanSet {
 	protected final List<Operator<Variable>> planSteps;
 	
 	protected final Iterable<Substitution<Constant>> subs;
+	protected final CspSolutionSet solns;
 	protected final int size;
 
-	protected final Substitution<Constant> initSub;
-	protected final Substitution<Constant> goalSub;
+	// taken from the first substitution, so that subs is only iterated once
+	protected Substitution<Constant> initSub;
+	protected Substitution<Constant> goalSub;
 
 	private final Map<Operator<Variable>, Variable> opVarMap;
 
 	public PlanSubstitutionSet(PddlProblem problem, List<Operator<Variable>> planSteps, Iterable<Substitution<Constant>> subs, int size) {
+		this(problem, planSteps, subs, null, size);
+	}
+
+	/**
+	 * The plan count is taken from the solution set each time it is requested, so is 
+	 * only final once a streamed solution set has been consumed.
+	 */
+	public PlanSubstitutionSet(PddlProblem problem, List<Operator<Variable>> planSteps, CspSolutionSet solns) {
+		this(problem, planSteps, solns, solns, -1);
+	}
+
+	private PlanSubstitutionSet(PddlProblem problem, List<Operator<Variable>> planSteps, Iterable<Substitution<Constant>> subs, 
+			CspSolutionSet solns, int size) {
 
 		this.problem = problem;
 		this.planSteps = planSteps;
 		this.subs = subs;
+		this.solns = solns;
 		this.size = size;
 
-		if (subs.iterator().hasNext()) {
-			Substitution<Constant> sub = subs.iterator().next(); 
-			this.initSub = Substitution.trim(sub, planSteps.get(0).getParameters());
-			this.goalSub = Substitution.trim(sub, planSteps.get(planSteps.size() - 1).getParameters());
-		}
-		else { //empty
-			this.initSub = null;
-			this.goalSub = null;
-		}
-		
 		opVarMap = PcToCspEncoder.getOperatorVariableMap(planSteps);
 
 	}
@@ -77,7 +84,7 @@ public class PlanSubstitutionSet implements PlanSet {
 
 	@Override
 	public int getPlanCount() {
-		return size;
+		return solns == null ? size : solns.getSolutionCount();
 	}
 
 	private class PartialPctPlanIterator implements Iterator<Plan> {
@@ -95,6 +102,14 @@ public class PlanSubstitutionSet implements PlanSet {
 				throw new NoSuchElementException();
 			
 			Substitution<Constant> sub = subIt.next();
+
+			synchronized(PlanSubstitutionSet.this) {
+				if (initSub == null) {
+					initSub = Substitution.trim(sub, planSteps.get(0).getParameters());
+					goalSub = Substitution.trim(sub, planSteps.get(planSteps.size() - 1).getParameters());
+				}
+			}
+
 			// check sub first
 			for (Variable var : initSub.getVariables()) {
 				if (!initSub.apply(var).equals(sub.apply(var))) {
@@ -0,0 +1,172 @@
+/*******************************************************************************
+ * MKTR - Minimal k-Treewidth Relaxation
+ *
+ * Copyright (C) 2018 
+ * Max Waters (max.waters@rmit.edu.au)
+ * RMIT University, Melbourne VIC 3000
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package au.rmit.agtgrp.utils.collections;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Disjoint sets with union by size and path halving. Elements are added on demand,
+ * and classes are listed in the order their first element was added, so results
+ * do not depend on hashing.
+ */
+public class UnionFind<V> {
+
+	private final Map<V, Integer> ids;
+	private final List<V> elements;
+
+	private int[] parent;
+	private int[] size;
+	private int nClasses;
+
+	public UnionFind() {
+		ids = new HashMap<V, Integer>();
+		elements = new ArrayList<V>();
+		parent = new int[16];
+		size = new int[16];
+		nClasses = 0;
+	}
+
+	public UnionFind(Collection<V> elements) {
+		this();
+		addAll(elements);
+	}
+
+	public boolean add(V v) {
+		if (ids.containsKey(v))
+			return false;
+
+		int id = elements.size();
+		if (id == parent.length) {
+			parent = Arrays.copyOf(parent, id * 2);
+			size = Arrays.copyOf(size, id * 2);
+		}
+
+		ids.put(v, id);
+		elements.add(v);
+		parent[id] = id;
+		size[id] = 1;
+		nClasses++;
+		return true;
+	}
+
+	public void addAll(Collection<V> vs) {
+		for (V v : vs)
+			add(v);
+	}
+
+	public boolean contains(V v) {
+		return ids.containsKey(v);
+	}
+
+	/**
+	 * @return the representative of the class of v.
+	 */
+	public V find(V v) {
+		return elements.get(findRoot(getId(v)));
+	}
+
+	/**
+	 * Merges the classes of a and b, adding them if required.
+	 * 
+	 * @return true if a and b were in different classes.
+	 */
+	public boolean union(V a, V b) {
+		add(a);
+		add(b);
+
+		int ra = findRoot(ids.get(a));
+		int rb = findRoot(ids.get(b));
+		if (ra == rb)
+			return false;
+
+		if (size[ra] < size[rb]) {
+			int t = ra;
+			ra = rb;
+			rb = t;
+		}
+
+		parent[rb] = ra;
+		size[ra] += size[rb];
+		nClasses--;
+		return true;
+	}
+
+	public boolean connected(V a, V b) {
+		return findRoot(getId(a)) == findRoot(getId(b));
+	}
+
+	/**
+	 * @return the number of elements.
+	 */
+	public int size() {
+		return elements.size();
+	}
+
+	public int getClassCount() {
+		return nClasses;
+	}
+
+	public List<V> getElements() {
+		return elements;
+	}
+
+	/**
+	 * @return the classes, ordered by their first element. The elements of each
+	 * class are in the order they were added.
+	 */
+	public List<List<V>> getClasses() {
+		List<List<V>> classes = new ArrayList<List<V>>(nClasses);
+		int[] classIds = new int[elements.size()];
+		Arrays.fill(classIds, -1);
+
+		for (int i = 0; i < elements.size(); i++) {
+			int root = findRoot(i);
+			if (classIds[root] < 0) {
+				classIds[root] = classes.size();
+				classes.add(new ArrayList<V>(size[root]));
+			}
+			classes.get(classIds[root]).add(elements.get(i));
+		}
+
+		return classes;
+	}
+
+	private int getId(V v) {
+		Integer id = ids.get(v);
+		if (id == null)
+			throw new IllegalArgumentException("Unknown element: " + v);
+		return id;
+	}
+
+	private int findRoot(int i) {
+		while (parent[i] != i) {
+			parent[i] = parent[parent[i]];
+			i = parent[i];
+		}
+		return i;
+	}
+
+}
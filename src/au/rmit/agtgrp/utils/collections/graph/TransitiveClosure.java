@@ -0,0 +1,372 @@
+/*******************************************************************************
+ * MKTR - Minimal k-Treewidth Relaxation
+ *
+ * Copyright (C) 2018 
+ * Max Waters (max.waters@rmit.edu.au)
+ * RMIT University, Melbourne VIC 3000
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package au.rmit.agtgrp.utils.collections.graph;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import au.rmit.agtgrp.utils.collections.Pair;
+
+/**
+ * A transitively closed directed graph, maintained incrementally as edges are 
+ * added. Reachability is stored as rows of a bit matrix packed into longs, in 
+ * both directions, so that queries are constant time and closing an edge is a 
+ * word-wise or over the affected rows.
+ */
+public class TransitiveClosure<V> {
+
+	private static final int INITIAL_CAPACITY = 64;
+
+	private final Map<V, Integer> ids;
+	private final List<V> vertices;
+
+	private long[][] from; // from[i] has bit j set iff i -> j
+	private long[][] to; // to[j] has bit i set iff i -> j
+	private int[] outDegree;
+	private int[] inDegree;
+	private int edgeCount;
+
+	private long[] sources;
+	private long[] targets;
+
+	public TransitiveClosure() {
+		ids = new HashMap<V, Integer>();
+		vertices = new ArrayList<V>();
+		allocate(INITIAL_CAPACITY);
+	}
+
+	public TransitiveClosure(TransitiveClosure<V> other) {
+		ids = new HashMap<V, Integer>(other.ids);
+		vertices = new ArrayList<V>(other.vertices);
+		from = copy(other.from);
+		to = copy(other.to);
+		outDegree = other.outDegree.clone();
+		inDegree = other.inDegree.clone();
+		edgeCount = other.edgeCount;
+		sources = new long[other.sources.length];
+		targets = new long[other.targets.length];
+	}
+
+	private void allocate(int capacity) {
+		int words = words(capacity);
+		from = new long[capacity][words];
+		to = new long[capacity][words];
+		outDegree = new int[capacity];
+		inDegree = new int[capacity];
+		sources = new long[words];
+		targets = new long[words];
+	}
+
+	private void grow() {
+		int capacity = from.length * 2;
+		int words = words(capacity);
+
+		long[][] oldFrom = from;
+		long[][] oldTo = to;
+		from = new long[capacity][];
+		to = new long[capacity][];
+		for (int i = 0; i < capacity; i++) {
+			from[i] = i < oldFrom.length ? Arrays.copyOf(oldFrom[i], words) : new long[words];
+			to[i] = i < oldTo.length ? Arrays.copyOf(oldTo[i], words) : new long[words];
+		}
+
+		outDegree = Arrays.copyOf(outDegree, capacity);
+		inDegree = Arrays.copyOf(inDegree, capacity);
+		sources = new long[words];
+		targets = new long[words];
+	}
+
+	private static int words(int bits) {
+		return (bits + 63) >>> 6;
+	}
+
+	private static long[][] copy(long[][] matrix) {
+		long[][] copy = new long[matrix.length][];
+		for (int i = 0; i < matrix.length; i++)
+			copy[i] = matrix[i].clone();
+		return copy;
+	}
+
+	private static boolean get(long[] row, int i) {
+		return (row[i >>> 6] & (1L << i)) != 0;
+	}
+
+	private static void set(long[] row, int i) {
+		row[i >>> 6] |= 1L << i;
+	}
+
+	public List<V> getVertices() {
+		return Collections.unmodifiableList(vertices);
+	}
+
+	public boolean containsVertex(V vertex) {
+		return ids.containsKey(vertex);
+	}
+
+	public void addVertex(V vertex) {
+		getOrAddId(vertex);
+	}
+
+	public void addVertices(Collection<V> vertices) {
+		for (V vertex : vertices)
+			addVertex(vertex);
+	}
+
+	private int getOrAddId(V vertex) {
+		if (vertex == null)
+			throw new NullPointerException("Vertex cannot be null");
+
+		Integer id = ids.get(vertex);
+		if (id == null) {
+			id = vertices.size();
+			if (id == from.length)
+				grow();
+			ids.put(vertex, id);
+			vertices.add(vertex);
+		}
+		return id;
+	}
+
+	/**
+	 * Adds the edge and closes the graph under transitivity.
+	 * 
+	 * @return the edges that were not already in the graph, including the new edge
+	 * itself if it was not already implied.
+	 */
+	public Set<Pair<V, V>> addEdge(V source, V dest) {
+		int s = getOrAddId(source);
+		int d = getOrAddId(dest);
+
+		Set<Pair<V, V>> newEdges = new LinkedHashSet<Pair<V, V>>();
+		if (get(from[s], d))
+			return newEdges;
+
+		// every vertex reaching source now reaches every vertex reachable from dest
+		int words = sources.length;
+		System.arraycopy(to[s], 0, sources, 0, words);
+		set(sources, s);
+		System.arraycopy(from[d], 0, targets, 0, words);
+		set(targets, d);
+
+		for (int w = 0; w < words; w++) {
+			long sw = sources[w];
+			while (sw != 0) {
+				int u = (w << 6) + Long.numberOfTrailingZeros(sw);
+				sw &= sw - 1;
+
+				long[] row = from[u];
+				for (int x = 0; x < words; x++) {
+					long added = targets[x] & ~row[x];
+					if (added == 0)
+						continue;
+
+					row[x] |= added;
+					int count = Long.bitCount(added);
+					outDegree[u] += count;
+					edgeCount += count;
+					while (added != 0) {
+						int v = (x << 6) + Long.numberOfTrailingZeros(added);
+						added &= added - 1;
+						set(to[v], u);
+						inDegree[v]++;
+						newEdges.add(Pair.instance(vertices.get(u), vertices.get(v)));
+					}
+				}
+			}
+		}
+
+		return newEdges;
+	}
+
+	/**
+	 * @return true if dest is reachable from source.
+	 */
+	public boolean containsEdge(V source, V dest) {
+		if (source == null || dest == null)
+			throw new NullPointerException("Vertices cannot be null");
+
+		Integer s = ids.get(source);
+		Integer d = ids.get(dest);
+		return s != null && d != null && get(from[s], d);
+	}
+
+	public int getOutDegree(V source) {
+		Integer s = ids.get(source);
+		return s == null ? 0 : outDegree[s];
+	}
+
+	public int getInDegree(V dest) {
+		Integer d = ids.get(dest);
+		return d == null ? 0 : inDegree[d];
+	}
+
+	public int getEdgeCount() {
+		return edgeCount;
+	}
+
+	public List<V> getEdgesFrom(V source) {
+		Integer s = ids.get(source);
+		if (s == null)
+			return Collections.emptyList();
+		return toVertices(from[s]);
+	}
+
+	public List<V> getEdgesTo(V dest) {
+		Integer d = ids.get(dest);
+		if (d == null)
+			return Collections.emptyList();
+		return toVertices(to[d]);
+	}
+
+	private List<V> toVertices(long[] row) {
+		List<V> verts = new ArrayList<V>();
+		for (int w = 0; w < row.length; w++) {
+			long bits = row[w];
+			while (bits != 0) {
+				verts.add(vertices.get((w << 6) + Long.numberOfTrailingZeros(bits)));
+				bits &= bits - 1;
+			}
+		}
+		return verts;
+	}
+
+	public Set<Pair<V, V>> getAllEdges() {
+		Set<Pair<V, V>> all = new LinkedHashSet<Pair<V, V>>();
+		for (int u = 0; u < vertices.size(); u++) {
+			for (V v : toVertices(from[u]))
+				all.add(Pair.instance(vertices.get(u), v));
+		}
+		return all;
+	}
+
+	/**
+	 * @return a copy of the closed graph.
+	 */
+	public DirectedGraph<V> toGraph() {
+		DirectedGraph<V> graph = new DirectedGraph<V>();
+		graph.addVertices(vertices);
+		for (int u = 0; u < vertices.size(); u++) {
+			for (V v : toVertices(from[u]))
+				graph.addEdge(vertices.get(u), v);
+		}
+		return graph;
+	}
+
+	/**
+	 * Computes a transitive reduction: a minimal graph with no self-loops whose 
+	 * closure, excluding self-loops, is this graph. Each strongly connected component 
+	 * is reduced to a cycle through its vertices, and the components are linked by 
+	 * the reduction of the acyclic graph between them.
+	 */
+	public DirectedGraph<V> getTransitiveReduction() {
+		int n = vertices.size();
+		int words = sources.length;
+
+		DirectedGraph<V> reduction = new DirectedGraph<V>();
+		reduction.addVertices(vertices);
+
+		// components: u and v are in the same component iff each reaches the other
+		int[] rep = new int[n];
+		long[][] component = new long[n][];
+		Arrays.fill(rep, -1);
+		for (int u = 0; u < n; u++) {
+			if (rep[u] >= 0)
+				continue;
+
+			long[] members = new long[words];
+			for (int w = 0; w < words; w++)
+				members[w] = from[u][w] & to[u][w];
+			set(members, u);
+
+			int prev = -1;
+			for (int w = 0; w < words; w++) {
+				long bits = members[w];
+				while (bits != 0) {
+					int v = (w << 6) + Long.numberOfTrailingZeros(bits);
+					bits &= bits - 1;
+					rep[v] = u;
+					component[v] = members;
+					if (prev >= 0)
+						reduction.addEdge(vertices.get(prev), vertices.get(v));
+					prev = v;
+				}
+			}
+			if (prev != u)
+				reduction.addEdge(vertices.get(prev), vertices.get(u));
+		}
+
+		// between components, keep only edges not implied by a path through a third
+		long[] implied = sources;
+		long[] direct = targets;
+		for (int u = 0; u < n; u++) {
+			if (rep[u] != u)
+				continue;
+
+			for (int w = 0; w < words; w++) {
+				direct[w] = from[u][w] & ~component[u][w];
+				implied[w] = 0;
+			}
+
+			for (int w = 0; w < words; w++) {
+				long bits = direct[w];
+				while (bits != 0) {
+					int v = (w << 6) + Long.numberOfTrailingZeros(bits);
+					bits &= bits - 1;
+					if (rep[v] != v)
+						continue;
+					for (int x = 0; x < words; x++)
+						implied[x] |= from[v][x] & ~component[v][x];
+				}
+			}
+
+			for (int w = 0; w < words; w++) {
+				long bits = direct[w] & ~implied[w];
+				while (bits != 0) {
+					int v = (w << 6) + Long.numberOfTrailingZeros(bits);
+					bits &= bits - 1;
+					if (rep[v] == v)
+						reduction.addEdge(vertices.get(u), vertices.get(v));
+				}
+			}
+		}
+
+		Arrays.fill(sources, 0);
+		Arrays.fill(targets, 0);
+		return reduction;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		for (V v : vertices)
+			sb.append(v + " -> " + getEdgesFrom(v) + "\n");
+
+		return sb.toString();
+	}
+
+}
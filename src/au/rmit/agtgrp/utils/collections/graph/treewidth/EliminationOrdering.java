@@ -0,0 +1,142 @@
+/*******************************************************************************
+ * MKTR - Minimal k-Treewidth Relaxation
+ *
+ * Copyright (C) 2018 
+ * Max Waters (max.waters@rmit.edu.au)
+ * RMIT University, Melbourne VIC 3000
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package au.rmit.agtgrp.utils.collections.graph.treewidth;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import au.rmit.agtgrp.utils.collections.graph.UndirectedGraph;
+
+/**
+ * Greedy elimination orderings. The width of an ordering, the largest number of 
+ * neighbours a vertex has when it is eliminated, is an upper bound on treewidth. 
+ */
+public class EliminationOrdering {
+
+	/**
+	 * Builds an ordering by repeatedly eliminating the vertex whose elimination adds 
+	 * the fewest fill edges, breaking ties by degree.
+	 * 
+	 * @param graph	The graph.
+	 * @return		The elimination ordering of all vertices of the graph.
+	 */
+	public static <V> List<V> getMinFillOrdering(UndirectedGraph<V> graph) {
+
+		Map<V, Set<V>> adjacent = copy(graph);
+		List<V> ordering = new ArrayList<V>();
+
+		while (!adjacent.isEmpty()) {
+			V best = null;
+			int bestFill = Integer.MAX_VALUE;
+			int bestDegree = Integer.MAX_VALUE;
+
+			for (V v : adjacent.keySet()) {
+				int fill = getFill(adjacent, v, bestFill);
+				int degree = adjacent.get(v).size();
+				if (fill < bestFill || (fill == bestFill && degree < bestDegree)) {
+					best = v;
+					bestFill = fill;
+					bestDegree = degree;
+					if (fill == 0 && degree <= 1)
+						break;
+				}
+			}
+
+			eliminate(adjacent, best);
+			ordering.add(best);
+		}
+
+		return ordering;
+	}
+
+	/**
+	 * Calculates the width of an elimination ordering.
+	 * 
+	 * @param graph		The graph.
+	 * @param ordering	An ordering of the vertices of the graph.
+	 * @return			The width of the ordering.
+	 */
+	public static <V> int getWidth(UndirectedGraph<V> graph, List<V> ordering) {
+
+		Map<V, Set<V>> adjacent = copy(graph);
+
+		int width = 0;
+		for (V v : ordering) {
+			Set<V> nbrs = adjacent.get(v);
+			if (nbrs == null)
+				throw new IllegalArgumentException("Unknown or repeated vertex in ordering: " + v);
+
+			width = Math.max(width, nbrs.size());
+			eliminate(adjacent, v);
+		}
+
+		if (!adjacent.isEmpty())
+			throw new IllegalArgumentException("Ordering does not contain all vertices");
+
+		return width;
+	}
+
+	private static <V> Map<V, Set<V>> copy(UndirectedGraph<V> graph) {
+		Map<V, Set<V>> adjacent = new HashMap<V, Set<V>>();
+		for (V v : graph.getVertices()) {
+			Set<V> nbrs = new HashSet<V>(graph.getLinksFrom(v));
+			nbrs.remove(v);
+			adjacent.put(v, nbrs);
+		}
+		return adjacent;
+	}
+
+	/*
+	 * Counts the missing edges between the neighbours of v, stopping once the 
+	 * count exceeds the limit, so that a truncated count never ties with the limit.
+	 */
+	private static <V> int getFill(Map<V, Set<V>> adjacent, V v, int limit) {
+		List<V> nbrs = new ArrayList<V>(adjacent.get(v));
+		int fill = 0;
+		for (int i = 0; i < nbrs.size(); i++) {
+			Set<V> iNbrs = adjacent.get(nbrs.get(i));
+			for (int j = i + 1; j < nbrs.size(); j++) {
+				if (!iNbrs.contains(nbrs.get(j)) && ++fill > limit)
+					return fill;
+			}
+		}
+		return fill;
+	}
+
+	private static <V> void eliminate(Map<V, Set<V>> adjacent, V v) {
+		Set<V> nbrs = adjacent.remove(v);
+		for (V u : nbrs) {
+			Set<V> uNbrs = adjacent.get(u);
+			uNbrs.remove(v);
+			for (V w : nbrs) {
+				if (!w.equals(u))
+					uNbrs.add(w);
+			}
+		}
+	}
+
+	private EliminationOrdering() { }
+
+}
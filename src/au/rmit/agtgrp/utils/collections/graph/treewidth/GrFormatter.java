@@ -20,6 +20,9 @@
  *******************************************************************************/
 package au.rmit.agtgrp.utils.collections.graph.treewidth;
 
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
@@ -56,17 +59,31 @@ public class GrFormatter<V> {
 	}
 
 	public String format() {
-		StringBuilder sb = new StringBuilder();
+		StringWriter writer = new StringWriter();
+		try {
+			write(writer);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		return writer.toString();
+	}
 
+	/**
+	 * Writes the graph in .gr format, without building it as a String first.
+	 * 
+	 * @param writer		The writer.
+	 * @throws IOException	If the writer throws an IOException.
+	 */
+	public void write(Writer writer) throws IOException {
 		Set<Pair<V, V>> edges = graph.getAllLinks();
 
-		sb.append("c " + comment + "\n");
-		sb.append("p " + label + " " + vertexIndexMap.size() + " " + edges.size() + "\n");
+		writer.write("c " + comment + "\n");
+		writer.write("p " + label + " " + vertexIndexMap.size() + " " + edges.size() + "\n");
 
 		for (Pair<V, V> edge : edges)
-			sb.append(vertexIndexMap.get(edge.getFirst()) + " " + vertexIndexMap.get(edge.getSecond()) + "\n");
+			writer.write(vertexIndexMap.get(edge.getFirst()) + " " + vertexIndexMap.get(edge.getSecond()) + "\n");
 
-		return sb.toString();
+		writer.flush();
 	}
 
 }
@@ -0,0 +1,397 @@
+/*******************************************************************************
+ * MKTR - Minimal k-Treewidth Relaxation
+ *
+ * Copyright (C) 2018 
+ * Max Waters (max.waters@rmit.edu.au)
+ * RMIT University, Melbourne VIC 3000
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package au.rmit.agtgrp.utils.collections.graph.treewidth;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+
+import au.rmit.agtgrp.utils.collections.graph.UndirectedGraph;
+
+/**
+ * Maintains a tree decomposition of a graph which changes a little at a time, giving 
+ * an upper bound on its treewidth without rebuilding the decomposition from scratch.
+ * 
+ * Each call to update brings the decomposition up to date with a graph. Removed 
+ * vertices are dropped from their bags, and new vertices get bags of their own. Each 
+ * new edge not already covered by a bag is repaired locally, by adding one of its 
+ * endpoints to the bags on the shortest tree path between them. If the repaired 
+ * decomposition is wider than the given limit, it is rebuilt from a min-fill 
+ * elimination ordering. 
+ * 
+ * Updates are tentative until commit is called, and rollback returns the 
+ * decomposition to its state at the last commit.
+ */
+public class IncrementalTreeDecomposition<V> {
+
+	private State<V> state;
+	private State<V> committed; // set when the state was rebuilt since the last commit
+	private final List<Change> changes;
+
+	private int nRepairs;
+	private int nRebuilds;
+
+	public IncrementalTreeDecomposition() {
+		state = new State<V>();
+		changes = new ArrayList<Change>();
+	}
+
+	/**
+	 * Updates the decomposition to cover the graph.
+	 * 
+	 * @param graph		The graph.
+	 * @param maxwidth	The width above which the decomposition is rebuilt.
+	 * @return			The width of the decomposition, an upper bound on the treewidth
+	 * 					of the graph.
+	 */
+	public int update(UndirectedGraph<V> graph, int maxwidth) {
+
+		// removed vertices
+		for (V v : new ArrayList<V>(state.bagsOf.keySet())) {
+			if (!graph.getVertices().contains(v))
+				removeVertex(v);
+		}
+
+		// new vertices and edges
+		for (V v : graph.getVertices()) {
+			if (!state.bagsOf.containsKey(v))
+				addVertex(v);
+		}
+
+		for (V v : graph.getVertices()) {
+			for (V u : graph.getLinksFrom(v)) {
+				if (!u.equals(v) && !state.isCovered(u, v))
+					repair(u, v);
+			}
+		}
+
+		if (getWidth() > maxwidth)
+			rebuild(graph);
+
+		return getWidth();
+	}
+
+	/**
+	 * @return the width of the decomposition, or 1 if it has no edges.
+	 */
+	public int getWidth() {
+		int max = 0;
+		for (Set<V> bag : state.bags)
+			max = Math.max(max, bag.size());
+		return Math.max(1, max - 1);
+	}
+
+	/**
+	 * Accepts the updates since the last commit.
+	 */
+	public void commit() {
+		changes.clear();
+		committed = null;
+	}
+
+	/**
+	 * Discards the updates since the last commit.
+	 */
+	public void rollback() {
+		if (committed != null) {
+			state = committed;
+			committed = null;
+			changes.clear();
+		}
+		else
+			undoChanges();
+	}
+
+	public int getRepairCount() {
+		return nRepairs;
+	}
+
+	public int getRebuildCount() {
+		return nRebuilds;
+	}
+
+	private void undoChanges() {
+		for (int i = changes.size() - 1; i >= 0; i--)
+			changes.get(i).undo();
+		changes.clear();
+	}
+
+	private void rebuild(UndirectedGraph<V> graph) {
+		nRebuilds++;
+		if (committed == null) {
+			undoChanges();
+			committed = state;
+		}
+		else
+			changes.clear();
+
+		state = new State<V>(graph, EliminationOrdering.getMinFillOrdering(graph));
+	}
+
+	private void removeVertex(final V v) {
+		for (final int bag : new ArrayList<Integer>(state.bagsOf.get(v)))
+			removeFromBag(bag, v);
+
+		final Set<Integer> bags = state.bagsOf.remove(v);
+		changes.add(new Change() {
+			@Override
+			void undo() {
+				state.bagsOf.put(v, bags);
+			}
+		});
+	}
+
+	private void addVertex(final V v) {
+		state.bagsOf.put(v, new HashSet<Integer>());
+		changes.add(new Change() {
+			@Override
+			void undo() {
+				state.bagsOf.remove(v);
+			}
+		});
+
+		final int bag = state.addBag();
+		changes.add(new Change() {
+			@Override
+			void undo() {
+				state.removeLastBag(bag);
+			}
+		});
+		addToBag(bag, v);
+	}
+
+	/*
+	 * Finds the shortest tree path from a bag containing u to one containing v, and 
+	 * adds whichever endpoint is missing from fewer bags on the path to the rest of 
+	 * them. If the bags are in different trees, the trees are joined first.
+	 */
+	private void repair(V u, V v) {
+		nRepairs++;
+
+		List<Integer> path = state.getPath(u, v);
+		if (path == null) {
+			final int from = state.bagsOf.get(u).iterator().next();
+			final int to = state.bagsOf.get(v).iterator().next();
+			state.link(from, to);
+			changes.add(new Change() {
+				@Override
+				void undo() {
+					state.unlink(from, to);
+				}
+			});
+			path = new ArrayList<Integer>();
+			path.add(from);
+			path.add(to);
+		}
+
+		int uMissing = 0;
+		int vMissing = 0;
+		for (int bag : path) {
+			if (!state.bags.get(bag).contains(u))
+				uMissing = Math.max(uMissing, state.bags.get(bag).size() + 1);
+			if (!state.bags.get(bag).contains(v))
+				vMissing = Math.max(vMissing, state.bags.get(bag).size() + 1);
+		}
+
+		V add = uMissing <= vMissing ? u : v;
+		for (int bag : path) {
+			if (!state.bags.get(bag).contains(add))
+				addToBag(bag, add);
+		}
+	}
+
+	private void addToBag(final int bag, final V v) {
+		state.bags.get(bag).add(v);
+		state.bagsOf.get(v).add(bag);
+		changes.add(new Change() {
+			@Override
+			void undo() {
+				state.bags.get(bag).remove(v);
+				state.bagsOf.get(v).remove(bag);
+			}
+		});
+	}
+
+	private void removeFromBag(final int bag, final V v) {
+		state.bags.get(bag).remove(v);
+		state.bagsOf.get(v).remove(bag);
+		changes.add(new Change() {
+			@Override
+			void undo() {
+				state.bags.get(bag).add(v);
+				state.bagsOf.get(v).add(bag);
+			}
+		});
+	}
+
+	private abstract static class Change {
+		abstract void undo();
+	}
+
+	/*
+	 * A forest of bags, indexed by position.
+	 */
+	private static class State<V> {
+
+		private final List<Set<V>> bags;
+		private final List<Set<Integer>> tree;
+		private final Map<V, Set<Integer>> bagsOf;
+
+		private State() {
+			bags = new ArrayList<Set<V>>();
+			tree = new ArrayList<Set<Integer>>();
+			bagsOf = new HashMap<V, Set<Integer>>();
+		}
+
+		/*
+		 * The bag of each vertex holds it and its neighbours eliminated after it, and 
+		 * is the child of the bag of the first of those neighbours to be eliminated.
+		 */
+		private State(UndirectedGraph<V> graph, List<V> ordering) {
+			this();
+
+			Map<V, Integer> position = new HashMap<V, Integer>();
+			for (V v : ordering)
+				position.put(v, position.size());
+
+			Map<V, Set<V>> later = new HashMap<V, Set<V>>();
+			for (V v : ordering) {
+				Set<V> nbrs = new HashSet<V>();
+				for (V u : graph.getLinksFrom(v)) {
+					if (position.get(u) > position.get(v))
+						nbrs.add(u);
+				}
+				later.put(v, nbrs);
+				bagsOf.put(v, new HashSet<Integer>());
+			}
+
+			List<Integer> parents = new ArrayList<Integer>();
+
+			for (V v : ordering) {
+				Set<V> nbrs = later.get(v);
+
+				int bag = addBag();
+				bags.get(bag).add(v);
+				bagsOf.get(v).add(bag);
+
+				V parent = null;
+				for (V u : nbrs) {
+					bags.get(bag).add(u);
+					bagsOf.get(u).add(bag);
+					if (parent == null || position.get(u) < position.get(parent))
+						parent = u;
+				}
+
+				// fill edges, and the parent bag, which is built later
+				if (parent != null) {
+					for (V u : nbrs) {
+						if (!u.equals(parent))
+							later.get(parent).add(u);
+					}
+					parents.add(position.get(parent));
+				}
+				else
+					parents.add(-1);
+			}
+
+			for (int i = 0; i < parents.size(); i++) {
+				if (parents.get(i) != -1)
+					link(i, parents.get(i));
+			}
+		}
+
+		private int addBag() {
+			bags.add(new HashSet<V>());
+			tree.add(new HashSet<Integer>());
+			return bags.size() - 1;
+		}
+
+		private void removeLastBag(int bag) {
+			if (bag != bags.size() - 1)
+				throw new IllegalStateException("Bags must be removed in reverse order");
+			bags.remove(bag);
+			tree.remove(bag);
+		}
+
+		private void link(int a, int b) {
+			tree.get(a).add(b);
+			tree.get(b).add(a);
+		}
+
+		private void unlink(int a, int b) {
+			tree.get(a).remove(b);
+			tree.get(b).remove(a);
+		}
+
+		private boolean isCovered(V u, V v) {
+			Set<Integer> uBags = bagsOf.get(u);
+			Set<Integer> vBags = bagsOf.get(v);
+			if (uBags.size() > vBags.size()) {
+				Set<Integer> tmp = uBags;
+				uBags = vBags;
+				vBags = tmp;
+			}
+			for (int bag : uBags) {
+				if (vBags.contains(bag))
+					return true;
+			}
+			return false;
+		}
+
+		/*
+		 * Breadth-first search from every bag containing u to the nearest bag 
+		 * containing v, or null if there is none in the same tree.
+		 */
+		private List<Integer> getPath(V u, V v) {
+			Map<Integer, Integer> previous = new HashMap<Integer, Integer>();
+			Queue<Integer> queue = new ArrayDeque<Integer>();
+			for (int bag : bagsOf.get(u)) {
+				previous.put(bag, -1);
+				queue.add(bag);
+			}
+
+			Set<Integer> targets = bagsOf.get(v);
+			while (!queue.isEmpty()) {
+				int bag = queue.poll();
+				if (targets.contains(bag)) {
+					List<Integer> path = new ArrayList<Integer>();
+					for (int b = bag; b != -1; b = previous.get(b))
+						path.add(b);
+					return path;
+				}
+				for (int next : tree.get(bag)) {
+					if (!previous.containsKey(next)) {
+						previous.put(next, bag);
+						queue.add(next);
+					}
+				}
+			}
+
+			return null;
+		}
+	}
+
+}
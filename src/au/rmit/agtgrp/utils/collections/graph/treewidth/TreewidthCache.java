@@ -0,0 +1,488 @@
+/*******************************************************************************
+ * MKTR - Minimal k-Treewidth Relaxation
+ *
+ * Copyright (C) 2018 
+ * Max Waters (max.waters@rmit.edu.au)
+ * RMIT University, Melbourne VIC 3000
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package au.rmit.agtgrp.utils.collections.graph.treewidth;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import au.rmit.agtgrp.utils.collections.graph.UndirectedGraph;
+
+/**
+ * Remembers the treewidth bounds of graphs, so that repeated queries about the same 
+ * graph, or one isomorphic to it, are answered without recalculating them. 
+ * 
+ * Graphs are keyed by a fingerprint computed by colour refinement (Weisfeiler-Lehman),
+ * which is the same for isomorphic graphs. A graph with the same fingerprint as a 
+ * stored one matches it if it has the same vertices and edges, or if an isomorphism 
+ * is found within a search budget. 
+ * 
+ * Treewidth is monotone under taking subgraphs, so the upper bound of a stored graph 
+ * also bounds its subgraphs, and its lower bound also bounds its supergraphs. These 
+ * are only checked for graphs over the same vertex objects. 
+ * 
+ * The cache is thread safe, and may be shared by several calculators.
+ */
+public class TreewidthCache {
+
+	public static final int DEFAULT_CAPACITY = 128;
+	public static final int DEFAULT_ISOMORPHISM_BUDGET = 10000;
+
+	private static final int REFINEMENT_ROUNDS = 4;
+
+	private final int capacity;
+	private final int isomorphismBudget;
+
+	// most recently used last
+	private final LinkedHashMap<Snapshot, Snapshot> entries;
+	private final Map<Long, List<Snapshot>> byFingerprint;
+
+	private long hits;
+	private long misses;
+
+	public TreewidthCache() {
+		this(DEFAULT_CAPACITY, DEFAULT_ISOMORPHISM_BUDGET);
+	}
+
+	/**
+	 * @param capacity			The maximum number of graphs to store.
+	 * @param isomorphismBudget	The maximum number of vertex assignments tried when 
+	 * 							looking for an isomorphism between two graphs.
+	 */
+	public TreewidthCache(int capacity, int isomorphismBudget) {
+		if (capacity <= 0)
+			throw new IllegalArgumentException("capacity must be positive");
+
+		this.capacity = capacity;
+		this.isomorphismBudget = isomorphismBudget;
+		entries = new LinkedHashMap<Snapshot, Snapshot>(16, 0.75f, true);
+		byFingerprint = new HashMap<Long, List<Snapshot>>();
+	}
+
+	/**
+	 * Takes a snapshot of the graph, to query and update the cache with. This does not 
+	 * lock the cache.
+	 */
+	public <V> Snapshot snapshot(UndirectedGraph<V> graph) {
+		return new Snapshot(graph);
+	}
+
+	/**
+	 * Looks up the best known bounds on the treewidth of the graph, from a stored 
+	 * graph it matches and from stored subgraphs and supergraphs. Counts as a hit if 
+	 * either bound is known.
+	 */
+	public synchronized Bounds getBounds(Snapshot graph) {
+		Snapshot match = find(graph);
+		graph.match = match;
+		graph.lookedUp = true;
+
+		int lb = match == null ? 0 : match.lowerbound;
+		int ub = match == null ? Integer.MAX_VALUE : match.upperbound;
+
+		for (Snapshot entry : entries.keySet()) {
+			if (entry.lowerbound > lb && entry.edgeCount <= graph.edgeCount && entry.isSubgraphOf(graph))
+				lb = entry.lowerbound;
+			if (entry.upperbound < ub && graph.edgeCount <= entry.edgeCount && graph.isSubgraphOf(entry))
+				ub = entry.upperbound;
+		}
+
+		if (lb > 0 || ub < Integer.MAX_VALUE)
+			hits++;
+		else
+			misses++;
+
+		return new Bounds(lb, ub);
+	}
+
+	/**
+	 * Records bounds on the treewidth of the graph. Bounds are only ever tightened.
+	 */
+	public synchronized void update(Snapshot graph, int lowerbound, int upperbound) {
+		// reuse the lookup made by getBounds, unless its match has since been evicted
+		Snapshot match;
+		if (graph.lookedUp && (graph.match == null || entries.containsKey(graph.match)))
+			match = graph.match;
+		else
+			match = find(graph);
+
+		if (match == null) {
+			match = graph;
+			entries.put(match, match);
+			List<Snapshot> same = byFingerprint.get(match.fingerprint);
+			if (same == null) {
+				same = new ArrayList<Snapshot>();
+				byFingerprint.put(match.fingerprint, same);
+			}
+			same.add(match);
+			evict();
+		}
+
+		match.lowerbound = Math.max(match.lowerbound, lowerbound);
+		match.upperbound = Math.min(match.upperbound, upperbound);
+	}
+
+	public synchronized void clear() {
+		entries.clear();
+		byFingerprint.clear();
+	}
+
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "size=" + entries.size() + ", hits=" + hits + ", misses=" + misses;
+	}
+
+	private Snapshot find(Snapshot graph) {
+		List<Snapshot> same = byFingerprint.get(graph.fingerprint);
+		if (same != null) {
+			for (Snapshot entry : same) {
+				if (entry == graph || entry.isIdentical(graph) || entry.isIsomorphic(graph, isomorphismBudget)) {
+					entries.get(entry); // mark as recently used
+					return entry;
+				}
+			}
+		}
+
+		return null;
+	}
+
+	private void evict() {
+		Iterator<Snapshot> it = entries.keySet().iterator();
+		while (entries.size() > capacity) {
+			Snapshot eldest = it.next();
+			it.remove();
+			List<Snapshot> same = byFingerprint.get(eldest.fingerprint);
+			same.remove(eldest);
+			if (same.isEmpty())
+				byFingerprint.remove(eldest.fingerprint);
+		}
+	}
+
+	/**
+	 * Bounds on the treewidth of a graph: 0 and Integer.MAX_VALUE when unknown.
+	 */
+	public static final class Bounds {
+
+		private final int lowerbound;
+		private final int upperbound;
+
+		private Bounds(int lowerbound, int upperbound) {
+			this.lowerbound = lowerbound;
+			this.upperbound = upperbound;
+		}
+
+		public int getLowerBound() {
+			return lowerbound;
+		}
+
+		public int getUpperBound() {
+			return upperbound;
+		}
+	}
+
+	/**
+	 * An immutable copy of a graph's structure, with its colour refinement, and the 
+	 * treewidth bounds recorded for it. Equality is identity.
+	 */
+	public static final class Snapshot {
+
+		private final Map<Object, Integer> index;
+		private final Object[] vertices;
+		private final int[][] adjacent; // sorted
+		private final int edgeCount;
+		private final long[] colours;
+		private final long fingerprint;
+
+		// guarded by the cache
+		private int lowerbound;
+		private int upperbound;
+		private boolean lookedUp;
+		private Snapshot match;
+
+		private <V> Snapshot(UndirectedGraph<V> graph) {
+
+			int n = graph.getVertices().size();
+			index = new HashMap<Object, Integer>();
+			vertices = new Object[n];
+			for (V v : graph.getVertices()) {
+				vertices[index.size()] = v;
+				index.put(v, index.size());
+			}
+
+			int m = 0;
+			adjacent = new int[n][];
+			for (int i = 0; i < n; i++) {
+				@SuppressWarnings("unchecked")
+				V v = (V) vertices[i];
+				int[] adj = new int[graph.getLinksFrom(v).size()];
+				int j = 0;
+				for (V u : graph.getLinksFrom(v))
+					adj[j++] = index.get(u);
+				Arrays.sort(adj);
+				adjacent[i] = adj;
+				m += adj.length;
+			}
+			edgeCount = m / 2;
+
+			colours = refine(adjacent);
+			fingerprint = computeFingerprint(colours, n, edgeCount);
+
+			lowerbound = 0;
+			upperbound = Integer.MAX_VALUE;
+		}
+
+		public long getFingerprint() {
+			return fingerprint;
+		}
+
+		private boolean hasEdge(int i, int j) {
+			return Arrays.binarySearch(adjacent[i], j) >= 0;
+		}
+
+		/*
+		 * Same vertex objects and edges.
+		 */
+		private boolean isIdentical(Snapshot other) {
+			return vertices.length == other.vertices.length && edgeCount == other.edgeCount && isSubgraphOf(other);
+		}
+
+		/*
+		 * Every vertex and edge of this graph is in the other.
+		 */
+		private boolean isSubgraphOf(Snapshot other) {
+			if (vertices.length > other.vertices.length || edgeCount > other.edgeCount)
+				return false;
+
+			int[] map = new int[vertices.length];
+			for (int i = 0; i < vertices.length; i++) {
+				Integer j = other.index.get(vertices[i]);
+				if (j == null)
+					return false;
+				map[i] = j;
+			}
+
+			for (int i = 0; i < vertices.length; i++) {
+				for (int u : adjacent[i]) {
+					if (u > i && !other.hasEdge(map[i], map[u]))
+						return false;
+				}
+			}
+
+			return true;
+		}
+
+		/*
+		 * Backtracking search for an isomorphism which preserves colours, visiting 
+		 * vertices in breadth-first order. Gives up, returning false, once the budget of 
+		 * assignments is spent.
+		 */
+		private boolean isIsomorphic(Snapshot other, int budget) {
+			int n = vertices.length;
+			if (n != other.vertices.length || edgeCount != other.edgeCount)
+				return false;
+
+			// candidates of each colour in the other graph
+			Map<Long, List<Integer>> classes = new HashMap<Long, List<Integer>>();
+			for (int j = 0; j < n; j++) {
+				List<Integer> cls = classes.get(other.colours[j]);
+				if (cls == null) {
+					cls = new ArrayList<Integer>();
+					classes.put(other.colours[j], cls);
+				}
+				cls.add(j);
+			}
+
+			int[] order = getSearchOrder(classes);
+			if (order == null)
+				return false;
+
+			int[] map = new int[n];
+			int[] inverse = new int[n];
+			Arrays.fill(map, -1);
+			Arrays.fill(inverse, -1);
+
+			int[] remaining = new int[] { budget };
+			return extend(other, order, 0, map, inverse, classes, remaining);
+		}
+
+		private boolean extend(Snapshot other, int[] order, int depth, int[] map, int[] inverse, 
+				Map<Long, List<Integer>> classes, int[] remaining) {
+
+			if (depth == order.length)
+				return true;
+
+			int v = order[depth];
+			for (int w : classes.get(colours[v])) {
+				if (inverse[w] != -1)
+					continue;
+				if (--remaining[0] < 0)
+					return false;
+
+				if (consistent(other, v, w, map, inverse)) {
+					map[v] = w;
+					inverse[w] = v;
+					if (extend(other, order, depth + 1, map, inverse, classes, remaining))
+						return true;
+					map[v] = -1;
+					inverse[w] = -1;
+				}
+
+				if (remaining[0] < 0)
+					return false;
+			}
+
+			return false;
+		}
+
+		/*
+		 * Mapping v to w preserves the edges between v and the vertices mapped so far.
+		 */
+		private boolean consistent(Snapshot other, int v, int w, int[] map, int[] inverse) {
+			int mapped = 0;
+			for (int u : adjacent[v]) {
+				if (map[u] != -1) {
+					if (!other.hasEdge(w, map[u]))
+						return false;
+					mapped++;
+				}
+			}
+
+			int otherMapped = 0;
+			for (int x : other.adjacent[w]) {
+				if (inverse[x] != -1)
+					otherMapped++;
+			}
+
+			return mapped == otherMapped;
+		}
+
+		/*
+		 * Breadth-first, starting each component at its vertex with the rarest colour, 
+		 * or null if the colour classes differ in size.
+		 */
+		private int[] getSearchOrder(Map<Long, List<Integer>> classes) {
+			int n = vertices.length;
+
+			Map<Long, Integer> classSizes = new HashMap<Long, Integer>();
+			for (long c : colours) {
+				Integer size = classSizes.get(c);
+				classSizes.put(c, size == null ? 1 : size + 1);
+			}
+			for (Map.Entry<Long, Integer> e : classSizes.entrySet()) {
+				List<Integer> cls = classes.get(e.getKey());
+				if (cls == null || cls.size() != e.getValue())
+					return null;
+			}
+
+			Integer[] byRarity = new Integer[n];
+			for (int i = 0; i < n; i++)
+				byRarity[i] = i;
+			final Map<Long, Integer> sizes = classSizes;
+			Arrays.sort(byRarity, new Comparator<Integer>() {
+				@Override
+				public int compare(Integer a, Integer b) {
+					return Integer.compare(sizes.get(colours[a]), sizes.get(colours[b]));
+				}
+			});
+
+			int[] order = new int[n];
+			boolean[] seen = new boolean[n];
+			int k = 0;
+			Deque<Integer> queue = new ArrayDeque<Integer>();
+			for (int start : byRarity) {
+				if (seen[start])
+					continue;
+				seen[start] = true;
+				queue.add(start);
+				while (!queue.isEmpty()) {
+					int v = queue.poll();
+					order[k++] = v;
+					for (int u : adjacent[v]) {
+						if (!seen[u]) {
+							seen[u] = true;
+							queue.add(u);
+						}
+					}
+				}
+			}
+
+			return order;
+		}
+
+		private static long[] refine(int[][] adjacent) {
+			int n = adjacent.length;
+			long[] colours = new long[n];
+			for (int i = 0; i < n; i++)
+				colours[i] = mix(adjacent[i].length);
+
+			long[] next = new long[n];
+			for (int round = 0; round < REFINEMENT_ROUNDS; round++) {
+				for (int i = 0; i < n; i++) {
+					long[] nbrs = new long[adjacent[i].length];
+					for (int j = 0; j < nbrs.length; j++)
+						nbrs[j] = colours[adjacent[i][j]];
+					Arrays.sort(nbrs);
+
+					long c = mix(colours[i]);
+					for (long nc : nbrs)
+						c = mix(c * 31 + nc);
+					next[i] = c;
+				}
+				long[] tmp = colours;
+				colours = next;
+				next = tmp;
+			}
+
+			return colours;
+		}
+
+		private static long computeFingerprint(long[] colours, int n, int m) {
+			long[] sorted = Arrays.copyOf(colours, colours.length);
+			Arrays.sort(sorted);
+			long f = mix(n * 31L + m);
+			for (long c : sorted)
+				f = mix(f * 31 + c);
+			return f;
+		}
+
+		private static long mix(long z) {
+			z = (z ^ (z >>> 33)) * 0xff51afd7ed558ccdL;
+			z = (z ^ (z >>> 33)) * 0xc4ceb3f97a63b9d5L;
+			return z ^ (z >>> 33);
+		}
+	}
+
+}
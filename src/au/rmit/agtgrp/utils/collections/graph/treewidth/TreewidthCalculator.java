@@ -20,8 +20,17 @@
  *******************************************************************************/
 package au.rmit.agtgrp.utils.collections.graph.treewidth;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import au.rmit.agtgrp.utils.collections.Pair;
 import au.rmit.agtgrp.utils.collections.graph.UndirectedGraph;
@@ -37,11 +46,82 @@ public class TreewidthCalculator {
 	private static final String VERTEX_LABEL_PREFIX = "v";
 
 	private final TreewidthExactInterface twExact;
+	private final TreewidthExactPool pool;
+	private final TreewidthExactSolver exactSolver;
+	private final boolean external;
 
-	private boolean cancelled;
+	private TreewidthCache cache;
+	private ForkJoinPool forkJoinPool;
+	private final List<KernelCheck<?>> running;
+	private volatile boolean cancelled;
 	
 	public TreewidthCalculator() {
-		twExact = new TreewidthExactInterface();
+		this(false);
+	}
+
+	/**
+	 * @param external	if true, exact treewidth is calculated by the external tw-exact
+	 * 					program, otherwise it is calculated in-process.
+	 */
+	public TreewidthCalculator(boolean external) {
+		this(external, null);
+	}
+
+	/**
+	 * Creates a calculator which uses the external tw-exact program, taking processes 
+	 * from the given pool.
+	 * 
+	 * @param pool	A pool of tw-exact processes, which may be shared with other calculators.
+	 */
+	public TreewidthCalculator(TreewidthExactPool pool) {
+		this(true, pool);
+	}
+
+	/**
+	 * Creates a calculator with the same settings as another, sharing its tw-exact pool, 
+	 * cache and fork-join pool if it has them.
+	 */
+	public TreewidthCalculator(TreewidthCalculator other) {
+		this(other.external, other.pool);
+		cache = other.cache;
+		forkJoinPool = other.forkJoinPool;
+	}
+
+	private TreewidthCalculator(boolean external, TreewidthExactPool pool) {
+		this.external = external;
+		this.pool = pool;
+		twExact = external ? new TreewidthExactInterface(pool) : null;
+		exactSolver = new TreewidthExactSolver();
+		running = Collections.synchronizedList(new ArrayList<KernelCheck<?>>());
+	}
+
+	public boolean isExternal() {
+		return external;
+	}
+
+	public TreewidthCache getCache() {
+		return cache;
+	}
+
+	/**
+	 * @param cache	A cache of treewidth bounds consulted and updated by isGreaterThan, 
+	 * 				or null to disable caching.
+	 */
+	public void setCache(TreewidthCache cache) {
+		this.cache = cache;
+	}
+
+	public ForkJoinPool getForkJoinPool() {
+		return forkJoinPool;
+	}
+
+	/**
+	 * @param forkJoinPool	A pool on which isGreaterThan checks the kernels of a graph in 
+	 * 						parallel, each with its own exact solver, or null to check 
+	 * 						them one at a time.
+	 */
+	public void setForkJoinPool(ForkJoinPool forkJoinPool) {
+		this.forkJoinPool = forkJoinPool;
 	}
 
 	public <V> int calculateExact(UndirectedGraph<V> graph) throws InterruptedException {
@@ -57,13 +137,17 @@ public class TreewidthCalculator {
 
 		if (upperbound == lowerbound)
 			return upperbound;
-		else {
-			GrFormatter<V> gr = new GrFormatter<V>(graph, "tw", "");
+		else if (!external) {
+			if (cancelled)
+				throw new InterruptedException();
 			
+			return exactSolver.calculateExact(graph, lowerbound, upperbound);
+		}
+		else {
 			if (cancelled)
 				throw new InterruptedException();
 			
-			twExact.calculateExact(gr.format());
+			twExact.calculateExact(graph);
 			return twExact.getExact();
 		}
 
@@ -75,30 +159,188 @@ public class TreewidthCalculator {
 		if (graph.getSize() == 0)
 			return 1 > maxwidth;
 
-		// convert graph type
-		NGraph<InputData> ngraph = convertGraphType(graph);
+		TreewidthCache.Snapshot snapshot = null;
+		if (cache != null) {
+			snapshot = cache.snapshot(graph);
+			TreewidthCache.Bounds bounds = cache.getBounds(snapshot);
+			if (bounds.getLowerBound() > maxwidth)
+				return true;
+			if (bounds.getUpperBound() <= maxwidth)
+				return false;
+		}
+
+		boolean greater = isReducedGreaterThan(graph, maxwidth);
+		if (cache != null) {
+			if (greater)
+				cache.update(snapshot, maxwidth + 1, Integer.MAX_VALUE);
+			else
+				cache.update(snapshot, 0, maxwidth);
+		}
+
+		return greater;
+
+	}
+
+	/*
+	 * Reduces the graph and splits it at clique separators, then runs the heuristic 
+	 * and exact checks on each kernel in turn.
+	 */
+	private <V> boolean isReducedGreaterThan(UndirectedGraph<V> graph, int maxwidth) throws InterruptedException {
 
-		int lb = getLowerBound(ngraph);
-		if (lb > maxwidth) {
+		TreewidthPreprocessor.Result<V> reduced = TreewidthPreprocessor.preprocess(graph, maxwidth);
+		if (reduced.getLowerBound() > maxwidth)
 			return true;
+
+		if (forkJoinPool != null && reduced.getKernels().size() > 1)
+			return isAnyGreaterThan(reduced.getKernels(), maxwidth);
+
+		for (UndirectedGraph<V> kernel : reduced.getKernels()) {
+			if (cancelled)
+				throw new InterruptedException();
+
+			// convert graph type
+			NGraph<InputData> ngraph = convertGraphType(kernel);
+
+			if (getLowerBound(ngraph) > maxwidth)
+				return true;
+
+			if (getUpperBound(ngraph) <= maxwidth)
+				continue;
+
+			if (isExactGreaterThan(kernel, maxwidth))
+				return true;
 		}
 
-		int upperbound = getUpperBound(ngraph);
-		if (upperbound <= maxwidth) {
-			return false;
+		return false;
+
+	}
+
+	/*
+	 * Checks the kernels in parallel on the fork-join pool, largest first. Once one 
+	 * exceeds maxwidth, the checks still running are cancelled.
+	 */
+	private <V> boolean isAnyGreaterThan(List<UndirectedGraph<V>> kernels, int maxwidth) throws InterruptedException {
+
+		kernels = new ArrayList<UndirectedGraph<V>>(kernels);
+		Collections.sort(kernels, new Comparator<UndirectedGraph<V>>() {
+			@Override
+			public int compare(UndirectedGraph<V> a, UndirectedGraph<V> b) {
+				return Integer.compare(b.getVertices().size(), a.getVertices().size());
+			}
+		});
+
+		AtomicBoolean exceeded = new AtomicBoolean(false);
+		final List<KernelCheck<V>> checks = new ArrayList<KernelCheck<V>>();
+		for (UndirectedGraph<V> kernel : kernels)
+			checks.add(new KernelCheck<V>(kernel, maxwidth, exceeded));
+
+		running.addAll(checks);
+		try {
+			ForkJoinTask<Void> all = forkJoinPool.submit(new RecursiveAction() {
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				protected void compute() {
+					invokeAll(checks);
+				}
+			});
+
+			try {
+				all.get();
+			} catch (ExecutionException e) {
+				if (e.getCause() instanceof RuntimeException)
+					throw (RuntimeException) e.getCause();
+				throw new RuntimeException(e.getCause());
+			} catch (InterruptedException e) {
+				for (KernelCheck<V> check : checks)
+					check.cancel();
+				throw e;
+			}
+		} finally {
+			running.removeAll(checks);
 		}
 
-		// find a lower bound < max
-		GrFormatter<V> gr = new GrFormatter<V>(graph, "tw", "");
-		
+		if (exceeded.get())
+			return true;
 		if (cancelled)
 			throw new InterruptedException();
-		
-		twExact.calculateLowerbound(gr.format(), maxwidth);
+		return false;
+	}
 
-		int lowerbound = twExact.getLowerbound();
-		return lowerbound >= maxwidth;
+	/*
+	 * Checks one kernel with its own exact solver, stopping early once another kernel 
+	 * has exceeded maxwidth or the calculator is cancelled.
+	 */
+	private class KernelCheck<V> extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final UndirectedGraph<V> kernel;
+		private final int maxwidth;
+		private final AtomicBoolean exceeded;
+
+		private final TreewidthExactSolver kernelSolver;
+		private final TreewidthExactInterface kernelTwExact;
+
+		private KernelCheck(UndirectedGraph<V> kernel, int maxwidth, AtomicBoolean exceeded) {
+			this.kernel = kernel;
+			this.maxwidth = maxwidth;
+			this.exceeded = exceeded;
+			kernelSolver = external ? null : new TreewidthExactSolver();
+			kernelTwExact = external ? new TreewidthExactInterface(pool) : null;
+		}
+
+		@Override
+		protected void compute() {
+			if (isStopped())
+				return;
+
+			NGraph<InputData> ngraph = convertGraphType(kernel);
+			if (getLowerBound(ngraph) > maxwidth) {
+				stopOthers();
+				return;
+			}
 
+			if (isStopped() || getUpperBound(ngraph) <= maxwidth || isStopped())
+				return;
+
+			try {
+				boolean greater;
+				if (!external)
+					greater = !kernelSolver.isAtMost(kernel, maxwidth);
+				else {
+					kernelTwExact.calculateLowerbound(kernel, maxwidth);
+					greater = kernelTwExact.getLowerbound() >= maxwidth;
+				}
+
+				if (greater)
+					stopOthers();
+			} catch (InterruptedException e) {
+				// cancelled, either by another check or by the calculator
+			}
+		}
+
+		private boolean isStopped() {
+			return exceeded.get() || cancelled;
+		}
+
+		private void stopOthers() {
+			if (exceeded.compareAndSet(false, true)) {
+				synchronized (running) {
+					for (KernelCheck<?> check : running) {
+						if (check != this)
+							check.cancel();
+					}
+				}
+			}
+		}
+
+		private void cancel() {
+			if (kernelSolver != null)
+				kernelSolver.cancel();
+			if (kernelTwExact != null)
+				kernelTwExact.cancel();
+		}
 	}
 
 	public <V, E> boolean isGreaterThanExact(UndirectedGraph<V> graph, int maxwidth) throws InterruptedException {
@@ -107,13 +349,24 @@ public class TreewidthCalculator {
 		if (graph.getSize() == 0)
 			return 1 > maxwidth;
 
-		// find a lower bound < max
-		GrFormatter<V> gr = new GrFormatter<V>(graph, "tw", "");
+		return isExactGreaterThan(graph, maxwidth);
+
+	}
+
+	private <V> boolean isExactGreaterThan(UndirectedGraph<V> graph, int maxwidth) throws InterruptedException {
+
+		if (!external) {
+			if (cancelled)
+				throw new InterruptedException();
+			
+			return !exactSolver.isAtMost(graph, maxwidth);
+		}
 		
+		// find a lower bound < max
 		if (cancelled)
 			throw new InterruptedException();
 		
-		twExact.calculateLowerbound(gr.format(), maxwidth);
+		twExact.calculateLowerbound(graph, maxwidth);
 
 		int lowerbound = twExact.getLowerbound();
 		return lowerbound >= maxwidth;
@@ -153,7 +406,13 @@ public class TreewidthCalculator {
 
 	public void cancel() {
 		cancelled = true;
-		twExact.cancel();
+		exactSolver.cancel();
+		if (external)
+			twExact.cancel();
+		synchronized (running) {
+			for (KernelCheck<?> check : running)
+				check.cancel();
+		}
 	}
 	
 	private <V, E> NGraph<InputData> convertGraphType(UndirectedGraph<V> graph) {
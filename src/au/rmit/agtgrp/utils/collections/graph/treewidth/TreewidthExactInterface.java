@@ -29,6 +29,8 @@ import java.io.OutputStreamWriter;
 import java.nio.file.Files;
 import java.util.List;
 
+import au.rmit.agtgrp.utils.collections.graph.UndirectedGraph;
+
 public class TreewidthExactInterface {
 
 	public static final int UNKNOWN_VALUE = -1;
@@ -37,10 +39,21 @@ public class TreewidthExactInterface {
 	private volatile Process process;
 	private volatile Thread thread;
 
+	private final TreewidthExactPool pool;
+
 	private int exact;
 	private int lowerbound;
 
 	public TreewidthExactInterface() {
+		this(null);
+	}
+
+	/**
+	 * @param pool	A pool of started tw-exact processes, or null to start a process for
+	 * 				each query.
+	 */
+	public TreewidthExactInterface(TreewidthExactPool pool) {
+		this.pool = pool;
 		exact = -1;
 		lowerbound = -1;
 	}
@@ -94,10 +107,7 @@ public class TreewidthExactInterface {
 				
 				thread = Thread.currentThread();
 
-				ProcessBuilder pb = new ProcessBuilder(TW_EXACT_EXEC);
-				pb.redirectErrorStream(true);
-
-				process = pb.start();
+				process = startProcess();
 
 				BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(process.getOutputStream()));
 				writer.write(graphString);
@@ -106,44 +116,88 @@ public class TreewidthExactInterface {
 				stdInput = new BufferedReader(new InputStreamReader(process.getInputStream()));
 			}
 
-			// read the output from the command
-			String s = null;
-			while ((s = stdInput.readLine()) != null) { // if cancelled, this will be null
+			readOutput(stdInput, maxwidth);
 
-				synchronized(this) {
-					
-					if (Thread.interrupted()) {
-						Thread.currentThread().interrupt();
-						throw new InterruptedException();
-					}
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
 
-					lowerbound = Integer.valueOf(s.substring("width = ".length()));
-					if (lowerbound > maxwidth) {
-						synchronized(this) {
-							if (process != null) {
-								process.destroy();
-								process = null;
-							}
-							return;
-						}
-					}
-				}
-			}
+	public <V> void calculateExact(UndirectedGraph<V> graph) throws InterruptedException {
+		calculateLowerbound(graph, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Streams the graph straight to the input of tw-exact.
+	 */
+	public <V> void calculateLowerbound(UndirectedGraph<V> graph, int maxwidth) throws InterruptedException {
+		try {
 
+			BufferedReader stdInput = null;
 			synchronized(this) {
 				
-				exact = lowerbound;
-				process = null;
-				thread = null;
+				lowerbound = 0;
+				exact = UNKNOWN_VALUE;
+				
+				thread = Thread.currentThread();
+
+				process = startProcess();
+
+				BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(process.getOutputStream()));
+				new GrFormatter<V>(graph, "tw", "").write(writer);
 
+				stdInput = new BufferedReader(new InputStreamReader(process.getInputStream()));
+			}
+
+			readOutput(stdInput, maxwidth);
+
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private Process startProcess() throws IOException {
+		if (pool != null)
+			return pool.take();
+
+		return TreewidthExactPool.start();
+	}
+
+	private void readOutput(BufferedReader stdInput, int maxwidth) throws IOException, InterruptedException {
+		// read the output from the command
+		String s = null;
+		while ((s = stdInput.readLine()) != null) { // if cancelled, this will be null
+
+			synchronized(this) {
+				
 				if (Thread.interrupted()) {
 					Thread.currentThread().interrupt();
 					throw new InterruptedException();
 				}
+
+				lowerbound = Integer.valueOf(s.substring("width = ".length()));
+				if (lowerbound > maxwidth) {
+					synchronized(this) {
+						if (process != null) {
+							process.destroy();
+							process = null;
+						}
+						return;
+					}
+				}
 			}
+		}
 
-		} catch (IOException e) {
-			throw new RuntimeException(e);
+		synchronized(this) {
+			
+			exact = lowerbound;
+			process = null;
+			thread = null;
+
+			if (Thread.interrupted()) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedException();
+			}
 		}
 	}
 
@@ -0,0 +1,141 @@
+/*******************************************************************************
+ * MKTR - Minimal k-Treewidth Relaxation
+ *
+ * Copyright (C) 2018 
+ * Max Waters (max.waters@rmit.edu.au)
+ * RMIT University, Melbourne VIC 3000
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package au.rmit.agtgrp.utils.collections.graph.treewidth;
+
+import java.io.IOException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A pool of started tw-exact processes, waiting for input. tw-exact solves a single 
+ * graph and then exits, so each process is used once: taking a process from the pool 
+ * starts a replacement in the background, so that the cost of starting a process is 
+ * not paid by the treewidth query. Processes which have died while idle are discarded.
+ * 
+ * A pool can be shared by several TreewidthExactInterface instances.
+ */
+public class TreewidthExactPool {
+
+	private final int size;
+	private final BlockingQueue<Process> idle;
+	private final AtomicInteger starting;
+	private final ExecutorService starter;
+
+	private volatile boolean closed;
+
+	/**
+	 * @param size	The number of idle processes to keep.
+	 */
+	public TreewidthExactPool(int size) {
+		if (size <= 0)
+			throw new IllegalArgumentException("pool size must be positive");
+
+		this.size = size;
+		idle = new LinkedBlockingQueue<Process>();
+		starting = new AtomicInteger(0);
+		starter = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "tw-exact-pool");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		closed = false;
+
+		replenish();
+	}
+
+	/**
+	 * Takes an idle process from the pool, or starts a new one if none are idle.
+	 * 
+	 * @return	A tw-exact process, waiting for input.
+	 * @throws IOException	If a process cannot be started.
+	 */
+	public Process take() throws IOException {
+		if (closed)
+			throw new IllegalStateException("pool is closed");
+
+		Process process;
+		while ((process = idle.poll()) != null) {
+			if (process.isAlive())
+				break;
+		}
+
+		replenish();
+
+		if (process == null)
+			process = start();
+
+		return process;
+	}
+
+	/**
+	 * Destroys all idle processes. Processes already taken are unaffected.
+	 */
+	public void close() {
+		closed = true;
+		starter.shutdownNow();
+
+		Process process;
+		while ((process = idle.poll()) != null)
+			process.destroy();
+	}
+
+	private void replenish() {
+		while (!closed && idle.size() + starting.get() < size) {
+			starting.incrementAndGet();
+			try {
+				starter.submit(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							Process process = start();
+							idle.add(process);
+							if (closed && idle.remove(process))
+								process.destroy();
+						} catch (IOException e) {
+							// tw-exact cannot be started, the error is reported by take()
+						} finally {
+							starting.decrementAndGet();
+						}
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				// closed
+				starting.decrementAndGet();
+				return;
+			}
+		}
+	}
+
+	static Process start() throws IOException {
+		ProcessBuilder pb = new ProcessBuilder(TreewidthExactInterface.TW_EXACT_EXEC);
+		pb.redirectErrorStream(true);
+		return pb.start();
+	}
+
+}
@@ -0,0 +1,309 @@
+/*******************************************************************************
+ * MKTR - Minimal k-Treewidth Relaxation
+ *
+ * Copyright (C) 2018 
+ * Max Waters (max.waters@rmit.edu.au)
+ * RMIT University, Melbourne VIC 3000
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package au.rmit.agtgrp.utils.collections.graph.treewidth;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import au.rmit.agtgrp.utils.collections.graph.UndirectedGraph;
+
+/**
+ * An in-process exact treewidth decision procedure.
+ * 
+ * For a connected vertex set C with neighbourhood N(C), C is feasible if the graph 
+ * induced by C and N(C), with N(C) made a clique, has a tree decomposition of width 
+ * at most k with N(C) in its root bag. C is feasible iff |N(C)| <= k and there is a 
+ * vertex v in C such that every component of C - v is feasible (v is then the last 
+ * vertex of C to be eliminated). A graph has treewidth at most k iff each of its 
+ * components is feasible.
+ * 
+ * Each C is a full component of G - N(C) with |N(C)| <= k, so at most O(n^(k+1)) sets 
+ * are evaluated. Results are memoised, so each set is evaluated once per decision. 
+ */
+public class TreewidthExactSolver {
+
+	private volatile boolean cancelled;
+
+	private int maxwidth;
+	private BitSet[] adjacent;
+	private Map<BitSet, Boolean> feasible;
+
+	public TreewidthExactSolver() {
+		cancelled = false;
+	}
+
+	/**
+	 * Calculates the exact treewidth of a graph, given known bounds.
+	 * 
+	 * @param graph			The graph.
+	 * @param lowerbound	A lower bound on the treewidth of the graph.
+	 * @param upperbound	An upper bound on the treewidth of the graph.
+	 * @return				The treewidth of the graph.
+	 * @throws InterruptedException If the calculation is cancelled.
+	 */
+	public <V> int calculateExact(UndirectedGraph<V> graph, int lowerbound, int upperbound) throws InterruptedException {
+		cancelled = false;
+		init(graph);
+		for (int k = Math.max(lowerbound, 0); k < upperbound; k++) {
+			if (decide(k))
+				return k;
+		}
+
+		return upperbound;
+	}
+
+	/**
+	 * Decides whether the treewidth of a graph is at most maxwidth.
+	 * 
+	 * @param graph		The graph.
+	 * @param maxwidth	The maximum width.
+	 * @return			True if the treewidth of the graph is at most maxwidth. 
+	 * @throws InterruptedException If the calculation is cancelled.
+	 */
+	public <V> boolean isAtMost(UndirectedGraph<V> graph, int maxwidth) throws InterruptedException {
+		cancelled = false;
+		init(graph);
+		return decide(maxwidth);
+	}
+
+	public void cancel() {
+		cancelled = true;
+	}
+
+	private <V> void init(UndirectedGraph<V> graph) {
+
+		Map<V, Integer> index = new HashMap<V, Integer>();
+		for (V vertex : graph.getVertices())
+			index.put(vertex, index.size());
+
+		adjacent = new BitSet[index.size()];
+		for (V vertex : graph.getVertices()) {
+			int v = index.get(vertex);
+			adjacent[v] = new BitSet(adjacent.length);
+			for (V other : graph.getLinksFrom(vertex)) {
+				int u = index.get(other);
+				if (u != v)
+					adjacent[v].set(u);
+			}
+		}
+	}
+
+	private boolean decide(int k) throws InterruptedException {
+
+		maxwidth = k;
+		feasible = new HashMap<BitSet, Boolean>();
+
+		BitSet all = new BitSet(adjacent.length);
+		all.set(0, adjacent.length);
+
+		try {
+			for (BitSet component : getComponents(all)) {
+				if (!isFeasible(component))
+					return false;
+			}
+			return true;
+		} finally {
+			feasible = null;
+		}
+	}
+
+	private boolean isFeasible(BitSet component) throws InterruptedException {
+
+		Boolean known = feasible.get(component);
+		if (known != null)
+			return known;
+
+		checkCancelled();
+
+		BitSet separator = getNeighbourhood(component);
+		int sepSize = separator.cardinality();
+
+		boolean result;
+		if (sepSize > maxwidth) // the separator must fit in a bag with a vertex of the component
+			result = false;
+		else if (component.cardinality() + sepSize <= maxwidth + 1) // everything fits in one bag
+			result = true;
+		else {
+			result = false;
+			BitSet cutVertices = getCutVertices(component);
+			for (int v = component.nextSetBit(0); v >= 0 && !result; v = component.nextSetBit(v + 1)) {
+				if (cutVertices.get(v))
+					result = isFeasible(component, v);
+				else
+					result = isFeasible(component, separator, v);
+			}
+		}
+
+		feasible.put(component, result);
+		return result;
+	}
+
+	/*
+	 * Removing a vertex which is not a cut vertex leaves a single component, whose
+	 * neighbourhood is the removed vertex plus the separator vertices it still touches.
+	 */
+	private boolean isFeasible(BitSet component, BitSet separator, int last) throws InterruptedException {
+
+		BitSet child = (BitSet) component.clone();
+		child.clear(last);
+
+		int sepSize = 1;
+		for (int s = separator.nextSetBit(0); s >= 0; s = separator.nextSetBit(s + 1)) {
+			if (adjacent[s].intersects(child))
+				sepSize++;
+		}
+
+		return sepSize <= maxwidth && isFeasible(child);
+	}
+
+	private boolean isFeasible(BitSet component, int last) throws InterruptedException {
+
+		BitSet rest = (BitSet) component.clone();
+		rest.clear(last);
+
+		List<BitSet> children = getComponents(rest);
+
+		// check separator sizes before recursing
+		for (BitSet child : children) {
+			if (getNeighbourhood(child).cardinality() > maxwidth)
+				return false;
+		}
+
+		for (BitSet child : children) {
+			if (!isFeasible(child))
+				return false;
+		}
+
+		return true;
+	}
+
+	/*
+	 * Finds the cut vertices of the subgraph induced by a connected vertex set, using 
+	 * an iterative depth first search.
+	 */
+	private BitSet getCutVertices(BitSet component) {
+
+		BitSet cut = new BitSet(adjacent.length);
+		int root = component.nextSetBit(0);
+
+		int[] order = new int[adjacent.length];
+		int[] low = new int[adjacent.length];
+		int[] parent = new int[adjacent.length];
+		int[] next = new int[adjacent.length];
+		int[] stack = new int[adjacent.length];
+
+		BitSet visited = new BitSet(adjacent.length);
+		int count = 0;
+		int top = 0;
+		int rootChildren = 0;
+
+		stack[top++] = root;
+		visited.set(root);
+		order[root] = low[root] = count++;
+		parent[root] = -1;
+		next[root] = 0;
+
+		while (top > 0) {
+			int v = stack[top - 1];
+			int w = adjacent[v].nextSetBit(next[v]);
+			while (w >= 0 && !component.get(w))
+				w = adjacent[v].nextSetBit(w + 1);
+
+			if (w >= 0) {
+				next[v] = w + 1;
+				if (!visited.get(w)) {
+					visited.set(w);
+					parent[w] = v;
+					order[w] = low[w] = count++;
+					next[w] = 0;
+					stack[top++] = w;
+					if (v == root)
+						rootChildren++;
+				} else if (w != parent[v])
+					low[v] = Math.min(low[v], order[w]);
+			} else {
+				top--;
+				int p = parent[v];
+				if (p >= 0) {
+					low[p] = Math.min(low[p], low[v]);
+					if (p != root && low[v] >= order[p])
+						cut.set(p);
+				}
+			}
+		}
+
+		if (rootChildren > 1)
+			cut.set(root);
+
+		return cut;
+	}
+
+	private BitSet getNeighbourhood(BitSet vertices) {
+		BitSet nbrs = new BitSet(adjacent.length);
+		for (int v = vertices.nextSetBit(0); v >= 0; v = vertices.nextSetBit(v + 1))
+			nbrs.or(adjacent[v]);
+
+		nbrs.andNot(vertices);
+		return nbrs;
+	}
+
+	private List<BitSet> getComponents(BitSet vertices) {
+
+		List<BitSet> components = new ArrayList<BitSet>();
+		BitSet unexplored = (BitSet) vertices.clone();
+
+		while (!unexplored.isEmpty()) {
+			BitSet component = new BitSet(adjacent.length);
+			BitSet frontier = new BitSet(adjacent.length);
+			frontier.set(unexplored.nextSetBit(0));
+
+			while (!frontier.isEmpty()) {
+				component.or(frontier);
+				unexplored.andNot(frontier);
+
+				BitSet next = new BitSet(adjacent.length);
+				for (int v = frontier.nextSetBit(0); v >= 0; v = frontier.nextSetBit(v + 1))
+					next.or(adjacent[v]);
+
+				next.and(unexplored);
+				frontier = next;
+			}
+
+			components.add(component);
+		}
+
+		return components;
+	}
+
+	private void checkCancelled() throws InterruptedException {
+		if (cancelled)
+			throw new InterruptedException();
+
+		if (Thread.interrupted()) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedException();
+		}
+	}
+
+}
@@ -0,0 +1,398 @@
+/*******************************************************************************
+ * MKTR - Minimal k-Treewidth Relaxation
+ *
+ * Copyright (C) 2018 
+ * Max Waters (max.waters@rmit.edu.au)
+ * RMIT University, Melbourne VIC 3000
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package au.rmit.agtgrp.utils.collections.graph.treewidth;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+import au.rmit.agtgrp.utils.collections.graph.UndirectedGraph;
+
+/**
+ * Shrinks a graph before its treewidth is calculated. 
+ * 
+ * First the safe reduction rules of Bodlaender, Koster and van den Eijkhof are 
+ * applied: islet, twig, series, triangle, simplicial and almost simplicial. These 
+ * remove vertices while tracking a lower bound, low, so that the treewidth of the 
+ * graph is the larger of low and the treewidth of the reduced graph. The remaining 
+ * graph is then split into atoms at clique minimal separators, found with MCS-M, and 
+ * its treewidth is the largest treewidth of its atoms.
+ * 
+ * The rules which depend on low are also safe for deciding whether treewidth is at 
+ * most k when k is given as low: the graph's treewidth is at most k iff the 
+ * returned lower bound and the treewidth of every kernel are at most k.
+ */
+public class TreewidthPreprocessor {
+
+	/**
+	 * The kernels left by preprocessing, and the lower bound implied by the reductions.
+	 */
+	public static class Result<V> {
+
+		private final int lowerbound;
+		private final List<UndirectedGraph<V>> kernels;
+
+		private Result(int lowerbound, List<UndirectedGraph<V>> kernels) {
+			this.lowerbound = lowerbound;
+			this.kernels = Collections.unmodifiableList(kernels);
+		}
+
+		public int getLowerBound() {
+			return lowerbound;
+		}
+
+		/**
+		 * @return the atoms of the reduced graph which have edges.
+		 */
+		public List<UndirectedGraph<V>> getKernels() {
+			return kernels;
+		}
+	}
+
+	/**
+	 * Reduces the graph and splits it at clique separators.
+	 * 
+	 * @param graph	The graph.
+	 * @param low	A lower bound on the treewidth of the graph, or the width being 
+	 * 				tested when deciding whether treewidth is at most a given width.
+	 */
+	public static <V> Result<V> preprocess(UndirectedGraph<V> graph, int low) {
+		Map<V, Set<V>> adjacent = copy(graph);
+		low = reduce(adjacent, low);
+
+		List<UndirectedGraph<V>> kernels = new ArrayList<UndirectedGraph<V>>();
+		for (Set<V> atom : getAtoms(adjacent)) {
+			UndirectedGraph<V> kernel = induce(adjacent, atom);
+			if (kernel.getSize() > 0)
+				kernels.add(kernel);
+		}
+
+		return new Result<V>(low, kernels);
+	}
+
+	/*
+	 * Applies the reduction rules until none apply, removing vertices from the 
+	 * adjacency map, and returns the new low.
+	 */
+	private static <V> int reduce(Map<V, Set<V>> adjacent, int low) {
+
+		Set<V> queue = new LinkedHashSet<V>(adjacent.keySet());
+		while (!queue.isEmpty()) {
+			Iterator<V> it = queue.iterator();
+			V v = it.next();
+			it.remove();
+
+			Set<V> nbrs = adjacent.get(v);
+			int degree = nbrs.size();
+
+			boolean removed = true;
+			if (degree == 0) { // islet
+				adjacent.remove(v);
+			}
+			else if (degree == 1) { // twig
+				eliminate(adjacent, v);
+				low = Math.max(low, 1);
+			}
+			else if (degree == 2 && low >= 2) { // series
+				eliminate(adjacent, v);
+			}
+			else if (degree == 3 && low >= 3 && hasEdge(adjacent, nbrs)) { // triangle
+				eliminate(adjacent, v);
+			}
+			else {
+				List<V> missing = getMissingEdge(adjacent, nbrs);
+				if (missing == null) { // simplicial
+					eliminate(adjacent, v);
+					low = Math.max(low, degree);
+				}
+				else if (degree <= low && isAlmostSimplicial(adjacent, nbrs, missing)) {
+					eliminate(adjacent, v);
+				}
+				else
+					removed = false;
+			}
+
+			if (removed)
+				queue.addAll(nbrs);
+		}
+
+		return low;
+	}
+
+	/*
+	 * Removes v and makes its neighbours a clique.
+	 */
+	private static <V> void eliminate(Map<V, Set<V>> adjacent, V v) {
+		Set<V> nbrs = adjacent.remove(v);
+		for (V u : nbrs) {
+			Set<V> uNbrs = adjacent.get(u);
+			uNbrs.remove(v);
+			for (V w : nbrs) {
+				if (!w.equals(u))
+					uNbrs.add(w);
+			}
+		}
+	}
+
+	private static <V> boolean hasEdge(Map<V, Set<V>> adjacent, Set<V> vertices) {
+		for (V u : vertices) {
+			for (V w : adjacent.get(u)) {
+				if (vertices.contains(w))
+					return true;
+			}
+		}
+		return false;
+	}
+
+	/*
+	 * Returns the endpoints of a missing edge between the vertices, or null if they 
+	 * are a clique.
+	 */
+	private static <V> List<V> getMissingEdge(Map<V, Set<V>> adjacent, Set<V> vertices) {
+		List<V> list = new ArrayList<V>(vertices);
+		for (int i = 0; i < list.size(); i++) {
+			Set<V> iNbrs = adjacent.get(list.get(i));
+			for (int j = i + 1; j < list.size(); j++) {
+				if (!iNbrs.contains(list.get(j)))
+					return Arrays.asList(list.get(i), list.get(j));
+			}
+		}
+		return null;
+	}
+
+	/*
+	 * The vertices form a clique once one of the endpoints of the missing edge is 
+	 * removed.
+	 */
+	private static <V> boolean isAlmostSimplicial(Map<V, Set<V>> adjacent, Set<V> nbrs, List<V> missing) {
+		for (V w : missing) {
+			Set<V> rest = new HashSet<V>(nbrs);
+			rest.remove(w);
+			if (getMissingEdge(adjacent, rest) == null)
+				return true;
+		}
+		return false;
+	}
+
+	/*
+	 * Splits the graph into atoms at clique minimal separators, following Berry, 
+	 * Pogorelcnik and Simonet. MCS-M numbers the vertices, giving a minimal 
+	 * triangulation, and records the vertices which generate minimal separators. In 
+	 * numbering order, the separator of each generator is the set of its neighbours 
+	 * numbered after it in the triangulation. If it is a clique in the graph, the 
+	 * component containing the generator is split off with it.
+	 */
+	private static <V> List<Set<V>> getAtoms(Map<V, Set<V>> adjacent) {
+
+		int n = adjacent.size();
+		List<V> vertices = new ArrayList<V>(adjacent.keySet());
+		Map<V, Integer> index = new HashMap<V, Integer>();
+		for (V v : vertices)
+			index.put(v, index.size());
+
+		int[][] adj = new int[n][];
+		for (int i = 0; i < n; i++) {
+			Set<V> nbrs = adjacent.get(vertices.get(i));
+			adj[i] = new int[nbrs.size()];
+			int j = 0;
+			for (V u : nbrs)
+				adj[i][j++] = index.get(u);
+		}
+
+		// MCS-M
+		int[] weight = new int[n];
+		int[] number = new int[n];
+		boolean[] numbered = new boolean[n];
+		int[] order = new int[n];
+		List<Set<Integer>> madj = new ArrayList<Set<Integer>>();
+		for (int i = 0; i < n; i++)
+			madj.add(new HashSet<Integer>());
+		boolean[] generator = new boolean[n];
+
+		int prevWeight = -1;
+		for (int i = n - 1; i >= 0; i--) {
+			int x = -1;
+			for (int v = 0; v < n; v++) {
+				if (!numbered[v] && (x == -1 || weight[v] > weight[x]))
+					x = v;
+			}
+
+			if (weight[x] <= prevWeight)
+				generator[x] = true;
+			prevWeight = weight[x];
+
+			numbered[x] = true;
+			number[x] = i;
+			order[i] = x;
+
+			// raise the weight of each vertex reachable through lower weighted vertices
+			for (int y : getReachable(adj, weight, numbered, x)) {
+				weight[y]++;
+				madj.get(y).add(x);
+			}
+		}
+
+		// atoms
+		Set<Integer> remaining = new HashSet<Integer>();
+		for (int v = 0; v < n; v++)
+			remaining.add(v);
+
+		List<Set<V>> atoms = new ArrayList<Set<V>>();
+		for (int i = 0; i < n; i++) {
+			int x = order[i];
+			Set<Integer> separator = madj.get(x);
+			if (!generator[x] || !remaining.contains(x) || !remaining.containsAll(separator))
+				continue;
+
+			if (!isClique(adj, separator))
+				continue;
+
+			Set<Integer> component = getComponent(adj, remaining, separator, x);
+			if (component.size() + separator.size() == remaining.size())
+				continue; // separates nothing
+
+			Set<V> atom = new HashSet<V>();
+			for (int v : component)
+				atom.add(vertices.get(v));
+			for (int v : separator)
+				atom.add(vertices.get(v));
+			atoms.add(atom);
+
+			remaining.removeAll(component);
+		}
+
+		Set<V> atom = new HashSet<V>();
+		for (int v : remaining)
+			atom.add(vertices.get(v));
+		atoms.add(atom);
+
+		return atoms;
+	}
+
+	/*
+	 * The unnumbered vertices y reachable from x by a path whose inner vertices are 
+	 * unnumbered and weigh less than y, found by a search which minimises the largest 
+	 * inner weight on the path.
+	 */
+	private static List<Integer> getReachable(int[][] adj, int[] weight, boolean[] numbered, int x) {
+		final int[] cost = new int[adj.length];
+		Arrays.fill(cost, Integer.MAX_VALUE);
+
+		PriorityQueue<int[]> queue = new PriorityQueue<int[]>(11, new Comparator<int[]>() {
+			@Override
+			public int compare(int[] a, int[] b) {
+				return Integer.compare(a[1], b[1]);
+			}
+		});
+
+		for (int y : adj[x]) {
+			if (!numbered[y]) {
+				cost[y] = -1;
+				queue.add(new int[] { y, -1 });
+			}
+		}
+
+		while (!queue.isEmpty()) {
+			int[] next = queue.poll();
+			int y = next[0];
+			if (next[1] > cost[y])
+				continue;
+
+			int through = Math.max(cost[y], weight[y]);
+			for (int z : adj[y]) {
+				if (!numbered[z] && through < cost[z]) {
+					cost[z] = through;
+					queue.add(new int[] { z, through });
+				}
+			}
+		}
+
+		List<Integer> reachable = new ArrayList<Integer>();
+		for (int y = 0; y < adj.length; y++) {
+			if (!numbered[y] && cost[y] < weight[y])
+				reachable.add(y);
+		}
+		return reachable;
+	}
+
+	private static boolean isClique(int[][] adj, Set<Integer> vertices) {
+		for (int v : vertices) {
+			int count = 0;
+			for (int u : adj[v]) {
+				if (vertices.contains(u))
+					count++;
+			}
+			if (count != vertices.size() - 1)
+				return false;
+		}
+		return true;
+	}
+
+	private static Set<Integer> getComponent(int[][] adj, Set<Integer> remaining, Set<Integer> separator, int start) {
+		Set<Integer> component = new HashSet<Integer>();
+		component.add(start);
+		ArrayDeque<Integer> queue = new ArrayDeque<Integer>();
+		queue.add(start);
+		while (!queue.isEmpty()) {
+			int v = queue.poll();
+			for (int u : adj[v]) {
+				if (remaining.contains(u) && !separator.contains(u) && component.add(u))
+					queue.add(u);
+			}
+		}
+		return component;
+	}
+
+	private static <V> Map<V, Set<V>> copy(UndirectedGraph<V> graph) {
+		Map<V, Set<V>> adjacent = new HashMap<V, Set<V>>();
+		for (V v : graph.getVertices()) {
+			Set<V> nbrs = new HashSet<V>(graph.getLinksFrom(v));
+			nbrs.remove(v);
+			adjacent.put(v, nbrs);
+		}
+		return adjacent;
+	}
+
+	private static <V> UndirectedGraph<V> induce(Map<V, Set<V>> adjacent, Set<V> vertices) {
+		UndirectedGraph<V> graph = new UndirectedGraph<V>();
+		for (V v : vertices) {
+			graph.addVertex(v);
+			for (V u : adjacent.get(v)) {
+				if (vertices.contains(u))
+					graph.addEdge(v, u);
+			}
+		}
+		return graph;
+	}
+
+	private TreewidthPreprocessor() { }
+
+}
@@ -0,0 +1,389 @@
+/*******************************************************************************
+ * MKTR - Minimal k-Treewidth Relaxation
+ *
+ * Copyright (C) 2018
+ * Max Waters (max.waters@rmit.edu.au)
+ * RMIT University, Melbourne VIC 3000
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package au.rmit.agtgrp.pp.partialplan.pcplan.optimiser;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import au.rmit.agtgrp.csp.ExpressionCsp;
+import au.rmit.agtgrp.lang.fol.Substitution;
+import au.rmit.agtgrp.lang.fol.expression.Expression;
+import au.rmit.agtgrp.lang.fol.function.Constant;
+import au.rmit.agtgrp.lang.fol.predicate.Literal;
+import au.rmit.agtgrp.lang.fol.predicate.Predicate;
+import au.rmit.agtgrp.lang.fol.symbol.Term;
+import au.rmit.agtgrp.lang.fol.symbol.Type;
+import au.rmit.agtgrp.lang.fol.symbol.Variable;
+import au.rmit.agtgrp.lang.pddl.Operator;
+import au.rmit.agtgrp.lang.pddl.OperatorFactory;
+import au.rmit.agtgrp.lang.pddl.PddlDomain;
+import au.rmit.agtgrp.lang.pddl.PddlProblem;
+import au.rmit.agtgrp.lang.pddl.Plan;
+import au.rmit.agtgrp.lang.pddl.PlanFactory;
+import au.rmit.agtgrp.lang.pddl.State;
+import au.rmit.agtgrp.lang.pddl.pct.CausalStructureFactory;
+import au.rmit.agtgrp.lang.pddl.pct.CausalStucture;
+import au.rmit.agtgrp.pp.partialplan.pcplan.PcPlan;
+import au.rmit.agtgrp.pp.partialplan.pcplan.encoder.PcToCspEncoder;
+
+/**
+ * Checks that CSPs optimised on several threads at once are the same as those
+ * optimised one at a time. The instances are small gripper and blocksworld problems
+ * with valid plans, built directly so that no PDDL parser is needed. For each plan,
+ * the CSPs of its equivalent PC plan and of its fully relaxed PC plan are encoded
+ * and optimised sequentially, then several copies of each are optimised at once.
+ */
+public class CspOptimiserConcurrencyTest {
+
+	private static final String[] ENCODERS = { "ModalTruthRestrictedOrder", "ModalTruthEncoder" };
+	private static final int N_COPIES = 4;
+
+	private static ExecutorService executor;
+
+	@BeforeClass
+	public static void setUp() {
+		executor = Executors.newFixedThreadPool(Math.max(4, Runtime.getRuntime().availableProcessors()));
+	}
+
+	@AfterClass
+	public static void tearDown() {
+		executor.shutdownNow();
+	}
+
+	@Test
+	public void testGripper() throws Exception {
+		Type.clearTypeHierarchy();
+		checkParallelOptimisation(Arrays.asList(buildGripperPlan(2), buildGripperPlan(3), buildGripperPlan(5)));
+	}
+
+	@Test
+	public void testBlocksworld() throws Exception {
+		Type.clearTypeHierarchy();
+		checkParallelOptimisation(Arrays.asList(buildBlocksworldPlan(3), buildBlocksworldPlan(4), buildBlocksworldPlan(6)));
+	}
+
+	private void checkParallelOptimisation(List<Plan> plans) throws Exception {
+
+		for (Plan plan : plans) {
+			PddlProblem.PlanResult result = plan.getProblem().validatePlan(plan);
+			assertTrue(result.message, result.isValid);
+		}
+
+		for (final String encoderName : ENCODERS) {
+			List<List<String>> expected = new ArrayList<List<String>>();
+			for (Plan plan : plans)
+				expected.add(optimise(encoderName, plan));
+
+			List<Future<List<String>>> futures = new ArrayList<Future<List<String>>>();
+			for (int i = 0; i < N_COPIES; i++) {
+				for (final Plan plan : plans) {
+					futures.add(executor.submit(new Callable<List<String>>() {
+						@Override
+						public List<String> call() throws Exception {
+							return optimise(encoderName, plan);
+						}
+					}));
+				}
+			}
+
+			for (int i = 0; i < futures.size(); i++) {
+				Plan plan = plans.get(i % plans.size());
+				assertEquals(encoderName + " " + plan.getProblem().getName(), expected.get(i % plans.size()), futures.get(i).get());
+			}
+		}
+	}
+
+	/*
+	 * Builds the PC plans, encodes them and optimises them, with no state shared with
+	 * other calls other than the plan.
+	 */
+	private static List<String> optimise(String encoderName, Plan plan) {
+		PcToCspEncoder encoder = PcToCspEncoder.getInstance(encoderName);
+
+		PcPlan pcPlan = CausalStructureFactory.getEquivalentPcoPlan(plan, encoder.isTotalOrder());
+		CausalStucture minimal = CausalStructureFactory.getMinimalPcoConstraints(plan, encoder.isTotalOrder(), 1);
+		PcPlan relaxed = new PcPlan(plan.getProblem(), plan.getPlanSteps(), plan.getSubstitution(), minimal);
+
+		List<String> lines = new ArrayList<String>();
+		lines.add("equivalent");
+		lines.addAll(describe(encoder.toCSP(pcPlan, true, true, true)));
+		lines.add("relaxed");
+		lines.addAll(describe(encoder.toCSP(relaxed, true, true, true)));
+		return lines;
+	}
+
+	/*
+	 * A canonical description of a CSP: each variable's domain, and each constraint
+	 * with its scope, sorted.
+	 */
+	private static List<String> describe(ExpressionCsp csp) {
+		List<String> lines = new ArrayList<String>();
+
+		for (Map.Entry<Variable, Set<Constant>> e : csp.getDomains().entrySet()) {
+			List<String> values = new ArrayList<String>();
+			for (Constant c : e.getValue())
+				values.add(c.toString());
+			Collections.sort(values);
+			lines.add("domain " + e.getKey() + " " + values);
+		}
+
+		for (Map.Entry<List<Variable>, List<Expression<Variable>>> e : csp.getConstraints().entrySet()) {
+			for (Expression<Variable> con : e.getValue())
+				lines.add("constraint " + e.getKey() + " " + con);
+		}
+
+		Collections.sort(lines);
+		return lines;
+	}
+
+	/*
+	 * Gripper: all balls start in room A and must be moved to room B, two at a time.
+	 */
+	private static Plan buildGripperPlan(int nBalls) {
+
+		Type object = new Type("object");
+		Type room = new Type("room");
+		Type ball = new Type("ball");
+		Type gripper = new Type("gripper");
+		for (Type t : Arrays.asList(room, ball, gripper))
+			t.setSupertype(object);
+
+		Predicate atRobby = new Predicate("at-robby", room);
+		Predicate at = new Predicate("at", ball, room);
+		Predicate free = new Predicate("free", gripper);
+		Predicate carry = new Predicate("carry", ball, gripper);
+
+		Operator<Variable> move = buildOperator("move", new OperatorBuilder() {
+			void build(OperatorFactory<Variable> of) {
+				of.addPrecondition(atRobby, true, 0);
+				of.addPrecondition(Predicate.EQUALS, false, 0, 1);
+				of.addPostcondition(atRobby, true, 1);
+				of.addPostcondition(atRobby, false, 0);
+			}
+		}, room, room);
+
+		Operator<Variable> pick = buildOperator("pick", new OperatorBuilder() {
+			void build(OperatorFactory<Variable> of) {
+				of.addPrecondition(at, true, 0, 1);
+				of.addPrecondition(atRobby, true, 1);
+				of.addPrecondition(free, true, 2);
+				of.addPostcondition(carry, true, 0, 2);
+				of.addPostcondition(at, false, 0, 1);
+				of.addPostcondition(free, false, 2);
+			}
+		}, ball, room, gripper);
+
+		Operator<Variable> drop = buildOperator("drop", new OperatorBuilder() {
+			void build(OperatorFactory<Variable> of) {
+				of.addPrecondition(carry, true, 0, 2);
+				of.addPrecondition(atRobby, true, 1);
+				of.addPostcondition(at, true, 0, 1);
+				of.addPostcondition(free, true, 2);
+				of.addPostcondition(carry, false, 0, 2);
+			}
+		}, ball, room, gripper);
+
+		PddlDomain domain = new PddlDomain("gripper",
+				new HashSet<Predicate>(Arrays.asList(atRobby, at, free, carry)),
+				new HashSet<Type>(Arrays.asList(object, room, ball, gripper)),
+				new HashSet<Constant>(),
+				new HashSet<Operator<Variable>>(Arrays.asList(move, pick, drop)));
+
+		Constant roomA = new Constant(room, "rooma");
+		Constant roomB = new Constant(room, "roomb");
+		Constant[] grippers = { new Constant(gripper, "left"), new Constant(gripper, "right") };
+		List<Constant> balls = new ArrayList<Constant>();
+		for (int i = 1; i <= nBalls; i++)
+			balls.add(new Constant(ball, "ball" + i));
+
+		Set<Constant> objects = new HashSet<Constant>(balls);
+		objects.addAll(Arrays.asList(roomA, roomB, grippers[0], grippers[1]));
+
+		List<Literal<Constant>> init = new ArrayList<Literal<Constant>>();
+		init.add(fact(atRobby, true, roomA));
+		for (Constant g : grippers)
+			init.add(fact(free, true, g));
+		List<Literal<Constant>> goal = new ArrayList<Literal<Constant>>();
+		for (Constant b : balls) {
+			init.add(fact(at, true, b, roomA));
+			goal.add(fact(at, true, b, roomB));
+		}
+
+		PddlProblem problem = new PddlProblem(domain, "gripper-" + nBalls, objects,
+				new State<Constant>(init), new State<Constant>(goal));
+
+		List<Operator<Constant>> steps = new ArrayList<Operator<Constant>>();
+		for (int i = 0; i < nBalls; i += 2) {
+			int n = Math.min(2, nBalls - i);
+			if (i > 0)
+				steps.add(ground(move, roomB, roomA));
+			for (int j = 0; j < n; j++)
+				steps.add(ground(pick, balls.get(i + j), roomA, grippers[j]));
+			steps.add(ground(move, roomA, roomB));
+			for (int j = 0; j < n; j++)
+				steps.add(ground(drop, balls.get(i + j), roomB, grippers[j]));
+		}
+
+		return PlanFactory.formatAsPlan(problem, steps, true, true);
+	}
+
+	/*
+	 * Blocksworld: a tower of blocks is reversed.
+	 */
+	private static Plan buildBlocksworldPlan(int nBlocks) {
+
+		Type object = new Type("object");
+		Type block = new Type("block");
+		block.setSupertype(object);
+
+		Predicate on = new Predicate("on", block, block);
+		Predicate onTable = new Predicate("ontable", block);
+		Predicate clear = new Predicate("clear", block);
+		Predicate handEmpty = new Predicate("handempty");
+		Predicate holding = new Predicate("holding", block);
+
+		Operator<Variable> pickUp = buildOperator("pick-up", new OperatorBuilder() {
+			void build(OperatorFactory<Variable> of) {
+				of.addPrecondition(clear, true, 0);
+				of.addPrecondition(onTable, true, 0);
+				of.addPrecondition(handEmpty, true);
+				of.addPostcondition(onTable, false, 0);
+				of.addPostcondition(clear, false, 0);
+				of.addPostcondition(handEmpty, false);
+				of.addPostcondition(holding, true, 0);
+			}
+		}, block);
+
+		Operator<Variable> putDown = buildOperator("put-down", new OperatorBuilder() {
+			void build(OperatorFactory<Variable> of) {
+				of.addPrecondition(holding, true, 0);
+				of.addPostcondition(holding, false, 0);
+				of.addPostcondition(clear, true, 0);
+				of.addPostcondition(handEmpty, true);
+				of.addPostcondition(onTable, true, 0);
+			}
+		}, block);
+
+		Operator<Variable> stack = buildOperator("stack", new OperatorBuilder() {
+			void build(OperatorFactory<Variable> of) {
+				of.addPrecondition(holding, true, 0);
+				of.addPrecondition(clear, true, 1);
+				of.addPostcondition(holding, false, 0);
+				of.addPostcondition(clear, false, 1);
+				of.addPostcondition(clear, true, 0);
+				of.addPostcondition(handEmpty, true);
+				of.addPostcondition(on, true, 0, 1);
+			}
+		}, block, block);
+
+		Operator<Variable> unstack = buildOperator("unstack", new OperatorBuilder() {
+			void build(OperatorFactory<Variable> of) {
+				of.addPrecondition(on, true, 0, 1);
+				of.addPrecondition(clear, true, 0);
+				of.addPrecondition(handEmpty, true);
+				of.addPostcondition(holding, true, 0);
+				of.addPostcondition(clear, true, 1);
+				of.addPostcondition(clear, false, 0);
+				of.addPostcondition(handEmpty, false);
+				of.addPostcondition(on, false, 0, 1);
+			}
+		}, block, block);
+
+		PddlDomain domain = new PddlDomain("blocksworld",
+				new HashSet<Predicate>(Arrays.asList(on, onTable, clear, handEmpty, holding)),
+				new HashSet<Type>(Arrays.asList(object, block)),
+				new HashSet<Constant>(),
+				new HashSet<Operator<Variable>>(Arrays.asList(pickUp, putDown, stack, unstack)));
+
+		// blocks.get(0) is on top of the tower, blocks.get(nBlocks - 1) is on the table
+		List<Constant> blocks = new ArrayList<Constant>();
+		for (int i = 1; i <= nBlocks; i++)
+			blocks.add(new Constant(block, "b" + i));
+
+		List<Literal<Constant>> init = new ArrayList<Literal<Constant>>();
+		List<Literal<Constant>> goal = new ArrayList<Literal<Constant>>();
+		init.add(fact(handEmpty, true));
+		init.add(fact(clear, true, blocks.get(0)));
+		init.add(fact(onTable, true, blocks.get(nBlocks - 1)));
+		for (int i = 0; i < nBlocks - 1; i++) {
+			init.add(fact(on, true, blocks.get(i), blocks.get(i + 1)));
+			goal.add(fact(on, true, blocks.get(i + 1), blocks.get(i)));
+		}
+
+		PddlProblem problem = new PddlProblem(domain, "blocksworld-" + nBlocks, new HashSet<Constant>(blocks),
+				new State<Constant>(init), new State<Constant>(goal));
+
+		List<Operator<Constant>> steps = new ArrayList<Operator<Constant>>();
+		steps.add(ground(unstack, blocks.get(0), blocks.get(1)));
+		steps.add(ground(putDown, blocks.get(0)));
+		for (int i = 1; i < nBlocks - 1; i++) {
+			steps.add(ground(unstack, blocks.get(i), blocks.get(i + 1)));
+			steps.add(ground(stack, blocks.get(i), blocks.get(i - 1)));
+		}
+		steps.add(ground(pickUp, blocks.get(nBlocks - 1)));
+		steps.add(ground(stack, blocks.get(nBlocks - 1), blocks.get(nBlocks - 2)));
+
+		return PlanFactory.formatAsPlan(problem, steps, true, true);
+	}
+
+	private static abstract class OperatorBuilder {
+		abstract void build(OperatorFactory<Variable> of);
+	}
+
+	private static Operator<Variable> buildOperator(String name, OperatorBuilder builder, Type... types) {
+		List<Variable> vars = new ArrayList<Variable>();
+		for (int i = 0; i < types.length; i++)
+			vars.add(new Variable(types[i], "?" + name + "-" + i).intern());
+
+		OperatorFactory<Variable> of = new OperatorFactory<Variable>(name);
+		of.addVariables(vars);
+		of.addParameters(vars);
+		builder.build(of);
+		return of.getOperator();
+	}
+
+	private static Operator<Constant> ground(Operator<Variable> op, Constant... params) {
+		return op.applySubstitution(Substitution.build(op.getVariables(), Arrays.asList(params)));
+	}
+
+	private static Literal<Constant> fact(Predicate predicate, boolean value, Constant... params) {
+		List<Constant> consts = Arrays.asList(params);
+		List<Variable> vars = Variable.buildVariables(Term.getTypes(consts));
+		return new Literal<Constant>(predicate, vars, consts, value).intern();
+	}
+
+}